@@ -33,7 +33,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 /**
  * Abstract base class to consume a request from the client / browser.
@@ -72,13 +71,8 @@ public abstract class AbsClientRequestConsumer implements HttpAsyncRequestConsum
 	@Override
 	public void consumeContent(ContentDecoder decoder, IOControl ioctrl) throws IOException {
 		buffer.setWritingIOControl(ioctrl);
-		int n;
-		final ByteBuffer bb = buffer.getByteBuffer();
-		// Make sure the buffer isn't mucked with while we are actually filling it.
-		synchronized (bb) {
-			n = decoder.read(bb); // Decode the data from the client / browser into the buffer
-			buffer.dataWritten();
-		}
+		int n = buffer.readFrom(decoder); // Decode the data from the client / browser into the buffer
+		buffer.dataWritten();
 		String id = (String) context.getAttribute("pokerface.txId");
 		Logger.trace("[client->proxy] " + id + " " + n + " bytes read");
 		if (decoder.isCompleted())
@@ -125,9 +119,13 @@ public abstract class AbsClientRequestConsumer implements HttpAsyncRequestConsum
 
 	/**
 	 * {@inheritDoc}
-	 * This specialization currently does nothing.
+	 * Releases our reference to the request content buffer (if we have one).
+	 * Any object that needs the buffer after the request has been received (e.g. a {@code TargetRequestProducer}) holds it's own reference,
+	 * so a request that is answered without ever reaching a Target (a 404, a 503, or a cached response) still returns it's chunks to the pool.
 	 */
 	@Override
 	public void close() throws IOException {
+		if (buffer != null)
+			buffer.close();
 	}
 }
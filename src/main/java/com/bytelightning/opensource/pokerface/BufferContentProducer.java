@@ -32,7 +32,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 /**
  * Produces asynchronous content from an IOControlled byte buffer.
@@ -77,23 +76,15 @@ public class BufferContentProducer implements HttpAsyncContentProducer {
 	/**
 	 * {@inheritDoc}
 	 * This method is only called if the response has content (which is typically the case).
-	 * It flips it's buffer (which some other object  has asynchronously written into), reads the response data and encodes it out to the client who requested it.
+	 * It drains it's buffer (which some other object has asynchronously written into), encoding the response data out to the client who requested it.
 	 */
 	@SuppressWarnings("Duplicates")
 	@Override
 	public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
 		buffer.setReadingIOControl(ioctrl);
 		// Send data to the client
-		int n;
-		boolean eof;
-		final ByteBuffer bb = buffer.getByteBuffer();
-		// Make sure nobody mucks with the buffer while we are reading from it and encoding its content.
-		synchronized (bb) {
-			bb.flip();
-			n = encoder.write(bb);
-			bb.compact();
-			eof = buffer.dataRead();
-		}
+		int n = buffer.writeTo(encoder);
+		boolean eof = buffer.dataRead();
 		Logger.trace("[client<-" + role + "] " + txId + " " + n + " bytes written");
 		if (eof)
 			encoder.complete();
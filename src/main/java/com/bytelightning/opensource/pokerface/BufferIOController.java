@@ -25,106 +25,282 @@ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
 SOFTWARE.
  */
 
-import org.apache.commons.pool2.ObjectPool;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.ContentEncoder;
 import org.apache.http.nio.IOControl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
- * This class provides flow control of a shared read/write {@code ByteBuffer} which it lazily obtains from a {@code ObjectPool}.
+ * This class provides flow control of content streamed from one reactor thread (the writer, which decodes it) to another (the reader, which encodes it).
  * One will be allocated for each request received from a client and another will be allocated to produce the response back to the client.
  * The flow control methods enable an {@code AbsClientRequestConsumer} to read in client request data,
- * which hands off to a {@code TargetRequestProducer} who flips the buffer and writes it's content out to the target.
+ * which hands off to a {@code TargetRequestProducer} who writes it's content out to the target.
+ * Content is held in a single-producer / single-consumer queue of chunks which are lazily obtained from a {@code BufferPool}.
+ * The first chunk is of the pool's smallest size class, and each subsequent chunk is of a larger class (up to {@link #MaxChunkSize}), so small messages stay small.
+ * The writer only ever fills the last chunk, and the reader only ever drains the first, so content is never compacted (copied), and the two threads share no lock.
+ * They communicate solely through the (volatile) count of bytes written and read, the fill level of each chunk, and the links between chunks.
+ * Once the content that has been written but not yet read reaches the high watermark, the writer's input is suspended until the reader has drained it down to the low watermark.
+ * A buffer may optionally be placed in replay mode, in which case chunks that have been read are retained (up to a limit) so that their content can be read again if the request must be retried.
+ * NOTE: {@link #readFrom(ContentDecoder, Consumer)} and {@link #dataWritten()} must only be called by the writer, and {@link #writeTo(ContentEncoder)}, {@link #dataRead()} and {@link #rewind()} by the reader.
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class BufferIOController {
 	protected static final Logger Logger = LoggerFactory.getLogger(BufferIOController.class.getPackage().getName());
 
+	/**
+	 * The largest chunk the writer will ask the pool for.
+	 */
+	public static final int MaxChunkSize = 64 * 1024;
+
 	/**
 	 * Primary constructor
 	 *
-	 * @param bufferPool A reusable pool of {@code ByteBuffer}s that this object can lazily borrow from (and return to).
+	 * @param bufferPool A reusable pool of {@code ByteBuffer}s that this object can lazily borrow chunks from (and return them to).
 	 */
-	public BufferIOController(ObjectPool<ByteBuffer> bufferPool) {
+	public BufferIOController(BufferPool bufferPool) {
 		this.bufferPool = bufferPool;
+		this.references = new AtomicInteger(1);
+		setWatermarks(0, 0);
 	}
 
+	private final AtomicInteger references;
+
 	/**
-	 * This method MUST be called to clean up any borrowed {@code ByteBuffer}s.
+	 * Add a reference to this buffer, so that it will not be returned to the pool until {@link #close()} has been called once more than this method.
+	 * This allows a second object (such as the producer of a retried request) to take shared ownership of the buffer.
+	 */
+	public void retain() {
+		references.incrementAndGet();
+	}
+
+	/**
+	 * This method MUST be called to clean up any borrowed chunks.
+	 * Any content the writer decodes after this is discarded (see {@link #readFrom(ContentDecoder, Consumer)}), so a suspended writer is resumed to let it finish.
 	 */
 	public void close() {
-		if (borrowedBuffer) {
-			try {
-				buffer.clear();
-				bufferPool.returnObject(buffer);
-				buffer = null;
-				borrowedBuffer = false;
-				// This assertion can fail in cases of a connection being forced close by the client.
-				// However, most folks don't run with assertions enabled in prod, and I consider the tradeoff acceptable (for now) to ensure that we are cleaning up properly.
-				assert writeCompleted;
-			} catch (Exception | AssertionError e) {
-				Logger.error("Unable to return ByteBuffer to pool", e);
-			}
+		if (references.decrementAndGet() > 0)
+			return;
+		closed = true;
+		resumeWriter();
+		Chunk chunk = first;
+		if (chunk != null) {
+			first = null;
+			head = null;
+			tail = null;
+			for (; chunk != null; chunk = chunk.next)
+				bufferPool.release(chunk.buffer);
+			// The reader may finish (e.g. once a Content-Length has been sent) a moment before the writer reports it is done, but it should never leave content behind.
+			// This assertion can fail in cases of a connection being forced close by the client.
+			// However, most folks don't run with assertions enabled in prod, and I consider the tradeoff acceptable (for now) to ensure that we are cleaning up properly.
+			assert writeCompleted || (available() == 0);
 		}
 	}
 
+	private volatile boolean closed;
+	private ByteBuffer discardBuffer;   // Only accessed by the writer (once closed).
+
 	/**
 	 * Returns the pool from which this IOEontroller allocates {@code ByteBuffer}s.
 	 * Please use this method responsibly!
 	 */
-	protected ObjectPool<ByteBuffer> getPool() {
+	protected BufferPool getPool() {
 		return bufferPool;
 	}
 
-	private final ObjectPool<ByteBuffer> bufferPool;
+	private final BufferPool bufferPool;
 
 	/**
-	 * Returns the {@code ByteBuffer}, lazily obtaining one from the pool if need be.
+	 * A pooled {@code ByteBuffer} in the queue.
+	 * The writer fills {@code buffer} (and publishes how far it has filled it), while the reader drains it through it's own view of the same memory.
 	 */
-	public ByteBuffer getByteBuffer() {
-		if (buffer == null) {
-			synchronized (this) {
-				if (buffer == null) {
-					try {
-						buffer = bufferPool.borrowObject();
-						borrowedBuffer = true;
-					} catch (Exception e) {
-						buffer = ByteBuffer.allocateDirect(1024 * 1024);
-						borrowedBuffer = false;
-					}
-					buffer.clear();
-				}
-			}
+	private static final class Chunk {
+		Chunk(ByteBuffer buffer) {
+			this.buffer = buffer;
+			this.view = buffer.duplicate();
+			this.view.limit(0);
 		}
-		return buffer;
+
+		final ByteBuffer buffer;    // Only touched by the writer.
+		final ByteBuffer view;      // Only touched by the reader.
+		volatile int filled;
+		volatile Chunk next;
+	}
+
+	private volatile Chunk first;   // The oldest chunk still held (the same as head unless content is being retained for replay).
+	private volatile Chunk head;    // The chunk the reader is draining.
+	private volatile Chunk tail;    // The chunk the writer is filling.
+	private volatile long written;  // Only updated by the writer.
+	private volatile long read;     // Only updated by the reader.
+
+	/**
+	 * Set the flow control thresholds (in bytes) for this buffer.
+	 * The writer is suspended once {@code high} bytes are waiting to be read, and is resumed once no more than {@code low} bytes are waiting.
+	 *
+	 * @param high The high watermark (zero or less for the pool's maximum buffer size).
+	 * @param low  The low watermark (less than zero for half of the high watermark).
+	 */
+	public void setWatermarks(int high, int low) {
+		if (high <= 0)
+			high = bufferPool.getMaxBufferSize();
+		if ((low < 0) || (low >= high))
+			low = high / 2;
+		this.highWater = high;
+		this.lowWater = low;
 	}
 
-	private volatile ByteBuffer buffer;
-	private volatile boolean borrowedBuffer;
+	private volatile int highWater;
+	private volatile int lowWater;
 
 	/**
-	 * This flow control method notifies us of the {@code IOControl} that will be writing to our {@code ByteBuffer}.
+	 * This flow control method notifies us of the {@code IOControl} that will be writing to our buffer.
 	 */
 	public void setWritingIOControl(IOControl writingControl) {
 		this.writingControl = writingControl;
 	}
 
 	private volatile IOControl writingControl;
+	private volatile boolean writerSuspended;
+	private volatile boolean writerAwaitsMemory;
+	private boolean starved;    // Only accessed by the writer (true if the pool could not supply a chunk).
+
+	/**
+	 * Decode as much content as is available (and will fit in the current chunk) into this buffer.
+	 * Once this buffer has been closed the reader is gone, so all available content is decoded and discarded (after being handed to the {@code observer}),
+	 * allowing the writer's connection (and any cache fill observing it) to run to completion without taking memory from the pool.
+	 *
+	 * @param decoder  The source of the content.
+	 * @param observer If non-null, is handed a read only view of the content that was decoded (it's position and limit may be altered, but not it's content).
+	 * @return The number of bytes decoded (or -1 at the end of the stream).
+	 */
+	public int readFrom(ContentDecoder decoder, Consumer<ByteBuffer> observer) throws IOException {
+		if (closed)
+			return discard(decoder, observer);
+		Chunk chunk = writableChunk();
+		if (chunk == null) {
+			starved = true;
+			return 0;
+		}
+		starved = false;
+		ByteBuffer bb = chunk.buffer;
+		int start = bb.position();
+		int n = decoder.read(bb);
+		if (n > 0) {
+			if (observer != null) {
+				ByteBuffer content = bb.asReadOnlyBuffer();
+				content.flip();
+				content.position(start);
+				observer.accept(content);
+			}
+			chunk.filled = bb.position();
+			written = written + n;   // Publishes the content to the reader.
+			// Stop retaining content for replay once it is clear the content will not fit (the reader will release what it has already read).
+			if ((replayLimit > 0) && (written > replayLimit))
+				replayLimit = 0;
+		}
+		return n;
+	}
+
+	/**
+	 * Decode and discard all available content (handing each piece to the {@code observer} as it goes).
+	 *
+	 * @return The number of bytes discarded (or -1 at the end of the stream).
+	 */
+	private int discard(ContentDecoder decoder, Consumer<ByteBuffer> observer) throws IOException {
+		if (discardBuffer == null)
+			discardBuffer = ByteBuffer.allocate(4096);
+		int total = 0;
+		int n;
+		while ((n = decoder.read(discardBuffer)) > 0) {
+			if (observer != null) {
+				discardBuffer.flip();
+				observer.accept(discardBuffer.asReadOnlyBuffer());
+			}
+			discardBuffer.clear();
+			total += n;
+		}
+		return ((total == 0) && (n < 0)) ? -1 : total;
+	}
+
+	/**
+	 * @see #readFrom(ContentDecoder, Consumer)
+	 */
+	public int readFrom(ContentDecoder decoder) throws IOException {
+		return readFrom(decoder, null);
+	}
+
+	/**
+	 * Returns the chunk the writer should decode into (appending a new one to the queue if the last is full).
+	 *
+	 * @return null if the pool's budget does not allow another chunk at this time.
+	 */
+	private Chunk writableChunk() {
+		Chunk last = tail;
+		if (last == null) {
+			last = new Chunk(bufferPool.acquireInitial());
+			tail = last;
+			first = last;
+			head = last;    // Publishes the chunk to the reader.
+			return last;
+		}
+		if (last.buffer.hasRemaining())
+			return last;
+		ByteBuffer bb = bufferPool.acquire(Math.min(MaxChunkSize, last.buffer.capacity() * 4));
+		if (bb == null)
+			bb = bufferPool.acquire(0);
+		if ((bb == null) && (available() == 0))
+			bb = bufferPool.acquireInitial();   // Nothing the reader drains can free memory for us, so we must overdraw to make progress.
+		if (bb == null)
+			return null;
+		Chunk chunk = new Chunk(bb);
+		tail = chunk;
+		last.next = chunk;  // Publishes the chunk to the reader.
+		return chunk;
+	}
 
 	/**
 	 * This flow control method notifies us that data was written to our buffer (by the 'writing' {@code IOControl}).
-	 * This gives us the opportunity to suspend the 'writing' {@code IOControl} if our buffer is full and to notify the 'reading' {@code IOControl} that data is available.
+	 * This gives us the opportunity to suspend the 'writing' {@code IOControl} if too much content is waiting (or no memory is available) and to notify the 'reading' {@code IOControl} that data is available.
 	 */
 	public void dataWritten() {
-		// If the buffer is full, suspend client input until there is free space in the buffer
-		if (!buffer.hasRemaining())
-			writingControl.suspendInput();
+		if (closed)
+			return;     // Nothing is buffered any more, so the writer is never suspended.
+		if (starved)
+			suspendWriter(true);
+		else if (available() >= highWater)
+			suspendWriter(false);
 		// If there is some content in our buffer make sure anyone consuming it is notified that more is available.
-		if (readingControl != null)
-			if (buffer.position() > 0)
-				readingControl.requestOutput();
+		IOControl reader = readingControl;
+		if ((reader != null) && (available() > 0))
+			reader.requestOutput();
+	}
+
+	/**
+	 * Suspend the writer until the reader has drained our content (see {@link #dataRead()}).
+	 *
+	 * @param forMemory True if the writer is waiting for memory (rather than for the reader to catch up).
+	 */
+	private void suspendWriter(boolean forMemory) {
+		writerAwaitsMemory = forMemory;
+		writerSuspended = true;
+		writingControl.suspendInput();
+		// The reader may have drained the content (and looked for a suspended writer) before we raised the flag.
+		if (forMemory ? available() == 0 : available() <= lowWater)
+			resumeWriter();
+	}
+
+	private void resumeWriter() {
+		if (writerSuspended) {
+			writerSuspended = false;
+			IOControl writer = writingControl;
+			if (writer != null)
+				writer.requestInput();
+		}
 	}
 
 	/**
@@ -132,15 +308,16 @@ public class BufferIOController {
 	 * This also gives us the opportunity to notify the 'reading' {@code IOControl} that data is available.
 	 */
 	public void writeCompleted() {
-		if (readingControl != null)
-			readingControl.requestOutput();
 		writeCompleted = true;
+		IOControl reader = readingControl;
+		if (reader != null)
+			reader.requestOutput();
 	}
 
 	private volatile boolean writeCompleted;
 
 	/**
-	 * This flow control method notifies us of the {@code IOControl} that will be reading from our {@code ByteBuffer}.
+	 * This flow control method notifies us of the {@code IOControl} that will be reading from our buffer.
 	 */
 	public void setReadingIOControl(IOControl readingControl) {
 		this.readingControl = readingControl;
@@ -148,6 +325,56 @@ public class BufferIOController {
 
 	private volatile IOControl readingControl;
 
+	/**
+	 * Encode as much of the buffered content as the {@code encoder} will accept.
+	 * Normally chunks are returned to the pool as soon as they have been drained, but in replay mode they are retained so that their content may be re-read after a {@link #rewind()}.
+	 *
+	 * @return The number of bytes encoded.
+	 */
+	public int writeTo(ContentEncoder encoder) throws IOException {
+		int total = 0;
+		Chunk chunk = head;
+		while (chunk != null) {
+			int filled = chunk.filled;
+			ByteBuffer view = chunk.view;
+			view.limit(filled);
+			if (view.hasRemaining()) {
+				total += encoder.write(view);
+				if (view.hasRemaining())
+					break;  // The encoder will not accept any more for now.
+			}
+			Chunk next = chunk.next;
+			if ((filled < chunk.buffer.capacity()) || (next == null))
+				break;  // The writer is still filling this chunk.
+			chunk = next;
+			head = chunk;
+		}
+		if (total > 0)
+			read = read + total;
+		if (replayLimit <= 0)
+			releaseDrained();
+		return total;
+	}
+
+	/**
+	 * Return the chunks the reader has finished with to the pool.
+	 */
+	private void releaseDrained() {
+		Chunk chunk = first;
+		Chunk current = head;
+		if (chunk == current)
+			return;
+		while ((chunk != null) && (chunk != current)) {
+			Chunk next = chunk.next;
+			bufferPool.release(chunk.buffer);
+			chunk = next;
+		}
+		first = current;
+		// Memory has been freed, so a writer that was waiting for some may be able to proceed.
+		if (writerAwaitsMemory)
+			resumeWriter();
+	}
+
 	/**
 	 * This flow control method notifies us that data was read from our buffer (by the 'reading' {@code IOControl}).
 	 * This gives us the opportunity to suspend the 'reading' {@code IOControl} if our buffer has been fully drained,
@@ -156,17 +383,62 @@ public class BufferIOController {
 	 * @return True if the 'writing' {@code IOControl} has notified us that it has completed writing, AND there is no more data in the buffer to be read.
 	 */
 	public boolean dataRead() {
-		// If there is space in the buffer and the message has not been transferred, make sure the target is sending more data
-		if (buffer.hasRemaining() && !writeCompleted) {
-			if (writingControl != null)
-				writingControl.requestInput();
-		}
-		if (buffer.position() == 0) {
-			if (writeCompleted)
+		// If the writer is waiting on us and we have drained enough, make sure it is sending more data
+		if (writerSuspended && (available() <= lowWater))
+			resumeWriter();
+		if (available() == 0) {
+			// Recheck once we know the writer is done, as it may have written more content after we looked.
+			if (writeCompleted && (available() == 0))
 				return true;
-			// Input buffer is empty. Wait until the client fills up the buffer
+			// Input buffer is empty. Wait until the writer fills it.
 			readingControl.suspendOutput();
+			// The writer may have published content (and requested output) before we suspended.
+			if ((available() > 0) || writeCompleted)
+				readingControl.requestOutput();
 		}
 		return false;
 	}
+
+	/**
+	 * Returns the number of bytes that have been written to, but not yet read from, the buffer.
+	 */
+	protected long available() {
+		return written - read;
+	}
+
+	/**
+	 * Retain all content read from this buffer (for as long as the total content does not exceed {@code limit} bytes) so that it may be replayed.
+	 * This must be called before any content has been read from the buffer.
+	 */
+	public void enableReplay(int limit) {
+		this.replayLimit = Math.max(0, limit);
+	}
+
+	/**
+	 * Returns true if all content that has been read from this buffer is still available to be read again.
+	 */
+	public boolean isReplayable() {
+		return replayLimit > 0;
+	}
+
+	/**
+	 * Reposition the reader to the beginning of the content, so that it may be read again.
+	 * This must only be called while no reader is active (e.g. between attempts to send a request).
+	 *
+	 * @return false if the buffer is not (or is no longer) in replay mode.
+	 */
+	public boolean rewind() {
+		if (replayLimit <= 0)
+			return false;
+		Chunk chunk = first;
+		if (chunk == null)
+			return true;    // Nothing has been written, so there is nothing to rewind.
+		for (Chunk c = chunk; c != null; c = c.next)
+			c.view.position(0);
+		head = chunk;
+		read = 0;
+		return true;
+	}
+
+	private volatile int replayLimit;
 }
@@ -0,0 +1,278 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct {@code ByteBuffer}s segregated into size classes (4K, 16K, 64K, ... up to the configured maximum).
+ * Most proxied messages are small, so a {@code BufferIOController} starts with a chunk from the smallest class and only takes larger chunks when the content actually needs them.
+ * Each class keeps it's own bounded stack of idle buffers (buffers are tracked by identity, never by {@code ByteBuffer.equals}), and it's own hit / miss counters.
+ * Buffers whose capacity matches no class (or which are returned while the class already holds it's limit of idle buffers) are simply dropped for the garbage collector to reclaim.
+ * The direct memory held by the pool's buffers (in use or idle) is bounded by a byte budget.
+ * When the budget would be exceeded, idle buffers are dropped to make room, and if that is not enough the allocation is refused ({@link #acquire(int)} returns null),
+ * so that a {@code BufferIOController} suspends it's writer rather than taking another chunk, and the {@code RequestHandler} turns new transactions away (see {@link #admit()}).
+ * The only exception is the first (smallest class) buffer of a transaction that has already been admitted (see {@link #acquireInitial()}).
+ */
+@SuppressWarnings("WeakerAccess")
+public class BufferPool {
+	/**
+	 * The smallest size class.
+	 */
+	public static final int MinBufferSize = 4 * 1024;
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param maxBufferSize The capacity of the largest buffer this pool will provide (this is always it's largest size class).
+	 * @param maxIdle       The maximum number of idle buffers retained in each size class.
+	 * @param budget        The maximum number of bytes of direct memory the buffers of this pool may hold (it is never less than {@code maxBufferSize}).
+	 */
+	public BufferPool(int maxBufferSize, int maxIdle, long budget) {
+		maxBufferSize = Math.max(MinBufferSize, maxBufferSize);
+		int count = 1;
+		for (int size = MinBufferSize; size < maxBufferSize; size *= 4)
+			count++;
+		classes = new SizeClass[count];
+		int size = MinBufferSize;
+		for (int i = 0; i < count - 1; i++, size *= 4)
+			classes[i] = new SizeClass(size);
+		classes[count - 1] = new SizeClass(maxBufferSize);
+		this.maxIdle = maxIdle;
+		this.budget = Math.max(budget, maxBufferSize);
+		this.allocated = new AtomicLong();
+		this.denied = new LongAdder();
+		this.rejected = new LongAdder();
+		this.overdrafts = new LongAdder();
+		this.trimmed = new LongAdder();
+	}
+
+	private final SizeClass[] classes;
+	private final int maxIdle;
+	private final long budget;
+	private final AtomicLong allocated;     // Bytes held by the buffers of this pool (whether in use or idle).
+	private final LongAdder denied;
+	private final LongAdder rejected;
+	private final LongAdder overdrafts;
+	private final LongAdder trimmed;
+
+	/**
+	 * The idle buffers and counters of a single size class.
+	 */
+	private static final class SizeClass {
+		SizeClass(int size) {
+			this.size = size;
+			this.idle = new ConcurrentLinkedDeque<>();
+			this.idleCount = new AtomicInteger();
+			this.hits = new LongAdder();
+			this.misses = new LongAdder();
+			this.dropped = new LongAdder();
+		}
+
+		final int size;
+		final ConcurrentLinkedDeque<ByteBuffer> idle;
+		final AtomicInteger idleCount;
+		final LongAdder hits;
+		final LongAdder misses;
+		final LongAdder dropped;
+	}
+
+	/**
+	 * Returns the capacity of the largest buffer this pool will provide.
+	 */
+	public int getMaxBufferSize() {
+		return classes[classes.length - 1].size;
+	}
+
+	/**
+	 * Returns the capacity of the buffer {@link #acquire(int)} would provide for the given minimum capacity.
+	 */
+	public int sizeFor(int minCapacity) {
+		return classFor(minCapacity).size;
+	}
+
+	private SizeClass classFor(int minCapacity) {
+		for (SizeClass sc : classes)
+			if (sc.size >= minCapacity)
+				return sc;
+		return classes[classes.length - 1];
+	}
+
+	/**
+	 * Returns the maximum number of bytes of direct memory the buffers of this pool may hold.
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Obtain a cleared buffer from the smallest size class whose capacity is at least {@code minCapacity}
+	 * (or from the largest class if {@code minCapacity} exceeds {@link #getMaxBufferSize()}).
+	 *
+	 * @return null if the budget does not allow a new buffer of that class to be allocated.
+	 */
+	public ByteBuffer acquire(int minCapacity) {
+		return acquire(classFor(minCapacity), false);
+	}
+
+	/**
+	 * Obtain a cleared buffer from the smallest size class for a transaction that has already been {@link #admit() admitted}.
+	 * Such a transaction cannot proceed without it, so this buffer is allocated even if doing so exceeds the budget (which is recorded as an overdraft).
+	 */
+	public ByteBuffer acquireInitial() {
+		return acquire(classes[0], true);
+	}
+
+	private ByteBuffer acquire(SizeClass sc, boolean overdraft) {
+		ByteBuffer retVal = sc.idle.pollFirst();
+		if (retVal != null) {
+			sc.idleCount.decrementAndGet();
+			sc.hits.increment();
+			retVal.clear();
+			return retVal;
+		}
+		sc.misses.increment();
+		if (!charge(sc.size)) {
+			if (!overdraft) {
+				denied.increment();
+				return null;
+			}
+			overdrafts.increment();
+			allocated.addAndGet(sc.size);
+		}
+		return ByteBuffer.allocateDirect(sc.size);
+	}
+
+	/**
+	 * Account for {@code size} more bytes of direct memory, dropping idle buffers if need be to stay within the budget.
+	 *
+	 * @return false if the budget would be exceeded (in which case nothing is accounted for).
+	 */
+	private boolean charge(long size) {
+		while (true) {
+			long current = allocated.get();
+			if (current + size > budget) {
+				if (!trimIdle())
+					return false;
+			}
+			else if (allocated.compareAndSet(current, current + size))
+				return true;
+		}
+	}
+
+	/**
+	 * Drop a single idle buffer (from the largest size class that has one) so that it's memory can be used by a different class.
+	 *
+	 * @return false if there were no idle buffers to drop.
+	 */
+	private boolean trimIdle() {
+		for (int i = classes.length - 1; i >= 0; i--) {
+			SizeClass sc = classes[i];
+			if (sc.idle.pollLast() != null) {
+				sc.idleCount.decrementAndGet();
+				allocated.addAndGet(-sc.size);
+				trimmed.increment();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if there is room within the budget for a new transaction's first buffers (dropping idle buffers of the larger classes if need be).
+	 * Once it has been admitted, the transaction's first buffers are obtained via {@link #acquireInitial()}.
+	 */
+	public boolean admit() {
+		SizeClass smallest = classes[0];
+		while (allocated.get() + 2L * smallest.size > budget) {
+			if (smallest.idleCount.get() >= 2)
+				return true;
+			if (!trimIdle()) {
+				rejected.increment();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return a buffer (previously obtained from {@link #acquire(int)}) to the pool.
+	 * The caller must not touch the buffer after this call.
+	 */
+	public void release(ByteBuffer buffer) {
+		if ((buffer == null) || (!buffer.isDirect()))
+			return;
+		for (SizeClass sc : classes) {
+			if (sc.size == buffer.capacity()) {
+				if (sc.idleCount.incrementAndGet() <= maxIdle) {
+					buffer.clear();
+					sc.idle.offerFirst(buffer);
+				}
+				else {
+					sc.idleCount.decrementAndGet();
+					sc.dropped.increment();
+					allocated.addAndGet(-sc.size);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the state of the budget, and the number of idle buffers (and the number of direct bytes they hold) along with the hit / miss counters of each size class.
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> retVal = new LinkedHashMap<>();
+		long idleBytes = 0;
+		Map<String, Object> sizes = new LinkedHashMap<>();
+		for (SizeClass sc : classes) {
+			Map<String, Object> stats = new LinkedHashMap<>();
+			int idle = sc.idleCount.get();
+			stats.put("idle", idle);
+			stats.put("hits", sc.hits.sum());
+			stats.put("misses", sc.misses.sum());
+			stats.put("dropped", sc.dropped.sum());
+			sizes.put(Integer.toString(sc.size / 1024) + "K", stats);
+			idleBytes += (long) idle * sc.size;
+		}
+		retVal.put("maxBufferSize", getMaxBufferSize());
+		retVal.put("budget", budget);
+		retVal.put("allocatedBytes", allocated.get());
+		retVal.put("idleBytes", idleBytes);
+		retVal.put("denied", denied.sum());
+		retVal.put("rejected", rejected.sum());
+		retVal.put("overdrafts", overdrafts.sum());
+		retVal.put("trimmed", trimmed.sum());
+		retVal.put("classes", sizes);
+		return retVal;
+	}
+}
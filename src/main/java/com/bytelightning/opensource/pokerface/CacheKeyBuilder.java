@@ -0,0 +1,289 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Builds the keys under which the {@code ResponseCache} stores responses.
+ * The primary key of a request is it's normalized uri (see {@link #NormalizeUri(String)}, which sorts, but never drops, the query parameters), so that equivalent uris share an entry
+ * (and so that a purge by url or prefix finds every response to a uri).
+ * The responses a primary key selects between are it's "variants", each stored under a secondary key formed from the values of the request headers which select it
+ * (the primary key holds only a marker listing those header names, so a lookup is always two hash lookups regardless of the number of variants).
+ * The selecting headers are those named by the {@code Vary} header of the Target's response, less any the route ignores, plus any headers and cookies the route always keys on.
+ * {@code Accept-Encoding} is reduced to which of the content codings br, deflate and gzip are acceptable, so it splits a response into at most eight variants rather than one per browser.
+ * A cookie is keyed on by the pseudo header name {@code cookie=<name>}, and if a route names any cookies they take the place of a {@code Vary} on the whole {@code Cookie} header.
+ * Responses generated by JavaScript endpoints are stored under the primary key prefixed by {@code EndpointPrefix}, so that they are never confused with responses from a Target.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CacheKeyBuilder {
+	/**
+	 * Builds keys from the {@code Vary} header of each response alone.
+	 */
+	public static final CacheKeyBuilder Default = new CacheKeyBuilder(null, null, null);
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param headers Request headers whose values always select between the responses to a uri (even if the Target does not say that they do).
+	 * @param cookies Cookies whose values always select between the responses to a uri (and which are the only cookies that do so).
+	 * @param ignore  Request headers which never select between the responses to a uri (even if the Target says that they do).
+	 */
+	public CacheKeyBuilder(String[] headers, String[] cookies, String[] ignore) {
+		this.headers = Lowercase(headers);
+		this.cookies = cookies == null ? new String[0] : cookies.clone();
+		this.ignore = Lowercase(ignore);
+	}
+
+	private final String[] headers;
+	private final String[] cookies;
+	private final String[] ignore;
+
+	/**
+	 * Prefix of the pseudo header name by which a variant is selected by the value of a single cookie.
+	 */
+	private static final String CookiePrefix = "cookie=";
+
+	/**
+	 * The content codings that select between variants which vary by {@code Accept-Encoding}.
+	 */
+	private static final String[] ContentCodings = {"br", "deflate", "gzip"};
+
+	private static String[] Lowercase(String[] names) {
+		if (names == null)
+			return new String[0];
+		String[] retVal = new String[names.length];
+		for (int i = 0; i < names.length; i++)
+			retVal[i] = names[i].trim().toLowerCase(Locale.ROOT);
+		return retVal;
+	}
+
+	/**
+	 * Returns the primary cache key for the specified request (or null if the request is not eligible for caching).
+	 */
+	public static String PrimaryKey(HttpRequest request) {
+		String method = request.getRequestLine().getMethod();
+		if ((!method.equals("GET")) && (!method.equals("HEAD")))
+			return null;
+		if (request instanceof HttpEntityEnclosingRequest)
+			return null;
+		return NormalizeUri(request.getRequestLine().getUri());
+	}
+
+	/**
+	 * Prefix of the primary keys of responses generated by JavaScript endpoints.
+	 */
+	public static final String EndpointPrefix = "endpoint:";
+
+	/**
+	 * Returns the primary cache key for a response generated by a JavaScript endpoint for the specified request (or null if the request is not eligible for caching).
+	 */
+	public static String EndpointKey(HttpRequest request) {
+		String key = PrimaryKey(request);
+		return key == null ? null : EndpointPrefix + key;
+	}
+
+	/**
+	 * Canonicalize a request uri so that equivalent uris map to the same key.
+	 * Dot segments are removed from the path, and the query parameters are sorted by name (with consistent percent encoding).
+	 * Unlike {@code ScriptHelperImpl.NormalizeURL} nothing is dropped: every parameter, and every value of a repeated parameter (in it's original order), is part of the key,
+	 * as any of them may select a different response.
+	 * A path which cannot be normalized is used as is.
+	 */
+	public static String NormalizeUri(String uri) {
+		int q = uri.indexOf('?');
+		String path = q < 0 ? uri : uri.substring(0, q);
+		try {
+			path = new URI(path).normalize().toString();
+		} catch (URISyntaxException ex) {
+			// Use the path as is.
+		}
+		String query = q < 0 ? "" : CanonicalQuery(uri.substring(q + 1));
+		return query.isEmpty() ? path : path + '?' + query;
+	}
+
+	/**
+	 * Sort the parameters of a query string by name (a stable sort, so repeated parameters keep their relative order), re-encoding each name and value consistently.
+	 * Empty parameters (e.g. from a trailing {@code &}) are dropped, as they cannot select a different response.
+	 */
+	private static String CanonicalQuery(String query) {
+		List<String[]> params = new ArrayList<>();
+		for (String pair : query.split("&")) {
+			if (pair.isEmpty())
+				continue;
+			int eq = pair.indexOf('=');
+			String name = eq < 0 ? pair : pair.substring(0, eq);
+			String value = eq < 0 ? null : pair.substring(eq + 1);
+			params.add(new String[]{Reencode(name), value == null ? null : Reencode(value)});
+		}
+		params.sort(Comparator.comparing(param -> param[0]));
+		StringBuilder sb = new StringBuilder();
+		for (String[] param : params) {
+			if (sb.length() > 0)
+				sb.append('&');
+			sb.append(param[0]);
+			if (param[1] != null)
+				sb.append('=').append(param[1]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Decode and re-encode a query string name or value, so that differently (but equivalently) encoded values are identical.
+	 * A value which cannot be decoded is used as is.
+	 */
+	private static String Reencode(String value) {
+		try {
+			return URLEncoder.encode(URLDecoder.decode(value, "UTF-8"), "UTF-8");
+		} catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+			return value;
+		}
+	}
+
+	/**
+	 * Determine the (sorted) names of the request headers which select the {@code response} from among the responses to it's uri.
+	 *
+	 * @return The names (an empty array if there is only one response to the uri), or null if the response may not be cached ({@code Vary: *}).
+	 */
+	public String[] varyNames(HttpResponse response) {
+		List<String> names = new ArrayList<>();
+		for (Header hdr : response.getHeaders("Vary"))
+			for (HeaderElement elem : hdr.getElements()) {
+				String name = elem.getName().trim().toLowerCase(Locale.ROOT);
+				if (name.equals("*"))
+					return null;
+				if ((name.length() > 0) && (!names.contains(name)) && (!Arrays.asList(ignore).contains(name)))
+					names.add(name);
+			}
+		for (String name : headers)
+			if (!names.contains(name))
+				names.add(name);
+		if (cookies.length > 0) {
+			names.remove("cookie");
+			for (String cookie : cookies)
+				if (!names.contains(CookiePrefix + cookie))
+					names.add(CookiePrefix + cookie);
+		}
+		String[] retVal = names.toArray(new String[names.size()]);
+		Arrays.sort(retVal);
+		return retVal;
+	}
+
+	/**
+	 * Build the key of the variant of {@code key} which is selected by the values of the {@code varyNames} headers in the {@code request}.
+	 */
+	public static String VariantKey(String key, String[] varyNames, HttpRequest request) {
+		StringBuilder sb = new StringBuilder(key);
+		for (String name : varyNames) {
+			sb.append('\n').append(name).append(':');
+			if (name.equals("accept-encoding"))
+				sb.append(EncodingBucket(request));
+			else if (name.startsWith(CookiePrefix))
+				sb.append(CookieValue(request, name.substring(CookiePrefix.length())));
+			else {
+				Header[] hdrs = request.getHeaders(name);
+				for (int i = 0; i < hdrs.length; i++) {
+					if (i > 0)
+						sb.append(',');
+					sb.append(hdrs[i].getValue().trim());
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reduce the {@code Accept-Encoding} header(s) of a request to the (comma separated) list of the {@code ContentCodings} it accepts, or "identity" if it accepts none of them.
+	 * An explicitly listed coding takes precedence over {@code *}, and a coding with a quality of zero is not accepted.
+	 */
+	static String EncodingBucket(HttpRequest request) {
+		double[] quality = new double[ContentCodings.length];
+		Arrays.fill(quality, -1);
+		double any = -1;
+		for (Header hdr : request.getHeaders("Accept-Encoding"))
+			for (HeaderElement elem : hdr.getElements()) {
+				String name = elem.getName().trim().toLowerCase(Locale.ROOT);
+				if (name.equals("x-gzip"))
+					name = "gzip";
+				double q = Quality(elem.getParameterByName("q"));
+				if (name.equals("*"))
+					any = q;
+				else {
+					int idx = Arrays.binarySearch(ContentCodings, name);
+					if (idx >= 0)
+						quality[idx] = q;
+				}
+			}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < ContentCodings.length; i++) {
+			if ((quality[i] >= 0 ? quality[i] : any) > 0) {
+				if (sb.length() > 0)
+					sb.append(',');
+				sb.append(ContentCodings[i]);
+			}
+		}
+		return sb.length() > 0 ? sb.toString() : "identity";
+	}
+
+	private static double Quality(NameValuePair q) {
+		if ((q == null) || (q.getValue() == null))
+			return 1;
+		try {
+			return Double.parseDouble(q.getValue().trim());
+		} catch (NumberFormatException ex) {
+			return 1;
+		}
+	}
+
+	/**
+	 * Returns the value of the named cookie of the {@code request} (or an empty string if the request does not carry it).
+	 */
+	static String CookieValue(HttpRequest request, String cookie) {
+		for (Header hdr : request.getHeaders("Cookie"))
+			for (String pair : hdr.getValue().split(";")) {
+				int eq = pair.indexOf('=');
+				if ((eq > 0) && pair.substring(0, eq).trim().equals(cookie))
+					return pair.substring(eq + 1).trim();
+			}
+		return "";
+	}
+}
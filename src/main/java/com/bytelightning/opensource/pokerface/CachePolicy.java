@@ -0,0 +1,70 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which entries a weighted (byte bounded) cache keeps, and which it evicts.
+ * A policy only tracks keys and their weights, the cache itself holds the values (and removes whatever keys the policy evicts).
+ * NOTE: Implementations are not thread safe (the cache is expected to serialize calls, e.g. by replaying reads in batches under a lock).
+ */
+public interface CachePolicy {
+	/**
+	 * Record a hit on the specified key.
+	 */
+	void recordAccess(String key);
+
+	/**
+	 * Add (or replace) a key with the specified weight.
+	 *
+	 * @return The keys that were evicted to stay within the maximum weight (which may include {@code key} itself if the policy declined to admit it).
+	 */
+	List<String> add(String key, long weight);
+
+	/**
+	 * Forget the specified key (e.g. because it was invalidated).
+	 */
+	void remove(String key);
+
+	/**
+	 * Evict a single key (to make room for something the policy does not know about yet).
+	 *
+	 * @return The evicted key, or null if the policy is empty.
+	 */
+	String evict();
+
+	/**
+	 * Returns the total weight of all keys currently held.
+	 */
+	long getWeightedSize();
+
+	/**
+	 * Returns a snapshot of the policy's internal state.
+	 */
+	Map<String, Object> getStatistics();
+}
@@ -0,0 +1,251 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.RequestLine;
+import org.apache.http.impl.nio.pool.BasicNIOPoolEntry;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncRequester;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.pool.ConnPool;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Refreshes a stale {@code ResponseCache} entry in the background (while the stale entry is served to clients, per {@code stale-while-revalidate}).
+ * A conditional request (using the entry's validators) is sent to a Target of the route through the same {@code HttpAsyncRequester} and connection pool as client requests
+ * (and subject to the same circuit breaker).  A {@code 304 Not Modified} response extends the lifetime of the entry, any other cacheable response replaces it.
+ * No client is involved, so the response content is read directly into the cache.
+ * The {@code CacheWarmer} also uses this class (with no stale entry, and so an unconditional request) to fetch responses into the cache.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CacheRevalidator implements HttpAsyncResponseConsumer<HttpResponse> {
+	protected static final Logger Logger = LoggerFactory.getLogger(CacheRevalidator.class.getPackage().getName());
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param cache      The cache that holds the {@code stale} entry.
+	 * @param keys       Determines which request headers (and cookies) select between the responses to a uri (see {@code TargetRoute.getCacheKeys}).
+	 * @param stale      The entry being revalidated (this object takes over the caller's reference to it, see {@code ResponseCache.lookup}), or null to simply fetch a response into the cache.
+	 * @param request    The (conditional) request that will be sent to the Target.
+	 * @param targetDesc The Target the request will be sent to.
+	 * @param permit     The circuit breaker permit that was granted for the request.
+	 * @param context    Context of this (background) request / response transaction.
+	 * @param onFinished If non-null, invoked (exactly once) when the exchange is over, with the response that was fully received from the Target and stored in the cache (or null if the exchange failed, or the response was not stored).
+	 */
+	public CacheRevalidator(ResponseCache cache, CacheKeyBuilder keys, CachedResponse stale, HttpRequest request, TargetDescriptor targetDesc, CircuitBreaker.Permit permit, HttpContext context, Consumer<HttpResponse> onFinished) {
+		this.cache = cache;
+		this.keys = keys;
+		this.stale = stale;
+		this.request = request;
+		this.targetDesc = targetDesc;
+		this.permit = permit;
+		this.context = context;
+		this.onFinished = onFinished;
+		this.startNanos = System.nanoTime();
+	}
+
+	private final ResponseCache cache;
+	private final CacheKeyBuilder keys;
+	private final CachedResponse stale;
+	private final HttpRequest request;
+	private final TargetDescriptor targetDesc;
+	private final CircuitBreaker.Permit permit;
+	private final HttpContext context;
+	private final Consumer<HttpResponse> onFinished;
+	private final long startNanos;
+	private final AtomicBoolean outcomeRecorded = new AtomicBoolean();
+	private final AtomicBoolean finished = new AtomicBoolean();
+	private volatile HttpResponse response;
+	private volatile ResponseCache.Fill cacheFill;
+	private volatile boolean completed;
+	private ByteBuffer readBuffer;
+
+	/**
+	 * Begin revalidating a stale entry against a Target of the specified route.
+	 *
+	 * @param executor      {@code HttpAsyncRequester} which will perform the request.
+	 * @param connPool      The client connection pool that will be used by the {@code executor}
+	 * @param route         The route that matched the client request which found the entry stale.
+	 * @param clientRequest The client request which found the entry stale (it's uri and headers are used to build the conditional request).
+	 * @param cache         The cache that holds the {@code stale} entry.
+	 * @param stale         The entry to revalidate (this method takes over the caller's reference to it).
+	 * @param id            The transaction id of the client request (used for logging).
+	 */
+	public static void Start(HttpAsyncRequester executor, ConnPool<HttpHost, BasicNIOPoolEntry> connPool, TargetRoute route, HttpRequest clientRequest, ResponseCache cache, CachedResponse stale, String id) {
+		TargetDescriptor targetDesc = route.select();
+		CircuitBreaker.Permit permit = targetDesc == null ? null : targetDesc.getTargetHost().requestStarted();
+		if (permit == null) {    // No Target is available right now, try again on a later request.
+			stale.endRevalidation();
+			stale.release();
+			return;
+		}
+		RequestLine reqLine = clientRequest.getRequestLine();
+		BasicHttpRequest request = new BasicHttpRequest("GET", reqLine.getUri(), reqLine.getProtocolVersion());
+		for (Header hdr : clientRequest.getAllHeaders()) {
+			String name = hdr.getName();
+			if (!(name.equalsIgnoreCase("If-None-Match") || name.equalsIgnoreCase("If-Modified-Since") || name.equalsIgnoreCase("If-Match") || name.equalsIgnoreCase("If-Unmodified-Since") || name.equalsIgnoreCase("If-Range") || name.equalsIgnoreCase("Range")))
+				request.addHeader(hdr);
+		}
+		if (stale.getETag() != null)
+			request.setHeader("If-None-Match", stale.getETag());
+		if (stale.getLastModified() != null)
+			request.setHeader("If-Modified-Since", stale.getLastModified());
+		HttpContext context = new BasicHttpContext();
+		context.setAttribute("pokerface.txId", id + "-revalidate");
+		Logger.debug("[proxy->target] " + id + " revalidating " + stale.getKey() + " in the background");
+		CacheRevalidator consumer = new CacheRevalidator(cache, route.getCacheKeys(), stale, request, targetDesc, permit, context, null);
+		executor.execute(new TargetRequestProducer(targetDesc, request, context, null), consumer, connPool);
+	}
+
+	/**
+	 * Report the outcome of this exchange to the Target's circuit breaker (exactly once).
+	 */
+	private void recordOutcome(CircuitBreaker.Outcome outcome) {
+		if (outcomeRecorded.compareAndSet(false, true))
+			targetDesc.getTargetHost().recordOutcome(permit, outcome, System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Release the Target, and the stale entry (exactly once).
+	 *
+	 * @param ok True if the response was fully received (and stored).
+	 */
+	private void finish(boolean ok) {
+		if (!finished.compareAndSet(false, true))
+			return;
+		targetDesc.getTargetHost().requestFinished();
+		if (stale != null) {
+			stale.endRevalidation();
+			stale.release();
+		}
+		if (onFinished != null)
+			onFinished.accept(ok ? response : null);
+	}
+
+	@Override
+	public void responseReceived(HttpResponse response) throws IOException {
+		String id = (String) context.getAttribute("pokerface.txId");
+		Logger.debug("[proxy<-target] " + id + " " + response.getStatusLine());
+		this.response = response;
+		int status = response.getStatusLine().getStatusCode();
+		recordOutcome(status >= 500 ? CircuitBreaker.Outcome.FAILURE : CircuitBreaker.Outcome.SUCCESS);
+		if (status == HttpStatus.SC_NOT_MODIFIED) {
+			if (stale != null)
+				cache.revalidated(stale, TargetResponseConsumer.Rewrite(response));
+		}
+		else if (status < 500)
+			cacheFill = cache.beginFill(request, response, TargetResponseConsumer.Rewrite(response), keys);
+		// Otherwise the stale entry is left as it is (it may still be served if it's stale-if-error window permits).
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * The content is read straight into the cache (or discarded if the response is not being cached).
+	 */
+	@Override
+	public void consumeContent(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+		if (readBuffer == null)
+			readBuffer = ByteBuffer.allocate(4096);
+		while (decoder.read(readBuffer) > 0) {
+			readBuffer.flip();
+			if (cacheFill != null)
+				cacheFill.append(readBuffer);
+			readBuffer.clear();
+		}
+	}
+
+	@Override
+	public void responseCompleted(HttpContext context) {
+		if (completed)
+			return;
+		completed = true;
+		finish((cacheFill != null) && cacheFill.complete());
+	}
+
+	@Override
+	public void failed(Exception ex) {
+		if (completed)
+			return;
+		completed = true;
+		if (cacheFill != null)
+			cacheFill.abandon();
+		recordOutcome(ex instanceof SocketTimeoutException ? CircuitBreaker.Outcome.TIMEOUT : CircuitBreaker.Outcome.FAILURE);
+		finish(false);
+		String id = (String) context.getAttribute("pokerface.txId");
+		Logger.debug("[proxy<-target] " + id + " revalidation failed", ex);
+	}
+
+	@Override
+	public boolean cancel() {
+		if (completed)
+			return false;
+		failed(new IOException("Cancelled"));
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * This method also ensures the Target and the stale entry are released even if the exchange was never completed (or failed).
+	 */
+	@SuppressWarnings("RedundantThrows")
+	@Override
+	public void close() throws IOException {
+		recordOutcome(CircuitBreaker.Outcome.CANCELLED);
+		finish(false);
+	}
+
+	@Override
+	public HttpResponse getResult() {
+		return response;
+	}
+
+	@Override
+	public Exception getException() {
+		return null;
+	}
+
+	@Override
+	public boolean isDone() {
+		return completed;
+	}
+}
@@ -0,0 +1,278 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.commons.cli.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A trace driven simulator which replays a request trace against the {@code ResponseCache} eviction policies (W-TinyLFU, and plain LRU for comparison) and reports their hit ratios.
+ * A trace is a text file in the format of {@code Samples/Benchmark/urls.txt} (one url per line, as used by siege), optionally followed by whitespace and the size of the response in bytes.
+ * If a line does not specify a size, it is taken from the matching file under the {@code -files} directory (if any), or else the {@code -defaultSize} is used.
+ * The trace is replayed in order, unless {@code -requests} is specified, in which case that many requests are chosen at random from the trace (like siege's "internet" mode).
+ */
+@SuppressWarnings("WeakerAccess")
+public class CacheSimulator {
+
+	/**
+	 * A single request in a trace.
+	 */
+	public static final class Request {
+		public Request(String key, long size) {
+			this.key = key;
+			this.size = size;
+		}
+
+		public final String key;
+		public final long size;
+	}
+
+	/**
+	 * The outcome of replaying a trace against one policy.
+	 */
+	public static final class Result {
+		Result(String policy, long capacity) {
+			this.policy = policy;
+			this.capacity = capacity;
+		}
+
+		public final String policy;
+		public final long capacity;
+		public long requests;
+		public long hits;
+		public long bytes;
+		public long hitBytes;
+
+		public double getHitRatio() {
+			return requests == 0 ? 0 : (double) hits / requests;
+		}
+
+		public double getByteHitRatio() {
+			return bytes == 0 ? 0 : (double) hitBytes / bytes;
+		}
+	}
+
+	/**
+	 * A plain (weighted) least recently used policy, the baseline that W-TinyLFU is compared against.
+	 */
+	public static final class LruPolicy implements CachePolicy {
+		public LruPolicy(long maximum) {
+			this.maximum = maximum;
+			this.weights = new LinkedHashMap<>(1024, 0.75f, true);
+		}
+
+		private final long maximum;
+		private final LinkedHashMap<String, Long> weights;
+		private long weightedSize;
+
+		@Override
+		public void recordAccess(String key) {
+			weights.get(key);
+		}
+
+		@Override
+		public List<String> add(String key, long weight) {
+			Long prior = weights.put(key, weight);
+			weightedSize += weight - (prior == null ? 0 : prior);
+			List<String> retVal = new ArrayList<>();
+			Iterator<Map.Entry<String, Long>> it = weights.entrySet().iterator();
+			while ((weightedSize > maximum) && it.hasNext()) {
+				Map.Entry<String, Long> eldest = it.next();
+				it.remove();
+				weightedSize -= eldest.getValue();
+				retVal.add(eldest.getKey());
+			}
+			return retVal;
+		}
+
+		@Override
+		public void remove(String key) {
+			Long prior = weights.remove(key);
+			if (prior != null)
+				weightedSize -= prior;
+		}
+
+		@Override
+		public String evict() {
+			Iterator<Map.Entry<String, Long>> it = weights.entrySet().iterator();
+			if (!it.hasNext())
+				return null;
+			Map.Entry<String, Long> eldest = it.next();
+			it.remove();
+			weightedSize -= eldest.getValue();
+			return eldest.getKey();
+		}
+
+		@Override
+		public long getWeightedSize() {
+			return weightedSize;
+		}
+
+		@Override
+		public Map<String, Object> getStatistics() {
+			return Collections.emptyMap();
+		}
+	}
+
+	/**
+	 * Read a trace file.
+	 *
+	 * @param trace       The trace file.
+	 * @param files       If non-null, the directory holding the files that are served for the urls in the trace (used to determine sizes that the trace does not specify).
+	 * @param defaultSize The size of a response whose size cannot otherwise be determined.
+	 */
+	public static List<Request> ReadTrace(Path trace, Path files, long defaultSize) throws IOException {
+		List<Request> retVal = new ArrayList<>();
+		for (String line : Files.readAllLines(trace, StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			String[] fields = line.split("\\s+");
+			String key = CacheKeyBuilder.NormalizeUri(fields[0]);
+			long size = -1;
+			if (fields.length > 1) {
+				try {
+					size = Long.parseLong(fields[1]);
+				} catch (NumberFormatException ex) {
+					size = -1;    // e.g. a siege "POST" line.
+				}
+			}
+			if ((size < 0) && (files != null))
+				size = FileSize(files, fields[0]);
+			retVal.add(new Request(key, size < 0 ? defaultSize : size));
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the size of the file under {@code files} that the path of the {@code url} refers to (or -1 if there is no such file).
+	 */
+	private static long FileSize(Path files, String url) {
+		try {
+			String path = new URI(url).getPath();
+			if ((path == null) || path.isEmpty())
+				return -1;
+			Path p = files.resolve(path.substring(1)).normalize();
+			if (p.startsWith(files.normalize()) && Files.isRegularFile(p))
+				return Files.size(p);
+		} catch (URISyntaxException | IOException | IllegalArgumentException ex) {
+			// Fall through.
+		}
+		return -1;
+	}
+
+	/**
+	 * Replay the requests against a policy.
+	 * A hit is recorded as an access, a miss is recorded as an access and the response is then offered to the policy (just as the {@code ResponseCache} does).
+	 */
+	public static Result Simulate(String name, CachePolicy policy, long capacity, Iterable<Request> requests) {
+		Result retVal = new Result(name, capacity);
+		Set<String> resident = new HashSet<>();
+		for (Request r : requests) {
+			retVal.requests++;
+			retVal.bytes += r.size;
+			policy.recordAccess(r.key);
+			if (resident.contains(r.key)) {
+				retVal.hits++;
+				retVal.hitBytes += r.size;
+				continue;
+			}
+			resident.add(r.key);
+			for (String victim : policy.add(r.key, r.size))
+				resident.remove(victim);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Choose {@code count} requests at random from the trace.
+	 */
+	public static List<Request> Sample(List<Request> trace, int count, long seed) {
+		Random random = new Random(seed);
+		List<Request> retVal = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			retVal.add(trace.get(random.nextInt(trace.size())));
+		return retVal;
+	}
+
+	public static void main(String[] args) {
+		Options options = new Options();
+		options.addOption("h", false, "help");
+		options.addOption("trace", true, "Path of the trace file (one url per line, optionally followed by the response size in bytes).");
+		options.addOption("size", true, "Comma separated list of cache sizes (in KB) to simulate (default 1024).");
+		options.addOption("files", true, "Directory of the files served for the urls in the trace (used to size responses).");
+		options.addOption("defaultSize", true, "Size (in bytes) of a response whose size is unknown (default 4096).");
+		options.addOption("requests", true, "Replay this many requests chosen at random from the trace (instead of replaying it in order).");
+		options.addOption("seed", true, "Random seed for -requests (default 0).");
+		CommandLine cmdLine;
+		try {
+			cmdLine = new DefaultParser().parse(options, args);
+			if ((!cmdLine.hasOption("trace")) || cmdLine.hasOption('h')) {
+				HelpFormatter formatter = new HelpFormatter();
+				formatter.setWidth(120);
+				formatter.printHelp(CacheSimulator.class.getSimpleName(), options);
+				return;
+			}
+		} catch (ParseException exp) {
+			System.err.println("Parsing failed.  Reason: " + exp.getMessage());
+			return;
+		}
+		try {
+			Path files = cmdLine.hasOption("files") ? Utils.MakePath(cmdLine.getOptionValue("files")) : null;
+			List<Request> trace = ReadTrace(Utils.MakePath(cmdLine.getOptionValue("trace")), files, Long.parseLong(cmdLine.getOptionValue("defaultSize", "4096")));
+			if (trace.isEmpty()) {
+				System.err.println("The trace is empty.");
+				return;
+			}
+			if (cmdLine.hasOption("requests"))
+				trace = Sample(trace, Integer.parseInt(cmdLine.getOptionValue("requests")), Long.parseLong(cmdLine.getOptionValue("seed", "0")));
+			System.out.println(String.format("%-10s %12s %10s %10s", "policy", "size (KB)", "hit ratio", "byte hits"));
+			for (String size : cmdLine.getOptionValue("size", "1024").split(",")) {
+				long capacity = Long.parseLong(size.trim()) * 1024;
+				int expected = (int) Math.max(1024, capacity / 8192);
+				for (Result r : new Result[]{Simulate("lru", new LruPolicy(capacity), capacity, trace), Simulate("w-tinylfu", new WTinyLfuPolicy(capacity, expected), capacity, trace)})
+					System.out.println(String.format("%-10s %12d %9.2f%% %9.2f%%", r.policy, r.capacity / 1024, 100 * r.getHitRatio(), 100 * r.getByteHitRatio()));
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace(System.err);
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.impl.nio.pool.BasicNIOPoolEntry;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.protocol.HttpAsyncRequester;
+import org.apache.http.pool.ConnPool;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Pre-fetches lists of urls into the {@code ResponseCache}, so that (for example) a new node can join the load balancer with it's cache already warm.
+ * A url list has the format of {@code Samples/Benchmark/urls.txt} (one url per line, as used by siege).  Only the path and query of each url are used,
+ * and each is fetched with a GET from a Target of the route that matches it, exactly as a client request for it would be.
+ * Requests are issued through the same {@code HttpAsyncRequester} and connection pool as client requests (and are subject to the same circuit breakers),
+ * with no more than {@code concurrency} of them outstanding at a time, so no threads are consumed while warming.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CacheWarmer {
+	protected static final Logger Logger = LoggerFactory.getLogger(CacheWarmer.class.getPackage().getName());
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param executor    {@code HttpAsyncRequester} which will perform the requests.
+	 * @param connPool    The client connection pool that will be used by the {@code executor}
+	 * @param routes      The compiled mapping of relative uri paths to configured Target routes.
+	 * @param cache       The cache to warm.
+	 * @param urlLists    The configured url list files (warmed by {@code warm()}, may be empty).
+	 * @param concurrency The maximum number of requests to have outstanding at a time.
+	 * @param listReader  Reads the configured url lists for {@code warmLists} (so that a reactor thread never waits on the file system).
+	 */
+	public CacheWarmer(HttpAsyncRequester executor, ConnPool<HttpHost, BasicNIOPoolEntry> connPool, RouteTrie<TargetRoute> routes, ResponseCache cache, List<Path> urlLists, int concurrency, Executor listReader) {
+		this.executor = executor;
+		this.connPool = connPool;
+		this.routes = routes;
+		this.cache = cache;
+		this.urlLists = urlLists;
+		this.concurrency = Math.max(1, concurrency);
+		this.listReader = listReader;
+		this.idCounter = new AtomicLong(1);
+		this.runs = new LongAdder();
+		this.requested = new LongAdder();
+		this.warmed = new LongAdder();
+		this.failed = new LongAdder();
+		this.active = new AtomicInteger();
+	}
+
+	private final HttpAsyncRequester executor;
+	private final ConnPool<HttpHost, BasicNIOPoolEntry> connPool;
+	private final RouteTrie<TargetRoute> routes;
+	private final ResponseCache cache;
+	private final List<Path> urlLists;
+	private final int concurrency;
+	private final Executor listReader;
+	private final AtomicLong idCounter;
+	private final LongAdder runs;
+	private final LongAdder requested;
+	private final LongAdder warmed;
+	private final LongAdder failed;
+	private final AtomicInteger active;
+
+	/**
+	 * Read a url list, returning the (distinct) path and query of each url it contains.
+	 * Blank lines and lines beginning with '#' are ignored, as are siege POST / PUT lines (only GET responses are cached).
+	 */
+	public static List<String> ReadUrls(Path file) throws IOException {
+		Set<String> retVal = new LinkedHashSet<>();
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			String uri = ParseUrl(line);
+			if (uri != null)
+				retVal.add(uri);
+		}
+		return new ArrayList<>(retVal);
+	}
+
+	/**
+	 * Parse a single line of a url list into the path and query of it's url (or null if the line holds no url to warm).
+	 */
+	public static String ParseUrl(String line) {
+		line = line.trim();
+		if (line.isEmpty() || line.startsWith("#"))
+			return null;
+		String[] fields = line.split("\\s+");
+		if ((fields.length > 1) && (fields[1].equalsIgnoreCase("POST") || fields[1].equalsIgnoreCase("PUT")))
+			return null;
+		if (fields[0].startsWith("/"))
+			return fields[0];
+		try {
+			URI uri = new URI(fields[0]);
+			String path = uri.getRawPath();
+			if ((path == null) || path.isEmpty())
+				path = "/";
+			return uri.getRawQuery() == null ? path : path + '?' + uri.getRawQuery();
+		} catch (URISyntaxException ex) {
+			Logger.warn("Ignoring invalid url to warm: " + fields[0]);
+			return null;
+		}
+	}
+
+	/**
+	 * Begin warming the cache with the urls of the configured url lists.
+	 */
+	public Run warm() throws IOException {
+		Set<String> uris = new LinkedHashSet<>();
+		for (Path p : urlLists)
+			uris.addAll(ReadUrls(p));
+		return warm(uris);
+	}
+
+	/**
+	 * Read the configured url lists on the {@code listReader}, and then begin warming the cache with them.
+	 *
+	 * @param started Invoked (on the {@code listReader}'s thread) with the {@code Run} that was begun, or with null if the url lists could not be read.
+	 */
+	public void warmLists(Consumer<Run> started) {
+		try {
+			listReader.execute(() -> {
+				Run run;
+				try {
+					run = warm();
+				} catch (IOException ex) {
+					Logger.error("Unable to read cache warming url list", ex);
+					run = null;
+				}
+				started.accept(run);
+			});
+		} catch (RejectedExecutionException ex) {    // We are shutting down.
+			started.accept(null);
+		}
+	}
+
+	/**
+	 * Begin warming the cache with the specified uris (each the path and query of a url).
+	 */
+	public Run warm(Collection<String> uris) {
+		runs.increment();
+		Run retVal = new Run(uris);
+		Logger.info("Warming the cache with " + uris.size() + " urls");
+		for (int i = 0; i < concurrency; i++)
+			retVal.startNext();
+		return retVal;
+	}
+
+	/**
+	 * A single pass through a list of uris.
+	 */
+	public final class Run {
+		Run(Collection<String> uris) {
+			this.remaining = new ArrayList<>(uris).iterator();
+			this.total = uris.size();
+			this.finished = new AtomicInteger();
+			this.warmedCount = new AtomicInteger();
+			this.done = new CountDownLatch(1);
+			if (total == 0)
+				done.countDown();
+			else
+				active.incrementAndGet();
+		}
+
+		private final Iterator<String> remaining;
+		private final int total;
+		private final AtomicInteger finished;
+		private final AtomicInteger warmedCount;
+		private final CountDownLatch done;
+
+		private synchronized String next() {
+			return remaining.hasNext() ? remaining.next() : null;
+		}
+
+		/**
+		 * Dispatch the next uri (skipping any that cannot be dispatched).
+		 */
+		void startNext() {
+			String uri;
+			while ((uri = next()) != null) {
+				if (dispatch(uri))
+					return;
+				failed.increment();
+				finished();
+			}
+		}
+
+		/**
+		 * Send a request for the uri to a Target of it's route.
+		 *
+		 * @return false if there is no route (or no Target is available right now).
+		 */
+		private boolean dispatch(String uri) {
+			TargetRoute route = routes == null ? null : routes.lookup(RequestPath.Parse(uri).getKey());
+			TargetDescriptor targetDesc = route == null ? null : route.select();
+			CircuitBreaker.Permit permit = targetDesc == null ? null : targetDesc.getTargetHost().requestStarted();
+			if (permit == null) {
+				Logger.debug("Unable to warm " + uri + ";  No Target is available");
+				return false;
+			}
+			requested.increment();
+			BasicHttpRequest request = new BasicHttpRequest("GET", uri, HttpVersion.HTTP_1_1);
+			HttpContext context = new BasicHttpContext();
+			context.setAttribute("pokerface.txId", String.format("warm-%08X", idCounter.getAndIncrement()));
+			executor.execute(new TargetRequestProducer(targetDesc, request, context, null), new CacheRevalidator(cache, route.getCacheKeys(), null, request, targetDesc, permit, context, this::responseFinished), connPool);
+			return true;
+		}
+
+		/**
+		 * A request has finished, record it's outcome and move on to the next uri.
+		 * The uri was only warmed if it's response was stored in the cache (a response that is not cacheable is passed along as null by the {@code CacheRevalidator}).
+		 */
+		private void responseFinished(HttpResponse response) {
+			if ((response != null) && (response.getStatusLine().getStatusCode() < 400)) {
+				warmed.increment();
+				warmedCount.incrementAndGet();
+			}
+			else
+				failed.increment();
+			finished();
+			startNext();
+		}
+
+		private void finished() {
+			if (finished.incrementAndGet() == total) {
+				active.decrementAndGet();
+				done.countDown();
+				Logger.info("Warmed the cache with " + warmedCount.get() + " of " + total + " urls");
+			}
+		}
+
+		/**
+		 * Wait (up to {@code timeout} milliseconds) for every uri to be fetched.
+		 *
+		 * @return true if warming is complete (if not, it simply continues in the background).
+		 */
+		public boolean await(long timeout) throws InterruptedException {
+			return done.await(timeout, TimeUnit.MILLISECONDS);
+		}
+
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		public int getTotal() {
+			return total;
+		}
+
+		/**
+		 * Returns the number of uris that were fetched into the cache so far.
+		 */
+		public int getWarmed() {
+			return warmedCount.get();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the warming activity.
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> retVal = new LinkedHashMap<>();
+		retVal.put("runs", runs.sum());
+		retVal.put("active", active.get());
+		retVal.put("requested", requested.sum());
+		retVal.put("warmed", warmed.sum());
+		retVal.put("failed", failed.sum());
+		return retVal;
+	}
+}
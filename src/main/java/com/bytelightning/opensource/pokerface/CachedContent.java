@@ -0,0 +1,262 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The content of a {@code CachedResponse}, held in off-heap blocks obtained from a {@code SlabAllocator} (or in a region of a memory mapped file).
+ * Content may be read while it is still being filled from the Target; each reader tracks it's own position, and may ask to be woken when more content is published (or the fill ends).
+ * A single thread fills the content (via {@code addBlock} and {@code publish}), any number of threads may read it.
+ * Content is reference counted; the cache holds one reference, and every response being produced from it holds another.
+ * The blocks are returned to the allocator only when the last reference is released (so eviction never pulls memory out from under a client that is still being served).
+ */
+@SuppressWarnings("WeakerAccess")
+public final class CachedContent {
+
+	/**
+	 * Primary constructor
+	 * The new content holds a single reference (owned by the caller), and is complete.
+	 *
+	 * @param allocator The allocator the {@code blocks} were obtained from.
+	 * @param blocks    The ids of the blocks (in order) which hold the content.
+	 * @param length    The total length of the content.
+	 */
+	public CachedContent(SlabAllocator allocator, int[] blocks, int length) {
+		this.allocator = allocator;
+		this.blocks = blocks;
+		this.blockCount = blocks.length;
+		this.mapped = null;
+		this.expectedLength = length;
+		this.length = length;
+		this.complete = true;
+		this.refs = new AtomicInteger(1);
+		this.waiters = null;
+	}
+
+	/**
+	 * Filling constructor
+	 * The new content holds a single reference (owned by the caller), and is empty until it's filler adds blocks and publishes them.
+	 *
+	 * @param allocator      The allocator the blocks will be obtained from.
+	 * @param expectedLength The length the content will have once it is complete (-1 if unknown).
+	 */
+	public CachedContent(SlabAllocator allocator, int expectedLength) {
+		this.allocator = allocator;
+		this.expectedLength = expectedLength;
+		this.blocks = new int[expectedLength < 0 ? 4 : Math.max(1, (expectedLength + allocator.getBlockSize() - 1) / allocator.getBlockSize())];
+		this.mapped = null;
+		this.refs = new AtomicInteger(1);
+		this.waiters = new ConcurrentLinkedQueue<>();
+	}
+
+	/**
+	 * Mapped content constructor
+	 * The content is a region of a memory mapped file (which is owned by someone else, so releasing this content frees nothing).
+	 *
+	 * @param mapped A buffer whose remaining bytes are the content.
+	 */
+	public CachedContent(ByteBuffer mapped) {
+		this.allocator = null;
+		this.blocks = null;
+		this.mapped = mapped.slice().asReadOnlyBuffer();
+		this.length = this.mapped.remaining();
+		this.expectedLength = this.length;
+		this.complete = true;
+		this.refs = new AtomicInteger(1);
+		this.waiters = null;
+	}
+
+	private final SlabAllocator allocator;
+	private final ByteBuffer mapped;
+	private final AtomicInteger refs;
+	// Readers waiting for more content to be published (null if this content was complete from the start).
+	private final ConcurrentLinkedQueue<Runnable> waiters;
+	// Written only by the filling thread.  The filler updates the blocks before publishing the new length (so a reader that reads the length first sees the blocks that hold it).
+	private volatile int[] blocks;
+	private volatile int blockCount;
+	private volatile int length;
+	private volatile int expectedLength;
+	private volatile boolean complete;
+	private volatile boolean failed;
+
+	/**
+	 * Returns the number of bytes published so far (the total length once the content is complete).
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the length the content will have once it is complete (-1 if that is not yet known).
+	 */
+	public int getExpectedLength() {
+		return expectedLength;
+	}
+
+	/**
+	 * Returns true if all of the content has been published.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Returns true if the fill was abandoned (readers will never receive the rest of the content).
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * Returns the number of bytes of off-heap memory held by this content.
+	 */
+	public long getCapacity() {
+		return blocks == null ? 0 : (long) blockCount * allocator.getBlockSize();
+	}
+
+	/**
+	 * Returns the number of blocks that hold this content.
+	 */
+	public int getBlockCount() {
+		return blocks == null ? 1 : blockCount;
+	}
+
+	/**
+	 * Returns a buffer viewing the (published) content held in the specified block (shares memory with the block, no copy is made).
+	 */
+	public ByteBuffer view(int index) {
+		if (blocks == null)
+			return mapped.duplicate();
+		int available = length;
+		return allocator.view(blocks[index], available - index * allocator.getBlockSize());
+	}
+
+	/**
+	 * Returns a buffer viewing the content from {@code position} up to (but not beyond) the end of the block that holds it, or {@code available} (whichever comes first).
+	 *
+	 * @param available The number of bytes the caller knows to have been published.
+	 */
+	public ByteBuffer read(int position, int available) {
+		if (blocks == null) {
+			ByteBuffer retVal = mapped.duplicate();
+			retVal.limit(available);
+			retVal.position(position);
+			return retVal;
+		}
+		int blockSize = allocator.getBlockSize();
+		int index = position / blockSize;
+		ByteBuffer retVal = allocator.view(blocks[index], available - index * blockSize);
+		retVal.position(position - index * blockSize);
+		return retVal;
+	}
+
+	/**
+	 * Ask to be woken (once) when content beyond {@code position} is published, or the fill ends.
+	 *
+	 * @return false if there is no need to wait (in which case {@code wake} will not be invoked).
+	 */
+	public boolean awaitData(int position, Runnable wake) {
+		if ((waiters == null) || (length > position) || complete || failed)
+			return false;
+		waiters.add(wake);
+		// Re-check, in case the filler published (and drained the waiters) while we were adding ourselves.
+		if (((length > position) || complete || failed) && waiters.remove(wake))
+			return false;
+		return true;
+	}
+
+	private void wake() {
+		Runnable wake;
+		while ((wake = waiters.poll()) != null)
+			wake.run();
+	}
+
+	/**
+	 * Invoked by the filler to append a newly allocated block.
+	 *
+	 * @return A buffer (positioned at zero) into which the filler writes the block's content.
+	 */
+	public ByteBuffer addBlock(int id) {
+		if (blockCount == blocks.length)
+			blocks = Arrays.copyOf(blocks, blocks.length * 2);
+		blocks[blockCount] = id;
+		blockCount = blockCount + 1;
+		return allocator.view(id, allocator.getBlockSize());
+	}
+
+	/**
+	 * Invoked by the filler to make content (up to {@code length}) visible to readers.
+	 */
+	public void publish(int length) {
+		this.length = length;
+		wake();
+	}
+
+	/**
+	 * Invoked by the filler once all of the content has been published.
+	 */
+	public void markComplete() {
+		expectedLength = length;
+		complete = true;
+		wake();
+	}
+
+	/**
+	 * Invoked by the filler if it will never publish the rest of the content.
+	 */
+	public void markFailed() {
+		failed = true;
+		wake();
+	}
+
+	/**
+	 * Acquire an additional reference to this content.
+	 *
+	 * @return false if the content has already been freed (and must not be used).
+	 */
+	public boolean retain() {
+		int count;
+		do {
+			count = refs.get();
+			if (count <= 0)
+				return false;
+		} while (!refs.compareAndSet(count, count + 1));
+		return true;
+	}
+
+	/**
+	 * Release a reference to this content, freeing it's blocks if it was the last.
+	 */
+	public void release() {
+		if ((refs.decrementAndGet() == 0) && (blocks != null))
+			for (int i = 0; i < blockCount; i++)
+				allocator.free(blocks[i]);
+	}
+}
@@ -0,0 +1,173 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Produces the content of a {@code CachedResponse} back to a client.
+ * The content is written to the client directly from the (off-heap) blocks of the cache; it is never copied onto the heap.
+ * The content may still be in the process of being filled from the Target, in which case this producer streams it as it arrives.
+ * Each producer holds a reference to the cached content (which it releases when closed), and has it's own read position.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CachedContentProducer extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param content         The cached content (a reference to which must already have been acquired on behalf of this producer).
+	 * @param contentType     The Content-Type header of the content (may be null).
+	 * @param contentEncoding The Content-Encoding header of the content (may be null).
+	 */
+	public CachedContentProducer(CachedContent content, Header contentType, Header contentEncoding) {
+		this.content = content;
+		setContentType(contentType);
+		setContentEncoding(contentEncoding);
+	}
+
+	private final CachedContent content;
+	private int position;
+	private ByteBuffer buffer;
+	private boolean closed;
+
+	/**
+	 * {@inheritDoc}
+	 * If this producer catches up with content that is still being filled, output is suspended until more content is published.
+	 * A slow client therefore only holds back it's own response (never the fill, nor any other client reading the same content).
+	 */
+	@Override
+	public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+		while (true) {
+			if ((buffer != null) && buffer.hasRemaining()) {
+				int before = buffer.remaining();
+				encoder.write(buffer);
+				position += before - buffer.remaining();
+				if (buffer.hasRemaining())
+					return;    // Channel is full, we will be called again.
+			}
+			if (content.isFailed())
+				throw new IOException("Cached content fill was abandoned");
+			int available = content.getLength();
+			if (position < available) {
+				buffer = content.read(position, available);
+				continue;
+			}
+			if (content.isComplete()) {
+				encoder.complete();
+				return;
+			}
+			// We have caught up with the fill, so wait for it to publish more.
+			ioctrl.suspendOutput();
+			if (!content.awaitData(position, ioctrl::requestOutput))
+				ioctrl.requestOutput();
+			return;
+		}
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public long getContentLength() {
+		return content.getExpectedLength();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * NOTE: This (blocking) api necessarily copies the content onto the heap.
+	 */
+	@Override
+	public InputStream getContent() {
+		return new InputStream() {
+			private int index;
+			private ByteBuffer view;
+
+			private boolean advance() {
+				while ((view == null) || (!view.hasRemaining())) {
+					if (index >= content.getBlockCount())
+						return false;
+					view = content.view(index++);
+				}
+				return true;
+			}
+
+			@Override
+			public int read() {
+				return advance() ? (view.get() & 0xFF) : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (len == 0)
+					return 0;
+				if (!advance())
+					return -1;
+				int n = Math.min(len, view.remaining());
+				view.get(b, off, n);
+				return n;
+			}
+		};
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		byte[] tmp = new byte[4096];
+		InputStream in = getContent();
+		int n;
+		while ((n = in.read(tmp)) >= 0)
+			outstream.write(tmp, 0, n);
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * This specialization releases this producer's reference to the cached content (at most once).
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		buffer = null;
+		content.release();
+	}
+}
@@ -0,0 +1,388 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An immutable response (status, headers and content) held by the {@code ResponseCache}, along with the information needed to judge it's freshness.
+ * Only this (compact) metadata lives on the heap, the content itself is held off-heap by a {@code CachedContent}.
+ * A response to a request whose Target specified a {@code Vary} header is stored under a "variant" key,
+ * and the primary key of the request holds a content-less "vary marker" that names the request headers which select the variant.
+ * Once a response is no longer fresh, it may still be served for a while if the Target permitted it ({@code stale-while-revalidate} / {@code stale-if-error} per RFC 5861),
+ * and it's validators ({@code ETag} / {@code Last-Modified}) allow it to be revalidated with a conditional request.
+ * A response may also carry surrogate tags (e.g. from a {@code Surrogate-Key} header), by which groups of responses can be purged from the cache.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class CachedResponse {
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param key             The key under which this response is cached.
+	 * @param statusLine      The status of the response.
+	 * @param headers         The response headers (excluding those that are generated for each response to a client, such as Date and Content-Length).
+	 * @param contentType     The Content-Type header of the response entity (may be null).
+	 * @param contentEncoding The Content-Encoding header of the response entity (may be null).
+	 * @param content         The response content (ownership of the caller's reference passes to this object).
+	 * @param responseTime    Time (in milliseconds) at which the response was received from the Target.
+	 * @param initialAge      The age (in seconds) of the response when it was received from the Target.
+	 * @param freshness       The freshness lifetime (in seconds) of the response.
+	 * @param tags            The surrogate tags of the response (may be null).
+	 */
+	public CachedResponse(String key, StatusLine statusLine, Header[] headers, Header contentType, Header contentEncoding, CachedContent content, long responseTime, long initialAge, long freshness, String[] tags) {
+		this.key = key;
+		this.statusLine = statusLine;
+		this.headers = headers;
+		this.contentType = contentType;
+		this.contentEncoding = contentEncoding;
+		this.content = content;
+		this.responseTime = responseTime;
+		this.initialAge = initialAge;
+		this.freshness = freshness;
+		this.varyNames = null;
+		this.tags = tags == null ? NoTags : tags;
+		this.weight = ComputeWeight(key, headers, 0);
+		long swr = 0;
+		long sie = 0;
+		boolean mustRevalidate = false;
+		String etag = null;
+		String lastModified = null;
+		for (Header hdr : headers) {
+			String name = hdr.getName();
+			if (name.equalsIgnoreCase("Cache-Control")) {
+				for (HeaderElement elem : hdr.getElements()) {
+					String directive = elem.getName().toLowerCase(Locale.ROOT);
+					if (directive.equals("stale-while-revalidate"))
+						swr = ParseSeconds(elem.getValue());
+					else if (directive.equals("stale-if-error"))
+						sie = ParseSeconds(elem.getValue());
+					else if (directive.equals("must-revalidate") || directive.equals("proxy-revalidate"))
+						mustRevalidate = true;
+				}
+			}
+			else if (name.equalsIgnoreCase("ETag"))
+				etag = hdr.getValue();
+			else if (name.equalsIgnoreCase("Last-Modified"))
+				lastModified = hdr.getValue();
+		}
+		// must-revalidate forbids serving the response once it is stale (RFC 7234 section 5.2.2.1).
+		this.staleWhileRevalidate = mustRevalidate ? 0 : swr;
+		this.staleIfError = mustRevalidate ? 0 : sie;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.revalidating = new AtomicBoolean();
+	}
+
+	/**
+	 * Vary marker constructor
+	 *
+	 * @param key       The primary key of the requests this marker applies to.
+	 * @param varyNames The (lowercase, sorted) names of the request headers that select a variant.
+	 */
+	public CachedResponse(String key, String[] varyNames) {
+		this.key = key;
+		this.statusLine = null;
+		this.headers = null;
+		this.contentType = null;
+		this.contentEncoding = null;
+		this.content = null;
+		this.responseTime = 0;
+		this.initialAge = 0;
+		this.freshness = 0;
+		this.varyNames = varyNames;
+		this.tags = NoTags;
+		this.weight = ComputeWeight(key, null, String.join(",", varyNames).length());
+		this.staleWhileRevalidate = 0;
+		this.staleIfError = 0;
+		this.etag = null;
+		this.lastModified = null;
+		this.revalidating = null;
+	}
+
+	private final String key;
+	private final StatusLine statusLine;
+	private final Header[] headers;
+	private final Header contentType;
+	private final Header contentEncoding;
+	private final CachedContent content;
+	private final long responseTime;
+	private final long initialAge;
+	private final long freshness;
+	private final String[] varyNames;
+	private final String[] tags;
+	private final int weight;
+	private final long staleWhileRevalidate;
+	private final long staleIfError;
+	private final String etag;
+	private final String lastModified;
+	// Ensures that only one background revalidation of this entry is in progress at a time.
+	private final AtomicBoolean revalidating;
+
+	private static final String[] NoTags = new String[0];
+
+	/**
+	 * Parse a delta-seconds directive value (an absent or invalid value is treated as zero).
+	 */
+	private static long ParseSeconds(String value) {
+		if (value == null)
+			return 0;
+		try {
+			return Math.max(0, Long.parseLong(value.trim()));
+		} catch (NumberFormatException ex) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Estimate the number of bytes of heap memory consumed by a cache entry.
+	 */
+	private static int ComputeWeight(String key, Header[] headers, int contentLength) {
+		int retVal = 128 + key.length() * 2 + contentLength;
+		if (headers != null)
+			for (Header h : headers)
+				retVal += 48 + (h.getName().length() + h.getValue().length()) * 2;
+		return retVal;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns true if this is a vary marker (rather than an actual response).
+	 */
+	public boolean isVaryMarker() {
+		return varyNames != null;
+	}
+
+	/**
+	 * Returns the names of the request headers that select a variant (only valid for a vary marker).
+	 */
+	public String[] getVaryNames() {
+		return varyNames;
+	}
+
+	public StatusLine getStatusLine() {
+		return statusLine;
+	}
+
+	public Header[] getHeaders() {
+		return headers;
+	}
+
+	public Header getContentType() {
+		return contentType;
+	}
+
+	public Header getContentEncoding() {
+		return contentEncoding;
+	}
+
+	public CachedContent getContent() {
+		return content;
+	}
+
+	/**
+	 * Returns the time (in milliseconds) at which the response was received from the Target.
+	 */
+	public long getResponseTime() {
+		return responseTime;
+	}
+
+	/**
+	 * Returns the age (in seconds) of the response when it was received from the Target.
+	 */
+	public long getInitialAge() {
+		return initialAge;
+	}
+
+	/**
+	 * Returns the freshness lifetime (in seconds) of the response.
+	 */
+	public long getFreshness() {
+		return freshness;
+	}
+
+	/**
+	 * Returns the number of seconds (beyond it's freshness lifetime) for which this response may be served while it is revalidated in the background.
+	 */
+	public long getStaleWhileRevalidate() {
+		return staleWhileRevalidate;
+	}
+
+	/**
+	 * Returns the number of seconds (beyond it's freshness lifetime) for which this response may be served if the Target cannot be reached or returns an error.
+	 */
+	public long getStaleIfError() {
+		return staleIfError;
+	}
+
+	/**
+	 * Returns the number of seconds (from the time the response was generated) for which this entry is worth retaining.
+	 */
+	public long getRetention() {
+		return freshness + Math.max(staleWhileRevalidate, staleIfError);
+	}
+
+	/**
+	 * Returns the {@code ETag} of this response (or null if it has none).
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * Returns the {@code Last-Modified} date of this response (or null if it has none).
+	 */
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Returns the surrogate tags of this response (never null).
+	 */
+	public String[] getTags() {
+		return tags;
+	}
+
+	/**
+	 * Returns true if this response carries a validator (and so can be revalidated with a conditional request).
+	 */
+	public boolean hasValidator() {
+		return (etag != null) || (lastModified != null);
+	}
+
+	/**
+	 * Claim the (single) right to revalidate this entry in the background.
+	 *
+	 * @return false if a revalidation is already in progress.
+	 */
+	public boolean beginRevalidation() {
+		return (revalidating != null) && revalidating.compareAndSet(false, true);
+	}
+
+	/**
+	 * The background revalidation of this entry has finished (whether or not it succeeded).
+	 */
+	public void endRevalidation() {
+		if (revalidating != null)
+			revalidating.set(false);
+	}
+
+	/**
+	 * Returns the estimated number of bytes of heap memory consumed by this entry.
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Returns the number of bytes of off-heap memory consumed by this entry.
+	 */
+	public long getOffHeapBytes() {
+		return content == null ? 0 : content.getCapacity();
+	}
+
+	/**
+	 * Acquire an additional reference to the content of this entry (so that it outlives the entry's removal from the cache).
+	 *
+	 * @return false if the content has already been freed.
+	 */
+	public boolean retain() {
+		return (content != null) && content.retain();
+	}
+
+	/**
+	 * Release a reference to the content of this entry (the cache releases it's own reference once the entry has been removed from the cache).
+	 */
+	public void release() {
+		if (content != null)
+			content.release();
+	}
+
+	/**
+	 * Returns the length of the response content.
+	 */
+	public int getContentLength() {
+		return content == null ? 0 : content.getLength();
+	}
+
+	/**
+	 * Returns the current age (in seconds) of this response (per RFC 7234 section 4.2.3).
+	 */
+	public long getAge(long now) {
+		return initialAge + Math.max(0, now - responseTime) / 1000;
+	}
+
+	/**
+	 * Returns true if this response is still fresh, and it's age does not exceed {@code maxAge} seconds (a negative {@code maxAge} imposes no additional limit).
+	 */
+	public boolean isFresh(long now, long maxAge) {
+		long age = getAge(now);
+		if ((maxAge >= 0) && (age > maxAge))
+			return false;
+		return age < freshness;
+	}
+
+	/**
+	 * Returns true if this (stale) response may be served while it is revalidated in the background.
+	 */
+	public boolean allowsStaleWhileRevalidate(long now) {
+		return getAge(now) < freshness + staleWhileRevalidate;
+	}
+
+	/**
+	 * Returns true if this (stale) response may be served in place of an error from the Target.
+	 */
+	public boolean allowsStaleIfError(long now) {
+		return getAge(now) < freshness + staleIfError;
+	}
+
+	/**
+	 * Create a new response (suitable for sending to a client) from this cached response.
+	 * The entity of the returned response holds a reference to the cached content, which is released when that entity is closed.
+	 *
+	 * @return The response, or null if the content of this entry has already been freed.
+	 */
+	public HttpResponse toHttpResponse(long now) {
+		if (!content.retain())
+			return null;
+		BasicHttpResponse retVal = new BasicHttpResponse(statusLine);
+		retVal.setHeaders(headers);
+		retVal.setHeader(new BasicHeader("Age", Long.toString(getAge(now))));
+		retVal.setEntity(new CachedContentProducer(content, contentType, contentEncoding));
+		return retVal;
+	}
+}
@@ -0,0 +1,311 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Passive outlier detection for a single remote Target.
+ * The outcome of every proxied request is recorded into a sliding window of time buckets, and when too many recent requests have failed, timed out, or been too slow,
+ * the breaker opens and the Target is ejected from rotation for a period of time (which grows each time the Target is ejected again).
+ * Once the ejection period has elapsed, a single trial request is permitted (half-open), and it's outcome decides whether the breaker closes or re-opens.
+ * NOTE: This class is updated from the reactor threads, so all state is maintained with atomic primitives.
+ * The window counters are approximate (a count may occasionally be lost when a bucket is recycled) which is an acceptable trade for never blocking.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class CircuitBreaker {
+
+	/**
+	 * The immutable settings shared by every {@code CircuitBreaker} created from a configuration.
+	 */
+	public static final class Policy {
+		/**
+		 * Primary constructor.
+		 *
+		 * @param windowMillis       Duration of the sliding window over which request outcomes are considered.
+		 * @param buckets            Number of buckets the window is divided into (the window slides one bucket at a time).
+		 * @param minRequests        Minimum number of requests within the window before the breaker may open.
+		 * @param failureRatio       Fraction (0-1] of requests within the window that must have failed (or been slow) for the breaker to open.
+		 * @param slowCallMillis     Requests whose response takes longer than this are considered failures (zero disables).
+		 * @param ejectionMillis     How long the Target is ejected the first time the breaker opens.
+		 * @param maxEjectionMillis  Upper bound on the ejection time, which doubles each consecutive time the breaker re-opens.
+		 */
+		public Policy(long windowMillis, int buckets, int minRequests, double failureRatio, long slowCallMillis, long ejectionMillis, long maxEjectionMillis) {
+			if ((windowMillis < 1) || (buckets < 1) || (windowMillis < buckets))
+				throw new IllegalArgumentException("Invalid circuit breaker window");
+			if ((failureRatio <= 0) || (failureRatio > 1))
+				throw new IllegalArgumentException("Circuit breaker failure ratio must be in the range (0-1]");
+			this.bucketMillis = windowMillis / buckets;
+			this.buckets = buckets;
+			this.minRequests = Math.max(1, minRequests);
+			this.failureRatio = failureRatio;
+			this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+			this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, ejectionMillis));
+			this.maxEjectionNanos = Math.max(this.ejectionNanos, TimeUnit.MILLISECONDS.toNanos(maxEjectionMillis));
+		}
+
+		final long bucketMillis;
+		final int buckets;
+		final int minRequests;
+		final double failureRatio;
+		final long slowCallNanos;
+		final long ejectionNanos;
+		final long maxEjectionNanos;
+	}
+
+	/**
+	 * What a {@code CircuitBreaker} allows a request to do.
+	 */
+	public enum Permit {
+		/**
+		 * The breaker is closed and the request may proceed.
+		 */
+		GRANTED,
+		/**
+		 * The breaker is half-open and this request is the single trial whose outcome decides the breaker's fate.
+		 */
+		TRIAL
+	}
+
+	/**
+	 * The outcome of a request, as reported back to the breaker.
+	 */
+	public enum Outcome {
+		/**
+		 * The Target responded with a non 5xx status.
+		 */
+		SUCCESS,
+		/**
+		 * The Target responded with a 5xx status, or the connection / exchange failed.
+		 */
+		FAILURE,
+		/**
+		 * The Target did not respond in time.
+		 */
+		TIMEOUT,
+		/**
+		 * The request was abandoned (e.g. by the client) before the Target's health could be judged.
+		 */
+		CANCELLED
+	}
+
+	private static final int Closed = 0;
+	private static final int Open = 1;
+	private static final int HalfOpen = 2;
+	private static final String[] StateNames = {"closed", "open", "half-open"};
+
+	// Layout of each bucket within the window array.
+	private static final int EpochField = 0;
+	private static final int RequestsField = 1;
+	private static final int FailuresField = 2;
+	private static final int TimeoutsField = 3;
+	private static final int SlowField = 4;
+	private static final int LatencyMicrosField = 5;
+	private static final int FieldCount = 6;
+
+	/**
+	 * Primary constructor.
+	 */
+	public CircuitBreaker(Policy policy) {
+		this.policy = policy;
+		this.window = new AtomicLongArray(policy.buckets * FieldCount);
+		for (int i = 0; i < policy.buckets; i++)
+			window.set(i * FieldCount + EpochField, -1);
+		this.state = new AtomicInteger(Closed);
+		this.ejections = new AtomicInteger();
+		this.trialInFlight = new AtomicBoolean();
+		this.origin = System.nanoTime();
+	}
+
+	private final Policy policy;
+	private final AtomicLongArray window;
+	private final AtomicInteger state;
+	private final AtomicInteger ejections;
+	private final AtomicBoolean trialInFlight;
+	private final long origin;
+	private volatile long openUntil;
+
+	/**
+	 * Returns true if a request could currently be sent through this breaker.
+	 * Unlike {@link #tryAcquire()} this does not consume the half-open trial, so it is suitable for evaluating candidates during load balancing.
+	 */
+	public boolean isAvailable() {
+		switch (state.get()) {
+			case Closed:
+				return true;
+			case Open:
+				return System.nanoTime() - openUntil >= 0;
+			default:
+				return !trialInFlight.get();
+		}
+	}
+
+	/**
+	 * Ask permission to send a request through this breaker.
+	 *
+	 * @return The permit which must be passed back to {@link #record(Permit, Outcome, long)}, or {@code null} if the request must not be sent.
+	 */
+	public Permit tryAcquire() {
+		for (; ; ) {
+			int s = state.get();
+			if (s == Closed)
+				return Permit.GRANTED;
+			if (s == Open) {
+				if (System.nanoTime() - openUntil < 0)
+					return null;
+				state.compareAndSet(Open, HalfOpen);
+				continue;
+			}
+			return trialInFlight.compareAndSet(false, true) ? Permit.TRIAL : null;
+		}
+	}
+
+	/**
+	 * Record the outcome of a request that was granted a {@code permit} by this breaker.
+	 *
+	 * @param latencyNanos The time taken for the Target to respond (only meaningful for a {@code SUCCESS}).
+	 */
+	public void record(Permit permit, Outcome outcome, long latencyNanos) {
+		boolean slow = (outcome == Outcome.SUCCESS) && (policy.slowCallNanos > 0) && (latencyNanos > policy.slowCallNanos);
+		if (outcome != Outcome.CANCELLED) {
+			int base = currentBucket();
+			window.incrementAndGet(base + RequestsField);
+			if (outcome == Outcome.FAILURE)
+				window.incrementAndGet(base + FailuresField);
+			else if (outcome == Outcome.TIMEOUT)
+				window.incrementAndGet(base + TimeoutsField);
+			else {
+				window.addAndGet(base + LatencyMicrosField, TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+				if (slow)
+					window.incrementAndGet(base + SlowField);
+			}
+		}
+		boolean bad = (outcome == Outcome.FAILURE) || (outcome == Outcome.TIMEOUT) || slow;
+		if (permit == Permit.TRIAL) {
+			if (outcome == Outcome.CANCELLED)
+				openUntil = System.nanoTime();    // Inconclusive, allow another trial right away.
+			else if (!bad) {
+				clearWindow();
+				ejections.set(0);
+				state.set(Closed);
+			}
+			else
+				eject(HalfOpen);
+			trialInFlight.set(false);
+		}
+		else if (bad && (state.get() == Closed) && shouldTrip())
+			eject(Closed);
+	}
+
+	/**
+	 * Returns a snapshot of this breaker's state and window counters.
+	 */
+	public Map<String, Object> getStats() {
+		long[] totals = windowTotals();
+		Map<String, Object> retVal = new LinkedHashMap<>();
+		retVal.put("state", StateNames[state.get()]);
+		retVal.put("ejections", ejections.get());
+		retVal.put("requests", totals[RequestsField]);
+		retVal.put("failures", totals[FailuresField]);
+		retVal.put("timeouts", totals[TimeoutsField]);
+		retVal.put("slow", totals[SlowField]);
+		long successes = totals[RequestsField] - totals[FailuresField] - totals[TimeoutsField];
+		retVal.put("meanLatencyMillis", successes > 0 ? totals[LatencyMicrosField] / successes / 1000.0 : 0.0);
+		return retVal;
+	}
+
+	/**
+	 * Open the breaker (if it is still in the {@code expected} state), doubling the ejection time for each consecutive ejection.
+	 */
+	private void eject(int expected) {
+		int n = ejections.incrementAndGet();
+		long duration = policy.ejectionNanos << Math.min(n - 1, 30);
+		if ((duration <= 0) || (duration > policy.maxEjectionNanos))
+			duration = policy.maxEjectionNanos;
+		openUntil = System.nanoTime() + duration;
+		if (state.compareAndSet(expected, Open))
+			clearWindow();
+		else
+			ejections.decrementAndGet();
+	}
+
+	private boolean shouldTrip() {
+		long[] totals = windowTotals();
+		long requests = totals[RequestsField];
+		if (requests < policy.minRequests)
+			return false;
+		long bad = totals[FailuresField] + totals[TimeoutsField] + totals[SlowField];
+		return bad >= requests * policy.failureRatio;
+	}
+
+	/**
+	 * Returns the offset of the bucket for the current time, recycling it if it last belonged to an earlier epoch.
+	 */
+	private int currentBucket() {
+		long epoch = currentEpoch();
+		int base = (int) (epoch % policy.buckets) * FieldCount;
+		long existing = window.get(base + EpochField);
+		if ((existing != epoch) && window.compareAndSet(base + EpochField, existing, epoch)) {
+			for (int f = EpochField + 1; f < FieldCount; f++)
+				window.set(base + f, 0);
+		}
+		return base;
+	}
+
+	/**
+	 * Sum each field across all buckets that are still within the window.
+	 */
+	private long[] windowTotals() {
+		long[] retVal = new long[FieldCount];
+		long oldest = currentEpoch() - policy.buckets;
+		for (int i = 0; i < policy.buckets; i++) {
+			int base = i * FieldCount;
+			long epoch = window.get(base + EpochField);
+			if ((epoch < 0) || (epoch <= oldest))
+				continue;
+			for (int f = EpochField + 1; f < FieldCount; f++)
+				retVal[f] += window.get(base + f);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the number of buckets that have elapsed since this breaker was created.
+	 */
+	private long currentEpoch() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin) / policy.bucketMillis;
+	}
+
+	private void clearWindow() {
+		for (int i = 0; i < policy.buckets; i++)
+			window.set(i * FieldCount + EpochField, -1);
+	}
+}
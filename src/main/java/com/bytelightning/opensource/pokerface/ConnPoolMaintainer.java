@@ -0,0 +1,287 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.HttpHost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.pool.BasicNIOPoolEntry;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the upstream connection pool warm and tidy.
+ * Before traffic is accepted (and periodically thereafter, such as after a remote Target restarts) each Target is topped up to a minimum number of idle connections,
+ * so that requests do not pay for TCP (and TLS) connection setup.
+ * Each pass also closes connections that have outlived their time to live, or have sat idle for too long (which might otherwise be silently dropped by the Target or a firewall).
+ * The connections themselves are opened and closed by the connecting reactor, so the only thread this class needs is the (shared) scheduler that triggers each pass.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ConnPoolMaintainer {
+	protected static final Logger Logger = LoggerFactory.getLogger(ConnPoolMaintainer.class.getPackage().getName());
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param connPool    The pool to be maintained.
+	 * @param scheduler   Used to trigger each maintenance pass.
+	 * @param hosts       The Targets which should each have at least {@code minIdle} idle connections.
+	 * @param minIdle     Minimum number of idle connections to keep open to each Target (0 disables pre-warming).
+	 * @param idleTimeout Milliseconds after which an idle connection is closed (0 disables idle eviction).
+	 * @param interval    Milliseconds between maintenance passes.
+	 */
+	public ConnPoolMaintainer(ShardedNIOConnPool connPool, ScheduledExecutorService scheduler, Collection<TargetHost> hosts, int minIdle, long idleTimeout, long interval) {
+		this.connPool = connPool;
+		this.scheduler = scheduler;
+		this.hosts = new ArrayList<>(hosts);
+		this.minIdle = Math.max(0, minIdle);
+		this.idleTimeout = Math.max(0, idleTimeout);
+		this.interval = Math.max(1, interval);
+		this.warming = new ConcurrentHashMap<>();
+	}
+
+	private final ShardedNIOConnPool connPool;
+	private final ScheduledExecutorService scheduler;
+	private final List<TargetHost> hosts;
+	private final int minIdle;
+	private final long idleTimeout;
+	private final long interval;
+	private final ConcurrentMap<HttpHost, Warmer> warming;
+	private ScheduledFuture<?> task;
+
+	/**
+	 * A top up which has not finished within this many milliseconds (e.g. because one of it's leases never completes) is abandoned, so that the Target may be topped up again.
+	 */
+	protected static final long MaxWarmMillis = 30000;
+
+	/**
+	 * Open {@code minIdle} connections to every Target, and wait (at most {@code timeout} milliseconds) for them to be established.
+	 * Targets which cannot be reached are simply logged, as their connections will be retried on each maintenance pass.
+	 *
+	 * @return true if every Target was successfully warmed within the timeout.
+	 */
+	public boolean prewarm(long timeout) {
+		if (minIdle <= 0)
+			return true;
+		List<Warmer> warmers = new ArrayList<>();
+		for (TargetHost host : hosts) {
+			Warmer warmer = topUp(host);
+			if (warmer != null)
+				warmers.add(warmer);
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		boolean retVal = true;
+		for (Warmer warmer : warmers) {
+			try {
+				if (!warmer.done.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+					Logger.warn("Timed out pre-warming connections to " + warmer.route);
+					warmer.abandon();
+					retVal = false;
+				}
+				else if (warmer.failures.get() > 0)
+					retVal = false;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Begin periodic maintenance of the pool.
+	 */
+	public synchronized void start() {
+		if (task != null)
+			return;
+		try {
+			task = scheduler.scheduleWithFixedDelay(this::maintain, interval, interval, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ex) {
+			Logger.debug("Connection pool maintenance has shut down");
+		}
+	}
+
+	/**
+	 * Stop maintaining the pool (connections that are already open are left alone).
+	 */
+	public synchronized void stop() {
+		if (task != null)
+			task.cancel(false);
+		task = null;
+	}
+
+	/**
+	 * Perform a single maintenance pass.
+	 */
+	protected void maintain() {
+		try {
+			connPool.closeExpired();
+			if (idleTimeout > 0)
+				connPool.closeIdle(idleTimeout, TimeUnit.MILLISECONDS);
+			if (minIdle > 0) {
+				for (TargetHost host : hosts)
+					if (host.isAvailable())
+						topUp(host);
+			}
+		} catch (RuntimeException ex) {
+			// Never allow an exception to cancel the periodic task.
+			Logger.error("Connection pool maintenance failed", ex);
+		}
+	}
+
+	/**
+	 * If the specified Target has fewer than {@code minIdle} idle connections, open enough new connections to make up the difference.
+	 * The pool always hands out idle connections before opening new ones, so we lease {@code minIdle} connections at once and then release them all together.
+	 * Leasing the existing idle connections delays any competing request by (at most) the time it takes to connect.
+	 *
+	 * @return The top up which was started, or null if none was needed (or one is already in progress).
+	 */
+	private Warmer topUp(TargetHost host) {
+		HttpHost route = host.getHttpHost();
+		PoolStats stats = connPool.getStats(route);
+		int wanted = Math.min(minIdle, stats.getMax() - stats.getLeased());
+		if ((stats.getAvailable() >= wanted) || (stats.getPending() > 0))
+			return null;
+		Warmer existing = warming.get(route);
+		if ((existing != null) && (System.nanoTime() - existing.startNanos > TimeUnit.MILLISECONDS.toNanos(MaxWarmMillis)))
+			existing.abandon();
+		Warmer warmer = new Warmer(route, wanted);
+		if (warming.putIfAbsent(route, warmer) != null)
+			return null;
+		for (int i = 0; i < wanted; i++) {
+			try {
+				warmer.track(connPool.lease(route, null, warmer));
+			} catch (RuntimeException ex) {
+				warmer.failed(ex);
+			}
+		}
+		return warmer;
+	}
+
+	/**
+	 * Collects the connections leased by a single top up, and releases them back to the pool (idle) once they have all been established.
+	 * The Target is no longer considered to be warming as soon as any lease fails (or the top up is abandoned), so that the next maintenance pass may try again.
+	 */
+	private class Warmer implements FutureCallback<BasicNIOPoolEntry> {
+		Warmer(HttpHost route, int count) {
+			this.route = route;
+			this.entries = new ArrayList<>(count);
+			this.remaining = new AtomicInteger(count);
+			this.failures = new AtomicInteger();
+			this.done = new CountDownLatch(1);
+			this.leases = new ArrayList<>(count);
+			this.startNanos = System.nanoTime();
+		}
+
+		private final HttpHost route;
+		private final List<BasicNIOPoolEntry> entries;
+		private final AtomicInteger remaining;
+		private final AtomicInteger failures;
+		private final CountDownLatch done;
+		private final List<Future<BasicNIOPoolEntry>> leases;
+		private final long startNanos;
+
+		void track(Future<BasicNIOPoolEntry> lease) {
+			synchronized (leases) {
+				leases.add(lease);
+			}
+		}
+
+		/**
+		 * Stop waiting for this top up, cancelling any leases that are still outstanding (the connections that were established are still released back to the pool).
+		 */
+		void abandon() {
+			warming.remove(route, this);
+			List<Future<BasicNIOPoolEntry>> outstanding;
+			synchronized (leases) {
+				outstanding = new ArrayList<>(leases);
+			}
+			for (Future<BasicNIOPoolEntry> lease : outstanding)
+				lease.cancel(true);
+		}
+
+		@Override
+		public void completed(BasicNIOPoolEntry result) {
+			synchronized (entries) {
+				entries.add(result);
+			}
+			countDown();
+		}
+
+		@Override
+		public void failed(Exception ex) {
+			if (failures.getAndIncrement() == 0)
+				Logger.warn("Unable to pre-warm connections to " + route + " (" + ex + ")");
+			warming.remove(route, this);
+			countDown();
+		}
+
+		@Override
+		public void cancelled() {
+			failures.incrementAndGet();
+			warming.remove(route, this);
+			countDown();
+		}
+
+		private void countDown() {
+			if (remaining.decrementAndGet() > 0)
+				return;
+			// Newly created connections cannot be released from within their lease callback (which is where we probably are), so hand off to the scheduler.
+			try {
+				scheduler.execute(this::releaseAll);
+			} catch (RejectedExecutionException ex) {
+				releaseAll();
+			}
+		}
+
+		private void releaseAll() {
+			List<BasicNIOPoolEntry> leased;
+			synchronized (entries) {
+				leased = new ArrayList<>(entries);
+				entries.clear();
+			}
+			for (BasicNIOPoolEntry entry : leased)
+				connPool.release(entry, true);
+			warming.remove(route, this);
+			if (Logger.isDebugEnabled())
+				Logger.debug("Warmed " + leased.size() + " connections to " + route);
+			done.countDown();
+		}
+	}
+}
@@ -0,0 +1,704 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A second (disk based) tier for the {@code ResponseCache}.
+ * Responses evicted from memory are "demoted" to this tier by appending them to memory mapped segment files.
+ * Only a compact index (key to segment / offset plus retention information) is held on the heap; headers are decoded from the mapping when an entry is hit,
+ * and content is served directly from the mapped segment (it is never copied onto the heap).
+ * The index is rebuilt from the segment files at startup, so the cache is warm immediately after a restart.
+ * Invalidations (and purges) append a tombstone record so that they survive a restart.
+ * The index is sorted (so that every key with a given prefix can be found without a scan), and an inverted index maps each surrogate tag to the keys that carry it.
+ * When the segment files exceed their budget, the oldest segment (and every entry it holds) is deleted.
+ * Lookups never wait for the disk: the index is a concurrent map, and demoted responses are queued and appended by the {@code writer} executor
+ * (which also flushes each segment as it fills), so only the writer and invalidations take this tier's lock.
+ * A queued response is served from memory until it has been written.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DiskCacheTier {
+	protected static final Logger Logger = LoggerFactory.getLogger(DiskCacheTier.class.getPackage().getName());
+
+	private static final int Magic = 0x50464333;    // "PFC3"
+	private static final byte EntryRecord = 1;
+	private static final byte TombstoneRecord = 2;
+	// magic, type, key length, metadata length, content length
+	private static final int RecordHeaderSize = 4 + 1 + 4 + 4 + 4;
+
+	/**
+	 * Primary constructor
+	 * Opens (or creates) the cache directory and rebuilds the index from any segment files it contains.
+	 *
+	 * @param directory   Directory which holds the segment files.
+	 * @param maxBytes    The maximum number of bytes the segment files may consume.
+	 * @param segmentSize The size of each segment file (this is also the largest entry that can be stored).
+	 * @param writer      Appends demoted responses, and flushes full segments, in the background.
+	 */
+	public DiskCacheTier(Path directory, long maxBytes, int segmentSize, Executor writer) throws IOException {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.segmentSize = segmentSize;
+		this.writer = writer;
+		this.segments = new ConcurrentSkipListMap<>();
+		this.index = new ConcurrentSkipListMap<>();
+		this.tagIndex = new HashMap<>();
+		this.queue = new ConcurrentLinkedQueue<>();
+		this.pending = new ConcurrentHashMap<>();
+		this.queued = new AtomicInteger();
+		this.draining = new AtomicBoolean();
+		this.hits = new LongAdder();
+		this.overflows = new LongAdder();
+		Files.createDirectories(directory);
+		load();
+		openSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+	}
+
+	/**
+	 * Create a tier whose writes are performed by the thread that demotes each response.
+	 *
+	 * @see #DiskCacheTier(Path, long, int, Executor)
+	 */
+	public DiskCacheTier(Path directory, long maxBytes, int segmentSize) throws IOException {
+		this(directory, maxBytes, segmentSize, Runnable::run);
+	}
+
+	private final Path directory;
+	private final long maxBytes;
+	private final int segmentSize;
+	private final Executor writer;
+	// The maps may be read without a lock, but are only modified while holding 'this'.
+	private final ConcurrentSkipListMap<Integer, Segment> segments;
+	private final ConcurrentSkipListMap<String, Location> index;
+	// The following are guarded by 'this'.
+	private final HashMap<String, Set<String>> tagIndex;
+	private Segment current;
+	private long stores;
+	private long dropped;
+	// Responses waiting for the writer.
+	private final ConcurrentLinkedQueue<Demotion> queue;
+	private final ConcurrentHashMap<String, Demotion> pending;
+	private final AtomicInteger queued;
+	private final AtomicBoolean draining;
+	private final LongAdder hits;
+	private final LongAdder overflows;
+
+	/**
+	 * The maximum number of responses that may wait for the writer (beyond this, evicted responses are simply discarded rather than holding on to their memory).
+	 */
+	private static final int MaxQueued = 1024;
+
+	/**
+	 * A response waiting to be appended by the writer.
+	 */
+	private static final class Demotion {
+		Demotion(CachedResponse entry, long retainUntil, BooleanSupplier wanted) {
+			this.entry = entry;
+			this.retainUntil = retainUntil;
+			this.wanted = wanted;
+		}
+
+		final CachedResponse entry;
+		final long retainUntil;    // Only used for a vary marker (see 'demoteMarker').
+		final BooleanSupplier wanted;
+	}
+
+	/**
+	 * A segment file and it's mapping.
+	 */
+	private static final class Segment {
+		Segment(int id, Path path, MappedByteBuffer buffer) {
+			this.id = id;
+			this.path = path;
+			this.buffer = buffer;
+		}
+
+		final int id;
+		final Path path;
+		final MappedByteBuffer buffer;
+		int position;
+	}
+
+	/**
+	 * Where an entry lives on disk, along with what is needed to judge whether it is still worth keeping without touching the disk.
+	 * An entry is retained (beyond it's freshness lifetime) for as long as it may be served stale (see {@code CachedResponse.getRetention}).
+	 * A vary marker is retained for as long as the longest retained of the variants it was demoted with.
+	 */
+	private static final class Location {
+		Location(int segment, int offset, long responseTime, long initialAge, long retention, String[] tags) {
+			this.segment = segment;
+			this.offset = offset;
+			this.responseTime = responseTime;
+			this.initialAge = initialAge;
+			this.retention = retention;
+			this.tags = tags;
+		}
+
+		final int segment;
+		final int offset;
+		final long responseTime;
+		final long initialAge;
+		final long retention;
+		final String[] tags;
+
+		boolean isExpired(long now) {
+			return (retention >= 0) && (initialAge + Math.max(0, now - responseTime) / 1000 >= retention);
+		}
+	}
+
+	private static String SegmentName(int id) {
+		return String.format("segment-%08d.dat", id);
+	}
+
+	/**
+	 * Map every existing segment file, and replay it's records to rebuild the index (later records supersede earlier ones).
+	 */
+	private void load() throws IOException {
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory, "segment-*.dat")) {
+			for (Path p : ds) {
+				String name = p.getFileName().toString();
+				try {
+					int id = Integer.parseInt(name.substring(8, name.length() - 4));
+					try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+						segments.put(id, new Segment(id, p, fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size())));
+					}
+				} catch (NumberFormatException ex) {
+					Logger.warn("Ignoring unrecognized cache file " + p);
+				}
+			}
+		}
+		long now = System.currentTimeMillis();
+		for (Segment seg : segments.values()) {
+			ByteBuffer buf = seg.buffer.duplicate();
+			int pos = 0;
+			while (pos + RecordHeaderSize <= buf.limit()) {
+				buf.position(pos);
+				if (buf.getInt() != Magic)
+					break;    // End of the records written to this segment (or an incomplete one).
+				byte type = buf.get();
+				int keyLen = buf.getInt();
+				int metaLen = buf.getInt();
+				int contentLen = buf.getInt();
+				int end = pos + RecordHeaderSize + keyLen + metaLen + Math.max(0, contentLen);
+				if ((keyLen < 0) || (metaLen < 0) || (end > buf.limit()) || (end < pos))
+					break;
+				byte[] keyBytes = new byte[keyLen];
+				buf.get(keyBytes);
+				String key = new String(keyBytes, StandardCharsets.UTF_8);
+				if (type == TombstoneRecord)
+					forget(key);
+				else {
+					buf.limit(buf.position() + metaLen);
+					Location loc = ReadLocation(seg.id, pos, buf.slice());
+					buf.limit(buf.capacity());
+					if (loc.isExpired(now))
+						forget(key);
+					else
+						remember(key, loc);
+				}
+				pos = end;
+			}
+			seg.position = pos;
+		}
+		if (!index.isEmpty())
+			Logger.info("Loaded " + index.size() + " cached responses from " + directory);
+	}
+
+	/**
+	 * Read the retention information and tags (which are always at the start of the metadata).
+	 */
+	private static Location ReadLocation(int segment, int offset, ByteBuffer meta) {
+		long responseTime = meta.getLong();
+		long initialAge = meta.getLong();
+		long retention = meta.getLong();
+		meta.getLong();    // Freshness
+		String[] tags = new String[meta.getInt()];
+		for (int i = 0; i < tags.length; i++) {
+			byte[] tag = new byte[meta.getShort() & 0xFFFF];
+			meta.get(tag);
+			tags[i] = new String(tag, StandardCharsets.UTF_8);
+		}
+		return new Location(segment, offset, responseTime, initialAge, retention, tags);
+	}
+
+	/**
+	 * Add (or replace) an entry in the index, and index it's tags.
+	 */
+	private void remember(String key, Location loc) {
+		Location prior = index.put(key, loc);
+		if (prior != null)
+			untag(key, prior);
+		for (String tag : loc.tags)
+			tagIndex.computeIfAbsent(tag, t -> new HashSet<>()).add(key);
+	}
+
+	/**
+	 * Remove an entry (and it's tags) from the index.
+	 *
+	 * @return false if the key was not indexed.
+	 */
+	private boolean forget(String key) {
+		Location loc = index.remove(key);
+		if (loc == null)
+			return false;
+		untag(key, loc);
+		return true;
+	}
+
+	private void untag(String key, Location loc) {
+		for (String tag : loc.tags) {
+			Set<String> keys = tagIndex.get(tag);
+			if ((keys != null) && keys.remove(key) && keys.isEmpty())
+				tagIndex.remove(tag);
+		}
+	}
+
+	/**
+	 * Begin appending to a new segment file (the full one is flushed to disk by the writer).
+	 */
+	private void openSegment(int id) throws IOException {
+		if (current != null)
+			execute(current.buffer::force);
+		Path p = directory.resolve(SegmentName(id));
+		try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+			current = new Segment(id, p, fc.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+		}
+		segments.put(id, current);
+		trim();
+	}
+
+	/**
+	 * Delete the oldest segments (and forget the entries they hold) until the segment files fit within budget.
+	 */
+	private void trim() {
+		while ((segments.size() > 1) && ((long) segments.size() * segmentSize > maxBytes)) {
+			Segment oldest = segments.pollFirstEntry().getValue();
+			List<String> keys = new ArrayList<>();
+			for (Map.Entry<String, Location> e : index.entrySet())
+				if (e.getValue().segment == oldest.id)
+					keys.add(e.getKey());
+			for (String key : keys)
+				forget(key);
+			dropped += keys.size();
+			// Any response still being served from this segment keeps it's mapping (and therefore it's content) alive.
+			try {
+				Files.deleteIfExists(oldest.path);
+			} catch (IOException ex) {
+				Logger.warn("Unable to delete cache segment " + oldest.path, ex);
+			}
+		}
+	}
+
+	/**
+	 * Encode everything about a response except it's key and content.
+	 * The retention information is passed separately, since a vary marker has none of it's own.
+	 */
+	private static byte[] EncodeMetadata(CachedResponse entry, long responseTime, long initialAge, long retention) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(responseTime);
+		out.writeLong(initialAge);
+		out.writeLong(retention);
+		out.writeLong(entry.getFreshness());
+		String[] tags = entry.getTags();
+		out.writeInt(tags.length);
+		for (String tag : tags) {
+			byte[] b = tag.getBytes(StandardCharsets.UTF_8);
+			out.writeShort(b.length);
+			out.write(b);
+		}
+		if (entry.isVaryMarker()) {
+			out.writeBoolean(true);
+			out.writeInt(entry.getVaryNames().length);
+			for (String name : entry.getVaryNames())
+				out.writeUTF(name);
+		}
+		else {
+			out.writeBoolean(false);
+			StatusLine sl = entry.getStatusLine();
+			out.writeUTF(sl.getProtocolVersion().getProtocol());
+			out.writeInt(sl.getProtocolVersion().getMajor());
+			out.writeInt(sl.getProtocolVersion().getMinor());
+			out.writeInt(sl.getStatusCode());
+			out.writeUTF(sl.getReasonPhrase() == null ? "" : sl.getReasonPhrase());
+			WriteHeader(out, entry.getContentType());
+			WriteHeader(out, entry.getContentEncoding());
+			Header[] headers = entry.getHeaders();
+			out.writeInt(headers.length);
+			for (Header hdr : headers)
+				WriteHeader(out, hdr);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void WriteHeader(DataOutputStream out, Header hdr) throws IOException {
+		out.writeBoolean(hdr != null);
+		if (hdr != null) {
+			out.writeUTF(hdr.getName());
+			out.writeUTF(hdr.getValue());
+		}
+	}
+
+	private static Header ReadHeader(DataInputStream in) throws IOException {
+		if (!in.readBoolean())
+			return null;
+		return new BasicHeader(in.readUTF(), in.readUTF());
+	}
+
+	/**
+	 * Queue a response that was evicted from memory to be appended to disk by the writer (the calling thread never waits for the disk).
+	 * Until it has been written, the response is served (and may be invalidated) from the queue.
+	 *
+	 * @param entry  The response, whose reference is released once it has been written (or discarded).
+	 * @param wanted Consulted by the writer (while holding this tier's lock, so it is atomic with respect to invalidations) immediately before the response is written,
+	 *               the response is discarded if it returns false.
+	 */
+	public void demote(CachedResponse entry, BooleanSupplier wanted) {
+		demote(entry, -1, wanted);
+	}
+
+	/**
+	 * Queue the vary marker of a variant that is being demoted (see {@code demote}), since the variant is unreachable on disk without it.
+	 * The marker is retained for at least as long as the {@code variant} (and any other variant it was demoted with).
+	 */
+	public void demoteMarker(CachedResponse marker, CachedResponse variant, BooleanSupplier wanted) {
+		long retainUntil = variant.getResponseTime() + (variant.getRetention() - variant.getInitialAge()) * 1000;
+		Demotion prior = pending.get(marker.getKey());
+		if (prior != null)    // The marker may still be queued with another variant, which it replaces.
+			retainUntil = Math.max(retainUntil, prior.retainUntil);
+		demote(marker, retainUntil, wanted);
+	}
+
+	private void demote(CachedResponse entry, long retainUntil, BooleanSupplier wanted) {
+		if (queued.incrementAndGet() > MaxQueued) {
+			queued.decrementAndGet();
+			overflows.increment();
+			entry.release();
+			return;
+		}
+		Demotion demotion = new Demotion(entry, retainUntil, wanted);
+		pending.put(entry.getKey(), demotion);
+		queue.add(demotion);
+		if (draining.compareAndSet(false, true))
+			execute(this::drain);
+	}
+
+	/**
+	 * Run a task on the writer (or on this thread if the writer has shut down).
+	 */
+	private void execute(Runnable task) {
+		try {
+			writer.execute(task);
+		} catch (RejectedExecutionException ex) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Append every queued response.
+	 */
+	private void drain() {
+		do {
+			Demotion demotion;
+			while ((demotion = queue.poll()) != null) {
+				queued.decrementAndGet();
+				try {
+					synchronized (this) {
+						// A response that was invalidated (or superseded) while it was queued is no longer pending.
+						if (pending.remove(demotion.entry.getKey(), demotion) && demotion.wanted.getAsBoolean())
+							store(demotion.entry, demotion.retainUntil);
+					}
+				} catch (RuntimeException ex) {
+					Logger.warn("Unable to store cached response in " + directory, ex);
+				} finally {
+					demotion.entry.release();
+				}
+			}
+			draining.set(false);
+			// A response may have been queued after we found the queue empty, but before we cleared the flag.
+		} while ((!queue.isEmpty()) && draining.compareAndSet(false, true));
+	}
+
+	/**
+	 * Append a response that was evicted from memory (nothing is stored if it is no longer fresh, or is too large for a segment).
+	 *
+	 * @param retainUntil For a vary marker, the time until which the variants it was demoted with may be served.
+	 */
+	synchronized void store(CachedResponse entry, long retainUntil) {
+		long now = System.currentTimeMillis();
+		long responseTime = entry.getResponseTime();
+		long initialAge = entry.getInitialAge();
+		long retention = entry.getRetention();
+		if (entry.isVaryMarker()) {
+			// Never shorten the retention of a marker that is already stored (another of it's variants may still need it).
+			responseTime = now;
+			initialAge = 0;
+			retention = (retainUntil - now + 999) / 1000;
+			Location prior = index.get(entry.getKey());
+			if ((prior != null) && (prior.retention >= 0))
+				retention = Math.max(retention, prior.retention - prior.initialAge - Math.max(0, now - prior.responseTime) / 1000);
+			if (retention <= 0)
+				return;
+		}
+		else if (!entry.isFresh(now, -1))
+			return;
+		try {
+			byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			byte[] meta = EncodeMetadata(entry, responseTime, initialAge, retention);
+			int contentLen = entry.isVaryMarker() ? 0 : entry.getContentLength();
+			long size = (long) RecordHeaderSize + key.length + meta.length + contentLen;
+			if (size > segmentSize)
+				return;
+			int offset = reserve((int) size);
+			ByteBuffer buf = current.buffer.duplicate();
+			buf.position(offset + 4);
+			buf.put(EntryRecord);
+			buf.putInt(key.length);
+			buf.putInt(meta.length);
+			buf.putInt(contentLen);
+			buf.put(key);
+			buf.put(meta);
+			CachedContent content = entry.getContent();
+			if (content != null)
+				for (int i = 0; i < content.getBlockCount(); i++)
+					buf.put(content.view(i));    // Off-heap to mapped, no heap copy.
+			buf.putInt(offset, Magic);    // Written last, so that a partially written record is never replayed.
+			remember(entry.getKey(), ReadLocation(current.id, offset, ByteBuffer.wrap(meta)));
+			stores++;
+		} catch (IOException ex) {
+			Logger.warn("Unable to store cached response in " + directory, ex);
+		}
+	}
+
+	/**
+	 * Returns the offset in the current segment at which a record of {@code size} bytes may be written (opening a new segment if necessary).
+	 */
+	private int reserve(int size) throws IOException {
+		if (current.position + size > segmentSize)
+			openSegment(current.id + 1);
+		int retVal = current.position;
+		current.position += size;
+		return retVal;
+	}
+
+	/**
+	 * Returns the entry stored under {@code key} (which may be stale, but is still worth retaining), or null if there is none.
+	 * This never takes a lock (an expired entry is simply ignored until it's segment is deleted).
+	 */
+	public CachedResponse get(String key) {
+		Demotion demotion = pending.get(key);
+		if ((demotion != null) && demotion.wanted.getAsBoolean())
+			return demotion.entry;
+		Location loc = index.get(key);
+		if ((loc == null) || loc.isExpired(System.currentTimeMillis()))
+			return null;
+		Segment seg = segments.get(loc.segment);
+		if (seg == null)
+			return null;    // The segment was deleted after we found the entry.
+		ByteBuffer buf = seg.buffer.duplicate();
+		buf.position(loc.offset + 4 + 1);
+		int keyLen = buf.getInt();
+		int metaLen = buf.getInt();
+		int contentLen = buf.getInt();
+		int metaStart = loc.offset + RecordHeaderSize + keyLen;
+		byte[] meta = new byte[metaLen];
+		buf.position(metaStart);
+		buf.get(meta);
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta));
+			long responseTime = in.readLong();
+			long initialAge = in.readLong();
+			in.readLong();    // Retention (already known from the index).
+			long freshness = in.readLong();
+			for (int i = in.readInt(); i > 0; i--)
+				in.skipBytes(in.readUnsignedShort());    // Tags (already known from the index).
+			if (in.readBoolean()) {
+				String[] names = new String[in.readInt()];
+				for (int i = 0; i < names.length; i++)
+					names[i] = in.readUTF();
+				return new CachedResponse(key, names);
+			}
+			ProtocolVersion version = new ProtocolVersion(in.readUTF(), in.readInt(), in.readInt());
+			StatusLine sl = new BasicStatusLine(version, in.readInt(), in.readUTF());
+			Header contentType = ReadHeader(in);
+			Header contentEncoding = ReadHeader(in);
+			Header[] headers = new Header[in.readInt()];
+			for (int i = 0; i < headers.length; i++)
+				headers[i] = ReadHeader(in);
+			buf.position(metaStart + metaLen);
+			buf.limit(metaStart + metaLen + contentLen);
+			hits.increment();
+			return new CachedResponse(key, sl, headers, contentType, contentEncoding, new CachedContent(buf), responseTime, initialAge, freshness, loc.tags);
+		} catch (IOException ex) {
+			Logger.warn("Corrupt cache record for " + key, ex);
+			synchronized (this) {
+				if (index.get(key) == loc)
+					forget(key);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if an entry is stored (or queued to be stored) under {@code key} (whether or not it has expired).
+	 */
+	public boolean contains(String key) {
+		return pending.containsKey(key) || index.containsKey(key);
+	}
+
+	/**
+	 * Forget the specified key, and every variant of it (which are keyed by the {@code key} followed by a newline).
+	 *
+	 * @return The number of entries removed.
+	 */
+	public synchronized int invalidate(String key) {
+		pending.keySet().removeIf(k -> k.equals(key) || k.startsWith(key + '\n'));
+		List<String> keys = new ArrayList<>();
+		if (index.containsKey(key))
+			keys.add(key);
+		keys.addAll(index.subMap(key + '\n', key + (char) ('\n' + 1)).keySet());
+		return purge(keys);
+	}
+
+	/**
+	 * Forget every entry whose key starts with {@code prefix}.
+	 *
+	 * @return The number of entries removed.
+	 */
+	public synchronized int invalidatePrefix(String prefix) {
+		pending.keySet().removeIf(k -> k.startsWith(prefix));
+		List<String> keys = new ArrayList<>();
+		for (String k : index.tailMap(prefix, true).keySet()) {
+			if (!k.startsWith(prefix))
+				break;
+			keys.add(k);
+		}
+		return purge(keys);
+	}
+
+	/**
+	 * Forget every entry that carries the surrogate {@code tag}.
+	 *
+	 * @return The number of entries removed.
+	 */
+	public synchronized int invalidateTag(String tag) {
+		pending.values().removeIf(d -> Arrays.asList(d.entry.getTags()).contains(tag));
+		Set<String> keys = tagIndex.get(tag);
+		return keys == null ? 0 : purge(new ArrayList<>(keys));
+	}
+
+	/**
+	 * Remove the specified (indexed) keys, and record a tombstone for each so that they stay removed after a restart.
+	 */
+	private int purge(Collection<String> keys) {
+		for (String k : keys) {
+			forget(k);
+			try {
+				byte[] keyBytes = k.getBytes(StandardCharsets.UTF_8);
+				int offset = reserve(RecordHeaderSize + keyBytes.length);
+				ByteBuffer buf = current.buffer.duplicate();
+				buf.position(offset + 4);
+				buf.put(TombstoneRecord);
+				buf.putInt(keyBytes.length);
+				buf.putInt(0);
+				buf.putInt(0);
+				buf.put(keyBytes);
+				buf.putInt(offset, Magic);
+			} catch (IOException ex) {
+				Logger.warn("Unable to record invalidation in " + directory, ex);
+			}
+		}
+		return keys.size();
+	}
+
+	/**
+	 * Write any queued responses, and flush the current segment to disk.
+	 */
+	public void close() {
+		drain();
+		synchronized (this) {
+			current.buffer.force();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the size and hit counts of this tier.
+	 */
+	public synchronized Map<String, Object> getStatistics() {
+		Map<String, Object> retVal = new LinkedHashMap<>();
+		retVal.put("entries", index.size());
+		retVal.put("tags", tagIndex.size());
+		retVal.put("segments", segments.size());
+		retVal.put("bytes", (long) (segments.size() - 1) * segmentSize + current.position);
+		retVal.put("maxBytes", maxBytes);
+		retVal.put("hits", hits.sum());
+		retVal.put("stores", stores);
+		retVal.put("queued", queued.get());
+		retVal.put("overflows", overflows.sum());
+		retVal.put("dropped", dropped);
+		return retVal;
+	}
+}
@@ -0,0 +1,245 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.HttpHost;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Remembers the remote Targets that JavaScript endpoints have proxied to, but which were not specified in the configuration file.
+ * Unlike the configured Targets (which are fixed), scripts may generate any number of these, so the registry is bounded both in size and in idle time.
+ * When the registry is full, the least recently used Targets are evicted (in small batches, so that the cost of finding them is amortized across many lookups).
+ * Finding them means examining every Target, so this is done by a background executor rather than by the thread whose lookup overfilled the registry.
+ * Targets that have not been used for {@code idleTimeout} milliseconds are evicted by {@link #expire()}.
+ * Eviction notifies a listener (typically to close the Target's pooled connections).
+ */
+@SuppressWarnings("WeakerAccess")
+public class DynamicHostRegistry {
+	protected static final Logger Logger = LoggerFactory.getLogger(DynamicHostRegistry.class.getPackage().getName());
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param configuredHosts The Targets specified in the configuration file (these are shared with scripts, and are never evicted).
+	 * @param maxHosts        Maximum number of dynamic Targets to remember.
+	 * @param idleTimeout     Milliseconds after which an unused dynamic Target is evicted (0 or less to only evict when full).
+	 * @param onEviction      If non-null, invoked (outside of any lock) with the {@code HttpHost} of each evicted Target.
+	 * @param trimmer         Evicts the least recently used Targets once the registry is full.
+	 */
+	public DynamicHostRegistry(Map<String, TargetHost> configuredHosts, int maxHosts, long idleTimeout, Consumer<HttpHost> onEviction, Executor trimmer) {
+		this.configuredHosts = configuredHosts == null ? Collections.emptyMap() : configuredHosts;
+		this.maxHosts = Math.max(1, maxHosts);
+		this.idleTimeout = idleTimeout;
+		this.onEviction = onEviction;
+		this.trimmer = trimmer;
+		this.hosts = new ConcurrentHashMap<>();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+		this.trimming = new AtomicBoolean();
+	}
+
+	/**
+	 * Alternate constructor which trims the registry on the thread whose lookup overfilled it.
+	 *
+	 * @see #DynamicHostRegistry(Map, int, long, Consumer, Executor)
+	 */
+	public DynamicHostRegistry(Map<String, TargetHost> configuredHosts, int maxHosts, long idleTimeout, Consumer<HttpHost> onEviction) {
+		this(configuredHosts, maxHosts, idleTimeout, onEviction, Runnable::run);
+	}
+
+	private final Map<String, TargetHost> configuredHosts;
+	private final int maxHosts;
+	private final long idleTimeout;
+	private final Consumer<HttpHost> onEviction;
+	private final Executor trimmer;
+	private final ConcurrentHashMap<String, Entry> hosts;
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+	private final AtomicBoolean trimming;
+
+	/**
+	 * A dynamic Target along with the last time it was looked up.
+	 */
+	private static final class Entry {
+		Entry(TargetHost host, long now) {
+			this.host = host;
+			this.lastAccess = now;
+		}
+
+		final TargetHost host;
+		volatile long lastAccess;
+	}
+
+	/**
+	 * Returns the {@code TargetHost} for the specified key, creating (and remembering) it if need be.
+	 * Configured Targets take precedence over dynamic ones.
+	 *
+	 * @param key    A key generated by {@link RequestForTargetConsumer#UriToTargetKey(String, String[], String[], int[], String[], int[])}
+	 * @param scheme The scheme of the Target (used only if a new {@code TargetHost} must be created).
+	 * @param host   The name of the Target server (used only if a new {@code TargetHost} must be created).
+	 * @param port   The port of the Target server (used only if a new {@code TargetHost} must be created).
+	 */
+	public TargetHost lookup(String key, String scheme, String host, int port) {
+		TargetHost configured = configuredHosts.get(key);
+		if (configured != null)
+			return configured;
+		long now = System.currentTimeMillis();
+		Entry entry = hosts.get(key);
+		if (entry != null) {
+			if (!isExpired(entry, now)) {
+				entry.lastAccess = now;
+				hits.increment();
+				return entry.host;
+			}
+			evict(key, entry);
+		}
+		misses.increment();
+		Entry created = new Entry(new TargetHost(new HttpHost(host, port, scheme)), now);
+		entry = hosts.putIfAbsent(key, created);
+		if (entry != null) {
+			// Another thread beat us to it.
+			entry.lastAccess = now;
+			return entry.host;
+		}
+		if ((hosts.size() > maxHosts) && trimming.compareAndSet(false, true)) {
+			try {
+				trimmer.execute(this::trim);
+			} catch (RejectedExecutionException ex) {
+				trimming.set(false);    // We are shutting down.
+			}
+		}
+		return created.host;
+	}
+
+	private boolean isExpired(Entry entry, long now) {
+		return (idleTimeout > 0) && (now - entry.lastAccess > idleTimeout);
+	}
+
+	/**
+	 * Remove the specified entry (if it is still present) and notify the eviction listener.
+	 */
+	private void evict(String key, Entry entry) {
+		if (!hosts.remove(key, entry))
+			return;
+		evictions.increment();
+		if (onEviction != null) {
+			try {
+				onEviction.accept(entry.host.getHttpHost());
+			} catch (RuntimeException ex) {
+				Logger.error("Unable to clean up evicted Target " + entry.host, ex);
+			}
+		}
+	}
+
+	/**
+	 * An entry along with the time it was last looked up when the registry was examined.
+	 * Lookups continue while the registry is trimmed, so victims are chosen from this snapshot rather than from the (changing) entries themselves.
+	 */
+	private static final class Candidate {
+		Candidate(String key, Entry entry) {
+			this.key = key;
+			this.entry = entry;
+			this.lastAccess = entry.lastAccess;
+		}
+
+		final String key;
+		final Entry entry;
+		final long lastAccess;
+	}
+
+	/**
+	 * Evict the least recently used entries until the registry is comfortably below it's limit (by 1/8th of it's size).
+	 * Only one trim is scheduled at a time, lookups simply proceed (the registry may briefly exceed it's limit).
+	 * An entry that is looked up again while the victims are being chosen is spared.
+	 */
+	private void trim() {
+		try {
+			int excess = hosts.size() - (maxHosts - (maxHosts >>> 3));
+			if (excess <= 0)
+				return;
+			// Keep the 'excess' least recently used candidates (the most recently used of them at the head, so that it is the one displaced by an older candidate).
+			PriorityQueue<Candidate> victims = new PriorityQueue<>(excess + 1, (a, b) -> Long.compare(b.lastAccess, a.lastAccess));
+			for (Map.Entry<String, Entry> e : hosts.entrySet()) {
+				Candidate c = new Candidate(e.getKey(), e.getValue());
+				if (victims.size() < excess)
+					victims.add(c);
+				else if (c.lastAccess < victims.peek().lastAccess) {
+					victims.poll();
+					victims.add(c);
+				}
+			}
+			for (Candidate c : victims)
+				if (c.entry.lastAccess == c.lastAccess)
+					evict(c.key, c.entry);
+		} finally {
+			trimming.set(false);
+		}
+	}
+
+	/**
+	 * Evict every dynamic Target that has not been looked up within the idle timeout (this should be invoked periodically).
+	 */
+	public void expire() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Entry> e : hosts.entrySet())
+			if (isExpired(e.getValue(), now))
+				evict(e.getKey(), e.getValue());
+	}
+
+	/**
+	 * Returns the number of dynamic Targets currently remembered.
+	 */
+	public int size() {
+		return hosts.size();
+	}
+
+	/**
+	 * Returns a snapshot of the registry's size and hit / miss / eviction counts.
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> retVal = new LinkedHashMap<>();
+		retVal.put("size", hosts.size());
+		retVal.put("maxSize", maxHosts);
+		retVal.put("hits", hits.sum());
+		retVal.put("misses", misses.sum());
+		retVal.put("evictions", evictions.sum());
+		return retVal;
+	}
+}
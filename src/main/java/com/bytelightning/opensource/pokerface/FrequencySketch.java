@@ -0,0 +1,131 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+/**
+ * A count-min sketch which estimates how often each key has been seen recently (the "TinyLFU" frequency histogram).
+ * Each key maps to four 4-bit counters (one in each of four rows), and it's estimated frequency is the smallest of them (so it is never under-estimated, and saturates at 15).
+ * Counters are packed sixteen to a {@code long}, so the sketch is very compact.
+ * Once the number of increments reaches ten times the width of the sketch, every counter is halved ("aging"), so that the sketch tracks recent rather than all time popularity.
+ * NOTE: This class is not thread safe (the caller is expected to hold a lock).
+ */
+@SuppressWarnings("WeakerAccess")
+public class FrequencySketch {
+	private static final long[] Seeds = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+	private static final long ResetMask = 0x7777777777777777L;
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param expectedKeys The number of distinct keys the sketch should be able to distinguish (e.g. the number of entries a cache is expected to hold).
+	 */
+	public FrequencySketch(int expectedKeys) {
+		int width = Integer.highestOneBit(Math.max(64, Math.min(expectedKeys, 1 << 24)) - 1) << 1;
+		this.table = new long[width];
+		this.tableMask = width - 1;
+		this.sampleSize = 10 * width;
+	}
+
+	private final long[] table;
+	private final int tableMask;
+	private final int sampleSize;
+	private int size;
+	private long resets;
+
+	/**
+	 * Mix the bits of a hash code (so that similar keys do not share counters).
+	 */
+	private static int Spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+	/**
+	 * Returns the index of the {@code long} that holds the counter of the specified row for a key.
+	 */
+	private int indexOf(int hash, int row) {
+		long h = (hash + Seeds[row]) * Seeds[row];
+		h += h >>> 32;
+		return ((int) h) & tableMask;
+	}
+
+	/**
+	 * Returns the estimated number of times (0 - 15) the key has been seen recently.
+	 */
+	public int frequency(String key) {
+		int hash = Spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		int retVal = 15;
+		for (int row = 0; row < 4; row++) {
+			int count = (int) ((table[indexOf(hash, row)] >>> ((start + row) << 2)) & 0xfL);
+			retVal = Math.min(retVal, count);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Record an occurrence of the key (aging the sketch if the sample period has elapsed).
+	 */
+	public void increment(String key) {
+		int hash = Spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int row = 0; row < 4; row++)
+			added |= incrementAt(indexOf(hash, row), start + row);
+		if (added && (++size >= sampleSize))
+			reset();
+	}
+
+	/**
+	 * Increment the specified 4-bit counter (unless it is already saturated).
+	 */
+	private boolean incrementAt(int index, int counter) {
+		int offset = counter << 2;
+		long mask = 0xfL << offset;
+		if ((table[index] & mask) == mask)
+			return false;
+		table[index] += 1L << offset;
+		return true;
+	}
+
+	/**
+	 * Halve every counter.
+	 */
+	private void reset() {
+		for (int i = 0; i < table.length; i++)
+			table[i] = (table[i] >>> 1) & ResetMask;
+		size = size >>> 1;
+		resets++;
+	}
+
+	/**
+	 * Returns the number of times the sketch has been aged.
+	 */
+	public long getResets() {
+		return resets;
+	}
+}
@@ -0,0 +1,233 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.pool.BasicNIOPoolEntry;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncRequester;
+import org.apache.http.pool.ConnPool;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Periodically probes each distinct remote Target with an http GET, and takes Targets in and out of rotation based on the outcome.
+ * Probes are issued through the same {@code HttpAsyncRequester} and connection pool (and therefore the same connecting reactor) as proxied requests,
+ * so the only thread this class needs is the (shared) scheduler that triggers each probe.
+ * A probe succeeds if the Target responds with a 2xx or 3xx status within the configured timeout.
+ */
+@SuppressWarnings("WeakerAccess")
+public class HealthChecker {
+	protected static final Logger Logger = LoggerFactory.getLogger(HealthChecker.class.getPackage().getName());
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param executor  {@code HttpAsyncRequester} which will perform the probe requests.
+	 * @param connPool  The client connection pool that will be used by the {@code executor}
+	 * @param scheduler Used to trigger each probe (and to time them out).
+	 * @param hosts     The Targets to be probed.
+	 * @param path      The request uri to GET from each Target.
+	 * @param interval  Milliseconds between the completion of one probe and the start of the next.
+	 * @param timeout   Milliseconds to wait for a probe response before considering the probe to have failed.
+	 * @param rise      Number of consecutive successful probes required to bring a Target back into rotation.
+	 * @param fall      Number of consecutive failed probes required to take a Target out of rotation.
+	 */
+	public HealthChecker(HttpAsyncRequester executor, ConnPool<HttpHost, BasicNIOPoolEntry> connPool, ScheduledExecutorService scheduler, Collection<TargetHost> hosts, String path, long interval, long timeout, int rise, int fall) {
+		this.executor = executor;
+		this.connPool = connPool;
+		this.scheduler = scheduler;
+		this.hosts = new ArrayList<>(hosts);
+		this.path = path;
+		this.interval = interval;
+		this.timeout = timeout;
+		this.rise = rise;
+		this.fall = fall;
+	}
+
+	private final HttpAsyncRequester executor;
+	private final ConnPool<HttpHost, BasicNIOPoolEntry> connPool;
+	private final ScheduledExecutorService scheduler;
+	private final List<TargetHost> hosts;
+	private final String path;
+	private final long interval;
+	private final long timeout;
+	private final int rise;
+	private final int fall;
+	private volatile boolean stopped;
+
+	/**
+	 * Begin probing.
+	 * The first probe of each Target is randomly offset within the first {@code interval} so that the probes do not all fire at once.
+	 */
+	public void start() {
+		for (TargetHost host : hosts)
+			scheduleProbe(host, ThreadLocalRandom.current().nextLong(Math.max(1, interval)));
+	}
+
+	/**
+	 * Stop probing (any probes already in flight will complete, but will not be rescheduled).
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Schedule the next probe of the specified Target (unless we have been stopped).
+	 */
+	protected void scheduleProbe(TargetHost host, long delay) {
+		if (stopped)
+			return;
+		try {
+			scheduler.schedule(() -> probe(host), delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ex) {
+			Logger.debug("Health checking of " + host + " has shut down");
+		}
+	}
+
+	/**
+	 * Issue a single probe to the specified Target.
+	 */
+	protected void probe(TargetHost host) {
+		if (stopped)
+			return;
+		HttpHost httpHost = host.getHttpHost();
+		BasicHttpRequest request = new BasicHttpRequest("GET", path);
+		request.setHeader("Host", httpHost.toHostString());
+		Probe probe = new Probe(host);
+		try {
+			executor.execute(new BasicAsyncRequestProducer(httpHost, request), probe.consumer, connPool, new BasicHttpContext(), probe);
+			scheduler.schedule(probe::timedOut, timeout, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ex) {
+			Logger.debug("Health checking of " + host + " has shut down");
+		} catch (RuntimeException ex) {
+			probe.failed(ex);
+		}
+	}
+
+	/**
+	 * Tracks the outcome of a single probe, ensuring that exactly one outcome is recorded, and that exactly one subsequent probe is scheduled.
+	 */
+	private class Probe implements FutureCallback<HttpResponse> {
+		Probe(TargetHost host) {
+			this.host = host;
+			this.consumer = new DiscardingResponseConsumer();
+		}
+
+		private final TargetHost host;
+		private final DiscardingResponseConsumer consumer;
+		private final AtomicBoolean finished = new AtomicBoolean();
+
+		@Override
+		public void completed(HttpResponse result) {
+			int status = result.getStatusLine().getStatusCode();
+			finish(status >= 200 && status < 400, "status " + status);
+		}
+
+		@Override
+		public void failed(Exception ex) {
+			finish(false, ex.toString());
+		}
+
+		@Override
+		public void cancelled() {
+			finish(false, "cancelled");
+		}
+
+		void timedOut() {
+			if (finish(false, "timed out"))
+				consumer.cancel();
+		}
+
+		private boolean finish(boolean healthy, String reason) {
+			if (!finished.compareAndSet(false, true))
+				return false;
+			if (host.recordHealthCheck(healthy, rise, fall)) {
+				if (healthy)
+					Logger.warn("Target " + host + " is UP");
+				else
+					Logger.warn("Target " + host + " is DOWN (" + reason + ")");
+			}
+			scheduleProbe(host, interval);
+			return true;
+		}
+	}
+
+	/**
+	 * A response consumer that only keeps the response status and headers (the content of a health check response is read and discarded).
+	 */
+	private static class DiscardingResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+		private final ByteBuffer discard = ByteBuffer.allocate(4096);
+		private HttpResponse response;
+
+		@Override
+		protected void onResponseReceived(HttpResponse response) throws HttpException, IOException {
+			this.response = response;
+		}
+
+		@Override
+		protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+			do {
+				discard.clear();
+			} while (decoder.read(discard) > 0);
+		}
+
+		@Override
+		protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+		}
+
+		@Override
+		protected HttpResponse buildResult(HttpContext context) throws Exception {
+			return response;
+		}
+
+		@Override
+		protected void releaseResources() {
+		}
+	}
+}
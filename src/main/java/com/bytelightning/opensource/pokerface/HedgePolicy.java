@@ -0,0 +1,84 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Describes when a route should hedge a request (send a second copy of it to a different Target) because the first copy is taking unusually long.
+ * The hedge delay tracks the route's own recent latency (time to response headers), so a Target that is merely slow for everyone does not cause every request to be doubled.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class HedgePolicy {
+	/**
+	 * The number of latency samples a route must have before it will hedge.
+	 */
+	public static final long MinSamples = 20;
+
+	/**
+	 * Primary constructor.
+	 *
+	 * @param percentile     Requests that have not received response headers within this percentile of the route's recent latency are hedged (e.g. 95).
+	 * @param minDelayMillis Requests are never hedged sooner than this.
+	 * @param windowMillis   How long latency samples contribute to the route's latency histogram.
+	 * @param scheduler      The timer used to trigger hedges.
+	 */
+	public HedgePolicy(double percentile, long minDelayMillis, long windowMillis, ScheduledExecutorService scheduler) {
+		this.percentile = percentile;
+		this.minDelayMicros = Math.max(0, minDelayMillis) * 1000;
+		this.latencies = new LatencyHistogram(windowMillis);
+		this.scheduler = scheduler;
+	}
+
+	private final double percentile;
+	private final long minDelayMicros;
+	private final LatencyHistogram latencies;
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Returns the histogram of the route's recent latencies (time to response headers).
+	 */
+	public LatencyHistogram getLatencies() {
+		return latencies;
+	}
+
+	/**
+	 * Returns the timer used to trigger hedges.
+	 */
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Returns the number of microseconds a request should wait for response headers before being hedged, or -1 if the route does not yet have enough history to hedge.
+	 */
+	public long getDelayMicros() {
+		long retVal = latencies.getPercentile(percentile, MinSamples);
+		if (retVal < 0)
+			return -1;
+		return Math.max(minDelayMicros, retVal);
+	}
+}
@@ -0,0 +1,147 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free, log-linear histogram of recent latencies (with a resolution of roughly 25%), from which percentiles may be cheaply estimated.
+ * Samples are accumulated into the current generation, which is retired after {@code windowMillis}.
+ * Percentiles are computed over the current and the immediately preceding generation, so that the histogram tracks changes in Target behavior
+ * without ever dropping to zero samples all at once.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class LatencyHistogram {
+	private static final int SubBuckets = 4;    // Per power of two.
+	private static final int Buckets = 27 * SubBuckets;    // Enough for ~2 minutes worth of microseconds.
+
+	/**
+	 * Primary constructor.
+	 *
+	 * @param windowMillis How long samples contribute to the histogram (each sample contributes for between one and two windows).
+	 */
+	public LatencyHistogram(long windowMillis) {
+		this.windowNanos = Math.max(1, windowMillis) * 1000000L;
+		this.current = new AtomicLongArray(Buckets);
+		this.previous = new AtomicLongArray(Buckets);
+		this.rotateAt = System.nanoTime() + windowNanos;
+	}
+
+	private final long windowNanos;
+	private volatile AtomicLongArray current;
+	private volatile AtomicLongArray previous;
+	private volatile long rotateAt;
+
+	/**
+	 * Returns the index of the bucket which holds {@code micros}.
+	 */
+	static int BucketIndex(long micros) {
+		if (micros < SubBuckets)
+			return (int) Math.max(0, micros);
+		int exp = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) ((micros >>> (exp - 2)) & (SubBuckets - 1));
+		return Math.min(Buckets - 1, (exp - 1) * SubBuckets + sub);
+	}
+
+	/**
+	 * Returns the (exclusive) upper bound of the bucket at {@code index} (in microseconds).
+	 */
+	static long BucketLimit(int index) {
+		int next = index + 1;
+		if (next < SubBuckets)
+			return next;
+		int exp = next / SubBuckets + 1;
+		return (long) (SubBuckets + next % SubBuckets) << (exp - 2);
+	}
+
+	/**
+	 * Record a single latency sample.
+	 */
+	public void record(long latencyNanos) {
+		long now = System.nanoTime();
+		if (now - rotateAt >= 0)
+			rotate(now);
+		current.incrementAndGet(BucketIndex(latencyNanos / 1000));
+	}
+
+	/**
+	 * Retire the current generation (any samples that race with this are simply attributed to whichever generation they land in).
+	 */
+	private synchronized void rotate(long now) {
+		if (now - rotateAt < 0)
+			return;
+		// If the histogram has been idle for more than a full window, the previous generation is stale as well.
+		previous = now - rotateAt >= windowNanos ? new AtomicLongArray(Buckets) : current;
+		current = new AtomicLongArray(Buckets);
+		rotateAt = now + windowNanos;
+	}
+
+	/**
+	 * Returns the number of samples currently contributing to the histogram.
+	 */
+	public long getCount() {
+		long now = System.nanoTime();
+		if (now - rotateAt >= 0)
+			rotate(now);
+		AtomicLongArray cur = current;
+		AtomicLongArray prev = previous;
+		long retVal = 0;
+		for (int i = 0; i < Buckets; i++)
+			retVal += cur.get(i) + prev.get(i);
+		return retVal;
+	}
+
+	/**
+	 * Estimate the specified percentile of the recorded latencies.
+	 *
+	 * @param percentile A value between 0 and 100 (e.g. 99.9).
+	 * @param minSamples The minimum number of samples required for the estimate to be meaningful.
+	 * @return The estimated latency in microseconds (rounded up to the limit of the bucket it falls in), or -1 if there are fewer than {@code minSamples} samples.
+	 */
+	public long getPercentile(double percentile, long minSamples) {
+		long now = System.nanoTime();
+		if (now - rotateAt >= 0)
+			rotate(now);
+		AtomicLongArray cur = current;
+		AtomicLongArray prev = previous;
+		long[] counts = new long[Buckets];
+		long total = 0;
+		for (int i = 0; i < Buckets; i++) {
+			counts[i] = cur.get(i) + prev.get(i);
+			total += counts[i];
+		}
+		if (total < Math.max(1, minSamples))
+			return -1;
+		long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100.0);
+		long seen = 0;
+		for (int i = 0; i < Buckets; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return BucketLimit(i);
+		}
+		return BucketLimit(Buckets - 1);
+	}
+}
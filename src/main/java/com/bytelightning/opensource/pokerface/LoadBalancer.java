@@ -0,0 +1,261 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses which member of a route's pool of remote Targets should receive the next request.
+ * Instances are created once (per route) at configuration time and are then invoked concurrently from the reactor threads, so every implementation must be lock-free.
+ * Members whose {@code TargetHost} is not {@link TargetHost#isAvailable() available} must never be selected.
+ * The built-in policies are "roundRobin", "weighted", "leastOutstanding" and "powerOfTwo".
+ * Any other policy name is treated as the fully qualified name of a {@code LoadBalancer} subclass having a public constructor that accepts a {@code TargetDescriptor[]}.
+ */
+@SuppressWarnings("WeakerAccess")
+public abstract class LoadBalancer {
+
+	/**
+	 * Create a {@code LoadBalancer} for the specified {@code members} that implements the named {@code policy}.
+	 *
+	 * @param policy  The name of a built-in policy, or the fully qualified class name of a custom {@code LoadBalancer}.  If {@code null}, "roundRobin" is assumed.
+	 * @param members The pool of Targets to be balanced across (must not be empty).
+	 */
+	public static LoadBalancer Create(String policy, TargetDescriptor[] members) throws ReflectiveOperationException {
+		if (members.length == 0)
+			throw new IllegalArgumentException("A LoadBalancer requires at least one member");
+		if ((policy == null) || (policy.trim().length() == 0))
+			policy = "roundRobin";
+		switch (policy.trim()) {
+			case "roundRobin":
+				return new RoundRobin(members);
+			case "weighted":
+				return new Weighted(members);
+			case "leastOutstanding":
+				return new LeastOutstanding(members);
+			case "powerOfTwo":
+				return new PowerOfTwoChoices(members);
+			default:
+				Class<? extends LoadBalancer> cls = Class.forName(policy.trim()).asSubclass(LoadBalancer.class);
+				Constructor<? extends LoadBalancer> ctor = cls.getConstructor(TargetDescriptor[].class);
+				return ctor.newInstance((Object) members);
+		}
+	}
+
+	/**
+	 * Primary constructor.
+	 *
+	 * @param members The pool of Targets to be balanced across.
+	 */
+	protected LoadBalancer(TargetDescriptor[] members) {
+		this.members = members.clone();
+	}
+
+	protected final TargetDescriptor[] members;
+
+	/**
+	 * Returns the pool of Targets this object balances across.
+	 */
+	public TargetDescriptor[] getMembers() {
+		return members.clone();
+	}
+
+	/**
+	 * Returns the number of Targets this object balances across.
+	 */
+	public int getMemberCount() {
+		return members.length;
+	}
+
+	/**
+	 * Select the member that should receive the next request.
+	 *
+	 * @return The selected member, or {@code null} if no member is currently available.
+	 */
+	public abstract TargetDescriptor select();
+
+	/**
+	 * Returns the first available member at or after {@code start} (wrapping around), or {@code null} if no member is available.
+	 */
+	protected TargetDescriptor firstAvailable(int start) {
+		for (int i = 0; i < members.length; i++) {
+			TargetDescriptor candidate = members[(start + i) % members.length];
+			if (candidate.getTargetHost().isAvailable())
+				return candidate;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the available member with the least (weighted) load, beginning the scan at {@code start} so that ties are shared, or {@code null} if no member is available.
+	 */
+	protected TargetDescriptor leastLoaded(int start) {
+		TargetDescriptor best = null;
+		for (int i = 0; i < members.length; i++) {
+			TargetDescriptor candidate = members[(start + i) % members.length];
+			if (!candidate.getTargetHost().isAvailable())
+				continue;
+			if ((best == null) || IsLessLoaded(candidate, best))
+				best = candidate;
+		}
+		return best;
+	}
+
+	/**
+	 * Returns true if {@code a} is carrying less load than {@code b} once each member's weight is taken into account.
+	 */
+	protected static boolean IsLessLoaded(TargetDescriptor a, TargetDescriptor b) {
+		return ((long) a.getTargetHost().getOutstanding() * b.getWeight()) < ((long) b.getTargetHost().getOutstanding() * a.getWeight());
+	}
+
+	/**
+	 * Visits each member in turn, ignoring weights.
+	 */
+	public static class RoundRobin extends LoadBalancer {
+		public RoundRobin(TargetDescriptor[] members) {
+			super(members);
+			this.next = new AtomicInteger();
+		}
+
+		private final AtomicInteger next;
+
+		@Override
+		public TargetDescriptor select() {
+			if (members.length == 1)
+				return firstAvailable(0);
+			return firstAvailable(Math.floorMod(next.getAndIncrement(), members.length));
+		}
+	}
+
+	/**
+	 * Visits each member in proportion to it's weight.
+	 * The visiting order is precomputed using the "smooth" weighted round robin algorithm (so that a heavily weighted member does not receive it's share in a single burst),
+	 * which means that selection is nothing more than an atomic increment and an array index.
+	 * If the scheduled member is unavailable, the request goes to the least (weighted) loaded of the remaining members.
+	 */
+	public static class Weighted extends LoadBalancer {
+		public Weighted(TargetDescriptor[] members) {
+			super(members);
+			int gcd = 0;
+			for (TargetDescriptor member : members)
+				gcd = Gcd(gcd, member.getWeight());
+			long total = 0;
+			int[] weights = new int[members.length];
+			for (int i = 0; i < members.length; i++) {
+				weights[i] = members[i].getWeight() / gcd;
+				total += weights[i];
+			}
+			if (total > MaxScheduleLength)
+				throw new IllegalArgumentException("The (reduced) sum of member weights may not exceed " + MaxScheduleLength);
+			schedule = new TargetDescriptor[(int) total];
+			int[] current = new int[members.length];
+			for (int s = 0; s < schedule.length; s++) {
+				int best = 0;
+				for (int i = 0; i < members.length; i++) {
+					current[i] += weights[i];
+					if (current[i] > current[best])
+						best = i;
+				}
+				current[best] -= (int) total;
+				schedule[s] = members[best];
+			}
+			this.next = new AtomicInteger();
+		}
+
+		private static final int MaxScheduleLength = 1 << 16;
+		private final TargetDescriptor[] schedule;
+		private final AtomicInteger next;
+
+		private static int Gcd(int a, int b) {
+			while (b != 0) {
+				int t = a % b;
+				a = b;
+				b = t;
+			}
+			return a;
+		}
+
+		@Override
+		public TargetDescriptor select() {
+			int n = next.getAndIncrement();
+			TargetDescriptor retVal = schedule[Math.floorMod(n, schedule.length)];
+			if (retVal.getTargetHost().isAvailable())
+				return retVal;
+			return leastLoaded(Math.floorMod(n, members.length));
+		}
+	}
+
+	/**
+	 * Chooses the member with the fewest (weighted) outstanding requests.
+	 * The scan begins at a rotating offset so that idle members share the load rather than the first member receiving every request.
+	 */
+	public static class LeastOutstanding extends LoadBalancer {
+		public LeastOutstanding(TargetDescriptor[] members) {
+			super(members);
+			this.next = new AtomicInteger();
+		}
+
+		private final AtomicInteger next;
+
+		@Override
+		public TargetDescriptor select() {
+			if (members.length == 1)
+				return firstAvailable(0);
+			return leastLoaded(Math.floorMod(next.getAndIncrement(), members.length));
+		}
+	}
+
+	/**
+	 * Picks two distinct members at random and chooses the one with fewer (weighted) outstanding requests.
+	 * This achieves most of the benefit of {@code LeastOutstanding} while only ever looking at two members (unless both happen to be unavailable).
+	 */
+	public static class PowerOfTwoChoices extends LoadBalancer {
+		public PowerOfTwoChoices(TargetDescriptor[] members) {
+			super(members);
+		}
+
+		@Override
+		public TargetDescriptor select() {
+			if (members.length == 1)
+				return firstAvailable(0);
+			ThreadLocalRandom rnd = ThreadLocalRandom.current();
+			int a = rnd.nextInt(members.length);
+			int b = rnd.nextInt(members.length - 1);
+			if (b >= a)
+				b++;
+			boolean aAvailable = members[a].getTargetHost().isAvailable();
+			boolean bAvailable = members[b].getTargetHost().isAvailable();
+			if (aAvailable && bAvailable)
+				return IsLessLoaded(members[b], members[a]) ? members[b] : members[a];
+			if (aAvailable)
+				return members[a];
+			if (bAvailable)
+				return members[b];
+			return firstAvailable(a);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Short lived memory of requests that are known to have no useful answer, so that repeated junk (scanners, broken clients) can be answered with a 404 NOT_FOUND without routing work or a request to the Target.
+ * The time to live is applied both to uri paths that matched no configured route (which are remembered here),
+ * and to 404 / 410 responses from a Target which carry no explicit freshness information of their own (which are stored in the {@code ResponseCache} like any other response).
+ * The set of paths is compact and lossy: a fixed size table of 64 bit fingerprints (the paths themselves are not retained), in which a new path simply displaces whatever occupied it's slot.
+ * Reads and writes are lock free, a lookup never allocates.
+ */
+@SuppressWarnings("WeakerAccess")
+public class NegativeCache {
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param ttl      The number of seconds a negative answer is remembered.
+	 * @param capacity The number of paths that can be remembered at once (rounded up to a power of two).
+	 */
+	public NegativeCache(long ttl, int capacity) {
+		this.ttl = ttl;
+		int size = Integer.highestOneBit(Math.max(16, Math.min(1 << 24, capacity) - 1) << 1);
+		this.slots = new AtomicReferenceArray<>(size);
+		this.mask = size - 1;
+		this.hits = new LongAdder();
+		this.added = new LongAdder();
+	}
+
+	private final long ttl;
+	private final AtomicReferenceArray<Slot> slots;
+	private final int mask;
+	private final LongAdder hits;
+	private final LongAdder added;
+
+	/**
+	 * An (immutable) remembered path, so that it's fingerprint and expiration are always read together.
+	 */
+	private static final class Slot {
+		Slot(long fingerprint, long expires) {
+			this.fingerprint = fingerprint;
+			this.expires = expires;
+		}
+
+		final long fingerprint;
+		final long expires;
+	}
+
+	/**
+	 * Returns the number of seconds a negative answer is remembered.
+	 */
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * Returns true if {@code key} was remembered (by {@code add}) within the last {@code ttl} seconds.
+	 */
+	public boolean contains(String key) {
+		long fp = Fingerprint(key);
+		Slot slot = slots.get(Index(fp, mask));
+		if ((slot == null) || (slot.fingerprint != fp) || (slot.expires - System.currentTimeMillis() <= 0))
+			return false;
+		hits.increment();
+		return true;
+	}
+
+	/**
+	 * Remember {@code key} for the next {@code ttl} seconds (displacing whichever key previously occupied it's slot).
+	 */
+	public void add(String key) {
+		long fp = Fingerprint(key);
+		slots.set(Index(fp, mask), new Slot(fp, System.currentTimeMillis() + ttl * 1000));
+		added.increment();
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the characters of {@code key}, finished with a mix so that every bit of the result depends on every character.
+	 */
+	static long Fingerprint(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static int Index(long fingerprint, int mask) {
+		return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+	}
+
+	/**
+	 * Returns a snapshot of the size of this set, and how often it has answered a request.
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> retVal = new LinkedHashMap<>();
+		retVal.put("ttl", ttl);
+		retVal.put("capacity", slots.length());
+		retVal.put("added", added.sum());
+		retVal.put("hits", hits.sum());
+		return retVal;
+	}
+}
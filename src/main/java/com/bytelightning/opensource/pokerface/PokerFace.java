@@ -28,11 +28,6 @@ SOFTWARE.
 import jdk.nashorn.api.scripting.ScriptObjectMirror;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
-import org.apache.commons.pool2.BasePooledObjectFactory;
-import org.apache.commons.pool2.ObjectPool;
-import org.apache.commons.pool2.PooledObject;
-import org.apache.commons.pool2.impl.DefaultPooledObject;
-import org.apache.commons.pool2.impl.SoftReferenceObjectPool;
 import org.apache.http.HttpHost;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
@@ -40,7 +35,6 @@ import org.apache.http.impl.nio.DefaultHttpClientIODispatch;
 import org.apache.http.impl.nio.DefaultHttpServerIODispatch;
 import org.apache.http.impl.nio.SSLNHttpServerConnectionFactory;
 import org.apache.http.impl.nio.pool.BasicNIOConnFactory;
-import org.apache.http.impl.nio.pool.BasicNIOConnPool;
 import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
 import org.apache.http.impl.nio.reactor.DefaultListeningIOReactor;
 import org.apache.http.impl.nio.reactor.IOReactorConfig;
@@ -65,7 +59,6 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
@@ -98,10 +91,11 @@ public class PokerFace {
 	public void config(HierarchicalConfiguration config) throws Exception {
 		List<HierarchicalConfiguration> lconf;
 		HttpAsyncRequester executor = null;
-		BasicNIOConnPool connPool = null;
-		ObjectPool<ByteBuffer> byteBufferPool = null;
-		LinkedHashMap<String, TargetDescriptor> mappings = null;
-		ConcurrentMap<String, HttpHost> hosts = null;
+		RouteTrie<TargetRoute> mappings = null;
+		ConcurrentMap<String, TargetHost> hosts = null;
+		String purgePath = null;
+		Set<InetAddress> purgeAllowed = null;
+		String warmPath = null;
 
 		handlerRegistry = new UriHttpAsyncRequestHandlerMapper();
 
@@ -144,6 +138,7 @@ public class PokerFace {
 			IOReactorConfig rconfig = builder.build();
 			Logger.info("Configuring server with options: " + rconfig.toString());
 			listeningReactor = new DefaultListeningIOReactor(rconfig);
+			listenerEndpoints = new ArrayList<>();
 
 			lconf = config.configurationsAt("server.listen");
 			InetSocketAddress addr;
@@ -152,6 +147,7 @@ public class PokerFace {
 			if ((lconf == null) || (lconf.size() == 0)) {
 				addr = new InetSocketAddress("127.0.0.1", 8080);
 				ListenerEndpoint ep = listeningReactor.listen(addr);
+				listenerEndpoints.add(ep);
 				Logger.warn("Configured " + ep.getAddress());
 			}
 			else {
@@ -166,6 +162,7 @@ public class PokerFace {
 					int port = hc.getInt("[@port]", alias != null ? 443 : 80);
 					addr = new InetSocketAddress(addrStr, port);
 					ListenerEndpoint ep = listeningReactor.listen(addr);
+					listenerEndpoints.add(ep);
 					String protocol = hc.containsKey("[@protocol]") ? hc.getString("[@protocol]") : null;
 					Boolean secure = hc.containsKey("[@secure]") ? hc.getBoolean("[@secure]") : null;
 					if ((alias != null) && (secure == null))
@@ -255,33 +252,24 @@ public class PokerFace {
 				listeningDispatcher = new DefaultHttpServerIODispatch<>(serviceHandler, ConnectionConfig.DEFAULT);
 		}
 
+		// Proxied content is staged in direct buffers which start small (most messages are) and only grow (up to bufferSize) when a message needs the room.
+		// The total direct memory those buffers may hold is capped by bufferBudget (in megabytes), beyond which new transactions are turned away.
+		final int bufferSize = config.getInt("targets[@bufferSize]", 1024) * 1024;
+		bufferPool = new BufferPool(bufferSize, 64, config.getLong("targets[@bufferBudget]", 256) * 1024 * 1024);
+
 		// Configure the httpclient reactor that will be used to do reverse proxing to the specified targets.
 		lconf = config.configurationsAt("targets");
 		if ((lconf != null) && (lconf.size() > 0)) {
 			HierarchicalConfiguration conf = lconf.get(0);
 			Builder builder = IOReactorConfig.custom();
 			builder.setIoThreadCount(ComputeReactorProcessors(config.getDouble("targets[@cpu]", 0.667)));
-			builder.setSoTimeout(conf.getInt("targets[@soTimeout]", 0));
+			builder.setSoTimeout(config.getInt("targets[@soTimeout]", 0));
 			builder.setSoLinger(config.getInt("targets[@soLinger]", -1));
-			builder.setConnectTimeout(conf.getInt("targets[@connectTimeout]", 0));
+			builder.setConnectTimeout(config.getInt("targets[@connectTimeout]", 0));
 			builder.setSoReuseAddress(true);
 			builder.setTcpNoDelay(false);
 			connectingReactor = new DefaultConnectingIOReactor(builder.build());
 
-			final int bufferSize = conf.getInt("targets[@bufferSize]", 1024) * 1024;
-			byteBufferPool = new SoftReferenceObjectPool<>(new BasePooledObjectFactory<ByteBuffer>() {
-				@SuppressWarnings("RedundantThrows")
-				@Override
-				public ByteBuffer create() throws Exception {
-					return ByteBuffer.allocateDirect(bufferSize);
-				}
-
-				@Override
-				public PooledObject<ByteBuffer> wrap(ByteBuffer buffer) {
-					return new DefaultPooledObject<>(buffer);
-				}
-			});
-
 			KeyManager[] keyManagers = null;
 			TrustManager[] trustManagers = null;
 
@@ -291,54 +279,133 @@ public class PokerFace {
 				keyManagers = kmf.getKeyManagers();
 			}
 			// Will the httpclient's trust any remote target, or only specific ones.
-			if (conf.getBoolean("targets[@trustAny]", false))
+			if (config.getBoolean("targets[@trustAny]", false))
 				trustManagers = new TrustManager[]{new X509TrustAllManager()};
 			else if (keystore != null) {
 				TrustManagerFactory instance = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
 				instance.init(keystore);
 				trustManagers = instance.getTrustManagers();
 			}
-			SSLContext clientSSLContext = SSLContext.getInstance(conf.getString("targets[@protocol]", "TLS"));
+			SSLContext clientSSLContext = SSLContext.getInstance(config.getString("targets[@protocol]", "TLS"));
 			clientSSLContext.init(keyManagers, trustManagers, new SecureRandom());
 
 			// Setup an SSL capable connection pool for the httpclients.
-			connPool = new BasicNIOConnPool(connectingReactor, new BasicNIOConnFactory(clientSSLContext, null, ConnectionConfig.DEFAULT), conf.getInt("targets[@connectTimeout]", 0));
-			connPool.setMaxTotal(conf.getInt("targets[@connMaxTotal]", 1023));
-			connPool.setDefaultMaxPerRoute(conf.getInt("targets[@connMaxPerRoute]", 1023));
+			// The pool is sharded (by default one shard per connecting reactor thread) so that leases for different routes do not contend for the same lock.
+			int shards = config.getInt("targets[@connPoolShards]", ComputeReactorProcessors(config.getDouble("targets[@cpu]", 0.667)));
+			connectTimeout = config.getInt("targets[@connectTimeout]", 0);
+			connPool = new ShardedNIOConnPool(connectingReactor, new BasicNIOConnFactory(clientSSLContext, null, ConnectionConfig.DEFAULT), connectTimeout, shards);
+			connPool.setMaxTotal(config.getInt("targets[@connMaxTotal]", 1023));
+			connPool.setDefaultMaxPerRoute(config.getInt("targets[@connMaxPerRoute]", 1023));
+			connPool.setTimeToLive(config.getLong("targets[@connTimeToLive]", 0));
 
 			// Set up HTTP protocol processor for outgoing connections
-			String userAgent = conf.getString("targets.userAgent", "PokerFace/" + Utils.Version);
+			String userAgent = config.getString("targets.userAgent", "PokerFace/" + Utils.Version);
 			HttpProcessor outhttpproc = new ImmutableHttpProcessor(new RequestContent(), new RequestTargetHost(), new RequestConnControl(), new RequestUserAgent(userAgent), new RequestExpectContinue(true));
 			executor = new HttpAsyncRequester(outhttpproc, new DefaultConnectionReuseStrategy());
 
+			// Background tasks (such as health checks and hedging) share a single timer thread, as the real work is performed by the connecting reactor.
+			housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "pokerface-housekeeper");
+				t.setDaemon(true);
+				return t;
+			});
+
 			// Now set up all the configured targets.
-			mappings = new LinkedHashMap<>();
+			LinkedHashMap<String, TargetRoute> patterns = new LinkedHashMap<>();
 			hosts = new ConcurrentHashMap<>();
-			String[] scheme = {null};
-			String[] host = {null};
-			int[] port = {0};
-			String[] path = {null};
-			int[] stripPrefixCount = {0};
+			CircuitBreaker.Policy breakerPolicy = null;
+			List<HierarchicalConfiguration> cbConf = conf.configurationsAt("circuitBreaker");
+			if ((cbConf != null) && (cbConf.size() > 0)) {
+				HierarchicalConfiguration cb = cbConf.get(0);
+				breakerPolicy = new CircuitBreaker.Policy(cb.getLong("[@window]", 10000), cb.getInt("[@buckets]", 10), cb.getInt("[@minRequests]", 20), cb.getDouble("[@failureRatio]", 0.5), cb.getLong("[@slowCall]", 0), cb.getLong("[@ejection]", 30000), cb.getLong("[@maxEjection]", 300000));
+			}
 			for (HierarchicalConfiguration targetConfig : conf.configurationsAt("target")) {
 				String match = targetConfig.getString("[@pattern]");
 				if ((match == null) || (match.trim().length() < 1)) {
 					Logger.error("Unable to configure target;  Invalid url match pattern");
 					continue;
 				}
-				String key = RequestForTargetConsumer.UriToTargetKey(targetConfig.getString("[@url]"), scheme, host, port, path, stripPrefixCount);
-				if (key == null) {
-					Logger.error("Unable to configure target");
+				// A target may specify a single url attribute, and/or any number of nested member elements.
+				List<TargetDescriptor> members = new ArrayList<>();
+				if (targetConfig.getString("[@url]") != null)
+					addTargetMember(members, hosts, breakerPolicy, targetConfig.getString("[@url]"), targetConfig.getInt("[@weight]", 1));
+				for (HierarchicalConfiguration memberConfig : targetConfig.configurationsAt("member"))
+					addTargetMember(members, hosts, breakerPolicy, memberConfig.getString("[@url]"), memberConfig.getInt("[@weight]", 1));
+				if (members.isEmpty()) {
+					Logger.error("Unable to configure target " + match + ";  No valid urls were specified");
 					continue;
 				}
-				HttpHost targetHost = hosts.get(key);
-				if (targetHost == null) {
-					targetHost = new HttpHost(host[0], port[0], scheme[0]);
-					hosts.put(key, targetHost);
+				try {
+					LoadBalancer balancer = LoadBalancer.Create(targetConfig.getString("[@balance]"), members.toArray(new TargetDescriptor[members.size()]));
+					// Idempotent requests that fail before any response is received may be retried (only if configured, within a budget of 20% of requests by default).
+					int retries = targetConfig.getInt("[@retries]", 0);
+					// Read-only requests may also be hedged (hedges share the retry budget).
+					double hedge = targetConfig.getDouble("[@hedge]", 0);
+					HedgePolicy hedgePolicy = hedge > 0 ? new HedgePolicy(hedge, targetConfig.getLong("[@hedgeMinDelay]", 10), 10000, housekeeper) : null;
+					RetryBudget budget = (retries > 0) || (hedgePolicy != null) ? new RetryBudget(targetConfig.getDouble("[@retryBudget]", 0.2), targetConfig.getInt("[@retryBurst]", 10)) : null;
+					// Cached responses may be keyed by request headers and cookies the Target does not list in it's Vary header (or not keyed by some that it does).
+					CacheKeyBuilder cacheKeys = null;
+					if (targetConfig.containsKey("[@cacheKeyHeaders]") || targetConfig.containsKey("[@cacheKeyCookies]") || targetConfig.containsKey("[@cacheKeyIgnore]"))
+						cacheKeys = new CacheKeyBuilder(ConfigList(targetConfig, "[@cacheKeyHeaders]"), ConfigList(targetConfig, "[@cacheKeyCookies]"), ConfigList(targetConfig, "[@cacheKeyIgnore]"));
+					// Content streamed to and from the Target is buffered up to the high watermark (by default the targets bufferSize), and the sender is resumed once it drains to the low watermark (by default half the high).
+					int lowWater = targetConfig.getInt("[@lowWatermark]", -1);
+					patterns.put(match, new TargetRoute(match, balancer, retries, budget, targetConfig.getInt("[@replayBuffer]", 64) * 1024, hedgePolicy, cacheKeys, targetConfig.getInt("[@highWatermark]", 0) * 1024, lowWater < 0 ? -1 : lowWater * 1024));
+				} catch (ReflectiveOperationException | RuntimeException e) {
+					Logger.error("Unable to configure target " + match + ";  Invalid balance policy", e);
 				}
-				TargetDescriptor desc = new TargetDescriptor(targetHost, path[0], stripPrefixCount[0]);
-				mappings.put(match, desc);
 			}
+			// Compile the patterns so that request routing does not have to scan every pattern.
+			mappings = RouteTrie.Compile(patterns);
 			connectionDispatcher = new DefaultHttpClientIODispatch<>(new HttpAsyncRequestExecutor(), ConnectionConfig.DEFAULT);
+			targetHosts = hosts;
+
+			List<HierarchicalConfiguration> hcConf = conf.configurationsAt("healthCheck");
+			if ((hcConf != null) && (hcConf.size() > 0)) {
+				HierarchicalConfiguration hc = hcConf.get(0);
+				healthChecker = new HealthChecker(executor, connPool, housekeeper, hosts.values(), hc.getString("[@path]", "/"), hc.getLong("[@interval]", 5000), hc.getLong("[@timeout]", 2000), hc.getInt("[@rise]", 2), hc.getInt("[@fall]", 3));
+			}
+			List<HierarchicalConfiguration> cacheConf = conf.configurationsAt("cache");
+			if ((cacheConf != null) && (cacheConf.size() > 0)) {
+				HierarchicalConfiguration cc = cacheConf.get(0);
+				long maxCacheBytes = cc.getLong("[@maxSize]", 64) * 1024 * 1024;
+				// Cached content lives off-heap in slabs the same size as our transfer buffers.
+				SlabAllocator slabs = new SlabAllocator(maxCacheBytes, bufferSize, cc.getInt("[@blockSize]", 4) * 1024);
+				// Optionally, responses evicted from memory are demoted to memory mapped segment files on disk (which survive a restart).
+				// The writes (and flushes) have their own thread, so that a slow disk never delays a client, or any of the housekeeper's timers.
+				DiskCacheTier disk = null;
+				if (cc.containsKey("[@diskDirectory]")) {
+					cacheWriter = Executors.newSingleThreadExecutor(r -> {
+						Thread t = new Thread(r, "pokerface-cache-writer");
+						t.setDaemon(true);
+						return t;
+					});
+					disk = new DiskCacheTier(Utils.MakePath(cc.getProperty("[@diskDirectory]")), cc.getLong("[@diskSize]", 1024) * 1024 * 1024, cc.getInt("[@segmentSize]", 64) * 1024 * 1024, cacheWriter);
+				}
+				// Concurrent misses for the same response wait (up to coalesceTimeout) for a single request to the Target.
+				long coalesceTimeout = cc.getLong("[@coalesceTimeout]", 5000);
+				RequestCoalescer coalescer = coalesceTimeout > 0 ? new RequestCoalescer(housekeeper, coalesceTimeout) : null;
+				// Optionally, "not found" answers (from a Target, or for paths that match no route) are remembered briefly, so that repeated junk requests are cheap.
+				long negativeTtl = cc.getLong("[@negativeTtl]", 0);
+				NegativeCache negative = negativeTtl > 0 ? new NegativeCache(negativeTtl, cc.getInt("[@negativePaths]", 4096)) : null;
+				// Responses may be tagged (by a response header) so that groups of them can be purged together.
+				responseCache = new ResponseCache(maxCacheBytes, cc.getInt("[@maxEntrySize]", 1024) * 1024, slabs, disk, coalescer, cc.getString("[@tagHeader]", "Surrogate-Key"), negative);
+				// Optionally, cached responses may be purged by requesting a special path (which is only available to local clients, and any others that are explicitly allowed).
+				purgePath = cc.getString("[@purgePath]");
+				purgeAllowed = new HashSet<>();
+				for (Object addr : cc.getList("[@purgeAllow]"))
+					if (addr.toString().trim().length() > 0)
+						purgeAllowed.add(InetAddress.getByName(addr.toString().trim()));
+				// The cache may be warmed from lists of urls, at startup (before we begin accepting traffic) and on demand.
+				List<Path> warmLists = new ArrayList<>();
+				for (Object list : cc.getList("[@warmUrls]"))
+					if (list.toString().trim().length() > 0)
+						warmLists.add(Utils.MakePath(list.toString().trim()));
+				cacheWarmer = new CacheWarmer(executor, connPool, mappings, responseCache, warmLists, cc.getInt("[@warmConcurrency]", 8), housekeeper);
+				cacheWarmTimeout = warmLists.isEmpty() ? 0 : cc.getLong("[@warmTimeout]", 30000);
+				warmPath = cc.getString("[@warmPath]");
+			}
+			// Keep idle connections to the configured targets warm (and evict the ones that have been idle too long, or lived too long).
+			connPoolMaintainer = new ConnPoolMaintainer(connPool, housekeeper, hosts.values(), config.getInt("targets[@connMinIdle]", 0), config.getLong("targets[@connIdleTimeout]", 30000), 1000);
 		}
 		// Allocate the script map which will be populated by it's own executor thread.
 		if (config.containsKey("scripts.rootDirectory")) {
@@ -409,15 +476,64 @@ public class PokerFace {
 			}
 		}
 
-		handlerRegistry.register("/*", new RequestHandler(executor, connPool, byteBufferPool, staticFilesPath, mappings, scripts != null ? Collections.unmodifiableNavigableMap(scripts) : null, config.getBoolean("scripts.allowScriptsToSpecifyDynamicHosts", false) ? hosts : null));
+		// Scripts may be allowed to proxy to Targets that were not configured (the registry of which is bounded in size and idle time, and trimmed by the housekeeper).
+		if ((hosts != null) && config.getBoolean("scripts.dynamicTargetScripting", config.getBoolean("scripts.allowScriptsToSpecifyDynamicHosts", false))) {
+			long idleTimeout = config.getLong("scripts.dynamicTargetIdleTimeout", 300000);
+			dynamicHosts = new DynamicHostRegistry(hosts, config.getInt("scripts.dynamicTargetMax", 1024), idleTimeout, connPool::closeRoute, housekeeper);
+			if (idleTimeout > 0) {
+				long period = Math.max(1000, Math.min(idleTimeout / 2, 60000));
+				housekeeper.scheduleWithFixedDelay(dynamicHosts::expire, period, period, TimeUnit.MILLISECONDS);
+			}
+		}
+		handlerRegistry.register("/*", new RequestHandler(executor, connPool, bufferPool, staticFilesPath, mappings, scripts != null ? Collections.unmodifiableNavigableMap(scripts) : null, dynamicHosts, responseCache, purgePath, purgeAllowed, cacheWarmer, warmPath));
 	}
 
 	protected ConnectingIOReactor connectingReactor;
 	protected IOEventDispatch connectionDispatcher;
 	protected ListeningIOReactor listeningReactor;
+	protected List<ListenerEndpoint> listenerEndpoints;
 	protected IOEventDispatch listeningDispatcher;
 	protected UriHttpAsyncRequestHandlerMapper handlerRegistry;
 	protected NavigableMap<String, ScriptObjectMirror> scripts;
+	protected ConcurrentMap<String, TargetHost> targetHosts;
+	protected DynamicHostRegistry dynamicHosts;
+	protected ResponseCache responseCache;
+	protected BufferPool bufferPool;
+	protected ShardedNIOConnPool connPool;
+	protected int connectTimeout;
+	protected ConnPoolMaintainer connPoolMaintainer;
+	protected ScheduledExecutorService housekeeper;
+	protected ExecutorService cacheWriter;
+	protected HealthChecker healthChecker;
+	protected CacheWarmer cacheWarmer;
+	protected long cacheWarmTimeout;
+
+	/**
+	 * Parse a remote Target url and add it to the list of {@code members}, sharing the {@code TargetHost} of any previously configured Target with the same scheme, host and port.
+	 * If {@code breakerPolicy} is non-null, each newly created {@code TargetHost} is given it's own {@code CircuitBreaker}.
+	 */
+	private static void addTargetMember(List<TargetDescriptor> members, ConcurrentMap<String, TargetHost> hosts, CircuitBreaker.Policy breakerPolicy, String url, int weight) {
+		String[] scheme = {null};
+		String[] host = {null};
+		int[] port = {0};
+		String[] path = {null};
+		int[] stripPrefixCount = {0};
+		String key = url == null ? null : RequestForTargetConsumer.UriToTargetKey(url, scheme, host, port, path, stripPrefixCount);
+		if (key == null) {
+			Logger.error("Unable to configure target member " + url);
+			return;
+		}
+		if (weight < 1) {
+			Logger.error("Unable to configure target member " + url + ";  Weight must be greater than zero");
+			return;
+		}
+		TargetHost targetHost = hosts.get(key);
+		if (targetHost == null) {
+			targetHost = new TargetHost(new HttpHost(host[0], port[0], scheme[0]), breakerPolicy == null ? null : new CircuitBreaker(breakerPolicy));
+			hosts.put(key, targetHost);
+		}
+		members.add(new TargetDescriptor(targetHost, path[0], stripPrefixCount[0], weight));
+	}
 
 	/**
 	 * Utility method that allows us to be very flexible in how many reactor processors are allocated to a reactor.
@@ -438,6 +554,17 @@ public class PokerFace {
 		return Math.max(1, (int) Math.rint(Runtime.getRuntime().availableProcessors() * num));
 	}
 
+	/**
+	 * Returns the (trimmed, non-empty) values of a comma separated configuration attribute.
+	 */
+	private static String[] ConfigList(HierarchicalConfiguration conf, String key) {
+		List<String> retVal = new ArrayList<>();
+		for (Object value : conf.getList(key))
+			if (value.toString().trim().length() > 0)
+				retVal.add(value.toString().trim());
+		return retVal.toArray(new String[retVal.size()]);
+	}
+
 	/**
 	 * If requested by the user, this method walks the script directory discovering, loading, compiling, and initialing an .js javascript files it finds in the specified directory or it's children.
 	 *
@@ -754,6 +881,23 @@ public class PokerFace {
 				}
 			};
 			connectReactorThread.start();
+			// Open the minimum idle connections to each target before we begin accepting traffic.
+			if (connPoolMaintainer != null) {
+				if (!connPoolMaintainer.prewarm(connectTimeout > 0 ? connectTimeout : 5000))
+					Logger.warn("Unable to pre-warm all target connections");
+				connPoolMaintainer.start();
+			}
+			// Warm the cache before we begin accepting traffic (but don't wait longer than the warmTimeout, warming simply continues in the background).
+			if ((cacheWarmer != null) && (cacheWarmTimeout > 0)) {
+				try {
+					if (!cacheWarmer.warm().await(cacheWarmTimeout))
+						Logger.warn("Cache warming did not complete within " + cacheWarmTimeout + "ms");
+				} catch (IOException ex) {
+					Logger.error("Unable to read cache warming url list", ex);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
 		}
 
 		// Fire up listening reactor.
@@ -783,7 +927,22 @@ public class PokerFace {
 			};
 			secureListenReactorThread.start();
 			retVal = true;
+			// Don't report success until the listening sockets are actually bound (callers commonly connect as soon as we return).
+			for (ListenerEndpoint ep : listenerEndpoints) {
+				try {
+					ep.waitFor();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				if (ep.getException() != null) {
+					Logger.error("Unable to listen on " + ep.getAddress(), ep.getException());
+					retVal = false;
+				}
+			}
 		}
+		if ((healthChecker != null) && (connectingReactor != null))
+			healthChecker.start();
 		return retVal;
 	}
 
@@ -791,7 +950,41 @@ public class PokerFace {
 	 * Shut it all down.
 	 */
 	public void stop() throws IOException {
+		if (healthChecker != null)
+			healthChecker.stop();
+		if (connPoolMaintainer != null)
+			connPoolMaintainer.stop();
+		if (housekeeper != null)
+			housekeeper.shutdownNow();
 		if (listeningReactor != null)
 			listeningReactor.shutdown();
+		if (responseCache != null)
+			responseCache.close();
+		if (cacheWriter != null)
+			cacheWriter.shutdown();
+	}
+
+	/**
+	 * Returns a snapshot of the runtime state of this server (such as which remote Targets are currently out of rotation).
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> retVal = new LinkedHashMap<>();
+		if (targetHosts != null) {
+			Map<String, Object> targets = new TreeMap<>();
+			for (Map.Entry<String, TargetHost> entry : targetHosts.entrySet())
+				targets.put(entry.getKey(), entry.getValue().getStats());
+			retVal.put("targets", targets);
+		}
+		if (dynamicHosts != null)
+			retVal.put("dynamicTargets", dynamicHosts.getStatistics());
+		if (responseCache != null)
+			retVal.put("cache", responseCache.getStatistics());
+		if (cacheWarmer != null)
+			retVal.put("warming", cacheWarmer.getStatistics());
+		if (connPool != null)
+			retVal.put("connections", connPool.getStatistics());
+		if (bufferPool != null)
+			retVal.put("buffers", bufferPool.getStatistics());
+		return retVal;
 	}
 }
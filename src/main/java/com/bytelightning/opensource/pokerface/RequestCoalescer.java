@@ -0,0 +1,171 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collapses concurrent cache misses for the same key into a single request to the Target.
+ * The first request to miss becomes the "leader" of a flight and is forwarded to the Target, identical requests that miss while the flight is in progress wait for it to finish.
+ * When the leader's exchange finishes (successfully or not), every waiter is resumed (at which point it will typically find the leader's response in the cache).
+ * A waiter that has waited longer than the configured timeout is resumed without waiting for the leader.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RequestCoalescer {
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param scheduler Used to time out waiters, and to resume them (so that the leader's thread is not burdened with the work of every waiter).
+	 * @param timeout   The maximum number of milliseconds a request will wait for the leader of it's flight.
+	 */
+	public RequestCoalescer(ScheduledExecutorService scheduler, long timeout) {
+		this.scheduler = scheduler;
+		this.timeout = timeout;
+		this.flights = new ConcurrentHashMap<>();
+		this.leaders = new LongAdder();
+		this.coalesced = new LongAdder();
+		this.timeouts = new LongAdder();
+	}
+
+	private final ScheduledExecutorService scheduler;
+	private final long timeout;
+	private final ConcurrentHashMap<String, Flight> flights;
+	private final LongAdder leaders;
+	private final LongAdder coalesced;
+	private final LongAdder timeouts;
+
+	/**
+	 * Requests waiting on the leader of a flight.
+	 */
+	private static final class Flight {
+		// The following are guarded by 'this'.
+		final List<Waiter> waiters = new ArrayList<>();
+		boolean done;
+	}
+
+	/**
+	 * A request that is waiting for a flight to finish (or for it's timer to expire, whichever comes first).
+	 */
+	private static final class Waiter {
+		Waiter(Runnable resume) {
+			this.resume = resume;
+			this.fired = new AtomicBoolean(false);
+		}
+
+		final Runnable resume;
+		final AtomicBoolean fired;
+		volatile ScheduledFuture<?> timer;
+
+		boolean fire() {
+			return fired.compareAndSet(false, true);
+		}
+	}
+
+	/**
+	 * Join the flight for {@code key}, or lead a new one if there is none.
+	 *
+	 * @param key    Identifies requests which can be served by the same response.
+	 * @param resume Invoked (exactly once, on another thread) when the flight this request is waiting on finishes, or the wait times out.
+	 * @return true if the caller is the leader (and must invoke {@code complete} when it's exchange finishes), false if the caller is waiting (and {@code resume} will be invoked).
+	 */
+	public boolean join(String key, Runnable resume) {
+		Flight created = new Flight();
+		while (true) {
+			Flight flight = flights.putIfAbsent(key, created);
+			if (flight == null) {
+				leaders.increment();
+				return true;
+			}
+			Waiter waiter = new Waiter(resume);
+			synchronized (flight) {
+				if (flight.done)
+					continue;    // Finished as we arrived, try again.
+				flight.waiters.add(waiter);
+			}
+			coalesced.increment();
+			try {
+				waiter.timer = scheduler.schedule(() -> {
+					if (waiter.fire()) {
+						timeouts.increment();
+						waiter.resume.run();
+					}
+				}, timeout, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException ex) {
+				// We are shutting down, the flight will still resume this waiter when it finishes.
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Invoked when the exchange of the leader of the flight for {@code key} has finished, to resume every request waiting on it.
+	 */
+	public void complete(String key) {
+		Flight flight = flights.remove(key);
+		if (flight == null)
+			return;
+		List<Waiter> waiters;
+		synchronized (flight) {
+			flight.done = true;
+			waiters = flight.waiters;
+		}
+		for (Waiter waiter : waiters) {
+			if (!waiter.fire())
+				continue;    // Already timed out.
+			ScheduledFuture<?> timer = waiter.timer;
+			if (timer != null)
+				timer.cancel(false);
+			try {
+				scheduler.execute(waiter.resume);
+			} catch (RejectedExecutionException ex) {
+				waiter.resume.run();
+			}
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the number of flights in progress, and how many requests have been coalesced.
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> retVal = new LinkedHashMap<>();
+		retVal.put("inFlight", flights.size());
+		retVal.put("leaders", leaders.sum());
+		retVal.put("coalesced", coalesced.sum());
+		retVal.put("timeouts", timeouts.sum());
+		return retVal;
+	}
+}
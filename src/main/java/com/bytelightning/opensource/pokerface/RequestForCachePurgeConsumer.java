@@ -0,0 +1,152 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.*;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * Specialization of {@code AbsClientRequestConsumer} to consume a client request to purge responses from the {@code ResponseCache}, and which generates the {@code ResponseProducer}.
+ * The request must be a POST or DELETE of the configured purge path, from a loopback address or one of the explicitly allowed addresses.
+ * It's query string specifies what to purge, by any number of {@code url}, {@code prefix} and / or {@code tag} parameters, for example:
+ * {@code curl -X POST 'http://localhost:8080/pokerface/purge?tag=product-42&prefix=/images/'}.
+ * The response is a small JSON document holding the number of entries that were purged.
+ */
+public class RequestForCachePurgeConsumer extends AbsClientRequestConsumer {
+	/**
+	 * Primary constructor
+	 *
+	 * @param context The context of this http transaction
+	 * @param cache   The cache to purge
+	 * @param allowed Addresses (other than loopback addresses) from which purge requests are accepted (may be null).
+	 */
+	RequestForCachePurgeConsumer(HttpContext context, ResponseCache cache, Set<InetAddress> allowed) {
+		super(context, null, new ResponseProducer("server", context));
+		this.cache = cache;
+		this.allowed = allowed;
+	}
+
+	private final ResponseCache cache;
+	private final Set<InetAddress> allowed;
+
+	/**
+	 * {@inheritDoc}
+	 * A purge request has no use for content, so any that is sent is simply discarded.
+	 */
+	@Override
+	public void consumeContent(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+		ByteBuffer discard = ByteBuffer.allocate(1024);
+		while (decoder.read(discard) > 0)
+			discard.clear();
+	}
+
+	/**
+	 * Returns true if the client of this transaction is on a loopback address, or one of the {@code allowed} addresses.
+	 */
+	static boolean IsAllowed(HttpContext context, Set<InetAddress> allowed) {
+		Object conn = context.getAttribute(HttpCoreContext.HTTP_CONNECTION);
+		if (!(conn instanceof HttpInetConnection))
+			return false;
+		InetAddress remote = ((HttpInetConnection) conn).getRemoteAddress();
+		return (remote != null) && (remote.isLoopbackAddress() || ((allowed != null) && allowed.contains(remote)));
+	}
+
+	/**
+	 * Once we have fully received the request from the client, perform the purge and tell the {@code ResponseProducer} about the result.
+	 */
+	@SuppressWarnings("RedundantThrows")
+	@Override
+	public void requestReceived(HttpRequest request) throws HttpException, IOException {
+		String id = (String) context.getAttribute("pokerface.txId");
+		Logger.info("[client->server] " + id + " " + request.getRequestLine());
+
+		if (!IsAllowed(context, allowed)) {
+			Logger.warn("[client->server] " + id + " purge refused");
+			producer.setResponse(HttpStatus.SC_FORBIDDEN, null);
+			return;
+		}
+		String method = request.getRequestLine().getMethod();
+		if (!(method.equals("POST") || method.equals("DELETE"))) {
+			producer.setResponse(HttpStatus.SC_METHOD_NOT_ALLOWED, null);
+			return;
+		}
+		String query = ((RequestPath) context.getAttribute(RequestPath.ContextAttribute)).getQuery();
+		int purged = 0;
+		boolean specified = false;
+		if (query != null) {
+			for (String pair : query.split("&")) {
+				int eq = pair.indexOf('=');
+				if (eq < 1)
+					continue;
+				String value;
+				try {
+					value = URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+				} catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+					producer.setResponse(HttpStatus.SC_BAD_REQUEST, "Invalid query string");
+					return;
+				}
+				if (value.isEmpty())
+					continue;
+				switch (pair.substring(0, eq)) {
+					case "url":
+						purged += cache.purge(value);
+						break;
+					case "prefix":
+						purged += cache.purgePrefix(value);
+						break;
+					case "tag":
+						purged += cache.purgeTag(value);
+						break;
+					default:
+						continue;
+				}
+				specified = true;
+			}
+		}
+		if (!specified) {
+			producer.setResponse(HttpStatus.SC_BAD_REQUEST, "Specify the url, prefix and / or tag to purge");
+			return;
+		}
+		Logger.info("[client<-server] " + id + " purged " + purged + " cached responses");
+		BasicHttpResponse response = new BasicHttpResponse(request.getProtocolVersion(), HttpStatus.SC_OK, "OK");
+		response.setEntity(new NStringEntity("{\"purged\":" + purged + "}", ContentType.APPLICATION_JSON));
+		if (producer.setResponse(response))
+			Logger.trace("[client<-server] " + id + " response triggered");
+	}
+}
@@ -0,0 +1,154 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.*;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Specialization of {@code AbsClientRequestConsumer} to consume a client request to warm the {@code ResponseCache}, and which generates the {@code ResponseProducer}.
+ * The request must be a POST of the configured warm path, from a loopback address or one of the explicitly allowed addresses.
+ * If the request has content, it is a url list (in the format of {@code Samples/Benchmark/urls.txt}) to warm, otherwise the configured url lists are warmed
+ * (they are read by the {@code CacheWarmer}'s list reader, so the reactor thread never waits on the file system).
+ * Warming proceeds in the background, the response (202 Accepted) is a small JSON document holding the number of urls that will be fetched.
+ */
+public class RequestForCacheWarmConsumer extends AbsClientRequestConsumer {
+	/**
+	 * Primary constructor
+	 *
+	 * @param context The context of this http transaction
+	 * @param warmer  The cache warmer
+	 * @param allowed Addresses (other than loopback addresses) from which warm requests are accepted (may be null).
+	 */
+	RequestForCacheWarmConsumer(HttpContext context, CacheWarmer warmer, Set<InetAddress> allowed) {
+		super(context, null, new ResponseProducer("server", context));
+		this.warmer = warmer;
+		this.allowed = allowed;
+		this.content = new ByteArrayOutputStream();
+	}
+
+	private final CacheWarmer warmer;
+	private final Set<InetAddress> allowed;
+	private final ByteArrayOutputStream content;
+	private ByteBuffer readBuffer;
+	private boolean tooLarge;
+
+	/**
+	 * The largest url list that may be posted.
+	 */
+	private static final int MaxContentLength = 1024 * 1024;
+
+	/**
+	 * {@inheritDoc}
+	 * Collect the posted url list (if any).
+	 */
+	@Override
+	public void consumeContent(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+		if (readBuffer == null)
+			readBuffer = ByteBuffer.allocate(4096);
+		while (decoder.read(readBuffer) > 0) {
+			readBuffer.flip();
+			if (content.size() + readBuffer.remaining() > MaxContentLength)
+				tooLarge = true;
+			else
+				content.write(readBuffer.array(), 0, readBuffer.remaining());
+			readBuffer.clear();
+		}
+	}
+
+	/**
+	 * Refuse the request up front if it's from a client that is not allowed, or uses the wrong method.
+	 */
+	@SuppressWarnings("RedundantThrows")
+	@Override
+	public void requestReceived(HttpRequest request) throws HttpException, IOException {
+		String id = (String) context.getAttribute("pokerface.txId");
+		Logger.info("[client->server] " + id + " " + request.getRequestLine());
+		if (!RequestForCachePurgeConsumer.IsAllowed(context, allowed)) {
+			Logger.warn("[client->server] " + id + " warm refused");
+			producer.setResponse(HttpStatus.SC_FORBIDDEN, null);
+			return;
+		}
+		if (!request.getRequestLine().getMethod().equals("POST"))
+			producer.setResponse(HttpStatus.SC_METHOD_NOT_ALLOWED, null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * The url list (if any) is only available once the request has been completely received, so begin warming now and tell the {@code ResponseProducer} how many urls will be fetched.
+	 * If the configured url lists are to be warmed, the response is produced once they have been read.
+	 */
+	@Override
+	public void requestCompleted(HttpContext context) {
+		super.requestCompleted(context);
+		if (producer.response != null)
+			return;    // Already refused.
+		if (tooLarge) {
+			producer.setResponse(HttpStatus.SC_REQUEST_TOO_LONG, null);
+			return;
+		}
+		if (content.size() > 0) {
+			Set<String> uris = new LinkedHashSet<>();
+			for (String line : new String(content.toByteArray(), StandardCharsets.UTF_8).split("\r?\n")) {
+				String uri = CacheWarmer.ParseUrl(line);
+				if (uri != null)
+					uris.add(uri);
+			}
+			accepted(warmer.warm(uris));
+		}
+		else {
+			warmer.warmLists(run -> {
+				if (run == null)
+					producer.setResponse(HttpStatus.SC_INTERNAL_SERVER_ERROR, "Unable to read the cache warming url lists");
+				else
+					accepted(run);
+			});
+		}
+	}
+
+	/**
+	 * Tell the client how many urls will be fetched by the {@code run} that was begun.
+	 */
+	private void accepted(CacheWarmer.Run run) {
+		Logger.info("[client<-server] " + context.getAttribute("pokerface.txId") + " warming " + run.getTotal() + " urls");
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_ACCEPTED, "Accepted");
+		response.setEntity(new NStringEntity("{\"urls\":" + run.getTotal() + "}", ContentType.APPLICATION_JSON));
+		producer.setResponse(response);
+	}
+}
@@ -0,0 +1,81 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * Specialization of {@code AbsClientRequestConsumer} to consume a client request which the {@code RequestHandler} has already found a fresh cached response for
+ * (currently this is a response generated earlier by a JavaScript endpoint, which is not invoked again).
+ */
+public class RequestForCachedResponseConsumer extends AbsClientRequestConsumer {
+	/**
+	 * Primary constructor
+	 *
+	 * @param context The context of this http transaction
+	 * @param cached  The response to send (it's entity is a {@code CachedContentProducer} which holds a reference to the cached content until it is closed).
+	 */
+	RequestForCachedResponseConsumer(HttpContext context, HttpResponse cached) {
+		super(context, null, new ResponseProducer("cache", context));
+		this.cached = cached;
+	}
+
+	// Set to null once the producer has taken over the response.
+	private volatile HttpResponse cached;
+
+	/**
+	 * Once we have fully received the request from the client, hand the cached response to the {@code ResponseProducer}.
+	 */
+	@SuppressWarnings("RedundantThrows")
+	@Override
+	public void requestReceived(HttpRequest request) throws HttpException, IOException {
+		String id = (String) context.getAttribute("pokerface.txId");
+		Logger.info("[client->cache] " + id + " " + request.getRequestLine());
+		HttpResponse response = cached;
+		if ((response != null) && producer.setResponse(response, true)) {
+			cached = null;
+			Logger.info("[client<-cache] " + id + " " + response.getStatusLine());
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * If the response was never handed to the producer, release it's hold on the cached content.
+	 */
+	@Override
+	public void close() throws IOException {
+		super.close();
+		HttpResponse response = cached;
+		cached = null;
+		if (response != null)
+			((CachedContentProducer) response.getEntity()).close();
+	}
+}
@@ -63,7 +63,7 @@ public class RequestForFileConsumer extends AbsClientRequestConsumer {
 		String id = (String) context.getAttribute("pokerface.txId");
 		Logger.info("[client->server] " + id + " " + request.getRequestLine());
 
-		String uriStr = (String) context.getAttribute("pokerface.uripath");
+		String uriStr = ((RequestPath) context.getAttribute(RequestPath.ContextAttribute)).getPath();
 		ContentType ct = ContentType.DEFAULT_BINARY;
 		int dotPos = uriStr.lastIndexOf('.');
 		if (dotPos > 0) {
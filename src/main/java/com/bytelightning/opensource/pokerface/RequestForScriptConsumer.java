@@ -53,14 +53,4 @@ public class RequestForScriptConsumer extends AbsClientRequestConsumer {
 		String id = (String) context.getAttribute("pokerface.txId");
 		Logger.info("[client->endpoint] " + id + " " + request.getRequestLine());
 	}
-
-	/**
-	 * {@inheritDoc}
-	 * The producer does not need our buffer, so this method closes it.
-	 */
-	@Override
-	public void close() throws IOException {
-		super.close();
-		buffer.close();
-	}
 }
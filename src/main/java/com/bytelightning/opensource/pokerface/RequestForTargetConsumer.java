@@ -28,17 +28,16 @@ SOFTWARE.
 import jdk.nashorn.api.scripting.ScriptObjectMirror;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.RequestLine;
-import org.apache.http.impl.nio.pool.BasicNIOConnPool;
+import org.apache.http.impl.nio.pool.BasicNIOPoolEntry;
 import org.apache.http.nio.protocol.HttpAsyncRequester;
+import org.apache.http.pool.ConnPool;
 import org.apache.http.protocol.HttpContext;
 
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentMap;
 
 /**
  * Specialization of {@code AbsClientRequestConsumer} to consume a client request that will be forwarded to a remote Target.
@@ -54,34 +53,42 @@ public class RequestForTargetConsumer extends AbsClientRequestConsumer {
 	 * @param context              Context of this request / response transaction
 	 * @param executor             {@code HttpAsyncRequester} which will perform the actual request to the remote Target and recieve it's response.
 	 * @param connPool             The client connection pool that will be used by the {@code executor}
-	 * @param patternTargetMapping The mapping of relative uri paths to configured Targets.
-	 * @param dynamicHostMap       If non-null, this is a request modified by a JavaScript endpoint, *and* we are configured to allow the endpoint's to proxy to remote Target's not specified in the configuration file.
+	 * @param patternTargetMapping The compiled mapping of relative uri paths to configured Target routes.
+	 * @param dynamicHosts         If non-null, this is a request modified by a JavaScript endpoint, *and* we are configured to allow the endpoint's to proxy to remote Target's not specified in the configuration file.
 	 * @param requestBuffer        Buffer used to read in the request content from a client (if any) which will then be flipped and sent out to the Target by the {@code TargetRequestProducer}
 	 * @param responseBuffer       Buffer used to read in the response content from the remote Target (if any) which will then be flipped and sent back to the client by the {@code TargetResponseConsumer}
 	 * @param endpoint             If non-null, the script endpoint which has interjected itself into this transaction.
+	 * @param cache                If non-null, the cache of responses from configured Targets.
 	 */
-	public RequestForTargetConsumer(HttpContext context, HttpAsyncRequester executor, BasicNIOConnPool connPool, Map<String, TargetDescriptor> patternTargetMapping, ConcurrentMap<String, HttpHost> dynamicHostMap, HttpRequest targetRequest, BufferIOController requestBuffer, BufferIOController responseBuffer, ScriptObjectMirror endpoint) {
+	public RequestForTargetConsumer(HttpContext context, HttpAsyncRequester executor, ConnPool<HttpHost, BasicNIOPoolEntry> connPool, RouteTrie<TargetRoute> patternTargetMapping, DynamicHostRegistry dynamicHosts, HttpRequest targetRequest, BufferIOController requestBuffer, BufferIOController responseBuffer, ScriptObjectMirror endpoint, ResponseCache cache) {
 		super(context, requestBuffer, new ResponseProducer("proxy", context, responseBuffer));
 		this.executor = executor;
 		this.connPool = connPool;
 		this.patternTargetMapping = patternTargetMapping;
-		this.dynamicHostMap = dynamicHostMap;
+		this.dynamicHosts = dynamicHosts;
 		this.targetRequest = targetRequest;
 		this.endpoint = endpoint;
 		this.responseBuffer = responseBuffer;
+		this.cache = cache;
 	}
 
 	private final HttpAsyncRequester executor;
-	private final BasicNIOConnPool connPool;
-	private final ConcurrentMap<String, HttpHost> dynamicHostMap;
-	private final Map<String, TargetDescriptor> patternTargetMapping;
+	private final ConnPool<HttpHost, BasicNIOPoolEntry> connPool;
+	private final DynamicHostRegistry dynamicHosts;
+	private final RouteTrie<TargetRoute> patternTargetMapping;
 	private final ScriptObjectMirror endpoint;
 	private final BufferIOController responseBuffer;
+	private final ResponseCache cache;
 	private HttpRequest targetRequest;
 
 	/**
 	 * {@inheritDoc}
 	 * Find a remote target that matches the requested uri, *or* return a 404 NOT_FOUND response if a mapping is not present.
+	 * Paths that recently matched no mapping are remembered (see {@code NegativeCache}), and answered with a 404 NOT_FOUND response without looking for a mapping again.
+	 * If a mapping is present but none of it's Targets are currently available, a 503 SERVICE_UNAVAILABLE response is returned immediately.
+	 * A request for a configured Target may instead be answered from the {@code ResponseCache} (unless a script endpoint is involved in this transaction).
+	 * If the cache misses while an identical request is already in flight to the Target, this request waits for (and is then typically served by) that response.
+	 * A stale cached response may be served while it is revalidated in the background, revalidated with a conditional request, or served in place of an error (see {@code ResponseCache}).
 	 */
 	@Override
 	public void requestReceived(HttpRequest clientRequest) {
@@ -91,109 +98,164 @@ public class RequestForTargetConsumer extends AbsClientRequestConsumer {
 
 		// Find the remote Target that we have configured to match this request URI.
 		RequestLine reqLine = targetRequest.getRequestLine();
-		TargetDescriptor targetDesc = lookupTargetFromUri(reqLine.getUri());
-		if (targetDesc != null)    // Execute the async request / response transaction against the remote Target.
-			executor.execute(new TargetRequestProducer(targetDesc, targetRequest, context, buffer), new TargetResponseConsumer(producer, responseBuffer, context, endpoint), connPool);
-		else    // No Target was matched against this request.
-			producer.setResponse(HttpStatus.SC_NOT_FOUND, null);
+		TargetRoute route = null;
+		RequestPath requestPath = null;
+		String coalescingKey = null;
+		if (patternTargetMapping != null) {    // Remote targets have been configured.
+			// The RequestPath computed by the RequestHandler is reused unless a script endpoint has rewritten the uri.
+			requestPath = (RequestPath) context.getAttribute(RequestPath.ContextAttribute);
+			if ((requestPath == null) || (!requestPath.getUri().equals(reqLine.getUri())))
+				requestPath = RequestPath.Parse(reqLine.getUri());
+			// Unless a script may route this request to a dynamic Target, a path that recently matched no mapping still won't.
+			NegativeCache unroutable = (cache != null) && (dynamicHosts == null) ? cache.getNegativeCache() : null;
+			if ((unroutable != null) && unroutable.contains(requestPath.getKey())) {
+				Logger.debug("[client->proxy] " + id + " path is known to be unroutable");
+				producer.setResponse(HttpStatus.SC_NOT_FOUND, null);
+				return;
+			}
+			route = patternTargetMapping.lookup(requestPath.getKey());
+			if ((route == null) && (unroutable != null))
+				unroutable.add(requestPath.getKey());
+			if ((route != null) && (cache != null) && (endpoint == null)) {
+				if (TargetExchange.IsSafe(reqLine.getMethod())) {
+					if (serveFromCache(route))
+						return;
+					RequestCoalescer coalescer = cache.getCoalescer();
+					if (coalescer != null)
+						coalescingKey = cache.coalescingKey(targetRequest);
+					if (coalescingKey != null) {
+						final TargetRoute waitingRoute = route;
+						final RequestPath waitingPath = requestPath;
+						if (!coalescer.join(coalescingKey, () -> resume(waitingRoute, waitingPath))) {
+							Logger.debug("[client->proxy] " + id + " waiting on identical request in flight");
+							return;
+						}
+					}
+				}
+				else
+					cache.invalidate(targetRequest);
+			}
+		}
+		forward(route, requestPath, coalescingKey);
 	}
 
 	/**
-	 * Looks up the TargetDescriptor matching the given request path.
-	 * NOTE: If
+	 * Answer the request from the cache (if possible).
+	 * A stale response within it's {@code stale-while-revalidate} window is refreshed from a Target of the {@code route} in the background.
 	 *
-	 * @param uriStr the request path
-	 * @return object or {@code null} if no match is found.
+	 * @return true if a cached response will be sent to the client.
 	 */
-	@SuppressWarnings("Duplicates")
-	private TargetDescriptor lookupTargetFromUri(final String uriStr) {
-		if (patternTargetMapping == null)
-			return null;    // No remote targets configured.
-		URI uri;
-		try {
-			uri = new URI(uriStr);
-		} catch (URISyntaxException e) {
-			int queryPos = uriStr.indexOf('?');
-			if (queryPos < 0)
-				queryPos = uriStr.indexOf('#');
-			if (queryPos > 1) {
-				// For our purposes, the query and anchor are not relevant
-				try {
-					uri = new URI(uriStr.substring(0, queryPos));
-				} catch (URISyntaxException e1) {
-					Logger.error("Impossibly, the HttpRequest contained an unparsable uri", e);
-					return null;
-				}
-			}
-			else {
-				Logger.error("Impossibly, the HttpRequest contained an unparsable uri", e);
-				return null;
-			}
-		}
-		String key = lookupKeyFromPath(uri.getPath().toLowerCase());
-		TargetDescriptor retVal = patternTargetMapping.get(key);
-		// If a Target was not found, 
-		// 	AND we have been configured to support dynamicHost targeting, 
-		// 	AND this request came from our own script, 
-		// Then generate a dynamic Target (and remember it).
-		if ((retVal == null) && (dynamicHostMap != null)) {
-			String[] scheme = {null};
-			String[] host = {null};
-			int[] port = {0};
-			String[] path = {null};
-			int[] stripPrefixCount = {0};
-			key = UriToTargetKey(uri, scheme, host, port, path, stripPrefixCount);
-			HttpHost httpHost = dynamicHostMap.get(key);
-			if (httpHost == null) {
-				HttpHost newHost = new HttpHost(host[0], port[0], scheme[0]);
-				httpHost = dynamicHostMap.putIfAbsent(key, newHost);
-				if (httpHost == null)
-					httpHost = newHost;
-			}
-			retVal = new TargetDescriptor(httpHost, path[0], stripPrefixCount[0]);
+	private boolean serveFromCache(final TargetRoute route) {
+		final String id = (String) context.getAttribute("pokerface.txId");
+		HttpResponse cached = cache.lookup(targetRequest, stale -> CacheRevalidator.Start(executor, connPool, route, targetRequest, cache, stale, id));
+		if (cached == null)
+			return false;
+		if (producer.setResponse(cached, true)) {
+			Logger.info("[client<-cache] " + id + " " + cached.getStatusLine());
+			return true;
 		}
-		return retVal;
+		((CachedContentProducer) cached.getEntity()).close();    // Release it's hold on the cached content.
+		return false;
 	}
 
 	/**
-	 * Finds the best matching key in our configured Target mappings.
+	 * Invoked (on another thread) when the in flight request this request was waiting on has finished (or the wait timed out).
+	 * The request is served from the cache if the other response was stored there, otherwise it is forwarded to the Target.
 	 */
-	private String lookupKeyFromPath(String uriPath) {
-		String retVal = uriPath;
-		// direct match?
-		if (patternTargetMapping.get(retVal) == null) {
-			// pattern match?
-			String bestMatch = null;
-			for (Entry<String, TargetDescriptor> entry : patternTargetMapping.entrySet()) {
-				final String pattern = entry.getKey();
-				if (DoesUriRequestMatchPattern(pattern, uriPath)) {
-					// we have a match. is it any better?
-					if (IsBetterMatch(bestMatch, pattern))
-						retVal = bestMatch = pattern;
-				}
+	private void resume(TargetRoute route, RequestPath requestPath) {
+		if (!serveFromCache(route))
+			forward(route, requestPath, null);
+	}
+
+	/**
+	 * Forward the request to a Target of the specified route (or a dynamic Target if {@code route} is null).
+	 *
+	 * @param coalescingKey If non-null, other requests are waiting on this one, and must be resumed once this exchange is finished.
+	 */
+	private void forward(TargetRoute route, RequestPath requestPath, final String coalescingKey) {
+		String id = (String) context.getAttribute("pokerface.txId");
+		TargetDescriptor targetDesc = null;
+		CachedResponse stale = null;
+		if (route != null) {
+			if ((cache != null) && (endpoint == null) && targetRequest.getRequestLine().getMethod().equals("GET"))
+				stale = cache.getStale(targetRequest);
+			targetDesc = route.select();
+			if (targetDesc == null) {    // Every Target of the route is out of rotation.
+				Logger.warn("[client->proxy] " + id + " no available target for " + route.getPattern());
+				serveStaleOrUnavailable(stale);
+				if (stale != null)
+					stale.release();
+				if (coalescingKey != null)
+					cache.getCoalescer().complete(coalescingKey);
+				return;
 			}
 		}
-		return retVal;
+		else if (patternTargetMapping != null)
+			targetDesc = lookupDynamicTarget(requestPath);
+		if (targetDesc != null) {    // Execute the async request / response transaction against the remote Target.
+			TargetExchange exchange = new TargetExchange(context, executor, connPool, route, targetRequest, buffer, producer, responseBuffer, endpoint, route != null ? cache : null);
+			if (coalescingKey != null)
+				exchange.setOnFinished(() -> cache.getCoalescer().complete(coalescingKey));
+			if (stale != null)
+				exchange.setStale(stale);
+			if (!exchange.start(targetDesc)) {    // Fail fast rather than queue for a connection to a Target that is misbehaving.
+				Logger.warn("[client->proxy] " + id + " circuit open for " + targetDesc.getTargetHost());
+				serveStaleOrUnavailable(stale);
+				exchange.finished();
+			}
+		}
+		else    // No Target was matched against this request.
+			producer.setResponse(HttpStatus.SC_NOT_FOUND, null);
 	}
 
 	/**
-	 * Is {@code pattern} a closer match than {@code bestMatch}?
+	 * No Target is available to answer the request, so send a stale cached response (if it's {@code stale-if-error} window permits), or a 503 SERVICE_UNAVAILABLE response.
 	 */
-	private static boolean IsBetterMatch(String bestMatch, String pattern) {
-		//noinspection RedundantIfStatement
-		if (bestMatch == null || (bestMatch.length() < pattern.length()) || (bestMatch.length() == pattern.length() && pattern.endsWith("*")))
-			return true;
-		return false;
+	private void serveStaleOrUnavailable(CachedResponse stale) {
+		HttpResponse cached = stale == null ? null : cache.staleIfError(stale);
+		if (cached != null) {
+			if (producer.setResponse(cached, true)) {
+				String id = (String) context.getAttribute("pokerface.txId");
+				Logger.info("[client<-cache] " + id + " " + cached.getStatusLine() + " (stale)");
+				return;
+			}
+			((CachedContentProducer) cached.getEntity()).close();
+		}
+		producer.setResponse(HttpStatus.SC_SERVICE_UNAVAILABLE, null);
 	}
 
 	/**
-	 * Well does it ?
+	 * Creates a TargetDescriptor for a request uri that did not match any configured route.
+	 *
+	 * @param requestPath the parsed form of the request uri
+	 * @return object or {@code null} if dynamic targeting is not permitted.
 	 */
-	private static boolean DoesUriRequestMatchPattern(String pattern, String uriPath) {
-		if (pattern.equals("*"))
-			return true;
-		else
-			return (pattern.endsWith("*") && uriPath.startsWith(pattern.substring(0, pattern.length() - 1))) || (pattern.startsWith("*") && uriPath.endsWith(pattern.substring(1)));
+	@SuppressWarnings("Duplicates")
+	private TargetDescriptor lookupDynamicTarget(final RequestPath requestPath) {
+		TargetDescriptor retVal = null;
+		// If a Target was not found, 
+		// 	AND we have been configured to support dynamicHost targeting, 
+		// 	AND this request came from our own script, 
+		// Then generate a dynamic Target (and remember it).
+		if (dynamicHosts != null) {
+			URI uri;
+			try {
+				// For our purposes, the query is not relevant (but the anchor specifies how much of the path to strip).
+				uri = new URI(requestPath.getUriWithoutQuery());
+			} catch (URISyntaxException e) {
+				Logger.error("Impossibly, the HttpRequest contained an unparsable uri", e);
+				return null;
+			}
+			String[] scheme = {null};
+			String[] host = {null};
+			int[] port = {0};
+			String[] path = {null};
+			int[] stripPrefixCount = {0};
+			String key = UriToTargetKey(uri, scheme, host, port, path, stripPrefixCount);
+			TargetHost targetHost = dynamicHosts.lookup(key, scheme[0], host[0], port[0]);
+			retVal = new TargetDescriptor(targetHost, path[0], stripPrefixCount[0]);
+		}
+		return retVal;
 	}
 
 	/**
@@ -26,31 +26,31 @@ SOFTWARE.
  */
 
 import jdk.nashorn.api.scripting.ScriptObjectMirror;
-import org.apache.commons.pool2.ObjectPool;
 import org.apache.http.*;
-import org.apache.http.impl.nio.pool.BasicNIOConnPool;
+import org.apache.http.impl.nio.pool.BasicNIOPoolEntry;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 import org.apache.http.message.BasicHttpRequest;
 import org.apache.http.nio.protocol.HttpAsyncExchange;
 import org.apache.http.nio.protocol.HttpAsyncRequestConsumer;
 import org.apache.http.nio.protocol.HttpAsyncRequestHandler;
 import org.apache.http.nio.protocol.HttpAsyncRequester;
+import org.apache.http.pool.ConnPool;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Map;
+import java.util.Locale;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -59,6 +59,7 @@ import java.util.concurrent.atomic.AtomicLong;
  * analyzes the script response (and if appropriate delegates further processing to the script),
  * otherwise resolves the remote Target (if any),
  * and finally creates either a {@code RequestForScriptConsumer} or a {@code RequestForTargetConsumer} to actually consume the request.
+ * A request for a JavaScript endpoint which has already generated a fresh (cached) response to an identical request is answered from the cache by a {@code RequestForCachedResponseConsumer} instead.
  * NOTE: This is a singleton (not one per transaction as is the case for the Producers and Consumers).
  */
 @SuppressWarnings("restriction")
@@ -70,27 +71,42 @@ public class RequestHandler implements HttpAsyncRequestHandler<ResponseProducer>
 	 *
 	 * @param executor             {@code HttpAsyncRequester} which will perform the actual request to the remote Target and receive it's response.
 	 * @param connPool             The client connection pool that will be used by the {@code executor}
-	 * @param patternTargetMapping The mapping of relative uri paths to configured Targets.
+	 * @param patternTargetMapping The compiled mapping of relative uri paths to configured Target routes.
 	 * @param scripts              Mapping of all JavaScript endpoints.  This map *may* be dynamically updated, or it may be null to reflect that JavaScript endpoints are not configured.
-	 * @param dynamicHostMap       If non-null, we will allow JavaScript endpoints to proxy to remote Target's not specified in the configuration file.
+	 * @param dynamicHosts         If non-null, we will allow JavaScript endpoints to proxy to remote Target's not specified in the configuration file.
+	 * @param cache                If non-null, responses from configured Targets will be cached (as permitted by the Targets).
+	 * @param purgePath            If non-null (and there is a {@code cache}), requests for this path purge responses from the cache (see {@code RequestForCachePurgeConsumer}).
+	 * @param purgeAllowed         Addresses (other than loopback addresses) from which purge (and warm) requests are accepted (may be null).
+	 * @param warmer               If non-null (and there is a {@code warmPath}), used to warm the cache on request.
+	 * @param warmPath             If non-null, requests for this path warm the cache (see {@code RequestForCacheWarmConsumer}).
 	 */
-	public RequestHandler(HttpAsyncRequester executor, BasicNIOConnPool connPool, ObjectPool<ByteBuffer> bufferPool, Path staticFilesPath, Map<String, TargetDescriptor> patternTargetMapping, NavigableMap<String, ScriptObjectMirror> scripts, ConcurrentMap<String, HttpHost> dynamicHostMap) {
+	public RequestHandler(HttpAsyncRequester executor, ConnPool<HttpHost, BasicNIOPoolEntry> connPool, BufferPool bufferPool, Path staticFilesPath, RouteTrie<TargetRoute> patternTargetMapping, NavigableMap<String, ScriptObjectMirror> scripts, DynamicHostRegistry dynamicHosts, ResponseCache cache, String purgePath, Set<InetAddress> purgeAllowed, CacheWarmer warmer, String warmPath) {
 		this.executor = executor;
 		this.connPool = connPool;
 		this.bufferPool = bufferPool;
 		this.staticFilesPath = staticFilesPath;
 		this.patternTargetMapping = patternTargetMapping;
 		this.scripts = scripts;
-		this.dynamicHostMap = dynamicHostMap;
+		this.dynamicHosts = dynamicHosts;
+		this.cache = cache;
+		this.purgePath = (cache == null) || (purgePath == null) ? null : purgePath.toLowerCase(Locale.ROOT);
+		this.purgeAllowed = purgeAllowed;
+		this.warmer = warmer;
+		this.warmPath = (warmer == null) || (warmPath == null) ? null : warmPath.toLowerCase(Locale.ROOT);
 		this.idCounter = new AtomicLong(1);
 	}
 
-	private final BasicNIOConnPool connPool;
+	private final ConnPool<HttpHost, BasicNIOPoolEntry> connPool;
 	private final HttpAsyncRequester executor;
-	private final ObjectPool<ByteBuffer> bufferPool;
+	private final BufferPool bufferPool;
 	private final Path staticFilesPath;
-	private final ConcurrentMap<String, HttpHost> dynamicHostMap;
-	private final Map<String, TargetDescriptor> patternTargetMapping;
+	private final DynamicHostRegistry dynamicHosts;
+	private final ResponseCache cache;
+	private final String purgePath;
+	private final Set<InetAddress> purgeAllowed;
+	private final CacheWarmer warmer;
+	private final String warmPath;
+	private final RouteTrie<TargetRoute> patternTargetMapping;
 	private final NavigableMap<String, ScriptObjectMirror> scripts;
 	private final AtomicLong idCounter;
 
@@ -111,21 +127,25 @@ public class RequestHandler implements HttpAsyncRequestHandler<ResponseProducer>
 		HttpContext scriptContext = null;
 		ScriptObjectMirror scriptEndpoint = null;
 		RequestLine requestLine = request.getRequestLine();
-		String uriStr = requestLine.getUri();
-		int queryPos = uriStr.lastIndexOf('?');
-		if (queryPos > 0)
-			uriStr = uriStr.substring(0, queryPos);
-		int anchorPos = uriStr.lastIndexOf('#');    // You could have an anchor without a query
-		if (anchorPos > 0)
-			uriStr = uriStr.substring(0, anchorPos);
-		context.setAttribute("pokerface.uripath", uriStr);
+		// Scan the uri once, and share the result with every routing decision made for this transaction.
+		RequestPath requestPath = RequestPath.Parse(requestLine.getUri());
+		context.setAttribute(RequestPath.ContextAttribute, requestPath);
+
+		// See if this is a request to purge (or warm) the cache.
+		if ((purgePath != null) && requestPath.getKey().equals(purgePath))
+			return new RequestForCachePurgeConsumer(context, cache, purgeAllowed);
+		if ((warmPath != null) && requestPath.getKey().equals(warmPath))
+			return new RequestForCacheWarmConsumer(context, warmer, purgeAllowed);
 
 		// See if this is a request for one of our static resources.
 		if (staticFilesPath != null) {
 			String method = requestLine.getMethod();
 			if (method.equals("GET") || method.equals("HEAD")) {
 				try {
-					Path rsrcPath = staticFilesPath.resolve(uriStr.replaceAll("\\.\\./", "/").substring(1));
+					String filePath = requestPath.getPath();
+					if (filePath.contains("../"))
+						filePath = filePath.replaceAll("\\.\\./", "/");
+					Path rsrcPath = staticFilesPath.resolve(filePath.substring(1));
 					if (Files.exists(rsrcPath) && Files.isRegularFile(rsrcPath))
 						return new RequestForFileConsumer(context, rsrcPath.toFile());
 				} catch (Exception ex) {
@@ -134,14 +154,28 @@ public class RequestHandler implements HttpAsyncRequestHandler<ResponseProducer>
 			}
 		}
 
+		// Shed load rather than allocate direct memory beyond our budget.
+		if (!bufferPool.admit())
+			return new RequestRejectedConsumer(context, "Buffer budget exhausted", 1);
 		BufferIOController requestBuffer = new BufferIOController(bufferPool);
 		BufferIOController responseBuffer = new BufferIOController(bufferPool);
 
 		// If script endpoints are configured, look for the closest match (if any).
 		if (scripts != null) {
-			uriStr = uriStr.toLowerCase();
+			// Endpoints are selected by the raw (lowercased, but *not* percent-decoded) path, so that an escaped slash never selects a different endpoint.
+			String uriStr = requestPath.getPath().toLowerCase();
 			Entry<String, ScriptObjectMirror> entry = scripts.floorEntry(uriStr);
 			if ((entry != null) && uriStr.startsWith(entry.getKey())) {
+				// An endpoint may have already generated a (still fresh) response to an identical request, in which case the endpoint is not invoked at all.
+				if (cache != null) {
+					if (TargetExchange.IsSafe(requestLine.getMethod())) {
+						HttpResponse cached = cache.lookupEndpoint(request);
+						if (cached != null)
+							return new RequestForCachedResponseConsumer(context, cached);
+					}
+					else
+						cache.invalidate(request);
+				}
 				// We found a matching script, so give it an opportunity to inspect the request.
 				StringBuilder sb = new StringBuilder();
 				RequestLine reqLine = request.getRequestLine();
@@ -151,7 +185,7 @@ public class RequestHandler implements HttpAsyncRequestHandler<ResponseProducer>
 				sb.append(" being inspected by ");
 				String logPrefix = sb.toString();
 				scriptContext = new BasicHttpContext(context);
-				scriptContext.setAttribute("pokerface.scriptHelper", new ScriptHelperImpl(request, context, bufferPool));
+				scriptContext.setAttribute("pokerface.scriptHelper", new ScriptHelperImpl(request, context, bufferPool, cache));
 				scriptContext.setAttribute("pokerface.endpoints", scripts);
 				scriptContext.setAttribute("pokerface.scriptLogger", ScriptHelper.ScriptLogger);
 				//FIXME: Test out the recursively higher script selection.
@@ -194,7 +228,7 @@ public class RequestHandler implements HttpAsyncRequestHandler<ResponseProducer>
 					if (scriptResult instanceof HttpAsyncRequestConsumer<?>)
 						return (HttpAsyncRequestConsumer<ResponseProducer>) scriptResult;
 					else if ((scriptResult instanceof ScriptObjectMirror) && scriptEndpoint.equals(scriptResult))    // The script wants to handle the request itself.
-						return new RequestForScriptConsumer(scriptContext, requestBuffer, new ScriptResponseProducer(scriptEndpoint, request, scriptContext, responseBuffer));
+						return new RequestForScriptConsumer(scriptContext, requestBuffer, new ScriptResponseProducer(scriptEndpoint, request, scriptContext, responseBuffer, cache));
 					else {
 						// The script wants to pass along a modified Request to the target
 						assert scriptResult instanceof HttpRequest;
@@ -206,7 +240,7 @@ public class RequestHandler implements HttpAsyncRequestHandler<ResponseProducer>
 			}
 		}
 		// Create a AbsClientRequestConsumer that can proxy to the remote Target.
-		return new RequestForTargetConsumer(scriptContext == null ? context : scriptContext, executor, connPool, patternTargetMapping, requestIsFromScript ? dynamicHostMap : null, request, requestBuffer, responseBuffer, scriptEndpoint);
+		return new RequestForTargetConsumer(scriptContext == null ? context : scriptContext, executor, connPool, patternTargetMapping, requestIsFromScript ? dynamicHosts : null, request, requestBuffer, responseBuffer, scriptEndpoint, cache);
 	}
 
 	/**
@@ -0,0 +1,199 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The result of scanning a request-line uri exactly once.
+ * This records where the path and query portions of the uri begin and end, and computes the lowercase (and percent-decoded) key that is used to route the request to a static file, script endpoint, or remote Target.
+ * One of these is created by the {@code RequestHandler} for each client request and stored in the {@code HttpContext} (see {@link #ContextAttribute}) so that routing never needs to re-parse the uri.
+ * Both origin-form ("/path?query") and absolute-form ("http://host:port/path?query") uris are understood.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class RequestPath {
+	/**
+	 * The {@code HttpContext} attribute under which the {@code RequestPath} of the client request is stored.
+	 */
+	public static final String ContextAttribute = "pokerface.requestPath";
+
+	/**
+	 * Scan the supplied request-line uri.
+	 */
+	public static RequestPath Parse(String uri) {
+		final int len = uri.length();
+		int pathStart = 0;
+		// Skip over the scheme and authority of an absolute-form uri.
+		if ((len > 0) && (uri.charAt(0) != '/')) {
+			int schemeEnd = uri.indexOf("://");
+			if (schemeEnd > 0) {
+				pathStart = schemeEnd + 3;
+				while ((pathStart < len) && "/?#".indexOf(uri.charAt(pathStart)) < 0)
+					pathStart++;
+			}
+		}
+		int pathEnd = pathStart;
+		boolean needsFolding = false;
+		for (; pathEnd < len; pathEnd++) {
+			char c = uri.charAt(pathEnd);
+			if (c == '?' || c == '#')
+				break;
+			if (c == '%' || Character.toLowerCase(c) != c)
+				needsFolding = true;
+		}
+		int queryStart = -1;
+		int queryEnd = -1;
+		if ((pathEnd < len) && (uri.charAt(pathEnd) == '?')) {
+			queryStart = pathEnd + 1;
+			queryEnd = uri.indexOf('#', queryStart);
+			if (queryEnd < 0)
+				queryEnd = len;
+		}
+		return new RequestPath(uri, pathStart, pathEnd, queryStart, queryEnd, needsFolding);
+	}
+
+	/**
+	 * Private constructor, please use {@link #Parse(String)}.
+	 */
+	private RequestPath(String uri, int pathStart, int pathEnd, int queryStart, int queryEnd, boolean needsFolding) {
+		this.uri = uri;
+		this.pathStart = pathStart;
+		this.pathEnd = pathEnd;
+		this.queryStart = queryStart;
+		this.queryEnd = queryEnd;
+		String path = (pathStart == 0 && pathEnd == uri.length()) ? uri : uri.substring(pathStart, pathEnd);
+		this.path = path;
+		this.key = needsFolding ? FoldPath(path) : path;
+	}
+
+	private final String uri;
+	private final int pathStart;
+	private final int pathEnd;
+	private final int queryStart;
+	private final int queryEnd;
+	private final String path;
+	private final String key;
+
+	/**
+	 * Returns the uri that was scanned.
+	 */
+	public String getUri() {
+		return uri;
+	}
+
+	/**
+	 * Returns the index in the uri of the first character of the path.
+	 */
+	public int getPathStart() {
+		return pathStart;
+	}
+
+	/**
+	 * Returns the index in the uri just past the last character of the path.
+	 */
+	public int getPathEnd() {
+		return pathEnd;
+	}
+
+	/**
+	 * Returns the index in the uri of the first character of the query (or -1 if the uri has no query).
+	 */
+	public int getQueryStart() {
+		return queryStart;
+	}
+
+	/**
+	 * Returns the index in the uri just past the last character of the query (or -1 if the uri has no query).
+	 */
+	public int getQueryEnd() {
+		return queryEnd;
+	}
+
+	/**
+	 * Returns the path exactly as it appeared in the uri.
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Returns the query (without the leading '?') or {@code null} if the uri has no query.
+	 */
+	public String getQuery() {
+		return queryStart < 0 ? null : uri.substring(queryStart, queryEnd);
+	}
+
+	/**
+	 * Returns the uri without it's query (the fragment, if any, is retained).
+	 */
+	public String getUriWithoutQuery() {
+		return queryStart < 0 ? uri : uri.substring(0, queryStart - 1) + uri.substring(queryEnd);
+	}
+
+	/**
+	 * Returns the percent-decoded, lowercase form of the path which is used for all routing decisions.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	@Override
+	public String toString() {
+		return key;
+	}
+
+	/**
+	 * Percent-decode (as UTF-8) and lowercase the supplied path.
+	 * Malformed escape sequences are left as is.
+	 */
+	private static String FoldPath(String path) {
+		final int len = path.length();
+		StringBuilder sb = new StringBuilder(len);
+		byte[] octets = null;
+		int i = 0;
+		while (i < len) {
+			char c = path.charAt(i);
+			if ((c == '%') && (i + 2 < len) && (Character.digit(path.charAt(i + 1), 16) >= 0) && (Character.digit(path.charAt(i + 2), 16) >= 0)) {
+				// Gather a run of escaped octets so that multi-byte UTF-8 sequences are decoded properly.
+				if (octets == null)
+					octets = new byte[len / 3];
+				int n = 0;
+				while ((i + 2 < len) && (path.charAt(i) == '%') && (Character.digit(path.charAt(i + 1), 16) >= 0) && (Character.digit(path.charAt(i + 2), 16) >= 0)) {
+					octets[n++] = (byte) ((Character.digit(path.charAt(i + 1), 16) << 4) + Character.digit(path.charAt(i + 2), 16));
+					i += 3;
+				}
+				String decoded = new String(octets, 0, n, StandardCharsets.UTF_8);
+				for (int j = 0; j < decoded.length(); j++)
+					sb.append(Character.toLowerCase(decoded.charAt(j)));
+			}
+			else {
+				sb.append(Character.toLowerCase(c));
+				i++;
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,89 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Specialization of {@code AbsClientRequestConsumer} to consume a client request which this server does not currently have the resources to handle (e.g. it's buffer budget is exhausted).
+ * The response is a 503 SERVICE_UNAVAILABLE with a {@code Retry-After} header, and the connection is closed.
+ */
+public class RequestRejectedConsumer extends AbsClientRequestConsumer {
+	/**
+	 * Primary constructor
+	 *
+	 * @param context    The context of this http transaction
+	 * @param reason     Why the request is being rejected (this is logged, and sent as the content of the response).
+	 * @param retryAfter The number of seconds after which the client may retry.
+	 */
+	RequestRejectedConsumer(HttpContext context, String reason, int retryAfter) {
+		super(context, null, new ResponseProducer("server", context));
+		this.reason = reason;
+		this.retryAfter = retryAfter;
+	}
+
+	private final String reason;
+	private final int retryAfter;
+
+	/**
+	 * {@inheritDoc}
+	 * A rejected request has no use for content (and we have no buffer to put it in), so any that is sent is simply discarded.
+	 */
+	@Override
+	public void consumeContent(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+		ByteBuffer discard = ByteBuffer.allocate(1024);
+		while (decoder.read(discard) > 0)
+			discard.clear();
+	}
+
+	/**
+	 * Once we have received the request from the client, tell the {@code ResponseProducer} to reject it.
+	 */
+	@SuppressWarnings("RedundantThrows")
+	@Override
+	public void requestReceived(HttpRequest request) throws HttpException, IOException {
+		String id = (String) context.getAttribute("pokerface.txId");
+		Logger.warn("[client->server] " + id + " " + request.getRequestLine() + " rejected (" + reason + ")");
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_SERVICE_UNAVAILABLE, "Service Unavailable");
+		response.addHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+		response.addHeader("Retry-After", Integer.toString(retryAfter));
+		response.setEntity(new NStringEntity(reason, ContentType.DEFAULT_TEXT));
+		producer.setResponse(response, true);
+	}
+}
@@ -0,0 +1,990 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpMessage;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.message.BasicHttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * An in-memory cache of responses received from remote Targets (a "shared" cache in the terminology of RFC 7234).
+ * Only responses to GET requests which carry explicit freshness information ({@code Cache-Control: s-maxage / max-age}, or {@code Expires}) are stored,
+ * and only for as long as they remain fresh.  Fresh responses are served to GET and HEAD requests without contacting the Target.
+ * Responses that vary by request header ({@code Vary}) are stored as separate variants.
+ * An unsafe request (e.g. POST, PUT, DELETE) invalidates any response cached for the same uri.
+ * Response content is stored off-heap (in blocks of direct memory obtained from a {@code SlabAllocator}), only the metadata of each response lives on the heap.
+ * If a {@code DiskCacheTier} is supplied, entries evicted from memory are demoted to it (and are served from there until they expire or are evicted from disk).
+ * Keys are normalized uris, so that equivalent query strings share the same entry, and the variants of a uri are keyed by (normalized) request header values (see {@code CacheKeyBuilder}).
+ * If a {@code RequestCoalescer} is supplied, concurrent misses for the same key are collapsed into a single request to the Target.
+ * Stale responses are retained for as long as the Target permits them to be served ({@code stale-while-revalidate} / {@code stale-if-error}),
+ * and may be revalidated with a conditional request (a {@code 304 Not Modified} response simply extends the lifetime of the entry).
+ * The cache is bounded by the number of bytes it holds (off-heap content plus the estimated size of the metadata).
+ * Which entries are kept within that budget is decided by a {@code WTinyLfuPolicy}, so that a burst of one-off responses cannot flush the responses that are hit often.
+ * Hits are lock free: entries are held in a concurrent map, and hits are recorded in a {@code StripedReadBuffer} which is replayed to the policy in batches.
+ * Hits on the disk tier are lock free too, as it's index is a concurrent map and demotions are written (and segments flushed) by it's own background writer.
+ * Entries may be purged on demand by key, by key prefix (using a sorted index of the keys), or by surrogate tag (using an inverted index of the tags named by the {@code tagHeader} of each response).
+ * Purges take the same lock as stores and evictions, so they never block hits.
+ * If a {@code NegativeCache} is supplied, 404 / 410 responses that carry no explicit freshness information are stored for it's (short) time to live.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ResponseCache {
+	protected static final Logger Logger = LoggerFactory.getLogger(ResponseCache.class.getPackage().getName());
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param maxBytes      The maximum number of bytes of memory the cache may consume.
+	 * @param maxEntryBytes The largest response content that will be cached.
+	 * @param allocator     Source of the off-heap blocks which hold response content.
+	 * @param disk          If non-null, the tier to which entries evicted from memory are demoted.
+	 * @param coalescer     If non-null, used to collapse concurrent misses for the same response.
+	 * @param tagHeader     If non-null, the name of the response header which lists the surrogate tags (space and / or comma separated) of a response.
+	 * @param negative      If non-null, negative answers (404 / 410 responses, and paths that match no route) are remembered for it's time to live.
+	 */
+	public ResponseCache(long maxBytes, int maxEntryBytes, SlabAllocator allocator, DiskCacheTier disk, RequestCoalescer coalescer, String tagHeader, NegativeCache negative) {
+		this.maxBytes = maxBytes;
+		this.maxEntryBytes = maxEntryBytes;
+		this.allocator = allocator;
+		this.disk = disk;
+		this.coalescer = coalescer;
+		this.tagHeader = tagHeader;
+		this.negative = negative;
+		this.filling = new ConcurrentHashMap<>();
+		this.entries = new ConcurrentHashMap<>(1024);
+		this.evictionLock = new ReentrantLock();
+		this.keyIndex = new TreeSet<>();
+		this.tagIndex = new HashMap<>();
+		this.policy = new WTinyLfuPolicy(maxBytes, (int) Math.min(1 << 24, Math.max(1024, maxBytes / ExpectedEntryBytes)));
+		this.readBuffer = new StripedReadBuffer();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.stores = new LongAdder();
+		this.evictions = new LongAdder();
+		this.invalidations = new LongAdder();
+		this.staleHits = new LongAdder();
+		this.revalidations = new LongAdder();
+		this.purges = new LongAdder();
+		this.purged = new LongAdder();
+		this.negativeStores = new LongAdder();
+	}
+
+	private final long maxBytes;
+	private final int maxEntryBytes;
+	private final SlabAllocator allocator;
+	private final DiskCacheTier disk;
+	private final RequestCoalescer coalescer;
+	private final String tagHeader;
+	private final NegativeCache negative;
+	// Shared fills in progress (by primary key).
+	private final ConcurrentHashMap<String, Fill> filling;
+	private final ConcurrentHashMap<String, CachedResponse> entries;
+	// Guards all changes to 'entries', as well as the following.
+	private final ReentrantLock evictionLock;
+	private final CachePolicy policy;
+	private final TreeSet<String> keyIndex;
+	private final HashMap<String, Set<String>> tagIndex;
+	private long bytes;
+	private long offHeapBytes;
+	// Incremented by each purge, so that a response which was on it's way into the cache (or down to disk) when a purge began is not stored.
+	private volatile long generation;
+	private final StripedReadBuffer readBuffer;
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder stores;
+	private final LongAdder evictions;
+	private final LongAdder invalidations;
+	private final LongAdder staleHits;
+	private final LongAdder revalidations;
+	private final LongAdder purges;
+	private final LongAdder purged;
+	private final LongAdder negativeStores;
+
+	/**
+	 * The longest surrogate tag that will be indexed.
+	 */
+	private static final int MaxTagLength = 1024;
+
+	/**
+	 * The (rough) average number of bytes consumed by an entry, used to size the frequency sketch of the policy.
+	 */
+	private static final int ExpectedEntryBytes = 8192;
+
+	/**
+	 * Response status codes that are understood by this cache (and which have no special requirements of a cache).
+	 */
+	private static final int[] CacheableStatusCodes = {200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501};
+
+	/**
+	 * Parse the {@code Cache-Control} header(s) of a message into a map of lowercase directive names to their (possibly null) values.
+	 */
+	public static Map<String, String> ParseCacheControl(HttpMessage msg) {
+		Map<String, String> retVal = new HashMap<>();
+		for (Header hdr : msg.getHeaders("Cache-Control"))
+			for (HeaderElement elem : hdr.getElements())
+				retVal.put(elem.getName().toLowerCase(Locale.ROOT), elem.getValue());
+		return retVal;
+	}
+
+	/**
+	 * Parse a delta-seconds directive value, returning {@code defaultValue} if it is absent or invalid.
+	 */
+	private static long ParseSeconds(String value, long defaultValue) {
+		if (value == null)
+			return defaultValue;
+		try {
+			return Math.max(0, Long.parseLong(value.trim()));
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Parse an http date header, returning -1 if it is absent or invalid.
+	 */
+	private static long ParseDate(Header hdr) {
+		if (hdr == null)
+			return -1;
+		try {
+			return Utils.GetHTTPDateFormater().parse(hdr.getValue()).getTime();
+		} catch (ParseException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns true if the request permits it to be served by a cached (or coalesced) response.
+	 */
+	private static boolean AcceptsCached(HttpRequest request, Map<String, String> cc) {
+		return !(cc.containsKey("no-cache") || cc.containsKey("no-store") || ((!cc.containsKey("max-age")) && HasPragmaNoCache(request)));
+	}
+
+	public NegativeCache getNegativeCache() {
+		return negative;
+	}
+
+	public RequestCoalescer getCoalescer() {
+		return coalescer;
+	}
+
+	/**
+	 * Returns the key which identifies requests that may share a single response from the Target (or null if the request may not be coalesced).
+	 * The key is formed from the method, the normalized uri, and the values of any request headers the Target is already known to vary by.
+	 */
+	public String coalescingKey(HttpRequest request) {
+		String key = CacheKeyBuilder.PrimaryKey(request);
+		if ((key == null) || (!AcceptsCached(request, ParseCacheControl(request))))
+			return null;
+		String method = request.getRequestLine().getMethod().toUpperCase(Locale.ROOT);
+		CachedResponse marker = get(key);
+		if ((marker != null) && marker.isVaryMarker())
+			key = CacheKeyBuilder.VariantKey(key, marker.getVaryNames(), request);
+		return method + ' ' + key;
+	}
+
+	/**
+	 * Returns a fresh response to the specified request (or null if the cache cannot satisfy it).
+	 */
+	public HttpResponse lookup(HttpRequest request) {
+		return lookup(request, null);
+	}
+
+	/**
+	 * Returns a fresh response to the specified request (or null if the cache cannot satisfy it).
+	 * If a {@code revalidator} is supplied, a stale response that is within it's {@code stale-while-revalidate} window is also returned,
+	 * and the {@code revalidator} is invoked to refresh it in the background (unless a refresh of that entry is already in progress).
+	 * The {@code revalidator} receives an additional reference to the entry's content, which it must {@code release} once it is done.
+	 */
+	public HttpResponse lookup(HttpRequest request, Consumer<CachedResponse> revalidator) {
+		return lookup(CacheKeyBuilder.PrimaryKey(request), request, revalidator);
+	}
+
+	/**
+	 * Returns a fresh response generated earlier by a JavaScript endpoint for the specified request (or null if the cache cannot satisfy it).
+	 * Responses from endpoints are kept apart from responses from Targets (see {@code CacheKeyBuilder.EndpointKey}), so that a response from a Target is never served in place of the endpoint.
+	 */
+	public HttpResponse lookupEndpoint(HttpRequest request) {
+		return lookup(CacheKeyBuilder.EndpointKey(request), request, null);
+	}
+
+	private HttpResponse lookup(String key, HttpRequest request, Consumer<CachedResponse> revalidator) {
+		if (key == null)
+			return null;
+		Map<String, String> cc = ParseCacheControl(request);
+		if (!AcceptsCached(request, cc)) {
+			misses.increment();
+			return null;    // The client insists on a response from the Target.
+		}
+		long maxAge = ParseSeconds(cc.get("max-age"), -1);
+		long now = System.currentTimeMillis();
+		String entryKey = key;
+		CachedResponse entry = get(key);
+		if ((entry != null) && entry.isVaryMarker()) {
+			entryKey = CacheKeyBuilder.VariantKey(key, entry.getVaryNames(), request);
+			entry = get(entryKey);
+		}
+		HttpResponse retVal = null;
+		if ((entry != null) && entry.isFresh(now, maxAge))
+			retVal = entry.toHttpResponse(now);    // Null if the entry was evicted (and freed) since we retrieved it.
+		if (retVal == null) {
+			// The response may be on it's way from the Target right now.
+			Fill fill = filling.get(key);
+			if ((fill != null) && fill.matches(request))
+				retVal = fill.toHttpResponse(now);
+		}
+		if ((retVal == null) && (revalidator != null) && (entry != null) && (maxAge < 0) && entry.allowsStaleWhileRevalidate(now)) {
+			retVal = entry.toHttpResponse(now);
+			if (retVal != null) {
+				retVal.addHeader("Warning", StaleWarning);
+				staleHits.increment();
+				if (entry.beginRevalidation()) {
+					if (entry.retain())
+						revalidator.accept(entry);
+					else
+						entry.endRevalidation();
+				}
+			}
+		}
+		if (retVal == null) {
+			misses.increment();
+			if (entry == null)
+				recordRead(entryKey);    // Admission is judged by how often a response is requested, not just by how often it hits.
+			return null;
+		}
+		hits.increment();
+		return retVal;
+	}
+
+	/**
+	 * Warning (RFC 7234 section 5.5) added to a stale response that is served while it is revalidated.
+	 */
+	public static final String StaleWarning = "110 - \"Response is Stale\"";
+
+	/**
+	 * Warning (RFC 7234 section 5.5) added to a stale response that is served because the Target could not be reached (or returned an error).
+	 */
+	public static final String RevalidationFailedWarning = "111 - \"Revalidation Failed\"";
+
+	/**
+	 * Returns the (no longer fresh) response cached for the specified request, so that it may be revalidated, or served in place of an error.
+	 * The caller receives an additional reference to the entry's content, which it must {@code release} once it is done with the entry.
+	 *
+	 * @return The stale entry, or null if there is none (or the request does not permit a cached response).
+	 */
+	public CachedResponse getStale(HttpRequest request) {
+		String key = CacheKeyBuilder.PrimaryKey(request);
+		if ((key == null) || (!AcceptsCached(request, ParseCacheControl(request))))
+			return null;
+		CachedResponse entry = get(key);
+		if ((entry != null) && entry.isVaryMarker())
+			entry = get(CacheKeyBuilder.VariantKey(key, entry.getVaryNames(), request));
+		if ((entry == null) || (!entry.retain()))
+			return null;
+		return entry;
+	}
+
+	/**
+	 * Returns a stale response (suitable for sending to a client) from {@code stale}, if it's {@code stale-if-error} window permits it to be served in place of an error.
+	 *
+	 * @return The response, or null if the stale entry may not be served.
+	 */
+	public HttpResponse staleIfError(CachedResponse stale) {
+		long now = System.currentTimeMillis();
+		if ((stale == null) || (!stale.allowsStaleIfError(now)))
+			return null;
+		HttpResponse retVal = stale.toHttpResponse(now);
+		if (retVal == null)
+			return null;
+		retVal.addHeader("Warning", RevalidationFailedWarning);
+		staleHits.increment();
+		return retVal;
+	}
+
+	/**
+	 * The Target has confirmed (with a {@code 304 Not Modified} response to a conditional request) that a stale entry is still valid.
+	 * The headers of the 304 response are merged into those of the entry (RFC 7234 section 4.3.4), and the refreshed entry is stored (sharing the content of the stale entry).
+	 *
+	 * @param stale       An entry to which the caller holds a reference (see {@code getStale}).
+	 * @param notModified The 304 response received from the Target (as rewritten for the client, see {@code TargetResponseConsumer.Rewrite}).
+	 * @return The refreshed entry (or {@code stale} itself if the refreshed entry may not be stored).
+	 */
+	public CachedResponse revalidated(CachedResponse stale, HttpResponse notModified) {
+		revalidations.increment();
+		Set<String> updated = new HashSet<>();
+		for (Header hdr : notModified.getAllHeaders())
+			updated.add(hdr.getName().toLowerCase(Locale.US));
+		BasicHttpResponse merged = new BasicHttpResponse(stale.getStatusLine());
+		for (Header hdr : stale.getHeaders()) {
+			String name = hdr.getName().toLowerCase(Locale.US);
+			if ((!updated.contains(name)) && (!PerMessageHeaders.contains(name)))
+				merged.addHeader(hdr);
+		}
+		for (Header hdr : notModified.getAllHeaders())
+			if (!PerMessageHeaders.contains(hdr.getName().toLowerCase(Locale.US)))
+				merged.addHeader(hdr);
+		Map<String, String> cc = ParseCacheControl(merged);
+		if (cc.containsKey("no-store") || cc.containsKey("private") || cc.containsKey("no-cache"))
+			return stale;
+		long now = System.currentTimeMillis();
+		long date = ParseDate(merged.getFirstHeader("Date"));
+		if (date < 0)
+			date = now;
+		long freshness = Freshness(merged, cc, date);
+		long initialAge = InitialAge(merged, date, now);
+		if ((freshness <= 0) || (initialAge >= freshness) || (!stale.retain()))
+			return stale;
+		Header[] headers = merged.getAllHeaders();
+		CachedResponse retVal = new CachedResponse(stale.getKey(), stale.getStatusLine(), headers, stale.getContentType(), stale.getContentEncoding(), stale.getContent(), now, initialAge, freshness, tagsOf(headers));
+		put(retVal, generation, stale);    // The cache takes over the reference we just acquired (the entry is not stored if the stale entry was purged in the meantime).
+		return retVal;
+	}
+
+	/**
+	 * Determine the freshness lifetime (in seconds) of a response (RFC 7234 section 4.2.1), we do not apply heuristic freshness.
+	 *
+	 * @return The freshness lifetime, or -1 if the response carries no explicit freshness information.
+	 */
+	private static long Freshness(HttpResponse response, Map<String, String> cc, long date) {
+		long retVal = ParseSeconds(cc.get("s-maxage"), ParseSeconds(cc.get("max-age"), -1));
+		if (retVal < 0) {
+			long expires = ParseDate(response.getFirstHeader("Expires"));
+			if (expires >= 0)
+				retVal = Math.max(0, (expires - date) / 1000);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Determine the age (in seconds) of a response at the time it was received (RFC 7234 section 4.2.3).
+	 */
+	private static long InitialAge(HttpResponse response, long date, long now) {
+		Header age = response.getFirstHeader("Age");
+		return Math.max(Math.max(0, now - date) / 1000, ParseSeconds(age == null ? null : age.getValue(), 0));
+	}
+
+	private static boolean HasPragmaNoCache(HttpRequest request) {
+		for (Header hdr : request.getHeaders("Pragma"))
+			if (hdr.getValue().toLowerCase(Locale.ROOT).contains("no-cache"))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Retrieve an entry from memory, or failing that, from disk.
+	 */
+	private CachedResponse get(String key) {
+		CachedResponse retVal = entries.get(key);
+		if (retVal != null) {
+			recordRead(key);
+			return retVal;
+		}
+		return disk == null ? null : disk.get(key);
+	}
+
+	/**
+	 * Record a read of the specified key for the policy (without blocking, if the buffer is full and another thread is already draining it, the read is dropped).
+	 */
+	private void recordRead(String key) {
+		if ((!readBuffer.offer(key)) && evictionLock.tryLock()) {
+			try {
+				drainReads();
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Replay buffered hits to the policy (the caller must hold the 'evictionLock').
+	 */
+	private void drainReads() {
+		readBuffer.drainTo(policy::recordAccess);
+	}
+
+	/**
+	 * Remove any response cached for the uri of the specified (unsafe) request (whether it came from a Target or an endpoint).
+	 */
+	public void invalidate(HttpRequest request) {
+		String key = CacheKeyBuilder.NormalizeUri(request.getRequestLine().getUri());
+		String endpointKey = CacheKeyBuilder.EndpointPrefix + key;
+		List<String> keys = keyAndVariants(key);
+		keys.addAll(keyAndVariants(endpointKey));
+		if (remove(keys, false, d -> d.invalidate(key) + d.invalidate(endpointKey)) > 0)
+			invalidations.increment();
+	}
+
+	/**
+	 * Purge the response (and every variant of it) cached for the specified uri (whether it came from a Target or an endpoint), from memory and from disk.
+	 *
+	 * @return The number of entries purged.
+	 */
+	public int purge(String uri) {
+		String key = CacheKeyBuilder.NormalizeUri(uri);
+		String endpointKey = CacheKeyBuilder.EndpointPrefix + key;
+		List<String> keys = keyAndVariants(key);
+		keys.addAll(keyAndVariants(endpointKey));
+		return purged(remove(keys, true, d -> d.invalidate(key) + d.invalidate(endpointKey)));
+	}
+
+	/**
+	 * Purge every response whose (normalized) uri starts with {@code prefix} (whether it came from a Target or an endpoint), from memory and from disk.
+	 *
+	 * @return The number of entries purged.
+	 */
+	public int purgePrefix(String prefix) {
+		String endpointPrefix = CacheKeyBuilder.EndpointPrefix + prefix;
+		List<String> keys = new ArrayList<>();
+		evictionLock.lock();
+		try {
+			for (String p : new String[]{prefix, endpointPrefix})
+				for (String key : keyIndex.tailSet(p, true)) {
+					if (!key.startsWith(p))
+						break;
+					keys.add(key);
+				}
+		} finally {
+			evictionLock.unlock();
+		}
+		return purged(remove(keys, true, d -> d.invalidatePrefix(prefix) + d.invalidatePrefix(endpointPrefix)));
+	}
+
+	/**
+	 * Purge every response which carries the surrogate {@code tag}, from memory and from disk.
+	 *
+	 * @return The number of entries purged.
+	 */
+	public int purgeTag(String tag) {
+		List<String> keys;
+		evictionLock.lock();
+		try {
+			Set<String> tagged = tagIndex.get(tag);
+			keys = tagged == null ? new ArrayList<>() : new ArrayList<>(tagged);
+		} finally {
+			evictionLock.unlock();
+		}
+		return purged(remove(keys, true, d -> d.invalidateTag(tag)));
+	}
+
+	private int purged(int count) {
+		purges.increment();
+		purged.add(count);
+		return count;
+	}
+
+	/**
+	 * Returns the specified key, and the keys of every variant of it held in memory (which are keyed by the uri followed by a newline).
+	 */
+	private List<String> keyAndVariants(String key) {
+		List<String> retVal = new ArrayList<>();
+		retVal.add(key);
+		evictionLock.lock();
+		try {
+			retVal.addAll(keyIndex.subSet(key + '\n', key + (char) ('\n' + 1)));
+		} finally {
+			evictionLock.unlock();
+		}
+		return retVal;
+	}
+
+	/**
+	 * Remove the specified keys from memory, and then (via {@code fromDisk}) from the disk tier.
+	 *
+	 * @param keys     The keys to remove from memory (keys that are not present are ignored).
+	 * @param purge    True if this is a purge (so that any response already on it's way into the cache will not be stored).
+	 * @param fromDisk Removes the corresponding entries from the disk tier (if there is one), returning the number removed.
+	 * @return The total number of entries removed.
+	 */
+	private int remove(Collection<String> keys, boolean purge, ToIntFunction<DiskCacheTier> fromDisk) {
+		List<CachedResponse> removed = new ArrayList<>();
+		evictionLock.lock();
+		try {
+			if (purge)
+				generation++;
+			for (String key : keys) {
+				CachedResponse entry = entries.remove(key);
+				if (entry == null)
+					continue;
+				policy.remove(key);
+				removed(entry);
+				removed.add(entry);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+		for (CachedResponse entry : removed)
+			entry.release();
+		return removed.size() + (disk == null ? 0 : fromDisk.applyAsInt(disk));
+	}
+
+	/**
+	 * Returns the (de-duplicated) surrogate tags listed by the {@code tagHeader} of a response.
+	 */
+	private String[] tagsOf(Header[] headers) {
+		if (tagHeader == null)
+			return null;
+		Set<String> retVal = null;
+		for (Header hdr : headers) {
+			if (!hdr.getName().equalsIgnoreCase(tagHeader))
+				continue;
+			for (String tag : hdr.getValue().split("[\\s,]+")) {
+				if (tag.isEmpty() || (tag.length() > MaxTagLength))
+					continue;
+				if (retVal == null)
+					retVal = new LinkedHashSet<>();
+				retVal.add(tag);
+			}
+		}
+		return retVal == null ? null : retVal.toArray(new String[retVal.size()]);
+	}
+
+	/**
+	 * Store an entry, evicting entries as the policy sees fit to stay within budget (the policy may decline to admit the new entry, in which case it is evicted immediately).
+	 * The cache takes over the caller's reference to the entry (which is simply released if it is not stored).
+	 *
+	 * @param entry      The entry to store.
+	 * @param generation The value of 'generation' when the response was received (the entry is not stored if a purge has happened since).
+	 * @param replaces   If non-null, the entry is only stored if this (stale) entry has not been removed from the cache in the meantime.
+	 */
+	private void put(CachedResponse entry, long generation, CachedResponse replaces) {
+		List<CachedResponse> evicted = null;
+		long evictedGeneration;
+		evictionLock.lock();
+		try {
+			if ((generation != this.generation) || ((replaces != null) && (!isCurrent(replaces)))) {
+				entry.release();
+				return;
+			}
+			evictedGeneration = this.generation;
+			drainReads();
+			CachedResponse prior = entries.put(entry.getKey(), entry);
+			if (prior != null) {
+				removed(prior);
+				prior.release();
+			}
+			added(entry);
+			for (String key : policy.add(entry.getKey(), entry.getWeight() + entry.getOffHeapBytes())) {
+				CachedResponse victim = entries.remove(key);
+				if (victim == null)
+					continue;
+				removed(victim);
+				if (evicted == null)
+					evicted = new ArrayList<>();
+				evicted.add(victim);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+		if (evicted != null)
+			for (CachedResponse e : evicted)
+				evicted(e, evictedGeneration);
+	}
+
+	/**
+	 * Returns true if {@code entry} is still the entry cached under it's key (in memory, or if it is not in memory, on disk).
+	 * The caller must hold the 'evictionLock'.
+	 */
+	private boolean isCurrent(CachedResponse entry) {
+		CachedResponse current = entries.get(entry.getKey());
+		if (current != null)
+			return current == entry;
+		return (disk != null) && disk.contains(entry.getKey());
+	}
+
+	/**
+	 * Account for (and index) an entry that was added to 'entries' (the caller must hold the 'evictionLock').
+	 */
+	private void added(CachedResponse entry) {
+		bytes += entry.getWeight();
+		offHeapBytes += entry.getOffHeapBytes();
+		keyIndex.add(entry.getKey());
+		for (String tag : entry.getTags())
+			tagIndex.computeIfAbsent(tag, t -> new HashSet<>()).add(entry.getKey());
+	}
+
+	/**
+	 * Account for (and un-index) an entry that was removed from 'entries' (the caller must hold the 'evictionLock', and is responsible for releasing the entry).
+	 */
+	private void removed(CachedResponse entry) {
+		bytes -= entry.getWeight();
+		offHeapBytes -= entry.getOffHeapBytes();
+		keyIndex.remove(entry.getKey());
+		for (String tag : entry.getTags()) {
+			Set<String> keys = tagIndex.get(tag);
+			if ((keys != null) && keys.remove(entry.getKey()) && keys.isEmpty())
+				tagIndex.remove(tag);
+		}
+	}
+
+	/**
+	 * Hand an entry that was evicted from memory to the disk tier to be demoted in the background (if there is a disk tier), or release it.
+	 * This is called without holding the 'evictionLock', and never waits for the disk.
+	 *
+	 * @param generation The value of 'generation' when the entry was evicted (the entry is not demoted if a purge has happened since).
+	 */
+	private void evicted(CachedResponse entry, long generation) {
+		evictions.increment();
+		if (disk == null) {
+			entry.release();
+			return;
+		}
+		// A purge removes entries from memory before it removes them from disk, and the disk's writer checks this while holding the lock the purge takes, so a purged entry cannot reach the disk.
+		BooleanSupplier wanted = () -> generation == this.generation;
+		// A variant on disk is unreachable (e.g. after a restart) unless it's vary marker is there too.
+		int nl = entry.getKey().indexOf('\n');
+		if (nl > 0) {
+			CachedResponse marker = entries.get(entry.getKey().substring(0, nl));
+			if ((marker != null) && marker.isVaryMarker())
+				disk.demoteMarker(marker, entry, wanted);
+		}
+		disk.demote(entry, wanted);
+	}
+
+	/**
+	 * Evict the policy's choice of victim (to make room for content being received).
+	 *
+	 * @return The number of off-heap bytes held by the victim (or -1 if the cache is empty).
+	 */
+	private long evictVictim() {
+		CachedResponse victim;
+		long evictedGeneration;
+		evictionLock.lock();
+		try {
+			evictedGeneration = generation;
+			String key = policy.evict();
+			if (key == null)
+				return -1;
+			victim = entries.remove(key);
+			if (victim != null)
+				removed(victim);
+		} finally {
+			evictionLock.unlock();
+		}
+		if (victim == null)
+			return 0;
+		long retVal = victim.getOffHeapBytes();
+		evicted(victim, evictedGeneration);
+		return retVal;
+	}
+
+	/**
+	 * Examine a response received from a Target, and if it may be stored, begin collecting it's content.
+	 *
+	 * @param request   The request that was sent to the Target.
+	 * @param response  The response exactly as it was received from the Target.
+	 * @param rewritten The response as it will be sent to the client (which is what will be cached).
+	 * @return An object that will collect the content and store the response once it is complete (or null if the response will not be cached).
+	 */
+	public Fill beginFill(HttpRequest request, HttpResponse response, HttpResponse rewritten) {
+		return beginFill(request, response, rewritten, CacheKeyBuilder.Default);
+	}
+
+	/**
+	 * @param keys Determines which request headers (and cookies) select between the responses to a uri (see {@code TargetRoute.getCacheKeys}).
+	 * @see #beginFill(HttpRequest, HttpResponse, HttpResponse)
+	 */
+	public Fill beginFill(HttpRequest request, HttpResponse response, HttpResponse rewritten, CacheKeyBuilder keys) {
+		return beginFill(CacheKeyBuilder.PrimaryKey(request), request, response, rewritten, keys);
+	}
+
+	/**
+	 * Examine a response generated by a JavaScript endpoint, and if it may be stored, begin collecting it's content.
+	 *
+	 * @param request  The request the endpoint responded to.
+	 * @param response The response generated by the endpoint.
+	 * @return An object that will collect the content and store the response once it is complete (or null if the response will not be cached).
+	 * @see #lookupEndpoint(HttpRequest)
+	 */
+	public Fill beginEndpointFill(HttpRequest request, HttpResponse response) {
+		return beginFill(CacheKeyBuilder.EndpointKey(request), request, response, response, CacheKeyBuilder.Default);
+	}
+
+	private Fill beginFill(String key, HttpRequest request, HttpResponse response, HttpResponse rewritten, CacheKeyBuilder keys) {
+		if ((key == null) || (!request.getRequestLine().getMethod().equals("GET")))
+			return null;
+		if (Arrays.binarySearch(CacheableStatusCodes, response.getStatusLine().getStatusCode()) < 0)
+			return null;
+		Map<String, String> reqCC = ParseCacheControl(request);
+		if (reqCC.containsKey("no-store"))
+			return null;
+		Map<String, String> cc = ParseCacheControl(response);
+		if (cc.containsKey("no-store") || cc.containsKey("private") || cc.containsKey("no-cache"))
+			return null;
+		if (request.containsHeader("Authorization") && (!(cc.containsKey("public") || cc.containsKey("s-maxage") || cc.containsKey("must-revalidate"))))
+			return null;
+		if (response.containsHeader("Set-Cookie"))
+			return null;
+		long now = System.currentTimeMillis();
+		long date = ParseDate(response.getFirstHeader("Date"));
+		if (date < 0)
+			date = now;
+		long freshness = Freshness(response, cc, date);
+		int status = response.getStatusLine().getStatusCode();
+		boolean negativeAnswer = (freshness < 0) && (negative != null) && ((status == HttpStatus.SC_NOT_FOUND) || (status == HttpStatus.SC_GONE));
+		if (negativeAnswer)
+			freshness = negative.getTtl();    // The Target did not say how long this "not found" holds, so assume it holds briefly.
+		if (freshness <= 0)
+			return null;
+		long initialAge = InitialAge(response, date, now);
+		if (initialAge >= freshness)
+			return null;
+		// Determine which request headers (if any) select this response.
+		String[] varyNames = keys.varyNames(response);
+		if (varyNames == null)
+			return null;
+		if (varyNames.length == 0)
+			varyNames = null;
+		HttpEntity entity = rewritten.getEntity();
+		long contentLength = entity == null ? 0 : entity.getContentLength();
+		if (contentLength > maxEntryBytes)
+			return null;
+		ArrayList<Header> headers = new ArrayList<>();
+		for (Header hdr : rewritten.getAllHeaders())
+			if (!PerMessageHeaders.contains(hdr.getName().toLowerCase(Locale.US)))
+				headers.add(hdr);
+		Fill retVal = new Fill(key, varyNames, CacheKeyBuilder.VariantKey(key, varyNames == null ? new String[0] : varyNames, request), rewritten, headers, entity, (int) contentLength, now, initialAge, freshness);
+		if (retVal.isShared())
+			filling.put(key, retVal);
+		if (negativeAnswer)
+			negativeStores.increment();
+		return retVal;
+	}
+
+	/**
+	 * Headers that describe a single transfer of the response rather than the response itself (these are regenerated each time a cached response is sent).
+	 */
+	private static final Set<String> PerMessageHeaders = new HashSet<>(Arrays.asList("content-length", "transfer-encoding", "connection", "keep-alive", "proxy-connection", "age", "date"));
+
+	/**
+	 * Collects the content of a cacheable response (directly into off-heap blocks) as it is received from the Target, and stores the response once it is complete.
+	 * If the length of the response is known in advance, the fill is "shared"; requests for the same response are served from it while it is still being filled
+	 * (each streaming the content at it's own pace as it arrives).
+	 * NOTE: The methods of this class are invoked by a single (reactor) thread at a time.
+	 */
+	public final class Fill {
+		Fill(String key, String[] varyNames, String variantKey, HttpResponse response, List<Header> headers, HttpEntity entity, int contentLength, long responseTime, long initialAge, long freshness) {
+			this.key = key;
+			this.varyNames = varyNames;
+			this.expectedLength = contentLength;
+			this.content = new CachedContent(allocator, contentLength);
+			Header[] hdrs = headers.toArray(new Header[headers.size()]);
+			this.entry = new CachedResponse(variantKey, response.getStatusLine(), hdrs, entity == null ? null : entity.getContentType(), entity == null ? null : entity.getContentEncoding(), content, responseTime, initialAge, freshness, tagsOf(hdrs));
+			this.generation = ResponseCache.this.generation;
+		}
+
+		private final String key;
+		private final String[] varyNames;
+		private final int expectedLength;
+		private final CachedContent content;
+		private final CachedResponse entry;
+		private final long generation;
+		private ByteBuffer block;
+		private int length;
+		private boolean finished;
+
+		/**
+		 * Returns true if other requests may be served from this fill before it is complete.
+		 */
+		public boolean isShared() {
+			return expectedLength >= 0;
+		}
+
+		/**
+		 * Returns true if the specified request would be answered by the response being filled.
+		 */
+		boolean matches(HttpRequest request) {
+			return entry.getKey().equals(CacheKeyBuilder.VariantKey(key, varyNames == null ? new String[0] : varyNames, request));
+		}
+
+		/**
+		 * Returns a response that will stream the content of this fill (or null if the fill has failed).
+		 */
+		HttpResponse toHttpResponse(long now) {
+			if (content.isFailed())
+				return null;
+			return entry.toHttpResponse(now);
+		}
+
+		/**
+		 * Append content received from the Target (the position of {@code src} is not changed).
+		 */
+		public void append(ByteBuffer src) {
+			if (finished)
+				return;
+			int n = src.remaining();
+			if ((length + n > maxEntryBytes) || ((expectedLength >= 0) && (length + n > expectedLength))) {
+				abandon();
+				return;
+			}
+			ByteBuffer from = src.duplicate();
+			while (from.hasRemaining()) {
+				if ((block == null) || (!block.hasRemaining())) {
+					if (!nextBlock()) {
+						abandon();
+						return;
+					}
+				}
+				int count = Math.min(from.remaining(), block.remaining());
+				ByteBuffer part = from.duplicate();
+				part.limit(part.position() + count);
+				block.put(part);
+				from.position(from.position() + count);
+			}
+			length += n;
+			content.publish(length);
+		}
+
+		/**
+		 * Obtain another block from the allocator (evicting older entries if necessary).
+		 * A victim's blocks are not free until it is no longer being served, and (if there is a disk tier) until it has been written to disk.
+		 * So once a block's worth of victims has been evicted without making room, we pass on this response rather than keep evicting (which could empty the cache).
+		 */
+		private boolean nextBlock() {
+			int id;
+			long evicted = 0;
+			while ((id = allocator.allocate()) < 0) {
+				if (evicted >= allocator.getBlockSize())
+					return false;
+				long victimBytes = evictVictim();
+				if (victimBytes < 0)
+					return false;    // Everything else is pinned by clients being served, so we will just have to pass on this one.
+				evicted += victimBytes;
+			}
+			block = content.addBlock(id);
+			return true;
+		}
+
+		/**
+		 * The response has been fully received, so store it.
+		 *
+		 * @return false if the response was not stored (because the fill was already abandoned, or is incomplete).
+		 */
+		public boolean complete() {
+			if (finished)
+				return false;
+			if ((expectedLength >= 0) && (length != expectedLength)) {
+				abandon();
+				return false;
+			}
+			finished = true;
+			block = null;
+			content.markComplete();
+			if (varyNames != null)
+				put(new CachedResponse(key, varyNames), generation, null);
+			put(entry, generation, null);    // The cache takes over our reference to the content.
+			filling.remove(key, this);
+			stores.increment();
+			return true;
+		}
+
+		/**
+		 * The response will not be stored (e.g. because it failed, or is too large).
+		 * Any request still streaming from this fill will fail.
+		 */
+		public void abandon() {
+			if (finished)
+				return;
+			finished = true;
+			block = null;
+			filling.remove(key, this);
+			content.markFailed();
+			entry.release();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the cache's size and hit / miss counts.
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> retVal = new LinkedHashMap<>();
+		evictionLock.lock();
+		try {
+			retVal.put("entries", entries.size());
+			retVal.put("heapBytes", bytes);
+			retVal.put("offHeapBytes", offHeapBytes);
+			retVal.put("tags", tagIndex.size());
+			retVal.put("policy", policy.getStatistics());
+		} finally {
+			evictionLock.unlock();
+		}
+		retVal.put("maxBytes", maxBytes);
+		retVal.put("filling", filling.size());
+		retVal.put("offHeap", allocator.getStatistics());
+		if (disk != null)
+			retVal.put("disk", disk.getStatistics());
+		if (coalescer != null)
+			retVal.put("coalescing", coalescer.getStatistics());
+		if (negative != null) {
+			Map<String, Object> stats = negative.getStatistics();
+			stats.put("stores", negativeStores.sum());
+			retVal.put("negative", stats);
+		}
+		retVal.put("hits", hits.sum());
+		retVal.put("misses", misses.sum());
+		retVal.put("stores", stores.sum());
+		retVal.put("evictions", evictions.sum());
+		retVal.put("invalidations", invalidations.sum());
+		retVal.put("staleHits", staleHits.sum());
+		retVal.put("revalidations", revalidations.sum());
+		retVal.put("purges", purges.sum());
+		retVal.put("purged", purged.sum());
+		return retVal;
+	}
+
+	/**
+	 * Flush any disk tier (called when the proxy stops).
+	 */
+	public void close() {
+		if (disk != null)
+			disk.close();
+	}
+}
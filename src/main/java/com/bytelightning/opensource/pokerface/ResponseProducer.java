@@ -76,6 +76,8 @@ public class ResponseProducer implements HttpAsyncResponseProducer {
 	protected volatile HttpAsyncContentProducer contentProducer;
 	protected volatile HttpResponse response;
 	protected volatile HttpAsyncExchange trigger;
+	// A content producer that was superseded by the entity of a status response (it still needs to be closed).
+	private volatile HttpAsyncContentProducer supersededContentProducer;
 
 	/**
 	 * Alternate constructor (content to be produced from the supplied IOControlled buffer.
@@ -106,6 +108,8 @@ public class ResponseProducer implements HttpAsyncResponseProducer {
 	public void close() throws IOException {
 		if (contentProducer != null)
 			contentProducer.close();
+		if (supersededContentProducer != null)
+			supersededContentProducer.close();
 	}
 
 	/**
@@ -158,7 +162,8 @@ public class ResponseProducer implements HttpAsyncResponseProducer {
 	}
 
 	/**
-	 * Send back the specified response to the client
+	 * Send back the specified response to the client.
+	 * The response content is always the {@code message}, even if this producer was constructed with a content producer of it's own (which is typically still empty).
 	 */
 	public void setResponse(int statusCode, String message) {
 		if (message == null)
@@ -166,7 +171,7 @@ public class ResponseProducer implements HttpAsyncResponseProducer {
 		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_0, statusCode, message);
 		response.addHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
 		response.setEntity(new NStringEntity(message, ContentType.DEFAULT_TEXT));
-		if (setResponse(response)) {
+		if (setResponse(response, true)) {
 			String id = (String) context.getAttribute("pokerface.txId");
 			Logger.trace("[client<-" + role + "] " + id + " response triggered [" + message + "]");
 		}
@@ -177,9 +182,21 @@ public class ResponseProducer implements HttpAsyncResponseProducer {
 	 * If the {@code RequestHandler.handle} method has already armed us with an {@code HttpAsyncExchange} response trigger, then invoke it's {@code submitResponse} method.
 	 * Otherwise keep track of the response until our {@code setTrigger} method is invoked (at which time the trigger's {@code submitResponse} method will be called and this response will be sent back to the client).
 	 */
-	public synchronized boolean setResponse(HttpResponse response) {
+	public boolean setResponse(HttpResponse response) {
+		return setResponse(response, false);
+	}
+
+	/**
+	 * @see #setResponse(HttpResponse)
+	 * @param useEntity If true, the entity of the {@code response} supersedes any content producer this object was constructed with.
+	 */
+	protected synchronized boolean setResponse(HttpResponse response, boolean useEntity) {
 		assert response != null;
 		if (this.response == null) {
+			if (useEntity && (contentProducer != null)) {
+				supersededContentProducer = contentProducer;
+				contentProducer = null;
+			}
 			if (contentProducer == null) {
 				HttpEntity entity = response.getEntity();
 				if (entity != null) {
@@ -0,0 +1,91 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits retries to a fraction of the requests made on a route, so that retries can absorb sporadic failures without multiplying the load on Targets that are genuinely struggling.
+ * Every request deposits {@code ratio} of a token, and every retry withdraws a whole token.
+ * The balance is capped at (and starts at) {@code burst} tokens so that a quiet route can still retry a few failures.
+ * NOTE: Tokens are kept in thousandths so that the balance may be maintained with a single {@code AtomicLong}.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class RetryBudget {
+	private static final long Scale = 1000;
+
+	/**
+	 * Primary constructor.
+	 *
+	 * @param ratio The number of retries permitted per request (e.g. 0.2 permits one retry for every five requests).
+	 * @param burst The maximum number of retries that may be performed in a row without any intervening requests.
+	 */
+	public RetryBudget(double ratio, int burst) {
+		this.deposit = Math.max(0, Math.round(ratio * Scale));
+		this.maxBalance = Math.max(0, burst) * Scale;
+		this.balance = new AtomicLong(maxBalance);
+	}
+
+	private final long deposit;
+	private final long maxBalance;
+	private final AtomicLong balance;
+
+	/**
+	 * Credit the budget for a request (this should be invoked once for every request, not for every attempt).
+	 */
+	public void requestStarted() {
+		if (deposit == 0)
+			return;
+		long current;
+		do {
+			current = balance.get();
+			if (current >= maxBalance)
+				return;
+		} while (!balance.compareAndSet(current, Math.min(maxBalance, current + deposit)));
+	}
+
+	/**
+	 * Withdraw a token for a retry.
+	 *
+	 * @return false if the budget is exhausted (in which case the retry must not be performed).
+	 */
+	public boolean tryRetry() {
+		long current;
+		do {
+			current = balance.get();
+			if (current < Scale)
+				return false;
+		} while (!balance.compareAndSet(current, current - Scale));
+		return true;
+	}
+
+	/**
+	 * Returns the number of whole retries currently available.
+	 */
+	public long getAvailable() {
+		return balance.get() / Scale;
+	}
+}
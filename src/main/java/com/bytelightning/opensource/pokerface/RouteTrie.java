@@ -0,0 +1,231 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable lookup structure that maps a (lowercase) request path to the value of the best matching configured pattern.
+ * Patterns may begin or end with a wildcard '*' (e.g. "/foo/*" or "*.jpg").
+ * Prefix patterns are compiled into a character trie and suffix patterns are compiled into a second trie of their reversed characters,
+ * so that a lookup visits each character of the path at most twice regardless of how many patterns have been configured.
+ * Precedence is identical to the original linear scan of the pattern map:
+ * An exact match always wins, otherwise the longest matching pattern wins, and a trailing wildcard breaks ties between patterns of the same length.
+ * NOTE: Lookups do not allocate and are safe to perform concurrently from any number of threads.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class RouteTrie<T> {
+
+	/**
+	 * Compile the supplied mappings into a {@code RouteTrie}.
+	 *
+	 * @param patternMapping The mapping of patterns to values.  The iteration order of this map is significant as it is used to break ties in the same way the original linear scan did.
+	 */
+	public static <T> RouteTrie<T> Compile(Map<String, T> patternMapping) {
+		BuildNode prefixRoot = new BuildNode();
+		BuildNode suffixRoot = new BuildNode();
+		int order = 0;
+		for (Map.Entry<String, T> entry : patternMapping.entrySet()) {
+			String pattern = entry.getKey();
+			Match<T> match = new Match<>(entry.getValue(), pattern.length(), pattern.endsWith("*"), order++);
+			// Every pattern is also an exact match for a path that is literally equal to it.
+			prefixRoot.descend(pattern, false).exact = match;
+			if (pattern.endsWith("*"))
+				prefixRoot.descend(pattern.substring(0, pattern.length() - 1), false).wildcard = match;
+			if (pattern.startsWith("*"))
+				suffixRoot.descend(pattern.substring(1), true).wildcard = match;
+		}
+		return new RouteTrie<>(prefixRoot.freeze(), suffixRoot.freeze(), patternMapping.size());
+	}
+
+	/**
+	 * Private constructor, please use {@link #Compile(Map)}.
+	 */
+	private RouteTrie(Node<T> prefixRoot, Node<T> suffixRoot, int size) {
+		this.prefixRoot = prefixRoot;
+		this.suffixRoot = suffixRoot;
+		this.size = size;
+	}
+
+	private final Node<T> prefixRoot;
+	private final Node<T> suffixRoot;
+	private final int size;
+
+	/**
+	 * Returns the number of patterns compiled into this trie.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the value of the best matching pattern for the supplied path (or {@code null} if no pattern matches).
+	 */
+	public T lookup(CharSequence path) {
+		return lookup(path, 0, path.length());
+	}
+
+	/**
+	 * Returns the value of the best matching pattern for the characters of {@code path} between {@code start} (inclusive) and {@code end} (exclusive).
+	 *
+	 * @return The value, or {@code null} if no pattern matches.
+	 */
+	public T lookup(CharSequence path, int start, int end) {
+		Match<T> best = null;
+		// Walk forward through the prefix trie, remembering every wildcard we pass along the way.
+		Node<T> node = prefixRoot;
+		int i = start;
+		while (true) {
+			if (node.wildcard != null && node.wildcard.isBetterThan(best))
+				best = node.wildcard;
+			if (i >= end)
+				break;
+			node = node.child(path.charAt(i++));
+			if (node == null)
+				break;
+		}
+		// An exact match trumps everything else.
+		if ((node != null) && (i >= end) && (node.exact != null))
+			return node.exact.value;
+		// Walk backward through the suffix trie.
+		node = suffixRoot;
+		i = end;
+		while (true) {
+			if (node.wildcard != null && node.wildcard.isBetterThan(best))
+				best = node.wildcard;
+			if (i <= start)
+				break;
+			node = node.child(path.charAt(--i));
+			if (node == null)
+				break;
+		}
+		return best == null ? null : best.value;
+	}
+
+	/**
+	 * A single compiled pattern along with the information needed to rank it against other matching patterns.
+	 */
+	private static final class Match<T> {
+		Match(T value, int length, boolean trailingWildcard, int order) {
+			this.value = value;
+			this.length = length;
+			this.trailingWildcard = trailingWildcard;
+			this.order = order;
+		}
+
+		final T value;
+		final int length;
+		final boolean trailingWildcard;
+		final int order;
+
+		/**
+		 * Is this pattern a closer match than {@code other}?
+		 * Longer patterns are better.  For patterns of equal length one with a trailing wildcard is better,
+		 * and amongst those the last one declared wins (if none have a trailing wildcard, the first one declared wins).
+		 */
+		boolean isBetterThan(Match<T> other) {
+			if (other == null)
+				return true;
+			if (length != other.length)
+				return length > other.length;
+			if (trailingWildcard != other.trailingWildcard)
+				return trailingWildcard;
+			if (trailingWildcard)
+				return order > other.order;
+			return order < other.order;
+		}
+	}
+
+	/**
+	 * Immutable trie node whose children are kept in parallel sorted arrays so that they can be binary searched without boxing.
+	 */
+	private static final class Node<T> {
+		Node(char[] keys, Node<T>[] children, Match<T> exact, Match<T> wildcard) {
+			this.keys = keys;
+			this.children = children;
+			this.exact = exact;
+			this.wildcard = wildcard;
+		}
+
+		private final char[] keys;
+		private final Node<T>[] children;
+		final Match<T> exact;
+		final Match<T> wildcard;
+
+		Node<T> child(char c) {
+			int lo = 0;
+			int hi = keys.length - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				char k = keys[mid];
+				if (k < c)
+					lo = mid + 1;
+				else if (k > c)
+					hi = mid - 1;
+				else
+					return children[mid];
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Mutable node used only while compiling.
+	 */
+	private static final class BuildNode {
+		private final TreeMap<Character, BuildNode> children = new TreeMap<>();
+		Match<?> exact;
+		Match<?> wildcard;
+
+		BuildNode descend(String key, boolean reverse) {
+			BuildNode node = this;
+			int len = key.length();
+			for (int i = 0; i < len; i++) {
+				char c = key.charAt(reverse ? len - 1 - i : i);
+				node = node.children.computeIfAbsent(c, k -> new BuildNode());
+			}
+			return node;
+		}
+
+		<T> Node<T> freeze() {
+			char[] keys = new char[children.size()];
+			@SuppressWarnings("unchecked")
+			Node<T>[] nodes = (Node<T>[]) new Node<?>[children.size()];
+			int i = 0;
+			for (Map.Entry<Character, BuildNode> entry : children.entrySet()) {
+				keys[i] = entry.getKey();
+				nodes[i++] = entry.getValue().freeze();
+			}
+			// Every match in a trie was built from the same mapping, so it's value is a T.
+			@SuppressWarnings("unchecked")
+			Match<T> exactMatch = (Match<T>) exact;
+			@SuppressWarnings("unchecked")
+			Match<T> wildcardMatch = (Match<T>) wildcard;
+			return new Node<>(keys, nodes, exactMatch, wildcardMatch);
+		}
+	}
+}
@@ -127,4 +127,26 @@ public interface ScriptHelper {
 	 * @param millisecondsSinceEpoch URL to be (possibly) converted and then returned
 	 */
 	String formatDate(long millisecondsSinceEpoch);
+
+	/**
+	 * Purge the response (and every variant of it) cached for the specified uri.
+	 *
+	 * @param url The uri (typically just the path and query) of the cached response.
+	 * @return The number of cached responses purged (zero if caching is not configured).
+	 */
+	int purgeCachedUrl(String url);
+
+	/**
+	 * Purge every cached response whose uri starts with the specified prefix (e.g. "/images/").
+	 *
+	 * @return The number of cached responses purged (zero if caching is not configured).
+	 */
+	int purgeCachedPrefix(String prefix);
+
+	/**
+	 * Purge every cached response which was tagged (e.g. by a {@code Surrogate-Key} header) with the specified surrogate tag.
+	 *
+	 * @return The number of cached responses purged (zero if caching is not configured).
+	 */
+	int purgeCachedTag(String tag);
 }
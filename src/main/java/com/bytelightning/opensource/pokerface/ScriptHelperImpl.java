@@ -26,7 +26,6 @@ package com.bytelightning.opensource.pokerface;
  SOFTWARE.
  */
 
-import org.apache.commons.pool2.ObjectPool;
 import org.apache.http.Header;
 import org.apache.http.HttpInetConnection;
 import org.apache.http.HttpRequest;
@@ -55,14 +54,17 @@ public class ScriptHelperImpl implements ScriptHelper, Closeable {
 	 * @param request    Request as it was received from the client
 	 * @param context    The context of this http transaction
 	 * @param bufferPool A pool from which {@code ByteBuffer}s can be obtained.
+	 * @param cache      The cache of responses from configured Targets (may be null).
 	 */
-	public ScriptHelperImpl(HttpRequest request, HttpContext context, ObjectPool<ByteBuffer> bufferPool) {
+	public ScriptHelperImpl(HttpRequest request, HttpContext context, BufferPool bufferPool, ResponseCache cache) {
 		this.request = request;
 		this.context = context;
 		this.bufferPool = bufferPool;
+		this.cache = cache;
 	}
 
-	private final ObjectPool<ByteBuffer> bufferPool;
+	private final BufferPool bufferPool;
+	private final ResponseCache cache;
 	private final HttpRequest request;
 	private final HttpContext context;
 
@@ -72,13 +74,8 @@ public class ScriptHelperImpl implements ScriptHelper, Closeable {
 	@Override
 	public void close() {
 		if (borrowedBuffers != null) {
-			for (ByteBuffer buffer : borrowedBuffers) {
-				try {
-					bufferPool.returnObject(buffer);
-				} catch (Exception e) {
-					ScriptResponseProducer.Logger.error("Unable to return ByteBuffer to pool", e);
-				}
-			}
+			for (ByteBuffer buffer : borrowedBuffers)
+				bufferPool.release(buffer);
 			borrowedBuffers.clear();
 			borrowedBuffers = null;
 		}
@@ -86,15 +83,16 @@ public class ScriptHelperImpl implements ScriptHelper, Closeable {
 
 	@Override
 	public ByteBuffer createBuffer() {
-		ByteBuffer buffer;
-		try {
-			buffer = bufferPool.borrowObject();
-			if (borrowedBuffers == null)
-				borrowedBuffers = new ArrayList<>();
-			borrowedBuffers.add(buffer);
-		} catch (Exception e) {
-			buffer = ByteBuffer.allocateDirect(1024 * 1024);
+		// Scripts have no way to ask for more room, so give them the largest size class.
+		ByteBuffer buffer = bufferPool.acquire(bufferPool.getMaxBufferSize());
+		if (buffer == null) {
+			// The direct memory budget is exhausted, so fall back to the (garbage collected) heap.
+			ScriptResponseProducer.Logger.debug("Buffer budget exhausted, allocating a heap buffer");
+			return ByteBuffer.allocate(bufferPool.getMaxBufferSize());
 		}
+		if (borrowedBuffers == null)
+			borrowedBuffers = new ArrayList<>();
+		borrowedBuffers.add(buffer);
 		return buffer;
 	}
 
@@ -411,6 +409,21 @@ public class ScriptHelperImpl implements ScriptHelper, Closeable {
 		return Utils.GetHTTPDateFormater().format(new Date(millisecondsSinceEpoch));
 	}
 
+	@Override
+	public int purgeCachedUrl(String url) {
+		return cache == null ? 0 : cache.purge(url);
+	}
+
+	@Override
+	public int purgeCachedPrefix(String prefix) {
+		return cache == null ? 0 : cache.purgePrefix(prefix);
+	}
+
+	@Override
+	public int purgeCachedTag(String tag) {
+		return cache == null ? 0 : cache.purgeTag(tag);
+	}
+
 	/**
 	 * Determine if a URI string has a {@code scheme} component.
 	 */
@@ -36,10 +36,13 @@ import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.nio.entity.EntityAsyncContentProducer;
 import org.apache.http.nio.protocol.HttpAsyncExchange;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -48,6 +51,8 @@ import java.util.Locale;
 /**
  * This {@code ResponseProducer} specialization is responsible for invoking the JavaScript endpoint to produce a response,
  * translate that response (if need be) into an asynchronous form, and then send that data back to the client.
+ * If the response permits it (e.g. the endpoint returned a {@code maxAge} or {@code cacheControl} member, or the response carries a {@code Cache-Control} header),
+ * it is also stored in the {@code ResponseCache}, so that later requests for the same uri (and {@code Vary} headers) are served without invoking the endpoint at all.
  */
 @SuppressWarnings("restriction")
 public class ScriptResponseProducer extends ResponseProducer {
@@ -60,15 +65,18 @@ public class ScriptResponseProducer extends ResponseProducer {
 	 * @param request  The request that was returned earlier by the endpoint's {@code inspectRequest} method.
 	 * @param context  The context of this request / response transaction.
 	 * @param buffer   The buffer from which the response's content data will be asynchronously read and sent back to the client.
+	 * @param cache    If non-null, cacheable responses generated by the endpoint are stored here.
 	 */
-	public ScriptResponseProducer(ScriptObjectMirror endpoint, HttpRequest request, HttpContext context, BufferIOController buffer) {
+	public ScriptResponseProducer(ScriptObjectMirror endpoint, HttpRequest request, HttpContext context, BufferIOController buffer, ResponseCache cache) {
 		super("endpoint", context);
 		this.endpoint = endpoint;
 		this.request = request;
+		this.cache = cache;
 	}
 
 	private final ScriptObjectMirror endpoint;
 	private final HttpRequest request;
+	private final ResponseCache cache;
 	private volatile ScriptObjectMirror completionCallback;
 
 	/**
@@ -85,6 +93,7 @@ public class ScriptResponseProducer extends ResponseProducer {
 			result = endpoint.callMember("generateResponse", request, context);
 			if (result instanceof HttpResponse) {
 				this.setResponse((HttpResponse) result);
+				cacheResponse(response);
 				return response;
 			}
 			som = (ScriptObjectMirror) result;
@@ -135,6 +144,26 @@ public class ScriptResponseProducer extends ResponseProducer {
 				}
 			}
 		}
+		// Interpret the caching directives supplied by the endpoint (these simply become headers of the response).
+		obj = som.getMember("cacheControl");
+		if ((obj != null) && (!ScriptObjectMirror.isUndefined(obj)))
+			response.setHeader("Cache-Control", obj.toString());
+		else {
+			obj = som.getMember("maxAge");
+			if ((obj instanceof Number) && (!response.containsHeader("Cache-Control")))
+				response.setHeader("Cache-Control", "max-age=" + ((Number) obj).longValue());
+			else if ((obj != null) && (!ScriptObjectMirror.isUndefined(obj)) && (!(obj instanceof Number)))
+				Logger.error("The endpoint at " + request.getRequestLine().getUri() + " returned an illegal maxAge [class=" + obj.getClass().getName() + "]");
+		}
+		obj = som.getMember("vary");
+		if ((obj != null) && (!ScriptObjectMirror.isUndefined(obj))) {
+			if ((obj instanceof ScriptObjectMirror) && ((ScriptObjectMirror) obj).isArray()) {
+				for (Object name : ((ScriptObjectMirror) obj).values())
+					response.addHeader("Vary", name.toString());
+			}
+			else
+				response.addHeader("Vary", obj.toString());
+		}
 		// Interpret the content type of the response data.
 		ContentType ct = ContentType.DEFAULT_TEXT;
 		if (response.getFirstHeader("Content-Type") != null)
@@ -169,12 +198,37 @@ public class ScriptResponseProducer extends ResponseProducer {
 
 		// Let our superclass know what the endpoint has provided.
 		this.setResponse(response);
+		cacheResponse(response);
 
 		String id = (String) context.getAttribute("pokerface.txId");
 		Logger.info("[client<-endpoint] " + id + " " + response.getStatusLine());
 		return response;
 	}
 
+	/**
+	 * Store the response in the cache (if there is one, and the response permits it).
+	 * Only content that is fully known up front can be stored, content produced by a JavaScript function is streamed to the client and is never cached.
+	 */
+	private void cacheResponse(HttpResponse response) {
+		if ((cache == null) || (response != this.response))
+			return;
+		HttpEntity entity = response.getEntity();
+		if ((entity != null) && ((!entity.isRepeatable()) || (entity.getContentLength() < 0)))
+			return;
+		ResponseCache.Fill fill = cache.beginEndpointFill(request, response);
+		if (fill == null)
+			return;
+		try {
+			if (entity != null)
+				fill.append(ByteBuffer.wrap(EntityUtils.toByteArray(entity)));
+			fill.complete();
+			Logger.debug("[client<-endpoint] " + context.getAttribute("pokerface.txId") + " response cached");
+		} catch (IOException | RuntimeException ex) {
+			Logger.warn("Unable to cache the response of the endpoint at " + request.getRequestLine().getUri(), ex);
+			fill.abandon();
+		}
+	}
+
 	/**
 	 * Helper to convert an object returned as an Http Header value from a JavaScript endpoint and convert it into a usable String value for an {@code HttpResponse}
 	 * Specifically Date objects (java or ecma) are converted to a GMT string, and all other objects are converted by invoking their {@code toString} method.
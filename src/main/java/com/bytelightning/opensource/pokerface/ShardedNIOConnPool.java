@@ -0,0 +1,595 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.HttpHost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.pool.BasicNIOConnPool;
+import org.apache.http.impl.nio.pool.BasicNIOPoolEntry;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.NHttpConnection;
+import org.apache.http.nio.pool.NIOConnFactory;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.pool.ConnPool;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A connection pool for remote Targets which spreads it's leases across several independent {@code BasicNIOConnPool}s (shards),
+ * so that leases and releases do not all contend for a single pool wide lock (even when most of the traffic goes to a single hot route).
+ * Each thread prefers it's own shard (so reactor threads rarely contend with each other), and falls back to the other shards when it's own has no room for the route.
+ * A shard is chosen using lease counts this class keeps for itself (without taking any shard's lock), so a lease only ever locks the one shard that satisfies it.
+ * Both the total limit and every per route limit are divided between the shards (each shard's share of {@code maxTotal} is rounded up, so the sum of all connections may slightly exceed it).
+ * A connection is always released back to the shard that created it.
+ * This class also records how long leases wait for a connection, validates pooled connections before handing them out again,
+ * and (optionally) limits the total lifetime of every connection.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ShardedNIOConnPool implements ConnPool<HttpHost, BasicNIOPoolEntry>, ConnPoolControl<HttpHost> {
+
+	/**
+	 * Primary constructor.
+	 *
+	 * @param ioReactor      The reactor that will establish connections for all the shards.
+	 * @param connFactory    Creates connections for all the shards.
+	 * @param connectTimeout Connect timeout in milliseconds (0 for no timeout).
+	 * @param shardCount     The number of independent pools to spread routes across (values less than 1 are treated as 1).
+	 */
+	public ShardedNIOConnPool(ConnectingIOReactor ioReactor, NIOConnFactory<HttpHost, NHttpClientConnection> connFactory, int connectTimeout, int shardCount) {
+		shards = new Shard[Math.max(1, shardCount)];
+		for (int i = 0; i < shards.length; i++)
+			shards[i] = new Shard(ioReactor, connFactory, connectTimeout);
+		maxTotal = shards[0].getMaxTotal() * shards.length;
+		defaultMaxPerRoute = shards[0].getDefaultMaxPerRoute();
+		maxPerRoute = new ConcurrentHashMap<>();
+		leases = new LongAdder();
+		leaseFailures = new LongAdder();
+		leaseWaitNanos = new LongAdder();
+		maxLeaseWaitNanos = new AtomicLong();
+		staleConnections = new LongAdder();
+	}
+
+	private final Shard[] shards;
+	private volatile int maxTotal;
+	private volatile int defaultMaxPerRoute;
+	private final ConcurrentMap<HttpHost, Integer> maxPerRoute;
+	private final LongAdder leases;
+	private final LongAdder leaseFailures;
+	private final LongAdder leaseWaitNanos;
+	private final AtomicLong maxLeaseWaitNanos;
+	private final LongAdder staleConnections;
+	private volatile long timeToLive;
+
+	/**
+	 * The maximum number of stale connections a single lease will discard before handing out whatever connection it gets next.
+	 */
+	private static final int MaxStaleDiscards = 3;
+
+	/**
+	 * A {@code BasicNIOConnPool} that can close the idle connections of a single route,
+	 * along with lock free counts of the leases it has been asked for (but which have not yet been released), and of it's idle connections, for each route.
+	 */
+	protected static final class Shard extends BasicNIOConnPool {
+		Shard(ConnectingIOReactor ioReactor, NIOConnFactory<HttpHost, NHttpClientConnection> connFactory, int connectTimeout) {
+			super(ioReactor, connFactory, connectTimeout);
+			outstanding = new AtomicInteger();
+			loads = new ConcurrentHashMap<>();
+		}
+
+		final AtomicInteger outstanding;
+		final ConcurrentHashMap<HttpHost, RouteLoad> loads;
+
+		/**
+		 * Returns the counts for the specified route (creating them if need be).
+		 */
+		RouteLoad load(HttpHost route) {
+			RouteLoad retVal = loads.get(route);
+			if (retVal == null) {
+				retVal = new RouteLoad();
+				RouteLoad existing = loads.putIfAbsent(route, retVal);
+				if (existing != null)
+					retVal = existing;
+			}
+			return retVal;
+		}
+
+		/**
+		 * Bring the idle connection counts back in line with the shard (whose housekeeping closes idle connections without telling us).
+		 * The counts of a route that has no connections at all are discarded.
+		 * This takes the shard's lock, so it should only be called by the housekeeping methods of the pool.
+		 */
+		void resync() {
+			for (Map.Entry<HttpHost, RouteLoad> e : loads.entrySet()) {
+				PoolStats stats = getStats(e.getKey());
+				RouteLoad load = e.getValue();
+				load.idle.set(stats.getAvailable());
+				if ((stats.getLeased() + stats.getPending() + stats.getAvailable() == 0) && (load.outstanding.get() <= 0))
+					loads.remove(e.getKey(), load);
+			}
+		}
+
+		private static final AtomicLong Counter = new AtomicLong();
+
+		@Override
+		protected BasicNIOPoolEntry createEntry(HttpHost host, NHttpClientConnection conn) {
+			return new PooledEntry(Long.toString(Counter.getAndIncrement()), host, conn, this);
+		}
+
+		/**
+		 * A new connection already has it's configured socket timeout, so only restore the timeout that was saved when a reused entry was released.
+		 */
+		@Override
+		protected void onLease(BasicNIOPoolEntry entry) {
+			if (IsReused(entry))
+				super.onLease(entry);
+		}
+
+		/**
+		 * Close (and remove) every idle connection to the specified route.
+		 * Once the route has no connections at all, the shard discards it's per route bookkeeping as well.
+		 */
+		void closeIdle(HttpHost route) {
+			enumAvailable(entry -> {
+				if (route.equals(entry.getRoute()))
+					entry.close();
+			});
+		}
+	}
+
+	/**
+	 * The number of leases for a route a shard has been asked for (which have not yet been released, failed, or been cancelled), and the number of it's idle connections to the route.
+	 * These are only used to choose a shard (each shard enforces it's own limits), so the idle count is allowed to briefly lag behind the shard's housekeeping.
+	 */
+	protected static final class RouteLoad {
+		final AtomicInteger outstanding = new AtomicInteger();
+		final AtomicInteger idle = new AtomicInteger();
+	}
+
+	/**
+	 * A pool entry which remembers the shard that created it, whether it has ever been released back to the pool for reuse,
+	 * and the route counts of the lease that currently holds it.
+	 */
+	protected static final class PooledEntry extends BasicNIOPoolEntry {
+		PooledEntry(String id, HttpHost route, NHttpClientConnection conn, Shard shard) {
+			super(id, route, conn);
+			this.shard = shard;
+		}
+
+		private final Shard shard;
+		private volatile boolean reused;
+		private volatile RouteLoad load;
+	}
+
+	/**
+	 * Returns the shard which created (and must be returned) the specified entry.
+	 */
+	protected static Shard ShardOf(BasicNIOPoolEntry entry) {
+		return ((PooledEntry) entry).shard;
+	}
+
+	/**
+	 * Returns the portion of a route's {@code max} allotted to the shard at {@code index}.
+	 * The remainder of an uneven split goes to the shards following one chosen by the route's hash (so that routes with small limits do not all crowd into the first few shards).
+	 * This may be zero if {@code max} is less than the number of shards.
+	 */
+	private int share(HttpHost route, int max, int index) {
+		int h = route.hashCode();
+		h ^= (h >>> 16);    // HttpHost hashes mostly differ in their low (port) bits.
+		int offset = (index - (h & 0x7fffffff) % shards.length + shards.length) % shards.length;
+		return (max / shards.length) + (offset < (max % shards.length) ? 1 : 0);
+	}
+
+	/**
+	 * Returns the limit each shard enforces for {@code max} (the largest share of it that any one shard may be allotted).
+	 * The exact division of a route's limit is enforced by {@link #select(HttpHost)}, the shard's own limit is simply a backstop.
+	 */
+	private int perShard(int max) {
+		return Math.max(1, (max + shards.length - 1) / shards.length);
+	}
+
+	/**
+	 * Returns the shard which should satisfy a lease for the specified {@code route} made by the current thread.
+	 * The current thread's own shard is preferred, followed by the next shard (in order) which has an idle connection to the route, or room (within both it's share of the route's limit and it's total limit) to open a new one.
+	 * If every shard is at it's limit, the lease will wait on the shard with the fewest leases waiting for the route.
+	 * Only the lock free lease counts are consulted, so no shard's lock is taken.
+	 */
+	protected Shard select(HttpHost route) {
+		if (shards.length == 1)
+			return shards[0];
+		int max = getMaxPerRoute(route);
+		int shardMax = perShard(maxTotal);
+		int start = (int) (Thread.currentThread().getId() % shards.length);
+		Shard retVal = null;
+		int fewestWaiting = Integer.MAX_VALUE;
+		for (int i = 0; i < shards.length; i++) {
+			int index = (start + i) % shards.length;
+			int limit = share(route, max, index);
+			if (limit <= 0)
+				continue;   // This shard has no share of the route's connections.
+			Shard shard = shards[index];
+			RouteLoad load = shard.loads.get(route);
+			int outstanding = load == null ? 0 : load.outstanding.get();
+			if ((load != null) && (load.idle.get() > 0))
+				return shard;
+			if ((outstanding < limit) && (shard.outstanding.get() < shardMax))
+				return shard;
+			if (outstanding - limit < fewestWaiting) {
+				fewestWaiting = outstanding - limit;
+				retVal = shard;
+			}
+		}
+		return retVal != null ? retVal : shards[start];
+	}
+
+	/**
+	 * Returns the number of shards.
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Returns the maximum lifetime (in milliseconds) of a pooled connection (0 means connections may live forever).
+	 */
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * Limit the total lifetime of every pooled connection (regardless of how busy it is), so that connections are periodically re-established
+	 * (and re-resolved / re-balanced by any load balancer in front of the remote Target).
+	 * A connection that has outlived this limit is closed when it is next released, or by {@link #closeExpired()}.
+	 *
+	 * @param ttl Maximum lifetime in milliseconds (0 or less for no limit).
+	 */
+	public void setTimeToLive(long ttl) {
+		timeToLive = Math.max(0, ttl);
+	}
+
+	/**
+	 * Returns true if the specified entry has been released back to the pool at least once (as opposed to having been created for this lease).
+	 */
+	protected static boolean IsReused(BasicNIOPoolEntry entry) {
+		return (entry instanceof PooledEntry) && ((PooledEntry) entry).reused;
+	}
+
+	/**
+	 * Returns true if the specified pooled connection can no longer be used to send a request
+	 * (e.g. the remote Target closed it while it sat idle in the pool, or it has outlived the configured time to live).
+	 */
+	protected boolean isStale(BasicNIOPoolEntry entry) {
+		NHttpClientConnection conn = entry.getConnection();
+		if ((conn == null) || (!conn.isOpen()) || conn.isStale() || (conn.getStatus() != NHttpConnection.ACTIVE))
+			return true;
+		return entry.isExpired(System.currentTimeMillis());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * The lease is performed by the shard chosen by {@link #select(HttpHost)}, and the time spent waiting for it is recorded.
+	 */
+	@Override
+	public Future<BasicNIOPoolEntry> lease(HttpHost route, Object state, FutureCallback<BasicNIOPoolEntry> callback) {
+		return new LeaseTimer(route, state, callback).lease(select(route));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * The entry is returned to the shard it was leased from.
+	 * A reusable entry is marked as updated (so that {@link #closeIdle(long, TimeUnit)} measures idle time from now, rather than from when the connection was created),
+	 * it is marked as reused (so that it will be validated before it is handed out again), and if a time to live has been configured, the entry's expiry is set to the end of it's lifetime (or it is closed if that has already passed).
+	 * NOTE: A newly created entry must not be released from within it's lease callback (the shard only records the lease after the callback returns).
+	 */
+	@Override
+	public void release(BasicNIOPoolEntry entry, boolean reusable) {
+		if (reusable) {
+			long ttl = timeToLive;
+			long remaining = ttl > 0 ? entry.getCreated() + ttl - System.currentTimeMillis() : 0;
+			if ((ttl > 0) && (remaining <= 0))
+				reusable = false;
+			else
+				entry.updateExpiry(remaining, TimeUnit.MILLISECONDS);
+			if (reusable && (entry instanceof PooledEntry))
+				((PooledEntry) entry).reused = true;
+		}
+		Returned(entry, reusable);
+		ShardOf(entry).release(entry, reusable);
+	}
+
+	/**
+	 * Account for an entry that is about to be released back to it's shard (by the lease that held it).
+	 * This must happen first, as the shard may hand the entry straight to a waiting lease.
+	 */
+	private static void Returned(BasicNIOPoolEntry entry, boolean reusable) {
+		PooledEntry pooled = (PooledEntry) entry;
+		RouteLoad load = pooled.load;
+		if (load == null)
+			return;
+		pooled.load = null;
+		ShardOf(entry).outstanding.decrementAndGet();
+		load.outstanding.decrementAndGet();
+		if (reusable)
+			load.idle.incrementAndGet();
+	}
+
+	/**
+	 * Validates the leased connection, and records the time taken to satisfy the lease, before passing the outcome on to the original callback.
+	 * A stale pooled connection is discarded and the lease is transparently retried (a bounded number of times).
+	 * Only reused connections are validated, as a newly created one cannot be released from within this callback, and has only just been connected anyway.
+	 */
+	private final class LeaseTimer implements FutureCallback<BasicNIOPoolEntry> {
+		LeaseTimer(HttpHost route, Object state, FutureCallback<BasicNIOPoolEntry> callback) {
+			this.route = route;
+			this.state = state;
+			this.callback = callback;
+			this.startNanos = System.nanoTime();
+		}
+
+		private final HttpHost route;
+		private final Object state;
+		private final FutureCallback<BasicNIOPoolEntry> callback;
+		private final long startNanos;
+		private int discards;
+		private volatile Shard shard;
+		private volatile RouteLoad load;
+
+		/**
+		 * Ask the specified shard for a connection (counting the lease against it until the connection is released, or the lease fails).
+		 */
+		Future<BasicNIOPoolEntry> lease(Shard shard) {
+			this.shard = shard;
+			this.load = shard.load(route);
+			shard.outstanding.incrementAndGet();
+			load.outstanding.incrementAndGet();
+			try {
+				return shard.lease(route, state, this);
+			} catch (RuntimeException ex) {
+				unsatisfied();
+				throw ex;
+			}
+		}
+
+		/**
+		 * The lease will not be satisfied by the shard it was made on.
+		 */
+		private void unsatisfied() {
+			shard.outstanding.decrementAndGet();
+			load.outstanding.decrementAndGet();
+		}
+
+		private void record(boolean success) {
+			long waited = System.nanoTime() - startNanos;
+			if (success)
+				leases.increment();
+			else
+				leaseFailures.increment();
+			leaseWaitNanos.add(waited);
+			long max;
+			do {
+				max = maxLeaseWaitNanos.get();
+			} while ((waited > max) && (!maxLeaseWaitNanos.compareAndSet(max, waited)));
+		}
+
+		@Override
+		public void completed(BasicNIOPoolEntry result) {
+			// The lease now belongs to the entry (until it is released).
+			((PooledEntry) result).load = load;
+			if (IsReused(result)) {
+				RouteLoad l = load;
+				if (l.idle.decrementAndGet() < 0)
+					l.idle.incrementAndGet();   // The shard's housekeeping closed idle connections we had not yet heard about.
+			}
+			if ((discards < MaxStaleDiscards) && IsReused(result) && isStale(result)) {
+				discards++;
+				staleConnections.increment();
+				result.close();
+				Returned(result, false);
+				ShardOf(result).release(result, false);
+				try {
+					lease(select(route));
+					return;
+				} catch (RuntimeException ex) {
+					record(false);
+					if (callback != null)
+						callback.failed(ex);
+					return;
+				}
+			}
+			record(true);
+			if (callback != null)
+				callback.completed(result);
+		}
+
+		@Override
+		public void failed(Exception ex) {
+			unsatisfied();
+			record(false);
+			if (callback != null)
+				callback.failed(ex);
+		}
+
+		@Override
+		public void cancelled() {
+			unsatisfied();
+			record(false);
+			if (callback != null)
+				callback.cancelled();
+		}
+	}
+
+	/**
+	 * Recompute each shard's share of the total and default per route limits.
+	 */
+	private void applyLimits() {
+		for (Shard shard : shards) {
+			shard.setMaxTotal(perShard(maxTotal));
+			shard.setDefaultMaxPerRoute(perShard(defaultMaxPerRoute));
+		}
+	}
+
+	@Override
+	public void setMaxTotal(int max) {
+		maxTotal = max;
+		applyLimits();
+	}
+
+	@Override
+	public int getMaxTotal() {
+		return maxTotal;
+	}
+
+	@Override
+	public void setDefaultMaxPerRoute(int max) {
+		defaultMaxPerRoute = max;
+		applyLimits();
+	}
+
+	@Override
+	public int getDefaultMaxPerRoute() {
+		return defaultMaxPerRoute;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * The limit is divided between the shards.
+	 */
+	@Override
+	public void setMaxPerRoute(HttpHost route, int max) {
+		maxPerRoute.put(route, max);
+		for (Shard shard : shards)
+			shard.setMaxPerRoute(route, perShard(max));
+	}
+
+	@Override
+	public int getMaxPerRoute(HttpHost route) {
+		Integer retVal = maxPerRoute.get(route);
+		return retVal != null ? retVal : defaultMaxPerRoute;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * The returned statistics are the sum of all the shards' statistics (so the {@code max} may slightly exceed {@link #getMaxTotal()}).
+	 */
+	@Override
+	public PoolStats getTotalStats() {
+		int leased = 0, pending = 0, available = 0, max = 0;
+		for (Shard shard : shards) {
+			PoolStats s = shard.getTotalStats();
+			leased += s.getLeased();
+			pending += s.getPending();
+			available += s.getAvailable();
+			max += s.getMax();
+		}
+		return new PoolStats(leased, pending, available, max);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * The returned statistics are the sum of all the shards' statistics for the route.
+	 */
+	@Override
+	public PoolStats getStats(HttpHost route) {
+		int leased = 0, pending = 0, available = 0;
+		for (Shard shard : shards) {
+			PoolStats s = shard.getStats(route);
+			leased += s.getLeased();
+			pending += s.getPending();
+			available += s.getAvailable();
+		}
+		return new PoolStats(leased, pending, available, getMaxPerRoute(route));
+	}
+
+	/**
+	 * Close connections that have been idle for longer than {@code idleTime}.
+	 */
+	public void closeIdle(long idleTime, TimeUnit timeUnit) {
+		for (Shard shard : shards) {
+			shard.closeIdle(idleTime, timeUnit);
+			shard.resync();
+		}
+	}
+
+	/**
+	 * Close all of the idle connections to the specified route (e.g. because it will not be used again).
+	 * Connections to the route that are currently leased are unaffected (and will be closed by {@link #closeIdle(long, TimeUnit)} once they have been released and sat idle).
+	 */
+	public void closeRoute(HttpHost route) {
+		for (Shard shard : shards) {
+			shard.closeIdle(route);
+			shard.resync();
+		}
+	}
+
+	/**
+	 * Close connections that have outlived their expiry time (see {@link #setTimeToLive(long)}).
+	 */
+	public void closeExpired() {
+		for (Shard shard : shards) {
+			shard.closeExpired();
+			shard.resync();
+		}
+	}
+
+	/**
+	 * Shut down every shard, closing all of their connections.
+	 * NOTE: Like {@code BasicNIOConnPool}, this also shuts down the (shared) reactor.
+	 */
+	public void shutdown(long waitMs) throws IOException {
+		for (Shard shard : shards)
+			shard.shutdown(waitMs);
+	}
+
+	/**
+	 * Returns a snapshot of the pool's connection counts and lease wait times.
+	 */
+	public Map<String, Object> getStatistics() {
+		PoolStats total = getTotalStats();
+		Map<String, Object> retVal = new LinkedHashMap<>();
+		retVal.put("shards", shards.length);
+		retVal.put("leased", total.getLeased());
+		retVal.put("pending", total.getPending());
+		retVal.put("available", total.getAvailable());
+		long count = leases.sum();
+		long failures = leaseFailures.sum();
+		retVal.put("leases", count);
+		retVal.put("leaseFailures", failures);
+		retVal.put("staleConnections", staleConnections.sum());
+		retVal.put("meanLeaseWaitMillis", (count + failures) == 0 ? 0.0 : leaseWaitNanos.sum() / 1e6 / (count + failures));
+		retVal.put("maxLeaseWaitMillis", maxLeaseWaitNanos.get() / 1e6);
+		return retVal;
+	}
+}
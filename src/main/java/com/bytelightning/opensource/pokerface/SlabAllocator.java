@@ -0,0 +1,126 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Carves large direct (off-heap) {@code ByteBuffer} "slabs" into fixed size blocks, and hands those blocks out by (integer) id.
+ * Slabs are allocated lazily (up to a fixed budget) and are never returned to the system; freed blocks are simply reused.
+ * Only the slabs and a free list of ints live on the heap, so the amount of memory a caller stores in these blocks does not affect garbage collection.
+ * Allocating and freeing blocks is synchronized, but viewing a block is lock free (the list of slabs only ever grows, so it is published as a copy-on-append array).
+ */
+@SuppressWarnings("WeakerAccess")
+public class SlabAllocator {
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param maxBytes  The maximum number of bytes of direct memory this allocator may reserve.
+	 * @param slabSize  The size of each direct buffer allocated from the system.
+	 * @param blockSize The size of each block handed out (this will be reduced to {@code slabSize} if larger).
+	 */
+	public SlabAllocator(long maxBytes, int slabSize, int blockSize) {
+		this.blockSize = Math.max(1, Math.min(blockSize, slabSize));
+		this.blocksPerSlab = slabSize / this.blockSize;
+		this.slabSize = this.blocksPerSlab * this.blockSize;
+		this.maxSlabs = (int) Math.max(1, Math.min(Integer.MAX_VALUE / this.blocksPerSlab, maxBytes / this.slabSize));
+		this.slabs = new ByteBuffer[0];
+		this.freeBlocks = new int[this.blocksPerSlab];
+	}
+
+	private final int blockSize;
+	private final int blocksPerSlab;
+	private final int slabSize;
+	private final int maxSlabs;
+	// Only replaced (with a longer copy) while holding 'this'.
+	private volatile ByteBuffer[] slabs;
+	// The following are guarded by 'this'.
+	private int[] freeBlocks;
+	private int freeCount;
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Returns the id of a free block, or -1 if every block is in use and no more slabs may be reserved.
+	 */
+	public synchronized int allocate() {
+		if (freeCount == 0) {
+			ByteBuffer[] current = slabs;
+			if (current.length >= maxSlabs)
+				return -1;
+			int first = current.length * blocksPerSlab;
+			ByteBuffer[] grown = Arrays.copyOf(current, current.length + 1);
+			grown[current.length] = ByteBuffer.allocateDirect(slabSize);
+			slabs = grown;    // Published before any of it's blocks are handed out.
+			if (freeBlocks.length < grown.length * blocksPerSlab)
+				freeBlocks = Arrays.copyOf(freeBlocks, Math.min(maxSlabs, grown.length * 2) * blocksPerSlab);
+			// Push in reverse so that blocks are handed out in address order.
+			for (int id = first + blocksPerSlab - 1; id >= first; id--)
+				freeBlocks[freeCount++] = id;
+		}
+		return freeBlocks[--freeCount];
+	}
+
+	/**
+	 * Return a block (previously obtained from {@code allocate}) to this allocator.
+	 */
+	public synchronized void free(int id) {
+		freeBlocks[freeCount++] = id;
+	}
+
+	/**
+	 * Returns a new buffer (with it's own position and limit) that views the specified block.
+	 * The returned buffer shares the block's memory (no copy is made), and is positioned at the beginning of the block, with a limit of {@code length} bytes.
+	 * This does not take the allocator's lock.
+	 */
+	public ByteBuffer view(int id, int length) {
+		ByteBuffer retVal = slabs[id / blocksPerSlab].duplicate();
+		int offset = (id % blocksPerSlab) * blockSize;
+		retVal.limit(offset + Math.min(length, blockSize));
+		retVal.position(offset);
+		return retVal.slice();
+	}
+
+	/**
+	 * Returns a snapshot of how much direct memory this allocator has reserved, and how much of it is in use.
+	 */
+	public synchronized Map<String, Object> getStatistics() {
+		Map<String, Object> retVal = new LinkedHashMap<>();
+		long reserved = (long) slabs.length * slabSize;
+		retVal.put("blockSize", blockSize);
+		retVal.put("slabs", slabs.length);
+		retVal.put("reservedBytes", reserved);
+		retVal.put("usedBytes", reserved - (long) freeCount * blockSize);
+		retVal.put("maxBytes", (long) maxSlabs * slabSize);
+		return retVal;
+	}
+}
@@ -0,0 +1,99 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A lossy buffer of the keys hit by readers, so that a cache's (single threaded) {@code CachePolicy} can be told about reads in batches rather than under a lock on every hit.
+ * The buffer is striped by thread (so reactor threads rarely contend), and each stripe is a small ring.
+ * Recording a read never blocks: if the stripe is full (or another thread won the race for the slot) the read is simply dropped, which only slightly reduces the accuracy of the policy.
+ */
+@SuppressWarnings("WeakerAccess")
+public class StripedReadBuffer {
+	private static final int StripeSize = 16;
+	private static final int StripeMask = StripeSize - 1;
+
+	/**
+	 * Primary constructor
+	 */
+	public StripedReadBuffer() {
+		int count = Integer.highestOneBit(Math.min(64, 4 * Runtime.getRuntime().availableProcessors()) - 1) << 1;
+		this.stripes = new Stripe[count];
+		for (int i = 0; i < count; i++)
+			stripes[i] = new Stripe();
+		this.stripeMask = count - 1;
+	}
+
+	private final Stripe[] stripes;
+	private final int stripeMask;
+
+	/**
+	 * A single producer (mostly) / single consumer ring of keys.
+	 */
+	private static final class Stripe {
+		final AtomicLong readCount = new AtomicLong();
+		final AtomicLong writeCount = new AtomicLong();
+		final AtomicReferenceArray<String> slots = new AtomicReferenceArray<>(StripeSize);
+	}
+
+	/**
+	 * Record a read of the specified key.
+	 *
+	 * @return false if the stripe for this thread is full (and should be drained).
+	 */
+	public boolean offer(String key) {
+		long id = Thread.currentThread().getId();
+		Stripe s = stripes[(int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & stripeMask];
+		long tail = s.writeCount.get();
+		if (tail - s.readCount.get() >= StripeSize)
+			return false;
+		if (s.writeCount.compareAndSet(tail, tail + 1))
+			s.slots.lazySet((int) (tail & StripeMask), key);
+		return true;
+	}
+
+	/**
+	 * Hand every buffered key to the {@code consumer} (the caller must ensure only one thread drains at a time).
+	 */
+	public void drainTo(Consumer<String> consumer) {
+		for (Stripe s : stripes) {
+			long head = s.readCount.get();
+			long tail = s.writeCount.get();
+			for (; head < tail; head++) {
+				int index = (int) (head & StripeMask);
+				String key = s.slots.get(index);
+				if (key == null)
+					break;    // The writer has claimed the slot but not yet filled it, pick it up next time.
+				s.slots.lazySet(index, null);
+				consumer.accept(key);
+			}
+			s.readCount.lazySet(head);
+		}
+	}
+}
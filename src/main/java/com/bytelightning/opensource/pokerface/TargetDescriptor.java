@@ -39,27 +39,55 @@ public final class TargetDescriptor {
 	/**
 	 * Primary constructor.
 	 *
-	 * @param target             The remote Target server FQDN
+	 * @param target             The remote Target server
 	 * @param targetPath         The path to a resource 'root' on the {@code target} (which would typically be an empty string "", but is not required to be so).
 	 * @param prefixDiscardCount How many prefix characters of the incoming request uri *path* should be removed before appending the remaining to the {@code target + targetPath}.
+	 * @param weight             The relative share of traffic this Target should receive when it is one of several members of a route (must be greater than zero).
 	 */
-	public TargetDescriptor(HttpHost target, String targetPath, int prefixDiscardCount) {
+	public TargetDescriptor(TargetHost target, String targetPath, int prefixDiscardCount, int weight) {
+		if (weight < 1)
+			throw new IllegalArgumentException("Target weight must be greater than zero");
 		this.target = target;
 		this.targetPath = targetPath;
 		this.prefixDiscardCount = prefixDiscardCount;
+		this.weight = weight;
 	}
 
-	private final HttpHost target;
+	/**
+	 * Convenience constructor for a Target with a weight of 1.
+	 *
+	 * @see #TargetDescriptor(TargetHost, String, int, int)
+	 */
+	public TargetDescriptor(TargetHost target, String targetPath, int prefixDiscardCount) {
+		this(target, targetPath, prefixDiscardCount, 1);
+	}
+
+	private final TargetHost target;
 	private final String targetPath;
 	private final int prefixDiscardCount;
+	private final int weight;
 
 	/**
 	 * Returns the remote Target server FQDN
 	 */
 	public HttpHost getTarget() {
+		return target.getHttpHost();
+	}
+
+	/**
+	 * Returns the (shared) runtime state of the remote Target server.
+	 */
+	public TargetHost getTargetHost() {
 		return target;
 	}
 
+	/**
+	 * Returns the relative share of traffic this Target should receive when it is one of several members of a route.
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
 	/**
 	 * Returns the path to a resource 'root' on the {@code target} (which would typically be an empty string "", but is not required to be so).
 	 */
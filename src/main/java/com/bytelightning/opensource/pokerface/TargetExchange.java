@@ -0,0 +1,466 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.nio.pool.BasicNIOPoolEntry;
+import org.apache.http.nio.protocol.HttpAsyncRequester;
+import org.apache.http.pool.ConnPool;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coordinates the attempt(s) made to obtain a response from a remote Target on behalf of a single client request.
+ * The first attempt goes to the Target chosen by the {@code RequestForTargetConsumer}.
+ * If an attempt fails before any response has been received, an idempotent request may be retried (preferably on a different member of the route),
+ * provided the route's retry limit and {@code RetryBudget} allow it, and the request content (if any) is still retained by the request buffer for replay.
+ * If the route has a {@code HedgePolicy}, a read-only request which has not received response headers within the route's hedge delay is also sent to a different member.
+ * Whichever attempt receives response headers first wins, and all other attempts are cancelled.
+ * If a {@code ResponseCache} was supplied, the winning response is offered to it.
+ * If a stale cached response was supplied, it replaces a {@code 304 Not Modified} response (to validators we added), or an error (if it's {@code stale-if-error} window permits).
+ * An optional "finished" callback is invoked exactly once, when the winning response becomes available from the cache (or has been fully received, or the exchange has failed).
+ */
+@SuppressWarnings({"restriction", "WeakerAccess"})
+public class TargetExchange {
+	protected static final Logger Logger = LoggerFactory.getLogger(TargetExchange.class.getPackage().getName());
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param context        Context of this request / response transaction
+	 * @param executor       {@code HttpAsyncRequester} which will perform the actual request(s) to the remote Target(s) and receive the response.
+	 * @param connPool       The client connection pool that will be used by the {@code executor}
+	 * @param route          The route that matched the request (null for a dynamic Target, which is never retried or hedged).
+	 * @param targetRequest  The request to be sent to the Target.
+	 * @param requestBuffer  Buffer containing the request content (if any) from the client.
+	 * @param producer       The object that will produce the final response back to the client.
+	 * @param responseBuffer Buffer into which the response content from the remote Target will be written.
+	 * @param endpoint       If non-null, the script endpoint which has interjected itself into this transaction.
+	 * @param cache          If non-null, the cache which should be offered the response.
+	 */
+	public TargetExchange(HttpContext context, HttpAsyncRequester executor, ConnPool<HttpHost, BasicNIOPoolEntry> connPool, TargetRoute route, HttpRequest targetRequest, BufferIOController requestBuffer, ResponseProducer producer, BufferIOController responseBuffer, ScriptObjectMirror endpoint, ResponseCache cache) {
+		this.context = context;
+		this.executor = executor;
+		this.connPool = connPool;
+		this.route = route;
+		this.targetRequest = targetRequest;
+		this.requestBuffer = requestBuffer;
+		this.producer = producer;
+		this.responseBuffer = responseBuffer;
+		this.endpoint = endpoint;
+		this.cache = cache;
+		this.hasContent = targetRequest instanceof HttpEntityEnclosingRequest;
+		String method = targetRequest.getRequestLine().getMethod();
+		this.retryable = (route != null) && (route.getMaxRetries() > 0) && IsIdempotent(method);
+		this.hedgeable = (route != null) && (route.getHedgePolicy() != null) && (!hasContent) && IsSafe(method);
+		this.attempts = new AtomicInteger();
+		this.outstanding = new HashMap<>();
+		this.finished = new AtomicBoolean(false);
+		if (route != null) {
+			route.applyWatermarks(requestBuffer);
+			route.applyWatermarks(responseBuffer);
+		}
+	}
+
+	private final HttpContext context;
+	private final HttpAsyncRequester executor;
+	private final ConnPool<HttpHost, BasicNIOPoolEntry> connPool;
+	private final TargetRoute route;
+	private final HttpRequest targetRequest;
+	private final BufferIOController requestBuffer;
+	private final ResponseProducer producer;
+	private final BufferIOController responseBuffer;
+	private final ScriptObjectMirror endpoint;
+	private final ResponseCache cache;
+	private final boolean hasContent;
+	private final boolean retryable;
+	private final boolean hedgeable;
+	private final AtomicInteger attempts;
+	private final AtomicBoolean finished;
+	private volatile Runnable onFinished;
+	private volatile CachedResponse stale;
+	private volatile boolean validatorsAdded;
+	// The following are guarded by 'this'.
+	private final Map<TargetResponseConsumer, Attempt> outstanding;
+	private boolean decided;
+	private TargetResponseConsumer winner;
+	private ScheduledFuture<?> hedgeTimer;
+
+	/**
+	 * A single request / response exchange with a Target.
+	 */
+	private static final class Attempt {
+		Attempt(TargetRequestProducer producer, TargetResponseConsumer consumer) {
+			this.producer = producer;
+			this.consumer = consumer;
+			this.startNanos = System.nanoTime();
+		}
+
+		final TargetRequestProducer producer;
+		final TargetResponseConsumer consumer;
+		final long startNanos;
+		volatile Future<?> future;
+
+		/**
+		 * Abort this attempt (whether it is still waiting for a connection, or already in progress).
+		 */
+		void cancel() {
+			consumer.cancel();
+			Future<?> f = future;
+			if (f != null)
+				f.cancel(true);    // Releases the connection if it is still being leased.
+			try {
+				producer.close();
+			} catch (IOException e) {
+				Logger.debug("Unable to close cancelled request producer", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the http {@code method} may safely be repeated (per RFC 7231 section 4.2.2).
+	 */
+	public static boolean IsIdempotent(String method) {
+		switch (method) {
+			case "GET":
+			case "HEAD":
+			case "OPTIONS":
+			case "TRACE":
+			case "PUT":
+			case "DELETE":
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Returns true if the http {@code method} is read-only (per RFC 7231 section 4.2.1), and may therefore be sent to more than one Target at once.
+	 */
+	public static boolean IsSafe(String method) {
+		switch (method) {
+			case "GET":
+			case "HEAD":
+			case "OPTIONS":
+			case "TRACE":
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Make the first attempt.
+	 *
+	 * @param targetDesc The Target that should receive the first attempt.
+	 * @return false if the Target's circuit breaker refused the request (nothing was sent).
+	 */
+	public boolean start(TargetDescriptor targetDesc) {
+		if ((route != null) && (route.getRetryBudget() != null))
+			route.getRetryBudget().requestStarted();
+		if (retryable && hasContent)
+			requestBuffer.enableReplay(route.getReplayLimit());
+		if (!dispatch(targetDesc, false))
+			return false;
+		if (hedgeable)
+			scheduleHedge(targetDesc);
+		return true;
+	}
+
+	/**
+	 * Send an attempt to the specified Target.
+	 *
+	 * @param hedge If true, the attempt is only made if another attempt is still outstanding and no response has yet been received.
+	 * @return false if the attempt was not made (e.g. the Target's circuit breaker refused the request).
+	 */
+	protected boolean dispatch(TargetDescriptor targetDesc, boolean hedge) {
+		// The TargetResponseConsumer is responsible for balancing this call once the exchange completes (or fails).
+		CircuitBreaker.Permit permit = targetDesc.getTargetHost().requestStarted();
+		if (permit == null)
+			return false;
+		TargetResponseConsumer consumer = new TargetResponseConsumer(this, targetDesc, permit);
+		Attempt attempt = new Attempt(new TargetRequestProducer(targetDesc, targetRequest, context, requestBuffer), consumer);
+		boolean abandon;
+		synchronized (this) {
+			abandon = hedge && (decided || outstanding.isEmpty());
+			if (!abandon)
+				outstanding.put(consumer, attempt);
+		}
+		if (abandon) {
+			try {
+				consumer.close();    // Return the permit.
+			} catch (IOException e) {
+				Logger.debug("Unable to close abandoned response consumer", e);
+			}
+			try {
+				attempt.producer.close();    // Release it's reference to the request buffer.
+			} catch (IOException e) {
+				Logger.debug("Unable to close abandoned request producer", e);
+			}
+			return false;
+		}
+		attempts.incrementAndGet();
+		attempt.future = executor.execute(attempt.producer, consumer, connPool);
+		return true;
+	}
+
+	/**
+	 * Arrange for the request to be hedged if the first attempt does not receive response headers within the route's hedge delay.
+	 */
+	private void scheduleHedge(final TargetDescriptor primary) {
+		HedgePolicy policy = route.getHedgePolicy();
+		long delay = policy.getDelayMicros();
+		if (delay < 0)
+			return;    // Not enough history to know what an unusually slow response is.
+		try {
+			ScheduledFuture<?> timer = policy.getScheduler().schedule(() -> hedge(primary), delay, TimeUnit.MICROSECONDS);
+			synchronized (this) {
+				hedgeTimer = timer;
+			}
+		} catch (RejectedExecutionException ex) {
+			// We are shutting down.
+		}
+	}
+
+	/**
+	 * Invoked by the hedge timer to send a second copy of the request to a different Target.
+	 */
+	private void hedge(TargetDescriptor primary) {
+		synchronized (this) {
+			if (decided || outstanding.isEmpty())
+				return;
+		}
+		TargetDescriptor other = route.selectOther(primary);
+		if ((other == null) || (other == primary))
+			return;    // There is no one else to ask.
+		if (!route.getRetryBudget().tryRetry())
+			return;
+		if (dispatch(other, true)) {
+			String id = (String) context.getAttribute("pokerface.txId");
+			Logger.debug("[proxy->target] " + id + " hedging on " + other.getTargetHost());
+		}
+	}
+
+	/**
+	 * Invoked by a {@code TargetResponseConsumer} when it receives response headers from it's Target.
+	 * The first attempt to do so wins, and all other outstanding attempts are cancelled.
+	 *
+	 * @return true if {@code consumer} may deliver it's response to the client.
+	 */
+	public boolean claim(TargetResponseConsumer consumer) {
+		Attempt won;
+		List<Attempt> losers;
+		ScheduledFuture<?> timer;
+		synchronized (this) {
+			if (decided)
+				return winner == consumer;
+			decided = true;
+			winner = consumer;
+			won = outstanding.remove(consumer);
+			losers = new ArrayList<>(outstanding.values());
+			outstanding.clear();
+			timer = hedgeTimer;
+		}
+		if (timer != null)
+			timer.cancel(false);
+		if ((won != null) && (route != null) && (route.getHedgePolicy() != null))
+			route.getHedgePolicy().getLatencies().record(System.nanoTime() - won.startNanos);
+		for (Attempt loser : losers)
+			loser.cancel();
+		return true;
+	}
+
+	/**
+	 * Invoked by a {@code TargetResponseConsumer} whose attempt failed (or was cancelled).
+	 * If no response has been received, the request may be retried, or (if another attempt is still outstanding) the failure may simply be ignored.
+	 *
+	 * @param consumer     The consumer of the failed attempt.
+	 * @param failed       The Target of the failed attempt.
+	 * @param ex           The reason the attempt failed.
+	 * @param retryAllowed False if the attempt may not be retried (e.g. because it was explicitly cancelled).
+	 * @return true if the failure must not be reported to the client (because another attempt owns the response).
+	 */
+	public boolean attemptFailed(TargetResponseConsumer consumer, TargetDescriptor failed, Exception ex, boolean retryAllowed) {
+		synchronized (this) {
+			outstanding.remove(consumer);
+			if (decided)
+				return winner != consumer;    // Losers (and failures after the outcome was reported) are silently dropped.
+			if (!outstanding.isEmpty())
+				return true;    // Another attempt may yet succeed.
+		}
+		if (retryAllowed && retry(failed, ex))
+			return true;
+		synchronized (this) {
+			decided = true;
+			if (hedgeTimer != null)
+				hedgeTimer.cancel(false);
+		}
+		return false;
+	}
+
+	/**
+	 * Retry the request (if permitted) after the last outstanding attempt failed before any response was received.
+	 *
+	 * @return true if another attempt has been made.
+	 */
+	protected boolean retry(TargetDescriptor failed, Exception ex) {
+		if ((!retryable) || (attempts.get() > route.getMaxRetries()))
+			return false;
+		if (hasContent && (!requestBuffer.rewind()))
+			return false;    // Some of the request content is no longer available.
+		String id = (String) context.getAttribute("pokerface.txId");
+		if (!route.getRetryBudget().tryRetry()) {
+			Logger.debug("[proxy->target] " + id + " retry budget exhausted for " + route.getPattern());
+			return false;
+		}
+		TargetDescriptor next = route.selectOther(failed);
+		if ((next == null) || (!dispatch(next, false)))
+			return false;
+		Logger.info("[proxy->target] " + id + " retrying on " + next.getTargetHost() + " after " + ex);
+		return true;
+	}
+
+	/**
+	 * Offer the winning response to the cache (if any).
+	 *
+	 * @param response  The response exactly as it was received from the Target.
+	 * @param rewritten The response as it will be sent to the client.
+	 * @return An object which must be given the response content (or null if the response will not be cached).
+	 */
+	public ResponseCache.Fill beginCacheFill(HttpResponse response, HttpResponse rewritten) {
+		if (cache == null)
+			return null;
+		return cache.beginFill(targetRequest, response, rewritten, route.getCacheKeys());
+	}
+
+	/**
+	 * Specify the stale cached response to the request (this must be called before {@code start}).
+	 * If the entry has validators and the client's request was not already conditional, they are added to the request sent to the Target.
+	 *
+	 * @param stale An entry to which the caller holds a reference, the reference is released when this exchange is finished.
+	 */
+	public void setStale(CachedResponse stale) {
+		this.stale = stale;
+		if (stale.hasValidator() && (!targetRequest.containsHeader("If-None-Match")) && (!targetRequest.containsHeader("If-Modified-Since"))) {
+			if (stale.getETag() != null)
+				targetRequest.setHeader("If-None-Match", stale.getETag());
+			if (stale.getLastModified() != null)
+				targetRequest.setHeader("If-Modified-Since", stale.getLastModified());
+			validatorsAdded = true;
+		}
+	}
+
+	/**
+	 * Invoked when the Target responds {@code 304 Not Modified}.
+	 *
+	 * @return The refreshed cached response to send to the client instead (or null if the 304 should be sent to the client, because it was the client that made the request conditional).
+	 */
+	public HttpResponse revalidated(HttpResponse notModified) {
+		CachedResponse entry = stale;
+		if ((entry == null) || (!validatorsAdded))
+			return null;
+		CachedResponse refreshed = cache.revalidated(entry, TargetResponseConsumer.Rewrite(notModified));
+		return refreshed.toHttpResponse(System.currentTimeMillis());    // Never null, since we hold a reference to the (shared) content.
+	}
+
+	/**
+	 * Invoked when the Target could not be reached (or returned an error).
+	 *
+	 * @return The stale cached response to send to the client instead (or null if there is none, or it is too stale).
+	 */
+	public HttpResponse staleIfError() {
+		CachedResponse entry = stale;
+		if (entry == null)
+			return null;
+		return cache.staleIfError(entry);
+	}
+
+	/**
+	 * Specify a callback to be invoked once this exchange is finished (this must be called before {@code start}).
+	 */
+	public void setOnFinished(Runnable onFinished) {
+		this.onFinished = onFinished;
+	}
+
+	/**
+	 * Invoked when the winning response is available to other requests (it is being filled into the cache, or has been fully received), or the exchange has failed (or could not be started).
+	 */
+	public void finished() {
+		if (!finished.compareAndSet(false, true))
+			return;
+		CachedResponse entry = stale;
+		if (entry != null)
+			entry.release();
+		Runnable callback = onFinished;
+		if (callback != null)
+			callback.run();
+	}
+
+	/**
+	 * Returns the context of this request / response transaction.
+	 */
+	public HttpContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Returns the object that will produce the final response back to the client.
+	 */
+	public ResponseProducer getProducer() {
+		return producer;
+	}
+
+	/**
+	 * Returns the buffer into which the response content from the remote Target will be written.
+	 */
+	public BufferIOController getResponseBuffer() {
+		return responseBuffer;
+	}
+
+	/**
+	 * Returns the script endpoint which has interjected itself into this transaction (may be null).
+	 */
+	public ScriptObjectMirror getEndpoint() {
+		return endpoint;
+	}
+}
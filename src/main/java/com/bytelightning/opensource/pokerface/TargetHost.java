@@ -0,0 +1,171 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.HttpHost;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runtime state of a single remote Target server that is shared by every {@code TargetDescriptor} (and therefore every route) which refers to it.
+ * NOTE: All state is maintained with atomic primitives so that it may be read and updated from any reactor thread without locking.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class TargetHost {
+
+	/**
+	 * Primary constructor.
+	 *
+	 * @param host    The remote Target server FQDN
+	 * @param breaker If non-null, the circuit breaker that will eject this Target from rotation when it misbehaves.
+	 */
+	public TargetHost(HttpHost host, CircuitBreaker breaker) {
+		this.host = host;
+		this.breaker = breaker;
+		this.outstanding = new AtomicInteger();
+	}
+
+	/**
+	 * Convenience constructor for a Target without a circuit breaker.
+	 */
+	public TargetHost(HttpHost host) {
+		this(host, null);
+	}
+
+	private final HttpHost host;
+	private final CircuitBreaker breaker;
+	private final AtomicInteger outstanding;
+	private volatile boolean up = true;
+	// Only ever updated by the (single) health check probe that is in flight for this host.
+	private volatile int healthCheckSuccesses;
+	private volatile int healthCheckFailures;
+
+	/**
+	 * Returns the remote Target server FQDN
+	 */
+	public HttpHost getHttpHost() {
+		return host;
+	}
+
+	/**
+	 * Returns the number of requests that have been dispatched to this Target but which have not yet completed (or failed).
+	 */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * Invoked when a request is about to be dispatched to this Target.
+	 * Every non-null return must be balanced by a call to {@link #requestFinished()}, and the permit must be passed back to {@link #recordOutcome}.
+	 *
+	 * @return The circuit breaker permit for the request, or {@code null} if the circuit breaker is open and the request must not be sent.
+	 */
+	public CircuitBreaker.Permit requestStarted() {
+		CircuitBreaker.Permit retVal = breaker == null ? CircuitBreaker.Permit.GRANTED : breaker.tryAcquire();
+		if (retVal != null)
+			outstanding.incrementAndGet();
+		return retVal;
+	}
+
+	/**
+	 * Report how a request that was dispatched to this Target fared.
+	 *
+	 * @param permit       The value returned by {@link #requestStarted()} for the request.
+	 * @param outcome      The outcome of the request.
+	 * @param latencyNanos The time taken for the Target to respond.
+	 */
+	public void recordOutcome(CircuitBreaker.Permit permit, CircuitBreaker.Outcome outcome, long latencyNanos) {
+		if (breaker != null)
+			breaker.record(permit, outcome, latencyNanos);
+	}
+
+	/**
+	 * Invoked when a request previously dispatched to this Target completes (successfully or otherwise).
+	 */
+	public void requestFinished() {
+		outstanding.decrementAndGet();
+	}
+
+	/**
+	 * Returns false if active health checking has taken this Target out of rotation.
+	 */
+	public boolean isUp() {
+		return up;
+	}
+
+	/**
+	 * Returns true if this Target may be selected to receive a request (it is up, and it's circuit breaker is not open).
+	 */
+	public boolean isAvailable() {
+		return up && ((breaker == null) || breaker.isAvailable());
+	}
+
+	/**
+	 * Record the outcome of a health check probe.
+	 * A Target that is up is taken out of rotation after {@code fall} consecutive failures, and a Target that is down is returned to rotation after {@code rise} consecutive successes.
+	 * NOTE: Probes for any given host must not overlap, as the consecutive counters are not updated atomically.
+	 *
+	 * @return true if this outcome changed the up / down state of the Target.
+	 */
+	public boolean recordHealthCheck(boolean healthy, int rise, int fall) {
+		if (healthy) {
+			healthCheckFailures = 0;
+			int successes = ++healthCheckSuccesses;
+			if ((!up) && (successes >= rise)) {
+				up = true;
+				return true;
+			}
+		}
+		else {
+			healthCheckSuccesses = 0;
+			int failures = ++healthCheckFailures;
+			if (up && (failures >= fall)) {
+				up = false;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a snapshot of the runtime state of this Target.
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> retVal = new LinkedHashMap<>();
+		retVal.put("up", up);
+		retVal.put("outstanding", outstanding.get());
+		if (breaker != null)
+			retVal.put("breaker", breaker.getStats());
+		return retVal;
+	}
+
+	@Override
+	public String toString() {
+		return host.toURI();
+	}
+}
@@ -36,15 +36,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class forwards the request we received from a client on to a remote Target.
  * In the streaming spirit, this class is created as soon as a remote Target is identified, and may actually make the HttpRequest
  * to the remote Target before we have fully received the content of the request from the client.
  * This class uses the {@code BufferIOController} to coordinate reading flow control from the {@code RequestForTargetConsumer}'s incoming request content buffer.
- * For this reason, this class has the responsibility for closing the buffer that was given to the {@code RequestForTargetConsumer} by the {@code RequestHandler}
+ * For this reason, this class takes a reference of it's own to the buffer that was given to the {@code RequestForTargetConsumer} by the {@code RequestHandler}, and releases it when closed.
  */
 public class TargetRequestProducer extends TargetBase implements HttpAsyncRequestProducer {
 	protected static final Logger Logger = LoggerFactory.getLogger(TargetRequestProducer.class.getPackage().getName());
@@ -55,28 +55,33 @@ public class TargetRequestProducer extends TargetBase implements HttpAsyncReques
 	 * @param targetDesc    The remote Target
 	 * @param clientRequest The request we received from the client.
 	 * @param context       The context of this request / response transaction.
-	 * @param buffer        The buffer containing the content (if any) of the original request from the client.
+	 * @param buffer        The buffer containing the content (if any) of the original request from the client (may be null if the request has no content).
 	 */
 	public TargetRequestProducer(TargetDescriptor targetDesc, HttpRequest clientRequest, HttpContext context, BufferIOController buffer) {
 		this.targetDesc = targetDesc;
 		this.clientRequest = clientRequest;
 		this.context = context;
 		this.buffer = buffer;
+		if (buffer != null)
+			buffer.retain();
 	}
 
 	private final TargetDescriptor targetDesc;
 	private final HttpRequest clientRequest;
 	private final HttpContext context;
 	private final BufferIOController buffer;
+	private final AtomicBoolean closed = new AtomicBoolean();
 
 	/**
 	 * {@inheritDoc}
-	 * Close the content buffer given to us by the {@code RequestForTargetConsumer}.
+	 * Release the reference to the content buffer we took when constructed (exactly once).
+	 * NOTE: The {@code RequestForTargetConsumer} (and the producer of each retry or hedge) holds it's own reference to the buffer.
 	 */
 	@SuppressWarnings("RedundantThrows")
 	@Override
 	public void close() throws IOException {
-		buffer.close();
+		if (closed.compareAndSet(false, true) && (buffer != null))
+			buffer.close();
 	}
 
 	@Override
@@ -131,16 +136,8 @@ public class TargetRequestProducer extends TargetBase implements HttpAsyncReques
 	@Override
 	public void produceContent(final ContentEncoder encoder, final IOControl ioctrl) throws IOException {
 		buffer.setReadingIOControl(ioctrl);
-		int n;
-		boolean eof;
-		final ByteBuffer bb = buffer.getByteBuffer();
-		// Make sure nobody mucks with the buffer while we are reading from it and encoding its content.
-		synchronized (bb) {
-			bb.flip();
-			n = encoder.write(bb); // Encode the data going out to the remote target
-			bb.compact();
-			eof = buffer.dataRead();
-		}
+		int n = buffer.writeTo(encoder); // Encode the data going out to the remote target
+		boolean eof = buffer.dataRead();
 		String id = (String) context.getAttribute("pokerface.txId");
 		Logger.trace("[proxy->target] " + id + " " + n + " bytes written");
 		if (eof) {
@@ -157,19 +154,21 @@ public class TargetRequestProducer extends TargetBase implements HttpAsyncReques
 
 	/**
 	 * {@inheritDoc}
-	 * This class is not repeatable as it is created solely for this transaction.
+	 * This request is repeatable if it has no content, or if it's content buffer is still retaining all of the content for replay.
 	 */
 	@Override
 	public boolean isRepeatable() {
-		return false;
+		return (!(clientRequest instanceof HttpEntityEnclosingRequest)) || buffer.isReplayable();
 	}
 
 	/**
 	 * {@inheritDoc}
-	 * Does nothing as this class is not repeatable because it is created solely for this transaction.
+	 * Rewinds the content buffer (if the request has content).
 	 */
 	@Override
 	public void resetRequest() {
+		if (clientRequest instanceof HttpEntityEnclosingRequest)
+			buffer.rewind();
 	}
 
 	@Override
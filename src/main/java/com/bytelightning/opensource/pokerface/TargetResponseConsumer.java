@@ -28,6 +28,7 @@ SOFTWARE.
 import jdk.nashorn.api.scripting.ScriptObjectMirror;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.nio.ContentDecoder;
 import org.apache.http.nio.IOControl;
@@ -38,12 +39,15 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class reads in the response we receive back from the remote Target, and then signals the {@code ResponseProducer} that it can begin responding back to the requesting client.
  * Note that the {@code ResponseProducer} may actually start responding back to the client even before we have fully read the response content from the remote Target.
+ * If the {@code TargetExchange} supplies a cached response in place of the Target's response (see {@code TargetExchange.setStale}), the Target's response content is discarded.
  */
 @SuppressWarnings("restriction")
 public class TargetResponseConsumer extends TargetBase implements HttpAsyncResponseConsumer<HttpResponse> {
@@ -52,46 +56,83 @@ public class TargetResponseConsumer extends TargetBase implements HttpAsyncRespo
 	/**
 	 * Primary constructor
 	 *
-	 * @param producer        The object that will produce the final response back to the client.
-	 * @param producersBuffer The buffer which this object will write to, and which the producer will read from.
-	 * @param context         The context of this transaction.
-	 * @param endpoint        If non-null, this is a script endpoint that may wish to alter the response from the target before we send it back to the client.
+	 * @param exchange   The exchange this attempt belongs to (which provides the producer, it's buffer, the context, and any script endpoint).
+	 * @param targetDesc The remote Target this response is being received from.
+	 * @param permit     The circuit breaker permit that was granted when the request was dispatched to the Target.
 	 */
-	public TargetResponseConsumer(ResponseProducer producer, BufferIOController producersBuffer, HttpContext context, ScriptObjectMirror endpoint) {
-		this.producer = producer;
-		this.producersBuffer = producersBuffer;
-		this.context = context;
-		this.endpoint = endpoint;
+	public TargetResponseConsumer(TargetExchange exchange, TargetDescriptor targetDesc, CircuitBreaker.Permit permit) {
+		this.exchange = exchange;
+		this.targetDesc = targetDesc;
+		this.permit = permit;
+		this.startNanos = System.nanoTime();
+		this.producer = exchange.getProducer();
+		this.producersBuffer = exchange.getResponseBuffer();
+		this.context = exchange.getContext();
+		this.endpoint = exchange.getEndpoint();
 	}
 
+	private final TargetExchange exchange;
+	private final TargetDescriptor targetDesc;
+	private final CircuitBreaker.Permit permit;
+	private final long startNanos;
 	private final ResponseProducer producer;
 	private final BufferIOController producersBuffer;
 	private final HttpContext context;
 	private final ScriptObjectMirror endpoint;
 	private volatile HttpResponse response;
 	private volatile boolean completed;
+	private final AtomicBoolean released = new AtomicBoolean();
+	private final AtomicBoolean outcomeRecorded = new AtomicBoolean();
+	private volatile boolean cancelled;
+	private volatile ResponseCache.Fill cacheFill;
+	// Non-null if the client is being sent a cached response instead of the Target's (whose content is read into this and discarded).
+	private ByteBuffer discardBuffer;
 
+	/**
+	 * {@inheritDoc}
+	 * This method also ensures the Target's outstanding request count is released even if the exchange was never completed (or failed).
+	 */
 	@SuppressWarnings("RedundantThrows")
 	@Override
 	public void close() throws IOException {
+		recordOutcome(CircuitBreaker.Outcome.CANCELLED);
+		releaseTarget();
+	}
+
+	/**
+	 * Report the outcome of this exchange to the Target's circuit breaker (exactly once).
+	 */
+	private void recordOutcome(CircuitBreaker.Outcome outcome) {
+		if (outcomeRecorded.compareAndSet(false, true))
+			targetDesc.getTargetHost().recordOutcome(permit, outcome, System.nanoTime() - startNanos);
 	}
 
+	/**
+	 * Balance the {@code TargetHost.requestStarted} call that was made when this exchange was dispatched (exactly once).
+	 */
+	private void releaseTarget() {
+		if (released.compareAndSet(false, true))
+			targetDesc.getTargetHost().requestFinished();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * If this request was hedged and another attempt has already received it's response, this attempt is abandoned (which closes it's connection).
+	 */
 	@SuppressWarnings("Duplicates")
 	@Override
-	public void responseReceived(HttpResponse response) {
+	public void responseReceived(HttpResponse response) throws IOException {
 		String id = (String) context.getAttribute("pokerface.txId");
 		Logger.info("[proxy<-target] " + id + " " + response.getStatusLine());
-		// Rewrite response!!!!
-		HttpResponse r = new BasicHttpResponse(response.getStatusLine());
-		r.setEntity(response.getEntity());
-
-		Set<String> removals = BuildHeaderRemovalList(response.getFirstHeader("Connection"), "Via", "Content-Length", "Content-Type", "Transfer-Encoding", "Keep-Alive", "Date");
-		for (Header hdr : response.getAllHeaders()) {
-			if (removals.contains(hdr.getName().toLowerCase()))
-				continue;
-			r.addHeader(hdr);
+		// The Target's health is judged by the status and the time taken to receive it (not by how long the content takes to stream).
+		recordOutcome(response.getStatusLine().getStatusCode() >= 500 ? CircuitBreaker.Outcome.FAILURE : CircuitBreaker.Outcome.SUCCESS);
+		if (!exchange.claim(this)) {
+			cancelled = true;
+			throw new InterruptedIOException("Superseded by another attempt");
 		}
-		r.setHeader(CreateHttpViaHeader(response.getFirstHeader("Via"), response.getProtocolVersion()));
+		if (substituteCached(response))
+			return;
+		HttpResponse r = Rewrite(response);
 
 		// If a script endpoint was specified, give it a chance to alter the response.
 		if ((endpoint != null) && (endpoint.hasMember("inspectResponse"))) {
@@ -102,10 +143,59 @@ public class TargetResponseConsumer extends TargetBase implements HttpAsyncRespo
 
 		if (producer.setResponse(r)) {
 			this.response = r;
+			if (endpoint == null) {
+				cacheFill = exchange.beginCacheFill(response, r);
+				if ((cacheFill != null) && cacheFill.isShared())
+					exchange.finished();    // Requests waiting on this one can stream the response from the cache as it arrives.
+			}
 			Logger.debug("[proxy<-target] " + id + " response received");
 		}
 	}
 
+	/**
+	 * Rewrite a response received from a Target into the response that will be sent to the client (removing hop-by-hop headers, and adding ourselves to the {@code Via} header).
+	 */
+	public static HttpResponse Rewrite(HttpResponse response) {
+		HttpResponse r = new BasicHttpResponse(response.getStatusLine());
+		r.setEntity(response.getEntity());
+
+		Set<String> removals = BuildHeaderRemovalList(response.getFirstHeader("Connection"), "Via", "Content-Length", "Content-Type", "Transfer-Encoding", "Keep-Alive", "Date");
+		for (Header hdr : response.getAllHeaders()) {
+			if (removals.contains(hdr.getName().toLowerCase()))
+				continue;
+			r.addHeader(hdr);
+		}
+		r.setHeader(CreateHttpViaHeader(response.getFirstHeader("Via"), response.getProtocolVersion()));
+		return r;
+	}
+
+	/**
+	 * If the exchange has a cached response that should be sent instead of the Target's (a 304 to validators we added, or an error within the stale-if-error window), send it.
+	 *
+	 * @return true if the client is being sent the cached response.
+	 */
+	private boolean substituteCached(HttpResponse response) {
+		int status = response.getStatusLine().getStatusCode();
+		HttpResponse cached;
+		if (status == HttpStatus.SC_NOT_MODIFIED)
+			cached = exchange.revalidated(response);
+		else if (status >= 500)
+			cached = exchange.staleIfError();
+		else
+			return false;
+		if (cached == null)
+			return false;
+		discardBuffer = ByteBuffer.allocate(4096);
+		this.response = cached;
+		String id = (String) context.getAttribute("pokerface.txId");
+		if (producer.setResponse(cached, true))
+			Logger.info("[client<-cache] " + id + " " + cached.getStatusLine() + " in place of " + response.getStatusLine());
+		else
+			((CachedContentProducer) cached.getEntity()).close();    // Release it's hold on the cached content.
+		exchange.finished();
+		return true;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * This method is only called if the response had content (which it typically does).
@@ -114,14 +204,15 @@ public class TargetResponseConsumer extends TargetBase implements HttpAsyncRespo
 	@SuppressWarnings("Duplicates")
 	@Override
 	public void consumeContent(ContentDecoder decoder, IOControl ioctrl) throws IOException {
-		producersBuffer.setWritingIOControl(ioctrl);
-		int n;
-		final ByteBuffer bb = producersBuffer.getByteBuffer();
-		// Make sure the buffer isn't mucked with while we are actually filling it.
-		synchronized (bb) {
-			n = decoder.read(bb); // decode the target's response into the ResponseProducers content buffer.
-			producersBuffer.dataWritten();
+		if (discardBuffer != null) {
+			while (decoder.read(discardBuffer) > 0)
+				discardBuffer.clear();
+			return;
 		}
+		producersBuffer.setWritingIOControl(ioctrl);
+		final ResponseCache.Fill fill = cacheFill;
+		int n = producersBuffer.readFrom(decoder, fill == null ? null : fill::append); // decode the target's response into the ResponseProducers content buffer.
+		producersBuffer.dataWritten();
 		String id = (String) context.getAttribute("pokerface.txId");
 		Logger.trace("[proxy<-target] " + id + " " + n + " bytes read");
 		if (decoder.isCompleted())
@@ -137,6 +228,10 @@ public class TargetResponseConsumer extends TargetBase implements HttpAsyncRespo
 		if (completed)
 			return;
 		completed = true;
+		releaseTarget();
+		if (cacheFill != null)
+			cacheFill.complete();
+		exchange.finished();
 		producersBuffer.writeCompleted();
 		if ((endpoint != null) && endpoint.hasMember("responseCompleted"))
 			endpoint.callMember("responseCompleted", context, null);
@@ -146,16 +241,36 @@ public class TargetResponseConsumer extends TargetBase implements HttpAsyncRespo
 
 	/**
 	 * {@inheritDoc}
-	 * This method also notifies the {@code ResponseProducer} about this exception.
+	 * The {@code TargetExchange} is given the opportunity to retry the request (or to ignore the failure if another attempt owns the response).
+	 * Otherwise this method notifies the {@code ResponseProducer} about this exception.
 	 */
 	@Override
 	public void failed(Exception ex) {
 		if (completed)
 			return;
 		completed = true;
+		if (cacheFill != null)
+			cacheFill.abandon();
+		if (cancelled)
+			recordOutcome(CircuitBreaker.Outcome.CANCELLED);
+		else
+			recordOutcome(ex instanceof SocketTimeoutException ? CircuitBreaker.Outcome.TIMEOUT : CircuitBreaker.Outcome.FAILURE);
+		releaseTarget();
+		if (exchange.attemptFailed(this, targetDesc, ex, (!cancelled) && (response == null)))
+			return;    // Another attempt owns the response.
+		HttpResponse cached = (response == null) && (!cancelled) ? exchange.staleIfError() : null;
+		exchange.finished();
 		producersBuffer.writeCompleted();
 		if ((endpoint != null) && endpoint.hasMember("responseCompleted"))
 			endpoint.callMember("responseCompleted", context, ex);
+		if (cached != null) {
+			String id = (String) context.getAttribute("pokerface.txId");
+			if (producer.setResponse(cached, true)) {
+				Logger.info("[client<-cache] " + id + " " + cached.getStatusLine() + " in place of " + ex);
+				return;
+			}
+			((CachedContentProducer) cached.getEntity()).close();
+		}
 		producer.setException(ex);
 	}
 
@@ -167,6 +282,7 @@ public class TargetResponseConsumer extends TargetBase implements HttpAsyncRespo
 	public boolean cancel() {
 		if (completed)
 			return false;
+		cancelled = true;
 		failed(new InterruptedIOException("Cancelled"));
 		return true;
 	}
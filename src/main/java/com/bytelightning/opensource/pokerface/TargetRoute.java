@@ -0,0 +1,152 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+/**
+ * A configured mapping from a request uri pattern to the pool of remote Targets that serve it.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class TargetRoute {
+
+	/**
+	 * Primary constructor.
+	 *
+	 * @param pattern     The request uri pattern this route was configured with.
+	 * @param balancer    Chooses which of the route's Targets receives each request.
+	 * @param maxRetries  The maximum number of times an idempotent request may be retried after failing to receive a response.
+	 * @param retryBudget Limits the total number of retries on this route (may be null if {@code maxRetries} is zero).
+	 * @param replayLimit The maximum size (in bytes) of request content that will be retained so that a request with content may be retried.
+	 * @param hedgePolicy If non-null, read-only requests on this route are hedged according to this policy (hedges are also limited by {@code retryBudget}).
+	 * @param cacheKeys   Determines which request headers (and cookies) select between the cached responses to a uri on this route (null for {@code CacheKeyBuilder.Default}).
+	 * @param highWater   The number of buffered bytes (in either direction) at which the sender is suspended (zero or less for the default).
+	 * @param lowWater    The number of buffered bytes to which the content must drain before the sender is resumed (less than zero for the default).
+	 */
+	public TargetRoute(String pattern, LoadBalancer balancer, int maxRetries, RetryBudget retryBudget, int replayLimit, HedgePolicy hedgePolicy, CacheKeyBuilder cacheKeys, int highWater, int lowWater) {
+		this.pattern = pattern;
+		this.balancer = balancer;
+		this.maxRetries = retryBudget == null ? 0 : Math.max(0, maxRetries);
+		this.retryBudget = retryBudget;
+		this.replayLimit = replayLimit;
+		this.hedgePolicy = retryBudget == null ? null : hedgePolicy;
+		this.cacheKeys = cacheKeys == null ? CacheKeyBuilder.Default : cacheKeys;
+		this.highWater = highWater;
+		this.lowWater = lowWater;
+	}
+
+	/**
+	 * Convenience constructor for a route that never retries (or hedges).
+	 */
+	public TargetRoute(String pattern, LoadBalancer balancer) {
+		this(pattern, balancer, 0, null, 0, null, null, 0, -1);
+	}
+
+	private final String pattern;
+	private final LoadBalancer balancer;
+	private final int maxRetries;
+	private final RetryBudget retryBudget;
+	private final int replayLimit;
+	private final HedgePolicy hedgePolicy;
+	private final CacheKeyBuilder cacheKeys;
+	private final int highWater;
+	private final int lowWater;
+
+	/**
+	 * Returns the request uri pattern this route was configured with.
+	 */
+	public String getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * Returns the object which chooses which of the route's Targets receives each request.
+	 */
+	public LoadBalancer getBalancer() {
+		return balancer;
+	}
+
+	/**
+	 * Returns the maximum number of times an idempotent request may be retried after failing to receive a response.
+	 */
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * Returns the object which limits the total number of retries on this route (null if this route never retries).
+	 */
+	public RetryBudget getRetryBudget() {
+		return retryBudget;
+	}
+
+	/**
+	 * Returns the maximum size (in bytes) of request content that will be retained so that a request with content may be retried.
+	 */
+	public int getReplayLimit() {
+		return replayLimit;
+	}
+
+	/**
+	 * Returns the policy by which read-only requests on this route are hedged (null if this route never hedges).
+	 */
+	public HedgePolicy getHedgePolicy() {
+		return hedgePolicy;
+	}
+
+	/**
+	 * Returns the object which determines which request headers (and cookies) select between the cached responses to a uri on this route.
+	 */
+	public CacheKeyBuilder getCacheKeys() {
+		return cacheKeys;
+	}
+
+	/**
+	 * Apply this route's flow control watermarks to a buffer of content sent to (or received from) it's Targets.
+	 */
+	public void applyWatermarks(BufferIOController buffer) {
+		if (buffer != null)
+			buffer.setWatermarks(highWater, lowWater);
+	}
+
+	/**
+	 * Select the Target which should receive the next request on this route.
+	 */
+	public TargetDescriptor select() {
+		return balancer.select();
+	}
+
+	/**
+	 * Select a Target other than {@code exclude} if one is available, otherwise {@code exclude} itself (if it is available).
+	 */
+	public TargetDescriptor selectOther(TargetDescriptor exclude) {
+		TargetDescriptor retVal = null;
+		for (int i = 0; i < balancer.getMemberCount(); i++) {
+			retVal = balancer.select();
+			if ((retVal == null) || (retVal != exclude))
+				break;
+		}
+		return retVal;
+	}
+}
@@ -0,0 +1,285 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A weighted "Window TinyLFU" cache policy.
+ * New keys enter a small LRU window (1% of the maximum weight), which lets bursts of new keys build up some frequency.
+ * Keys that overflow the window become candidates for the main area, which is a segmented LRU (a probation segment, and a protected segment holding 80% of the main area).
+ * A candidate is only admitted to the main area if the {@code FrequencySketch} estimates that it is more popular than the main area's eviction victim,
+ * so that a scan of one-off keys (e.g. large downloads) cannot flush the keys which are actually hit often.
+ * A key that is hit while on probation is promoted to the protected segment (demoting the least recently used protected key back to probation if needed).
+ * Every key is weighted (by the number of bytes it consumes), and keys are evicted until the total weight is within the maximum.
+ * NOTE: This class is not thread safe (see {@code CachePolicy}).
+ */
+@SuppressWarnings("WeakerAccess")
+public class WTinyLfuPolicy implements CachePolicy {
+
+	/**
+	 * Primary constructor
+	 *
+	 * @param maximum         The maximum total weight of the keys held.
+	 * @param expectedEntries The number of keys the policy is expected to hold (sizes the frequency sketch).
+	 */
+	public WTinyLfuPolicy(long maximum, int expectedEntries) {
+		this.maximum = maximum;
+		this.windowMaximum = Math.max(1, maximum / 100);
+		this.protectedMaximum = (maximum - windowMaximum) * 4 / 5;
+		this.sketch = new FrequencySketch(expectedEntries);
+		this.nodes = new HashMap<>();
+		this.window = new Segment();
+		this.probation = new Segment();
+		this.protectedSegment = new Segment();
+	}
+
+	private final long maximum;
+	private final long windowMaximum;
+	private final long protectedMaximum;
+	private final FrequencySketch sketch;
+	private final Map<String, Node> nodes;
+	private final Segment window;
+	private final Segment probation;
+	private final Segment protectedSegment;
+	private long weightedSize;
+	private long admitted;
+	private long rejected;
+
+	/**
+	 * A key (and it's weight) linked into one of the segments.
+	 */
+	private static final class Node {
+		Node(String key, long weight) {
+			this.key = key;
+			this.weight = weight;
+		}
+
+		final String key;
+		long weight;
+		Segment segment;
+		Node prev;
+		Node next;
+		// True while this node is a candidate (moved from the window to probation) awaiting the admission decision.
+		boolean candidate;
+	}
+
+	/**
+	 * An intrusive doubly linked LRU list of nodes (least recently used at the head), which tracks it's total weight.
+	 */
+	private static final class Segment {
+		Node head;
+		Node tail;
+		long weight;
+
+		void addLast(Node n) {
+			n.segment = this;
+			n.prev = tail;
+			n.next = null;
+			if (tail == null)
+				head = n;
+			else
+				tail.next = n;
+			tail = n;
+			weight += n.weight;
+		}
+
+		void unlink(Node n) {
+			if (n.prev == null)
+				head = n.next;
+			else
+				n.prev.next = n.next;
+			if (n.next == null)
+				tail = n.prev;
+			else
+				n.next.prev = n.prev;
+			n.prev = null;
+			n.next = null;
+			n.segment = null;
+			weight -= n.weight;
+		}
+
+		void moveToLast(Node n) {
+			if (tail != n) {
+				unlink(n);
+				addLast(n);
+			}
+		}
+	}
+
+	@Override
+	public void recordAccess(String key) {
+		sketch.increment(key);
+		Node n = nodes.get(key);
+		if (n == null)
+			return;
+		if (n.segment == probation) {
+			probation.unlink(n);
+			protectedSegment.addLast(n);
+			// Keep the protected segment within it's share of the main area.
+			while ((protectedSegment.weight > protectedMaximum) && (protectedSegment.head != null)) {
+				Node demoted = protectedSegment.head;
+				protectedSegment.unlink(demoted);
+				probation.addLast(demoted);
+			}
+		}
+		else
+			n.segment.moveToLast(n);
+	}
+
+	@Override
+	public List<String> add(String key, long weight) {
+		sketch.increment(key);
+		Node n = nodes.get(key);
+		if (n != null) {    // Replacing a key simply re-weighs it (and counts as an access).
+			Segment s = n.segment;
+			s.weight += weight - n.weight;
+			weightedSize += weight - n.weight;
+			n.weight = weight;
+			s.moveToLast(n);
+		}
+		else {
+			n = new Node(key, weight);
+			nodes.put(key, n);
+			window.addLast(n);
+			weightedSize += weight;
+		}
+		return evictEntries();
+	}
+
+	/**
+	 * Move the overflow of the window to probation, then evict until the total weight is within the maximum.
+	 * Each eviction is a contest between the most recent candidate (from the window) and the least recently used key on probation.
+	 */
+	private List<String> evictEntries() {
+		int candidates = 0;
+		while ((window.weight > windowMaximum) && (window.head != null)) {
+			Node c = window.head;
+			window.unlink(c);
+			c.candidate = true;
+			probation.addLast(c);
+			candidates++;
+		}
+		List<String> retVal = null;
+		while (weightedSize > maximum) {
+			Node victim = probation.head;
+			if (victim == null)
+				victim = protectedSegment.head != null ? protectedSegment.head : window.head;
+			if (victim == null)
+				break;
+			Node candidate = candidates > 0 ? probation.tail : null;    // Candidates were appended to probation, so they are always at it's tail.
+			Node evict;
+			if ((candidate == null) || (candidate == victim))
+				evict = victim;
+			else if (candidate.weight > maximum)
+				evict = candidate;
+			else if (admit(candidate.key, victim.key)) {
+				admitted++;
+				evict = victim;
+			}
+			else {
+				rejected++;
+				evict = candidate;
+			}
+			if (evict.candidate)
+				candidates--;
+			removeNode(evict);
+			if (retVal == null)
+				retVal = new ArrayList<>();
+			retVal.add(evict.key);
+		}
+		for (Node n = probation.tail; (n != null) && n.candidate; n = n.prev)
+			n.candidate = false;
+		return retVal == null ? Collections.emptyList() : retVal;
+	}
+
+	/**
+	 * Returns true if the candidate should replace the victim.
+	 * A warm candidate that loses is still admitted once in a while, so that an attacker cannot pin a victim in place by flooding the sketch with colliding keys.
+	 */
+	private boolean admit(String candidateKey, String victimKey) {
+		int candidateFreq = sketch.frequency(candidateKey);
+		int victimFreq = sketch.frequency(victimKey);
+		if (candidateFreq > victimFreq)
+			return true;
+		return (candidateFreq > 5) && (ThreadLocalRandom.current().nextInt(128) == 0);
+	}
+
+	private void removeNode(Node n) {
+		n.segment.unlink(n);
+		n.candidate = false;
+		nodes.remove(n.key);
+		weightedSize -= n.weight;
+	}
+
+	@Override
+	public void remove(String key) {
+		Node n = nodes.get(key);
+		if (n != null)
+			removeNode(n);
+	}
+
+	@Override
+	public String evict() {
+		Node victim = probation.head;
+		if (victim == null)
+			victim = window.head != null ? window.head : protectedSegment.head;
+		if (victim == null)
+			return null;
+		removeNode(victim);
+		return victim.key;
+	}
+
+	@Override
+	public long getWeightedSize() {
+		return weightedSize;
+	}
+
+	/**
+	 * Returns the estimated recent frequency of the key.
+	 */
+	public int frequency(String key) {
+		return sketch.frequency(key);
+	}
+
+	@Override
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> retVal = new LinkedHashMap<>();
+		retVal.put("windowBytes", window.weight);
+		retVal.put("probationBytes", probation.weight);
+		retVal.put("protectedBytes", protectedSegment.weight);
+		retVal.put("admitted", admitted);
+		retVal.put("rejected", rejected);
+		retVal.put("sketchResets", sketch.getResets());
+		return retVal;
+	}
+}
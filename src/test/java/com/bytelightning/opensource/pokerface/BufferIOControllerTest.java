@@ -0,0 +1,353 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpStatus;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Validates the chunk queue, watermarks, replay, and memory budget handling of {@code BufferIOController} (and that it's chunks are returned to the pool by the objects that share it).
+ */
+public class BufferIOControllerTest {
+
+	@Test
+	public void testChunksAndWatermarks() throws IOException {
+		BufferPool pool = new BufferPool(1024 * 1024, 8, Long.MAX_VALUE);
+		BufferIOController buffer = new BufferIOController(pool);
+		buffer.setWatermarks(100 * 1024, 20 * 1024);
+		FlowControl writer = new FlowControl();
+		FlowControl reader = new FlowControl();
+		buffer.setWritingIOControl(writer);
+		buffer.setReadingIOControl(reader);
+		Decoder decoder = new Decoder(Content(300 * 1024), 3000);
+		while (!writer.suspended) {
+			buffer.readFrom(decoder);
+			buffer.dataWritten();
+		}
+		Assert.assertTrue("Writer is suspended at the high watermark", buffer.available() >= 100 * 1024);
+		Assert.assertTrue("Reader has been asked for output", reader.outputRequested);
+		Assert.assertEquals("Chunks grow from 4K up to 64K", (4L + 16 + 64 + 64) * 1024, pool.getStatistics().get("allocatedBytes"));
+
+		Encoder encoder = new Encoder(50 * 1024);
+		buffer.writeTo(encoder);
+		buffer.dataRead();
+		Assert.assertTrue("Writer is not resumed above the low watermark", writer.suspended);
+		encoder.limit = Integer.MAX_VALUE;
+		buffer.writeTo(encoder);
+		buffer.dataRead();
+		Assert.assertFalse("Writer is resumed at the low watermark", writer.suspended);
+		Assert.assertEquals(0, buffer.available());
+
+		// Stream the rest, and confirm nothing was lost or reordered.
+		while (!decoder.isCompleted()) {
+			buffer.readFrom(decoder);
+			buffer.dataWritten();
+			buffer.writeTo(encoder);
+			buffer.dataRead();
+		}
+		buffer.writeCompleted();
+		Assert.assertTrue(buffer.dataRead());
+		Assert.assertArrayEquals(Content(300 * 1024), encoder.out.toByteArray());
+		buffer.close();
+		Assert.assertEquals("Every chunk is returned to the pool", pool.getStatistics().get("allocatedBytes"), pool.getStatistics().get("idleBytes"));
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		BufferPool pool = new BufferPool(1024 * 1024, 8, Long.MAX_VALUE);
+		BufferIOController buffer = new BufferIOController(pool);
+		buffer.setWritingIOControl(new FlowControl());
+		buffer.setReadingIOControl(new FlowControl());
+		buffer.enableReplay(30 * 1024);
+		Decoder decoder = new Decoder(Content(25 * 1024), 1000);
+		Encoder first = new Encoder(Integer.MAX_VALUE);
+		while (!decoder.isCompleted()) {
+			buffer.readFrom(decoder);
+			buffer.writeTo(first);
+		}
+		buffer.writeCompleted();
+		Assert.assertTrue(buffer.isReplayable());
+		Assert.assertTrue(buffer.rewind());
+		Encoder second = new Encoder(Integer.MAX_VALUE);
+		buffer.writeTo(second);
+		Assert.assertTrue(buffer.dataRead());
+		Assert.assertArrayEquals(Content(25 * 1024), first.out.toByteArray());
+		Assert.assertArrayEquals("Replayed content is identical", Content(25 * 1024), second.out.toByteArray());
+		buffer.close();
+
+		// Content beyond the replay limit is not retained.
+		buffer = new BufferIOController(pool);
+		buffer.setWritingIOControl(new FlowControl());
+		buffer.enableReplay(10 * 1024);
+		decoder = new Decoder(Content(25 * 1024), 1000);
+		while (!decoder.isCompleted())
+			buffer.readFrom(decoder);
+		Assert.assertFalse(buffer.isReplayable());
+		Assert.assertFalse(buffer.rewind());
+		buffer.writeCompleted();
+		buffer.close();
+	}
+
+	@Test
+	public void testBudgetStarvation() throws IOException {
+		BufferPool pool = new BufferPool(64 * 1024, 4, 64 * 1024);
+		ByteBuffer hog = pool.acquire(64 * 1024);
+		BufferIOController buffer = new BufferIOController(pool);
+		FlowControl writer = new FlowControl();
+		buffer.setWritingIOControl(writer);
+		buffer.setReadingIOControl(new FlowControl());
+		Decoder decoder = new Decoder(Content(12 * 1024), 1024);
+		while (!writer.suspended) {
+			buffer.readFrom(decoder);
+			buffer.dataWritten();
+		}
+		Assert.assertEquals("Writer waits for memory once it's first chunk is full", 4 * 1024, buffer.available());
+		Encoder encoder = new Encoder(Integer.MAX_VALUE);
+		buffer.writeTo(encoder);
+		buffer.dataRead();
+		Assert.assertFalse("Writer is resumed once the reader has drained it's content", writer.suspended);
+		while (!decoder.isCompleted()) {
+			buffer.readFrom(decoder);
+			buffer.dataWritten();
+			buffer.writeTo(encoder);
+			buffer.dataRead();
+		}
+		buffer.writeCompleted();
+		Assert.assertTrue(buffer.dataRead());
+		Assert.assertArrayEquals(Content(12 * 1024), encoder.out.toByteArray());
+		buffer.close();
+		pool.release(hog);
+	}
+
+	@Test
+	public void testWriteAfterClose() throws IOException {
+		BufferPool pool = new BufferPool(1024 * 1024, 8, Long.MAX_VALUE);
+		BufferIOController buffer = new BufferIOController(pool);
+		buffer.setWatermarks(16 * 1024, 4 * 1024);
+		FlowControl writer = new FlowControl();
+		buffer.setWritingIOControl(writer);
+		buffer.setReadingIOControl(new FlowControl());
+		Decoder decoder = new Decoder(Content(100 * 1024), 3000);
+		ByteArrayOutputStream observed = new ByteArrayOutputStream();
+		Consumer<ByteBuffer> observer = bb -> {
+			byte[] bytes = new byte[bb.remaining()];
+			bb.get(bytes);
+			observed.write(bytes, 0, bytes.length);
+		};
+		while (!writer.suspended) {
+			buffer.readFrom(decoder, observer);
+			buffer.dataWritten();
+		}
+		// The reader consumes what was buffered, and then goes away (e.g. the client disconnected).
+		buffer.writeTo(new Encoder(Integer.MAX_VALUE));
+		buffer.close();
+		Assert.assertFalse("Writer is resumed once the reader is gone", writer.suspended);
+		Assert.assertEquals("Every chunk is returned to the pool", pool.getStatistics().get("allocatedBytes"), pool.getStatistics().get("idleBytes"));
+
+		// The rest of the content is discarded, but still observed, and the writer is never suspended again.
+		while (!decoder.isCompleted()) {
+			Assert.assertTrue(buffer.readFrom(decoder, observer) > 0);
+			buffer.dataWritten();
+			Assert.assertFalse(writer.suspended);
+		}
+		Assert.assertEquals(-1, buffer.readFrom(decoder));
+		Assert.assertArrayEquals("Observer saw all of the content", Content(100 * 1024), observed.toByteArray());
+		Assert.assertEquals("Nothing more was taken from the pool", pool.getStatistics().get("allocatedBytes"), pool.getStatistics().get("idleBytes"));
+	}
+
+	@Test
+	public void testConcurrentStreaming() throws Exception {
+		final BufferPool pool = new BufferPool(256 * 1024, 8, Long.MAX_VALUE);
+		final BufferIOController buffer = new BufferIOController(pool);
+		buffer.setWatermarks(32 * 1024, 8 * 1024);
+		final byte[] content = Content(4 * 1024 * 1024);
+		final Decoder decoder = new Decoder(content, 7000);
+		final Encoder encoder = new Encoder(Integer.MAX_VALUE);
+		final CountDownLatch done = new CountDownLatch(1);
+		final FlowControl writer = new FlowControl();
+		buffer.setWritingIOControl(writer);
+		buffer.setReadingIOControl(new FlowControl());
+		Thread writerThread = new Thread(() -> {
+			try {
+				while (!decoder.isCompleted()) {
+					if (writer.suspended) {
+						Thread.yield();
+						continue;
+					}
+					buffer.readFrom(decoder);
+					buffer.dataWritten();
+				}
+				buffer.writeCompleted();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		Thread readerThread = new Thread(() -> {
+			try {
+				do
+					buffer.writeTo(encoder);
+				while (!buffer.dataRead());
+				done.countDown();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		writerThread.start();
+		readerThread.start();
+		Assert.assertTrue("Content was streamed", done.await(30, TimeUnit.SECONDS));
+		writerThread.join();
+		Assert.assertArrayEquals(content, encoder.out.toByteArray());
+		buffer.close();
+	}
+
+	@Test
+	public void testUnroutableRequestReleasesBuffer() throws IOException {
+		BufferPool pool = new BufferPool(64 * 1024, 0, Long.MAX_VALUE);
+		BufferIOController requestBuffer = new BufferIOController(pool);
+		BufferIOController responseBuffer = new BufferIOController(pool);
+		HttpContext context = new BasicHttpContext();
+		context.setAttribute("pokerface.txId", "1");
+		HttpRequest request = new BasicHttpEntityEnclosingRequest("POST", "/nowhere");
+		RouteTrie<TargetRoute> mapping = RouteTrie.Compile(Collections.<String, TargetRoute>emptyMap());
+		RequestForTargetConsumer consumer = new RequestForTargetConsumer(context, null, null, mapping, null, request, requestBuffer, responseBuffer, null, null);
+		consumer.requestReceived(request);
+		Assert.assertEquals(HttpStatus.SC_NOT_FOUND, consumer.getResult().generateResponse().getStatusLine().getStatusCode());
+		Decoder decoder = new Decoder(Content(10 * 1024), 1000);
+		while (!decoder.isCompleted())
+			consumer.consumeContent(decoder, new FlowControl());
+		consumer.requestCompleted(context);
+		Assert.assertTrue("Request content was buffered", (Long) pool.getStatistics().get("allocatedBytes") > 0);
+		consumer.close();
+		consumer.getResult().close();
+		Assert.assertEquals("Every chunk is returned to the pool", 0L, pool.getStatistics().get("allocatedBytes"));
+	}
+
+	private static byte[] Content(int length) {
+		byte[] retVal = new byte[length];
+		for (int i = 0; i < length; i++)
+			retVal[i] = (byte) (i * 31 + (i >> 8));
+		return retVal;
+	}
+
+	private static class Decoder implements ContentDecoder {
+		Decoder(byte[] content, int maxRead) {
+			this.content = ByteBuffer.wrap(content);
+			this.maxRead = maxRead;
+		}
+
+		private final ByteBuffer content;
+		private final int maxRead;
+
+		@Override
+		public int read(ByteBuffer dst) {
+			if (!content.hasRemaining())
+				return -1;
+			int n = Math.min(maxRead, Math.min(dst.remaining(), content.remaining()));
+			ByteBuffer src = content.duplicate();
+			src.limit(src.position() + n);
+			dst.put(src);
+			content.position(content.position() + n);
+			return n;
+		}
+
+		@Override
+		public boolean isCompleted() {
+			return !content.hasRemaining();
+		}
+	}
+
+	private static class Encoder implements ContentEncoder {
+		Encoder(int limit) {
+			this.limit = limit;
+		}
+
+		int limit;  // The total number of bytes that will be accepted (unlimited if Integer.MAX_VALUE).
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		@Override
+		public int write(ByteBuffer src) {
+			int n = Math.min(limit, src.remaining());
+			byte[] bytes = new byte[n];
+			src.get(bytes);
+			out.write(bytes, 0, n);
+			if (limit != Integer.MAX_VALUE)
+				limit -= n;
+			return n;
+		}
+
+		@Override
+		public void complete() {
+		}
+
+		@Override
+		public boolean isCompleted() {
+			return false;
+		}
+	}
+
+	private static class FlowControl implements IOControl {
+		volatile boolean suspended;
+		volatile boolean outputRequested;
+
+		@Override
+		public void requestInput() {
+			suspended = false;
+		}
+
+		@Override
+		public void suspendInput() {
+			suspended = true;
+		}
+
+		@Override
+		public void requestOutput() {
+			outputRequested = true;
+		}
+
+		@Override
+		public void suspendOutput() {
+		}
+
+		@Override
+		public void shutdown() {
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Validates the size classes, reuse, and memory budget of {@code BufferPool}.
+ */
+public class BufferPoolTest {
+
+	@Test
+	public void testSizeClasses() {
+		BufferPool pool = new BufferPool(1024 * 1024, 4, Long.MAX_VALUE);
+		Assert.assertEquals(4 * 1024, pool.sizeFor(0));
+		Assert.assertEquals(4 * 1024, pool.sizeFor(4 * 1024));
+		Assert.assertEquals(16 * 1024, pool.sizeFor(4 * 1024 + 1));
+		Assert.assertEquals(64 * 1024, pool.sizeFor(20000));
+		Assert.assertEquals(256 * 1024, pool.sizeFor(64 * 1024 + 1));
+		Assert.assertEquals(1024 * 1024, pool.sizeFor(256 * 1024 + 1));
+		Assert.assertEquals("Requests beyond the maximum are capped", 1024 * 1024, pool.sizeFor(Integer.MAX_VALUE));
+		// A maximum that is not a multiple of the class spacing is still the largest class.
+		pool = new BufferPool(100 * 1024, 4, Long.MAX_VALUE);
+		Assert.assertEquals(100 * 1024, pool.getMaxBufferSize());
+		Assert.assertEquals(100 * 1024, pool.sizeFor(64 * 1024 + 1));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testReuse() {
+		BufferPool pool = new BufferPool(64 * 1024, 1, Long.MAX_VALUE);
+		ByteBuffer a = pool.acquire(0);
+		ByteBuffer b = pool.acquire(0);
+		Assert.assertNotSame(a, b);
+		a.put((byte) 1);
+		pool.release(a);
+		pool.release(b);   // Exceeds maxIdle, so it is dropped.
+		ByteBuffer c = pool.acquire(100);
+		Assert.assertSame("Idle buffers are reused", a, c);
+		Assert.assertEquals("Reused buffers are cleared", 0, c.position());
+		pool.release(ByteBuffer.allocateDirect(1000));  // Matches no class, ignored.
+
+		Map<String, Object> classes = (Map<String, Object>) pool.getStatistics().get("classes");
+		Map<String, Object> small = (Map<String, Object>) classes.get("4K");
+		Assert.assertEquals(1L, small.get("hits"));
+		Assert.assertEquals(2L, small.get("misses"));
+		Assert.assertEquals(1L, small.get("dropped"));
+		Assert.assertEquals(0, small.get("idle"));
+	}
+
+	@Test
+	public void testBudget() {
+		BufferPool pool = new BufferPool(64 * 1024, 4, 80 * 1024);
+		ByteBuffer large = pool.acquire(64 * 1024);
+		ByteBuffer medium = pool.acquire(16 * 1024);
+		Assert.assertNotNull(large);
+		Assert.assertNotNull(medium);
+		Assert.assertNull("Budget is exhausted", pool.acquire(0));
+		Assert.assertFalse("New transactions are turned away", pool.admit());
+		Assert.assertNotNull("Admitted transactions always get their first buffer", pool.acquireInitial());
+		Assert.assertEquals(84L * 1024, pool.getStatistics().get("allocatedBytes"));
+
+		// An idle buffer is dropped to make room for a buffer of a different class.
+		pool.release(medium);
+		Assert.assertNotNull(pool.acquire(0));
+		Map<String, Object> stats = pool.getStatistics();
+		Assert.assertEquals(72L * 1024, stats.get("allocatedBytes"));
+		Assert.assertEquals(1L, stats.get("denied"));
+		Assert.assertEquals(1L, stats.get("rejected"));
+		Assert.assertEquals(1L, stats.get("overdrafts"));
+		Assert.assertEquals(1L, stats.get("trimmed"));
+	}
+}
@@ -0,0 +1,97 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests of the keys under which the {@code ResponseCache} stores responses (no network involved).
+ */
+@SuppressWarnings("WeakerAccess")
+public class CacheKeyBuilderTest {
+
+	private static HttpRequest Request(String uri, String... headers) {
+		BasicHttpRequest retVal = new BasicHttpRequest("GET", uri);
+		for (int i = 0; i < headers.length; i += 2)
+			retVal.addHeader(headers[i], headers[i + 1]);
+		return retVal;
+	}
+
+	private static HttpResponse Response(String vary) {
+		BasicHttpResponse retVal = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+		if (vary != null)
+			retVal.addHeader("Vary", vary);
+		return retVal;
+	}
+
+	@Test
+	public void testPrimaryKey() {
+		Assert.assertEquals(CacheKeyBuilder.PrimaryKey(Request("/api?a=1&b=2")), CacheKeyBuilder.PrimaryKey(Request("/api?b=2&a=1")));
+		Assert.assertEquals("/api?a=%2F&b", CacheKeyBuilder.PrimaryKey(Request("/x/../api?b&a=/")));
+		Assert.assertEquals("No empty query", "/api", CacheKeyBuilder.PrimaryKey(Request("/api?")));
+		Assert.assertNotEquals("Session parameters are kept", CacheKeyBuilder.PrimaryKey(Request("/api/me?sessionId=alice")), CacheKeyBuilder.PrimaryKey(Request("/api/me?sessionId=bob")));
+		Assert.assertNotEquals("Tracking parameters are kept", CacheKeyBuilder.PrimaryKey(Request("/api?utm_source=a")), CacheKeyBuilder.PrimaryKey(Request("/api")));
+		Assert.assertEquals("Repeated parameters keep their order", "/x?a=1&a=2&b=3", CacheKeyBuilder.PrimaryKey(Request("/x?b=3&a=1&a=2")));
+		Assert.assertNotEquals(CacheKeyBuilder.PrimaryKey(Request("/x?a=1&a=2")), CacheKeyBuilder.PrimaryKey(Request("/x?a=2")));
+		Assert.assertNull(CacheKeyBuilder.PrimaryKey(new BasicHttpRequest("POST", "/api")));
+	}
+
+	@Test
+	public void testEncodingBuckets() {
+		Assert.assertEquals("br,deflate,gzip", CacheKeyBuilder.EncodingBucket(Request("/", "Accept-Encoding", "gzip, deflate, br")));
+		Assert.assertEquals("br,deflate,gzip", CacheKeyBuilder.EncodingBucket(Request("/", "Accept-Encoding", "br;q=1.0, gzip;q=0.8, deflate;q=0.5, *;q=0.1")));
+		Assert.assertEquals("gzip", CacheKeyBuilder.EncodingBucket(Request("/", "Accept-Encoding", "x-gzip")));
+		Assert.assertEquals("deflate,gzip", CacheKeyBuilder.EncodingBucket(Request("/", "Accept-Encoding", "*, br;q=0")));
+		Assert.assertEquals("identity", CacheKeyBuilder.EncodingBucket(Request("/")));
+		Assert.assertEquals("identity", CacheKeyBuilder.EncodingBucket(Request("/", "Accept-Encoding", "compress, gzip;q=0")));
+		String[] names = CacheKeyBuilder.Default.varyNames(Response("Accept-Encoding"));
+		Assert.assertEquals("Browsers that accept the same codings share a variant",
+				CacheKeyBuilder.VariantKey("/", names, Request("/", "Accept-Encoding", "gzip, deflate, br")),
+				CacheKeyBuilder.VariantKey("/", names, Request("/", "Accept-Encoding", "deflate, gzip, br, identity")));
+		Assert.assertNotEquals(CacheKeyBuilder.VariantKey("/", names, Request("/", "Accept-Encoding", "gzip")), CacheKeyBuilder.VariantKey("/", names, Request("/")));
+	}
+
+	@Test
+	public void testRouteOptions() {
+		Assert.assertNull("Vary: * is never cached", CacheKeyBuilder.Default.varyNames(Response("*")));
+		Assert.assertArrayEquals(new String[0], CacheKeyBuilder.Default.varyNames(Response(null)));
+		CacheKeyBuilder keys = new CacheKeyBuilder(new String[]{"X-Device"}, new String[]{"lang"}, new String[]{"User-Agent"});
+		Assert.assertArrayEquals(new String[]{"accept-encoding", "cookie=lang", "x-device"}, keys.varyNames(Response("User-Agent, Accept-Encoding, Cookie")));
+		String[] names = keys.varyNames(Response(null));
+		Assert.assertArrayEquals(new String[]{"cookie=lang", "x-device"}, names);
+		String key = CacheKeyBuilder.VariantKey("/", names, Request("/", "Cookie", "session=1; lang=en", "X-Device", "mobile"));
+		Assert.assertEquals("Other cookies do not split the cache", key, CacheKeyBuilder.VariantKey("/", names, Request("/", "Cookie", "lang=en; session=2", "X-Device", "mobile")));
+		Assert.assertNotEquals(key, CacheKeyBuilder.VariantKey("/", names, Request("/", "Cookie", "lang=fr", "X-Device", "mobile")));
+		Assert.assertNotEquals(key, CacheKeyBuilder.VariantKey("/", names, Request("/", "Cookie", "lang=en", "X-Device", "desktop")));
+		Assert.assertEquals("", CacheKeyBuilder.CookieValue(Request("/", "Cookie", "language=en"), "lang"));
+	}
+}
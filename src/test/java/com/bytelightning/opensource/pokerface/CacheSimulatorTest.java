@@ -0,0 +1,77 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays traces through the {@code CacheSimulator}.
+ */
+public class CacheSimulatorTest {
+
+	/**
+	 * A small set of popular responses interleaved with a long scan of one hit wonders should fare much better under W-TinyLFU than under LRU.
+	 */
+	@Test
+	public void testScanResistance() {
+		Random random = new Random(42);
+		List<CacheSimulator.Request> trace = new ArrayList<>();
+		int scan = 0;
+		for (int i = 0; i < 20000; i++) {
+			if (random.nextInt(3) == 0)
+				trace.add(new CacheSimulator.Request("/hot/" + random.nextInt(50), 1024));
+			else
+				trace.add(new CacheSimulator.Request("/scan/" + (scan++), 1024));
+		}
+		long capacity = 64 * 1024;
+		CacheSimulator.Result lru = CacheSimulator.Simulate("lru", new CacheSimulator.LruPolicy(capacity), capacity, trace);
+		CacheSimulator.Result tinyLfu = CacheSimulator.Simulate("w-tinylfu", new WTinyLfuPolicy(capacity, 1024), capacity, trace);
+		Assert.assertEquals(20000, lru.requests);
+		Assert.assertTrue("W-TinyLFU (" + tinyLfu.getHitRatio() + ") should beat LRU (" + lru.getHitRatio() + ")", tinyLfu.getHitRatio() > lru.getHitRatio() + 0.1);
+	}
+
+	/**
+	 * The benchmark's siege url list can be sized from the benchmark's files.
+	 */
+	@Test
+	public void testReadBenchmarkTrace() throws Exception {
+		Path files = Paths.get("Samples", "Benchmark", "Files");
+		List<CacheSimulator.Request> trace = CacheSimulator.ReadTrace(Paths.get("Samples", "Benchmark", "urls.txt"), files, -1);
+		Assert.assertFalse("Trace was read", trace.isEmpty());
+		for (CacheSimulator.Request r : trace)
+			Assert.assertTrue("Size of " + r.key + " was determined", r.size >= 0);
+		List<CacheSimulator.Request> sample = CacheSimulator.Sample(trace, 1000, 0);
+		CacheSimulator.Result result = CacheSimulator.Simulate("w-tinylfu", new WTinyLfuPolicy(64L * 1024 * 1024, 1024), 64L * 1024 * 1024, sample);
+		Assert.assertEquals("Everything fits, so only the first request for each url misses", 1000 - trace.size(), result.hits, trace.size());
+	}
+}
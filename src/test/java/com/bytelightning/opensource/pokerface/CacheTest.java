@@ -0,0 +1,426 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Configure PokerFace with a response cache in front of a remote target whose responses carry various caching directives,
+ * and validate which requests actually reach the remote target.
+ */
+@SuppressWarnings({"restriction", "WeakerAccess"})
+public class CacheTest {
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		RemoteTarget = new SunHttpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 8101), null);
+		RemoteTarget.start(CacheTest::OnRemoteTargetRequest);
+		proxy = new PokerFace();
+		XMLConfiguration conf = new XMLConfiguration();
+		conf.load(CacheTest.class.getResource("/CacheTestConfig.xml"));
+		proxy.config(conf);
+		boolean started = proxy.start();
+		Assert.assertTrue("Successful proxy start", started);
+	}
+
+	private static SunHttpServer RemoteTarget;
+	private static PokerFace proxy;
+	private static final Map<String, AtomicInteger> RequestCounts = new ConcurrentHashMap<>();
+
+	/**
+	 * The remote target answers with the path, the number of times that path was requested, and (for "/vary") the Accept-Language.
+	 */
+	protected static void OnRemoteTargetRequest(HttpExchange exchange) {
+		try {
+			String path = exchange.getRequestURI().getPath();
+			int count = RequestCounts.computeIfAbsent(path, k -> new AtomicInteger()).incrementAndGet();
+			String text = path + " " + count;
+			if (path.startsWith("/stream")) {
+				// Send half of the content, then pause before sending the rest.
+				byte[] body = StreamedBody.getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body, 0, body.length / 2);
+				out.flush();
+				Thread.sleep(1500);
+				out.write(body, body.length / 2, body.length - body.length / 2);
+				out.close();
+				return;
+			}
+			if (path.startsWith("/etag")) {
+				// Always the same representation, so a conditional request is answered with 304.
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=1");
+				exchange.getResponseHeaders().add("ETag", "\"v1\"");
+				if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+				text = path + " 1";
+			}
+			else if (path.startsWith("/missing")) {
+				exchange.sendResponseHeaders(404, -1);
+				exchange.close();
+				return;
+			}
+			else if (path.startsWith("/sie") && (count > 1)) {
+				exchange.sendResponseHeaders(500, -1);
+				exchange.close();
+				return;
+			}
+			if (path.startsWith("/swr"))
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=1, stale-while-revalidate=60");
+			else if (path.startsWith("/sie"))
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=1, stale-if-error=60");
+			else if (path.startsWith("/slow")) {
+				Thread.sleep(500);
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+			}
+			else if (path.startsWith("/tagged")) {
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+				exchange.getResponseHeaders().add("Surrogate-Key", path.endsWith("c") ? "other" : "group " + path.substring(1).replace('/', '-'));
+			}
+			else if (path.startsWith("/warm"))
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+			else if (path.startsWith("/fresh"))
+				exchange.getResponseHeaders().add("Cache-Control", "public, max-age=60");
+			else if (path.startsWith("/nostore"))
+				exchange.getResponseHeaders().add("Cache-Control", "no-store");
+			else if (path.startsWith("/vary")) {
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+				exchange.getResponseHeaders().add("Vary", "Accept-Language");
+				text = text + " " + exchange.getRequestHeaders().getFirst("Accept-Language");
+			}
+			else if (path.startsWith("/big")) {
+				exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+				char[] pad = new char[4096];
+				Arrays.fill(pad, 'x');
+				text = text + new String(pad);
+			}
+			byte[] body = text.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "text/plain");
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static final String StreamedBody = new String(new char[2000]).replace('\0', 's');
+
+	private static HttpURLConnection Send(String method, String path, String language) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:8100" + path).openConnection();
+		con.setRequestMethod(method);
+		if (language != null)
+			con.setRequestProperty("Accept-Language", language);
+		Assert.assertEquals(200, con.getResponseCode());
+		return con;
+	}
+
+	private static String Get(String path, String language) throws IOException {
+		HttpURLConnection con = Send("GET", path, language);
+		StringBuilder sb = new StringBuilder();
+		InputStream in = con.getInputStream();
+		int c;
+		while ((c = in.read()) >= 0)
+			sb.append((char) c);
+		in.close();
+		return sb.toString();
+	}
+
+	@Test
+	public void testFreshResponseIsCached() throws Exception {
+		Assert.assertEquals("/fresh 1", Get("/fresh", null));
+		HttpURLConnection con = Send("GET", "/fresh", null);
+		Assert.assertNotNull("Cached response has an Age", con.getHeaderField("Age"));
+		Assert.assertEquals("text/plain", con.getHeaderField("Content-Type"));
+		con.getInputStream().close();
+		Assert.assertEquals("/fresh 1", Get("/fresh", null));
+		Send("HEAD", "/fresh", null).getInputStream().close();
+		Assert.assertEquals("Only the first request reached the target", 1, RequestCounts.get("/fresh").get());
+		Assert.assertEquals("Different uri is a different entry", "/fresh/other 1", Get("/fresh/other", null));
+		@SuppressWarnings("unchecked") Map<String, Object> stats = (Map<String, Object>) proxy.getStats().get("cache");
+		Assert.assertTrue((Long) stats.get("hits") >= 3);
+	}
+
+	@Test
+	public void testUncacheableResponses() throws Exception {
+		Assert.assertEquals("/nostore 1", Get("/nostore", null));
+		Assert.assertEquals("/nostore 2", Get("/nostore", null));
+		Assert.assertTrue(Get("/big", null).startsWith("/big 1"));
+		Assert.assertTrue("Responses larger than maxEntrySize are not cached", Get("/big", null).startsWith("/big 2"));
+	}
+
+	@Test
+	public void testVariants() throws Exception {
+		Assert.assertEquals("/vary 1 en", Get("/vary", "en"));
+		Assert.assertEquals("/vary 2 fr", Get("/vary", "fr"));
+		Assert.assertEquals("/vary 1 en", Get("/vary", "en"));
+		Assert.assertEquals("/vary 2 fr", Get("/vary", "fr"));
+	}
+
+	@Test
+	public void testUnsafeRequestInvalidates() throws Exception {
+		Assert.assertEquals("/fresh/post 1", Get("/fresh/post", null));
+		Assert.assertEquals("/fresh/post 1", Get("/fresh/post", null));
+		HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:8100/fresh/post").openConnection();
+		con.setRequestMethod("POST");
+		con.setDoOutput(true);
+		con.getOutputStream().write("data".getBytes(StandardCharsets.UTF_8));
+		Assert.assertEquals(200, con.getResponseCode());
+		con.getInputStream().close();
+		Assert.assertEquals("/fresh/post 3", Get("/fresh/post", null));
+	}
+
+	@Test
+	public void testEquivalentQueriesShareEntry() throws Exception {
+		Assert.assertEquals("/fresh/query 1", Get("/fresh/query?b=2&a=1", null));
+		Assert.assertEquals("/fresh/query 1", Get("/fresh/query?a=1&b=2", null));
+		Assert.assertEquals("/fresh/query 2", Get("/fresh/query?a=1&b=3", null));
+	}
+
+	@Test
+	public void testConcurrentMissesAreCoalesced() throws Exception {
+		ExecutorService clients = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++)
+				results.add(clients.submit(() -> Get("/slow", null)));
+			for (Future<String> result : results)
+				Assert.assertEquals("/slow 1", result.get(10, TimeUnit.SECONDS));
+		} finally {
+			clients.shutdownNow();
+		}
+		Assert.assertEquals("Only one request reached the target", 1, RequestCounts.get("/slow").get());
+		@SuppressWarnings("unchecked") Map<String, Object> cache = (Map<String, Object>) proxy.getStats().get("cache");
+		@SuppressWarnings("unchecked") Map<String, Object> stats = (Map<String, Object>) cache.get("coalescing");
+		Assert.assertTrue((Long) stats.get("coalesced") > 0);
+	}
+
+	@Test
+	public void testReadersStreamWhileFilling() throws Exception {
+		ExecutorService clients = Executors.newFixedThreadPool(2);
+		try {
+			Future<String> first = clients.submit(() -> Get("/stream", null));
+			Thread.sleep(500);    // Let the first request reach the target (and receive the first half of the content).
+			long start = System.nanoTime();
+			Future<Long> headersMillis = clients.submit(() -> {
+				HttpURLConnection con = Send("GET", "/stream", null);
+				long retVal = (System.nanoTime() - start) / 1000000L;
+				StringBuilder sb = new StringBuilder();
+				InputStream in = con.getInputStream();
+				int c;
+				while ((c = in.read()) >= 0)
+					sb.append((char) c);
+				in.close();
+				Assert.assertEquals(StreamedBody, sb.toString());
+				return retVal;
+			});
+			Assert.assertTrue("Second reader did not wait for the fill to complete", headersMillis.get(10, TimeUnit.SECONDS) < 700);
+			Assert.assertEquals(StreamedBody, first.get(10, TimeUnit.SECONDS));
+		} finally {
+			clients.shutdownNow();
+		}
+		Assert.assertEquals("Only one request reached the target", 1, RequestCounts.get("/stream").get());
+		Assert.assertEquals(StreamedBody, Get("/stream", null));
+	}
+
+	@Test
+	public void testStaleWhileRevalidate() throws Exception {
+		Assert.assertEquals("/swr 1", Get("/swr", null));
+		Thread.sleep(1100);
+		HttpURLConnection con = Send("GET", "/swr", null);
+		Assert.assertNotNull("Stale response is flagged", con.getHeaderField("Warning"));
+		con.getInputStream().close();
+		// The stale response was served immediately, and refreshed in the background.
+		String refreshed = null;
+		for (int i = 0; (i < 20) && (!"/swr 2".equals(refreshed)); i++) {
+			Thread.sleep(50);
+			refreshed = Get("/swr", null);
+		}
+		Assert.assertEquals("/swr 2", refreshed);
+		Assert.assertEquals("Only one background refresh", 2, RequestCounts.get("/swr").get());
+	}
+
+	@Test
+	public void testConditionalRevalidation() throws Exception {
+		Assert.assertEquals("/etag 1", Get("/etag", null));
+		Thread.sleep(1100);
+		HttpURLConnection con = Send("GET", "/etag", null);
+		Assert.assertEquals("Client receives the full (revalidated) response", "\"v1\"", con.getHeaderField("ETag"));
+		con.getInputStream().close();
+		Assert.assertEquals(2, RequestCounts.get("/etag").get());
+		Assert.assertEquals("/etag 1", Get("/etag", null));
+		Assert.assertEquals("A 304 extended the lifetime of the entry", 2, RequestCounts.get("/etag").get());
+	}
+
+	@Test
+	public void testStaleIfError() throws Exception {
+		Assert.assertEquals("/sie 1", Get("/sie", null));
+		Thread.sleep(1100);
+		HttpURLConnection con = Send("GET", "/sie", null);
+		Assert.assertTrue(con.getHeaderField("Warning").startsWith("111"));
+		con.getInputStream().close();
+		Assert.assertEquals("/sie 1", Get("/sie", null));
+		Assert.assertEquals(3, RequestCounts.get("/sie").get());
+	}
+
+	/**
+	 * POST a purge request to the proxy, returning the response status and content.
+	 */
+	private static String Purge(String method, String query) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:8100/pokerface/purge" + query).openConnection();
+		con.setRequestMethod(method);
+		int status = con.getResponseCode();
+		StringBuilder sb = new StringBuilder().append(status).append(' ');
+		InputStream in = status < 400 ? con.getInputStream() : con.getErrorStream();
+		if (in != null) {
+			int c;
+			while ((c = in.read()) >= 0)
+				sb.append((char) c);
+			in.close();
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testPurge() throws Exception {
+		for (String path : new String[]{"/tagged/a", "/tagged/b", "/tagged/c"}) {
+			Assert.assertEquals(path + " 1", Get(path, null));
+			Assert.assertEquals("Cached", path + " 1", Get(path, null));
+		}
+		Assert.assertEquals("200 {\"purged\":2}", Purge("POST", "?tag=group"));
+		Assert.assertEquals("/tagged/a 2", Get("/tagged/a", null));
+		Assert.assertEquals("/tagged/b 2", Get("/tagged/b", null));
+		Assert.assertEquals("Tagged differently", "/tagged/c 1", Get("/tagged/c", null));
+		Assert.assertEquals("200 {\"purged\":1}", Purge("DELETE", "?url=/tagged/a"));
+		Assert.assertEquals("/tagged/a 3", Get("/tagged/a", null));
+		Assert.assertEquals("200 {\"purged\":3}", Purge("POST", "?prefix=/tagged/"));
+		Assert.assertEquals("/tagged/c 2", Get("/tagged/c", null));
+		Assert.assertTrue(Purge("POST", "").startsWith("400"));
+		Assert.assertTrue(Purge("GET", "?tag=group").startsWith("405"));
+	}
+
+	@Test
+	public void testWarming() throws Exception {
+		Assert.assertNull("Lines that are not GETs are not warmed", CacheWarmer.ParseUrl("http://127.0.0.1:8100/warm/ignored POST a=b"));
+		Assert.assertEquals("/warm/q?x=1", CacheWarmer.ParseUrl("  http://example.com/warm/q?x=1  "));
+		// The configured url list was warmed before the proxy started listening.
+		Assert.assertEquals("/warm/a 1", Get("/warm/a", null));
+		Assert.assertEquals("/warm/b 1", Get("/warm/b", null));
+		Assert.assertEquals(1, RequestCounts.get("/warm/a").get());
+		Assert.assertNull(RequestCounts.get("/warm/ignored"));
+
+		Assert.assertEquals("{\"urls\":1}", Warm("# warm on demand\n/warm/c\n"));
+		for (int i = 0; (i < 50) && (RequestCounts.get("/warm/c") == null); i++)
+			Thread.sleep(100);
+		Thread.sleep(250);	// Let the warmed response settle into the cache.
+		Assert.assertEquals("/warm/c 1", Get("/warm/c", null));
+		Assert.assertEquals(1, RequestCounts.get("/warm/c").get());
+
+		// A response that is not cached was not warmed.
+		long warmed = (Long) proxy.cacheWarmer.getStatistics().get("warmed");
+		Assert.assertEquals("{\"urls\":1}", Warm("/nostore/warm\n"));
+		for (int i = 0; (i < 50) && ((Integer) proxy.cacheWarmer.getStatistics().get("active") > 0); i++)
+			Thread.sleep(100);
+		Assert.assertEquals(1, RequestCounts.get("/nostore/warm").get());
+		Assert.assertEquals(warmed, proxy.cacheWarmer.getStatistics().get("warmed"));
+
+		// With no content, the configured url list is (re)read and warmed.
+		Assert.assertEquals("{\"urls\":2}", Warm(""));
+	}
+
+	private static String Warm(String urls) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:8100/pokerface/warm").openConnection();
+		con.setRequestMethod("POST");
+		con.setDoOutput(true);
+		OutputStream out = con.getOutputStream();
+		out.write(urls.getBytes(StandardCharsets.UTF_8));
+		out.close();
+		Assert.assertEquals(202, con.getResponseCode());
+		InputStream in = con.getInputStream();
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) >= 0)
+			sb.append((char) c);
+		in.close();
+		return sb.toString();
+	}
+
+	@Test
+	public void testNotFoundIsCachedBriefly() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:8100/missing").openConnection();
+			Assert.assertEquals(404, con.getResponseCode());
+			con.disconnect();
+		}
+		Assert.assertEquals("Only the first request reached the target", 1, RequestCounts.get("/missing").get());
+	}
+
+	@Test
+	public void testEndpointResponseIsCached() throws Exception {
+		Assert.assertEquals("counter 1", Get("/counter", null));
+		Assert.assertEquals("The endpoint was not invoked again", "counter 1", Get("/counter", null));
+		Assert.assertEquals("200 {\"purged\":1}", Purge("POST", "?url=/counter"));
+		Assert.assertEquals("counter 2", Get("/counter", null));
+		Assert.assertEquals("counter 2", Get("/counter", null));
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		if (proxy != null)
+			proxy.stop();
+		if (RemoteTarget != null)
+			RemoteTarget.stop();
+	}
+}
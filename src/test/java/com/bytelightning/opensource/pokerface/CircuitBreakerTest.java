@@ -0,0 +1,113 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.HttpHost;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validates the state transitions of {@code CircuitBreaker}.
+ */
+public class CircuitBreakerTest {
+
+	private static final long Millis = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static CircuitBreaker.Policy MakePolicy(long slowCallMillis) {
+		return new CircuitBreaker.Policy(10000, 10, 4, 0.5, slowCallMillis, 100, 250);
+	}
+
+	@Test
+	public void testTripAndRecover() throws Exception {
+		CircuitBreaker cb = new CircuitBreaker(MakePolicy(0));
+		cb.record(cb.tryAcquire(), CircuitBreaker.Outcome.SUCCESS, Millis);
+		cb.record(cb.tryAcquire(), CircuitBreaker.Outcome.SUCCESS, Millis);
+		cb.record(cb.tryAcquire(), CircuitBreaker.Outcome.FAILURE, 0);
+		Assert.assertEquals("Below minRequests", "closed", cb.getStats().get("state"));
+		cb.record(cb.tryAcquire(), CircuitBreaker.Outcome.TIMEOUT, 0);
+		Assert.assertEquals("Failure ratio reached", "open", cb.getStats().get("state"));
+		Assert.assertFalse(cb.isAvailable());
+		Assert.assertNull("Fail fast", cb.tryAcquire());
+
+		Thread.sleep(120);
+		Assert.assertTrue("Ejection expired", cb.isAvailable());
+		CircuitBreaker.Permit trial = cb.tryAcquire();
+		Assert.assertEquals(CircuitBreaker.Permit.TRIAL, trial);
+		Assert.assertFalse("Only one trial at a time", cb.isAvailable());
+		Assert.assertNull("Only one trial at a time", cb.tryAcquire());
+		cb.record(trial, CircuitBreaker.Outcome.FAILURE, 0);
+		Assert.assertEquals("Failed trial", "open", cb.getStats().get("state"));
+		Assert.assertEquals(2, cb.getStats().get("ejections"));
+
+		Thread.sleep(120);
+		Assert.assertFalse("Second ejection is twice as long", cb.isAvailable());
+		Thread.sleep(100);
+		trial = cb.tryAcquire();
+		Assert.assertEquals(CircuitBreaker.Permit.TRIAL, trial);
+		cb.record(trial, CircuitBreaker.Outcome.SUCCESS, Millis);
+		Assert.assertEquals("Successful trial", "closed", cb.getStats().get("state"));
+		Assert.assertEquals(0, cb.getStats().get("ejections"));
+		Assert.assertEquals(CircuitBreaker.Permit.GRANTED, cb.tryAcquire());
+	}
+
+	@Test
+	public void testSlowCallsTrip() {
+		CircuitBreaker cb = new CircuitBreaker(MakePolicy(10));
+		for (int i = 0; i < 4; i++)
+			cb.record(cb.tryAcquire(), CircuitBreaker.Outcome.SUCCESS, 5 * Millis);
+		Assert.assertEquals("Fast calls", "closed", cb.getStats().get("state"));
+		for (int i = 0; i < 4; i++)
+			cb.record(cb.tryAcquire(), CircuitBreaker.Outcome.SUCCESS, 20 * Millis);
+		Assert.assertEquals("Slow calls", "open", cb.getStats().get("state"));
+	}
+
+	@Test
+	public void testCancelledTrialIsInconclusive() throws Exception {
+		CircuitBreaker cb = new CircuitBreaker(MakePolicy(0));
+		for (int i = 0; i < 4; i++)
+			cb.record(cb.tryAcquire(), CircuitBreaker.Outcome.FAILURE, 0);
+		Thread.sleep(120);
+		CircuitBreaker.Permit trial = cb.tryAcquire();
+		Assert.assertEquals(CircuitBreaker.Permit.TRIAL, trial);
+		cb.record(trial, CircuitBreaker.Outcome.CANCELLED, 0);
+		Assert.assertEquals("Another trial is permitted", CircuitBreaker.Permit.TRIAL, cb.tryAcquire());
+	}
+
+	@Test
+	public void testOpenBreakerRemovesHostFromRotation() {
+		TargetHost host = new TargetHost(new HttpHost("localhost", 80, "http"), new CircuitBreaker(MakePolicy(0)));
+		for (int i = 0; i < 4; i++) {
+			CircuitBreaker.Permit permit = host.requestStarted();
+			host.recordOutcome(permit, CircuitBreaker.Outcome.FAILURE, 0);
+			host.requestFinished();
+		}
+		Assert.assertFalse(host.isAvailable());
+		Assert.assertNull(host.requestStarted());
+		Assert.assertEquals("Denied requests are not outstanding", 0, host.getOutstanding());
+	}
+}
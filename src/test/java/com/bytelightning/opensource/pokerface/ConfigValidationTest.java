@@ -80,6 +80,46 @@ public class ConfigValidationTest {
 		validator.validate(new StreamSource(config));
 	}
 
+	@Test
+	public void validateHealthCheckTestConfig() throws SAXException, IOException {
+		URL xsdUri = PokerFaceApp.class.getResource("/PokerFace_v1Config.xsd");
+		SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+		Schema schema = factory.newSchema(xsdUri);
+		Validator validator = schema.newValidator();
+		File config = new File(new File("src/test/resources"), "HealthCheckTestConfig.xml");
+		validator.validate(new StreamSource(config));
+	}
+
+	@Test
+	public void validateRetryTestConfig() throws SAXException, IOException {
+		URL xsdUri = PokerFaceApp.class.getResource("/PokerFace_v1Config.xsd");
+		SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+		Schema schema = factory.newSchema(xsdUri);
+		Validator validator = schema.newValidator();
+		File config = new File(new File("src/test/resources"), "RetryTestConfig.xml");
+		validator.validate(new StreamSource(config));
+	}
+
+	@Test
+	public void validateHedgeTestConfig() throws SAXException, IOException {
+		URL xsdUri = PokerFaceApp.class.getResource("/PokerFace_v1Config.xsd");
+		SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+		Schema schema = factory.newSchema(xsdUri);
+		Validator validator = schema.newValidator();
+		File config = new File(new File("src/test/resources"), "HedgeTestConfig.xml");
+		validator.validate(new StreamSource(config));
+	}
+
+	@Test
+	public void validateCacheTestConfig() throws SAXException, IOException {
+		URL xsdUri = PokerFaceApp.class.getResource("/PokerFace_v1Config.xsd");
+		SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+		Schema schema = factory.newSchema(xsdUri);
+		Validator validator = schema.newValidator();
+		File config = new File(new File("src/test/resources"), "CacheTestConfig.xml");
+		validator.validate(new StreamSource(config));
+	}
+
 	@After
 	public void tearDown() {
 	}
@@ -0,0 +1,214 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Validate demotion of responses from memory to the {@code DiskCacheTier}, and that the disk tier survives a restart.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DiskCacheTierTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * A memory tier that can only hold about one 2KB response.
+	 * The admission policy will not displace the first response with one that is no more popular, so later responses are demoted straight to disk.
+	 */
+	private static ResponseCache MemoryOfOne(DiskCacheTier disk) {
+		return new ResponseCache(4096, 4096, new SlabAllocator(4096, 4096, 1024), disk, null, "Surrogate-Key", null);
+	}
+
+	private static void Fill(ResponseCache cache, String uri, String body, String vary) {
+		Fill(cache, uri, body, vary, 60);
+	}
+
+	private static void Fill(ResponseCache cache, String uri, String body, String vary, int maxAge) {
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+		response.addHeader("Cache-Control", "max-age=" + maxAge);
+		response.addHeader("X-Test", uri);
+		response.addHeader("Surrogate-Key", "tag" + uri.replace('/', '-'));
+		if (vary != null)
+			response.addHeader("Vary", vary);
+		response.setEntity(new ByteArrayEntity(body.getBytes(StandardCharsets.UTF_8)));
+		BasicHttpRequest request = new BasicHttpRequest("GET", uri);
+		request.addHeader("Accept-Language", "en");
+		ResponseCache.Fill fill = cache.beginFill(request, response, response);
+		Assert.assertNotNull(fill);
+		fill.append(ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)));
+		fill.complete();
+	}
+
+	private static String Body(char c) {
+		return new String(new char[2000]).replace('\0', c);
+	}
+
+	private static String Lookup(ResponseCache cache, String uri) throws Exception {
+		BasicHttpRequest request = new BasicHttpRequest("GET", uri);
+		request.addHeader("Accept-Language", "en");
+		HttpResponse response = cache.lookup(request);
+		if (response == null)
+			return null;
+		Assert.assertEquals(uri, response.getFirstHeader("X-Test").getValue());
+		String retVal = EntityUtils.toString(response.getEntity());
+		((CachedContentProducer) response.getEntity()).close();
+		return retVal;
+	}
+
+	@Test
+	public void testDemotionAndWarmRestart() throws Exception {
+		DiskCacheTier disk = new DiskCacheTier(folder.getRoot().toPath(), 64 * 1024 * 1024, 1024 * 1024);
+		ResponseCache cache = MemoryOfOne(disk);
+		Fill(cache, "/c", Body('c'), null);
+		Fill(cache, "/a", Body('a'), null);
+		Fill(cache, "/b", Body('b'), "Accept-Language");
+		@SuppressWarnings("unchecked") Map<String, Object> stats = (Map<String, Object>) cache.getStatistics().get("disk");
+		Assert.assertTrue("Evicted entries were demoted", (Long) stats.get("stores") >= 2);
+		Assert.assertEquals(Body('a'), Lookup(cache, "/a"));
+		Assert.assertEquals(Body('b'), Lookup(cache, "/b"));
+		Assert.assertEquals(Body('c'), Lookup(cache, "/c"));
+		cache.invalidate(new BasicHttpRequest("POST", "/a"));
+		Assert.assertNull(Lookup(cache, "/a"));
+		cache.close();
+
+		// A new cache over the same directory comes up warm (except for what was invalidated).
+		ResponseCache restarted = MemoryOfOne(new DiskCacheTier(folder.getRoot().toPath(), 64 * 1024 * 1024, 1024 * 1024));
+		Assert.assertNull(Lookup(restarted, "/a"));
+		Assert.assertEquals(Body('b'), Lookup(restarted, "/b"));
+		Assert.assertNull("Was only ever in memory", Lookup(restarted, "/c"));
+	}
+
+	@Test
+	public void testVaryMarkerExpiresWithVariants() throws Exception {
+		DiskCacheTier disk = new DiskCacheTier(folder.getRoot().toPath(), 64 * 1024 * 1024, 1024 * 1024);
+		ResponseCache cache = MemoryOfOne(disk);
+		Fill(cache, "/c", Body('c'), null);
+		Fill(cache, "/v", Body('v'), "Accept-Language", 1);
+		Assert.assertEquals("The variant and it's marker were demoted", 2, disk.getStatistics().get("entries"));
+		cache.close();
+		Thread.sleep(1500);
+
+		DiskCacheTier restarted = new DiskCacheTier(folder.getRoot().toPath(), 64 * 1024 * 1024, 1024 * 1024);
+		Assert.assertEquals("Neither outlived the variant's retention", 0, restarted.getStatistics().get("entries"));
+	}
+
+	@Test
+	public void testBackgroundDemotion() throws Exception {
+		// The writer only runs when we say so, as if the disk were very slow.
+		List<Runnable> writes = new ArrayList<>();
+		DiskCacheTier disk = new DiskCacheTier(folder.getRoot().toPath(), 64 * 1024 * 1024, 1024 * 1024, writes::add);
+		ResponseCache cache = MemoryOfOne(disk);
+		Fill(cache, "/c", Body('c'), null);
+		Fill(cache, "/a", Body('a'), null);
+		Assert.assertEquals("Demotions wait for the writer", 1, disk.getStatistics().get("queued"));
+		Assert.assertEquals("Queued responses are still served", Body('a'), Lookup(cache, "/a"));
+		cache.invalidate(new BasicHttpRequest("POST", "/a"));
+		Assert.assertNull(Lookup(cache, "/a"));
+		for (Runnable write : writes)
+			write.run();
+		writes.clear();
+		Assert.assertEquals("Invalidated response was never written", 0L, disk.getStatistics().get("stores"));
+
+		Fill(cache, "/b", Body('b'), null);
+		for (Runnable write : writes)
+			write.run();
+		Assert.assertEquals(1L, disk.getStatistics().get("stores"));
+		Assert.assertEquals(0, disk.getStatistics().get("queued"));
+		Assert.assertEquals(Body('b'), Lookup(cache, "/b"));
+		Assert.assertEquals("Served from disk", 1L, disk.getStatistics().get("hits"));
+	}
+
+	@Test
+	public void testSlowDiskDoesNotEmptyMemory() throws Exception {
+		List<Runnable> writes = new ArrayList<>();
+		DiskCacheTier disk = new DiskCacheTier(folder.getRoot().toPath(), 64 * 1024 * 1024, 1024 * 1024, writes::add);
+		// Room for four 1KB responses.
+		ResponseCache cache = new ResponseCache(64 * 1024, 4096, new SlabAllocator(4096, 4096, 1024), disk, null, "Surrogate-Key", null);
+		String body = new String(new char[1000]).replace('\0', 'x');
+		for (int i = 0; i < 4; i++)
+			Fill(cache, "/s/" + i, body, null);
+		Assert.assertEquals(0, disk.getStatistics().get("queued"));
+		// A victim's blocks are not free until it has been written, so the next response is passed on rather than evicting everything.
+		Fill(cache, "/s/4", body, null);
+		Assert.assertEquals("Only one victim was evicted", 1, disk.getStatistics().get("queued"));
+		Assert.assertNull(Lookup(cache, "/s/4"));
+		for (Runnable write : writes)
+			write.run();
+		Fill(cache, "/s/4", body, null);
+		Assert.assertEquals(body, Lookup(cache, "/s/4"));
+	}
+
+	@Test
+	public void testPurgeReachesDisk() throws Exception {
+		ResponseCache cache = MemoryOfOne(new DiskCacheTier(folder.getRoot().toPath(), 64 * 1024 * 1024, 1024 * 1024));
+		for (char c = 'a'; c <= 'e'; c++)
+			Fill(cache, "/p/" + c, Body(c), null);
+		Assert.assertEquals(1, cache.purgeTag("tag-p-b"));
+		Assert.assertNull(Lookup(cache, "/p/b"));
+		Assert.assertEquals(Body('c'), Lookup(cache, "/p/c"));
+		cache.close();
+
+		// Tags are indexed from the segment files at startup, and purges survive a restart.
+		ResponseCache restarted = MemoryOfOne(new DiskCacheTier(folder.getRoot().toPath(), 64 * 1024 * 1024, 1024 * 1024));
+		Assert.assertNull(Lookup(restarted, "/p/b"));
+		Assert.assertEquals(1, restarted.purgeTag("tag-p-c"));
+		Assert.assertNull(Lookup(restarted, "/p/c"));
+		Assert.assertEquals(2, restarted.purgePrefix("/p/"));
+		Assert.assertNull(Lookup(restarted, "/p/d"));
+		Assert.assertNull(Lookup(restarted, "/p/e"));
+	}
+
+	@Test
+	public void testOldestSegmentIsDropped() throws Exception {
+		// Each segment holds a single response, and only three segments fit in the budget.
+		DiskCacheTier disk = new DiskCacheTier(folder.getRoot().toPath(), 3 * 4096, 4096);
+		ResponseCache cache = MemoryOfOne(disk);
+		for (char c = 'a'; c <= 'f'; c++)
+			Fill(cache, "/" + c, Body(c), null);
+		Assert.assertEquals("Still in memory", Body('a'), Lookup(cache, "/a"));
+		Assert.assertNull("Oldest segment was deleted", Lookup(cache, "/b"));
+		Assert.assertEquals(Body('e'), Lookup(cache, "/e"));
+		Assert.assertEquals(Body('f'), Lookup(cache, "/f"));
+		Assert.assertTrue((Long) disk.getStatistics().get("dropped") > 0);
+		Assert.assertEquals(3, folder.getRoot().list().length);
+	}
+}
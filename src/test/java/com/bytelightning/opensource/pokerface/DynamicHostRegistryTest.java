@@ -0,0 +1,121 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.HttpHost;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Validates the size and idle time bounds of {@code DynamicHostRegistry}.
+ */
+public class DynamicHostRegistryTest {
+
+	private static String Key(int i) {
+		return "http://host" + i + ":80";
+	}
+
+	private static TargetHost Lookup(DynamicHostRegistry registry, int i) {
+		return registry.lookup(Key(i), "http", "host" + i, 80);
+	}
+
+	@Test
+	public void testConfiguredHostsTakePrecedence() {
+		TargetHost configured = new TargetHost(new HttpHost("host0", 80, "http"));
+		DynamicHostRegistry registry = new DynamicHostRegistry(Collections.singletonMap(Key(0), configured), 8, 0, null);
+		Assert.assertSame(configured, Lookup(registry, 0));
+		Assert.assertEquals("Configured hosts are not remembered", 0, registry.size());
+		TargetHost dynamic = Lookup(registry, 1);
+		Assert.assertSame("Dynamic hosts are remembered", dynamic, Lookup(registry, 1));
+		Assert.assertEquals(new HttpHost("host1", 80, "http"), dynamic.getHttpHost());
+
+		Map<String, Object> stats = registry.getStatistics();
+		Assert.assertEquals(1, stats.get("size"));
+		Assert.assertEquals(1L, stats.get("hits"));
+		Assert.assertEquals(1L, stats.get("misses"));
+		Assert.assertEquals(0L, stats.get("evictions"));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction() throws Exception {
+		List<HttpHost> evicted = Collections.synchronizedList(new ArrayList<>());
+		DynamicHostRegistry registry = new DynamicHostRegistry(null, 8, 0, evicted::add);
+		for (int i = 0; i < 8; i++) {
+			Lookup(registry, i);
+			Thread.sleep(2);
+		}
+		// Touch the oldest host so that it becomes the most recently used.
+		TargetHost first = Lookup(registry, 0);
+		Thread.sleep(2);
+		Lookup(registry, 8);
+		Assert.assertTrue("Registry is bounded", registry.size() <= 8);
+		Assert.assertFalse("Least recently used hosts were evicted", evicted.isEmpty());
+		Assert.assertTrue(evicted.contains(new HttpHost("host1", 80, "http")));
+		Assert.assertFalse("Recently used host was retained", evicted.contains(new HttpHost("host0", 80, "http")));
+		Assert.assertSame(first, Lookup(registry, 0));
+		Assert.assertEquals((long) evicted.size(), registry.getStatistics().get("evictions"));
+	}
+
+	@Test
+	public void testTrimInBackground() throws Exception {
+		List<HttpHost> evicted = Collections.synchronizedList(new ArrayList<>());
+		List<Runnable> trims = new ArrayList<>();
+		DynamicHostRegistry registry = new DynamicHostRegistry(null, 8, 0, evicted::add, trims::add);
+		for (int i = 0; i < 10; i++) {
+			Lookup(registry, i);
+			Thread.sleep(2);
+		}
+		Assert.assertEquals("Lookups do not trim", 10, registry.size());
+		Assert.assertEquals("Only one trim is scheduled at a time", 1, trims.size());
+		trims.get(0).run();
+		Assert.assertEquals("Trimmed below the limit", 7, registry.size());
+		Assert.assertTrue(evicted.containsAll(Arrays.asList(new HttpHost("host0", 80, "http"), new HttpHost("host1", 80, "http"), new HttpHost("host2", 80, "http"))));
+		Lookup(registry, 10);
+		Lookup(registry, 11);
+		Assert.assertEquals("Another trim is scheduled once the registry is full again", 2, trims.size());
+	}
+
+	@Test
+	public void testIdleExpiry() throws Exception {
+		List<HttpHost> evicted = Collections.synchronizedList(new ArrayList<>());
+		DynamicHostRegistry registry = new DynamicHostRegistry(null, 8, 200, evicted::add);
+		TargetHost first = Lookup(registry, 0);
+		Lookup(registry, 1);
+		Thread.sleep(130);
+		Lookup(registry, 1);
+		Thread.sleep(130);
+		registry.expire();
+		Assert.assertEquals(Collections.singletonList(new HttpHost("host0", 80, "http")), evicted);
+		Assert.assertEquals(1, registry.size());
+		Assert.assertNotSame("Expired host is recreated", first, Lookup(registry, 0));
+	}
+}
@@ -0,0 +1,119 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Configure PokerFace with a route whose members are one live remote target (SunHttpServer) and one target that is not listening,
+ * and validate that active health checking takes the dead target out of rotation.
+ */
+@SuppressWarnings({"restriction", "WeakerAccess"})
+public class HealthCheckTest {
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		RemoteTarget = new SunHttpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 8091), null);
+		RemoteTarget.start(HealthCheckTest::OnRemoteTargetRequest);
+		proxy = new PokerFace();
+		XMLConfiguration conf = new XMLConfiguration();
+		conf.load(HealthCheckTest.class.getResource("/HealthCheckTestConfig.xml"));
+		proxy.config(conf);
+		boolean started = proxy.start();
+		Assert.assertTrue("Successful proxy start", started);
+	}
+
+	private static SunHttpServer RemoteTarget;
+	private static PokerFace proxy;
+
+	protected static void OnRemoteTargetRequest(HttpExchange exchange) {
+		try {
+			byte[] body = "OK".getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		} catch (IOException e) {
+			Assert.fail(e.getMessage());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> TargetStats(String key) {
+		return (Map<String, Object>) ((Map<String, Object>) proxy.getStats().get("targets")).get(key);
+	}
+
+	private static int Get(String path) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:8090" + path).openConnection();
+		int retVal = con.getResponseCode();
+		InputStream in = retVal < 400 ? con.getInputStream() : con.getErrorStream();
+		if (in != null) {
+			//noinspection StatementWithEmptyBody
+			while (in.read() >= 0)
+				;
+			in.close();
+		}
+		return retVal;
+	}
+
+	@Test
+	public void testDeadTargetIsRemovedFromRotation() throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (Boolean.TRUE.equals(TargetStats("http://localhost:8092").get("up")) && (System.currentTimeMillis() < deadline))
+			Thread.sleep(50);
+		Assert.assertEquals("Dead target is down", Boolean.FALSE, TargetStats("http://localhost:8092").get("up"));
+		Assert.assertEquals("Live target is up", Boolean.TRUE, TargetStats("http://localhost:8091").get("up"));
+
+		// Round robin would otherwise send every other request to the dead target.
+		for (int i = 0; i < 6; i++)
+			Assert.assertEquals("Routed to live target", 200, Get("/index.html"));
+		// A route without any live targets fails fast.
+		Assert.assertEquals("No live targets", 503, Get("/dead/index.html"));
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		if (proxy != null)
+			proxy.stop();
+		if (RemoteTarget != null)
+			RemoteTarget.stop();
+	}
+}
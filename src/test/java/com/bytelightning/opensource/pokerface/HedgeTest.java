@@ -0,0 +1,116 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+import com.sun.net.httpserver.HttpExchange;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Configure PokerFace with a hedged route whose members are a fast remote target and a remote target that is slow to respond to "/slow" requests,
+ * and validate that requests sent to the slow target are answered by the fast one.
+ */
+@SuppressWarnings({"restriction", "WeakerAccess"})
+public class HedgeTest {
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		FastTarget = new SunHttpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 8097), null);
+		FastTarget.start(exchange -> OnRemoteTargetRequest(exchange, "fast", 0));
+		SlowTarget = new SunHttpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 8098), null);
+		SlowTarget.start(exchange -> OnRemoteTargetRequest(exchange, "slow", exchange.getRequestURI().getPath().startsWith("/slow") ? 3000 : 0));
+		proxy = new PokerFace();
+		XMLConfiguration conf = new XMLConfiguration();
+		conf.load(HedgeTest.class.getResource("/HedgeTestConfig.xml"));
+		proxy.config(conf);
+		boolean started = proxy.start();
+		Assert.assertTrue("Successful proxy start", started);
+	}
+
+	private static SunHttpServer FastTarget;
+	private static SunHttpServer SlowTarget;
+	private static PokerFace proxy;
+
+	protected static void OnRemoteTargetRequest(HttpExchange exchange, String name, long delayMillis) {
+		try {
+			if (delayMillis > 0)
+				Thread.sleep(delayMillis);
+			byte[] body = name.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		} catch (InterruptedException | IOException e) {
+			// The proxy abandoned this (hedged) request.
+		}
+	}
+
+	private static String Get(String path) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:8096" + path).openConnection();
+		Assert.assertEquals(200, con.getResponseCode());
+		StringBuilder sb = new StringBuilder();
+		InputStream in = con.getInputStream();
+		int c;
+		while ((c = in.read()) >= 0)
+			sb.append((char) c);
+		in.close();
+		return sb.toString();
+	}
+
+	@Test
+	public void testSlowTargetIsHedged() throws Exception {
+		// Establish the route's normal latency.
+		for (int i = 0; i < 2 * HedgePolicy.MinSamples; i++)
+			Get("/index.html");
+		// Round robin sends every other request to the slow target, but the fast target should answer all of them.
+		for (int i = 0; i < 4; i++) {
+			long start = System.currentTimeMillis();
+			Assert.assertEquals("Answered by the fast target", "fast", Get("/slow/index.html"));
+			Assert.assertTrue("Answered before the slow target", System.currentTimeMillis() - start < 2000);
+		}
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		if (proxy != null)
+			proxy.stop();
+		if (FastTarget != null)
+			FastTarget.stop();
+		if (SlowTarget != null)
+			SlowTarget.stop();
+	}
+}
@@ -0,0 +1,76 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validates the bucketing and percentile estimates of {@code LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+	private static final long Millis = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void testBuckets() {
+		int prev = -1;
+		for (long micros = 0; micros < 100000000L; micros = micros < 64 ? micros + 1 : micros + micros / 7) {
+			int idx = LatencyHistogram.BucketIndex(micros);
+			Assert.assertTrue("Indexes are monotonic", idx >= prev);
+			prev = idx;
+			Assert.assertTrue("Sample is below it's bucket limit", micros < LatencyHistogram.BucketLimit(idx) || idx == LatencyHistogram.BucketIndex(Long.MAX_VALUE));
+			if (idx > 0)
+				Assert.assertTrue("Sample is above the previous bucket limit", micros >= LatencyHistogram.BucketLimit(idx - 1));
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram(60000);
+		Assert.assertEquals("Not enough samples", -1, h.getPercentile(50, 1));
+		for (int i = 1; i <= 100; i++)
+			h.record(i * Millis);
+		Assert.assertEquals(100, h.getCount());
+		Assert.assertEquals("Too few samples", -1, h.getPercentile(50, 101));
+		long p50 = h.getPercentile(50, 20);
+		long p99 = h.getPercentile(99, 20);
+		// Bucket resolution is 25%, and estimates are rounded up to the bucket limit.
+		Assert.assertTrue("p50 " + p50, (p50 >= 50000) && (p50 <= 50000 * 5 / 4));
+		Assert.assertTrue("p99 " + p99, (p99 >= 99000) && (p99 <= 99000 * 5 / 4));
+	}
+
+	@Test
+	public void testWindowExpiry() throws Exception {
+		LatencyHistogram h = new LatencyHistogram(50);
+		for (int i = 0; i < 10; i++)
+			h.record(Millis);
+		Assert.assertEquals(10, h.getCount());
+		Thread.sleep(120);
+		Assert.assertEquals("Samples older than two windows are forgotten", 0, h.getCount());
+	}
+}
@@ -0,0 +1,153 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.HttpHost;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Validates the distribution characteristics of the built-in {@code LoadBalancer} policies.
+ */
+public class LoadBalancerTest {
+
+	private static TargetDescriptor[] MakeMembers(int... weights) {
+		TargetDescriptor[] retVal = new TargetDescriptor[weights.length];
+		for (int i = 0; i < weights.length; i++)
+			retVal[i] = new TargetDescriptor(new TargetHost(new HttpHost("host" + i, 80, "http")), "", 0, weights[i]);
+		return retVal;
+	}
+
+	private static Map<TargetDescriptor, Integer> Tally(LoadBalancer lb, int count) {
+		Map<TargetDescriptor, Integer> retVal = new HashMap<>();
+		for (int i = 0; i < count; i++)
+			retVal.merge(lb.select(), 1, Integer::sum);
+		return retVal;
+	}
+
+	@Test
+	public void testRoundRobin() throws Exception {
+		TargetDescriptor[] members = MakeMembers(1, 5, 1);
+		LoadBalancer lb = LoadBalancer.Create(null, members);
+		Assert.assertTrue("Default policy", lb instanceof LoadBalancer.RoundRobin);
+		Map<TargetDescriptor, Integer> tally = Tally(lb, 300);
+		for (TargetDescriptor member : members)
+			Assert.assertEquals("Weights are ignored", 100, tally.get(member).intValue());
+	}
+
+	@Test
+	public void testWeighted() throws Exception {
+		TargetDescriptor[] members = MakeMembers(2, 6, 4);
+		LoadBalancer lb = LoadBalancer.Create("weighted", members);
+		// Weights reduce to 1:3:2, and the smooth schedule must never hand the same member more than 2 consecutive requests.
+		TargetDescriptor prev = null;
+		int run = 0;
+		Map<TargetDescriptor, Integer> tally = new HashMap<>();
+		for (int i = 0; i < 600; i++) {
+			TargetDescriptor td = lb.select();
+			tally.merge(td, 1, Integer::sum);
+			run = td == prev ? run + 1 : 1;
+			prev = td;
+			Assert.assertTrue("Interleaved", run <= 2);
+		}
+		Assert.assertEquals(100, tally.get(members[0]).intValue());
+		Assert.assertEquals(300, tally.get(members[1]).intValue());
+		Assert.assertEquals(200, tally.get(members[2]).intValue());
+	}
+
+	@Test
+	public void testLeastOutstanding() throws Exception {
+		TargetDescriptor[] members = MakeMembers(1, 1, 2);
+		LoadBalancer lb = LoadBalancer.Create("leastOutstanding", members);
+		// Requests are never finished, so the selection must track the (weighted) outstanding counts exactly.
+		for (int i = 0; i < 400; i++)
+			lb.select().getTargetHost().requestStarted();
+		Assert.assertEquals(100, members[0].getTargetHost().getOutstanding());
+		Assert.assertEquals(100, members[1].getTargetHost().getOutstanding());
+		Assert.assertEquals(200, members[2].getTargetHost().getOutstanding());
+		members[1].getTargetHost().requestFinished();
+		Assert.assertSame("Least loaded", members[1], lb.select());
+	}
+
+	@Test
+	public void testPowerOfTwo() throws Exception {
+		TargetDescriptor[] members = MakeMembers(1, 1, 1, 1);
+		LoadBalancer lb = LoadBalancer.Create("powerOfTwo", members);
+		for (int i = 0; i < 4000; i++)
+			lb.select().getTargetHost().requestStarted();
+		// The most loaded member can never be chosen over another, so the spread stays very tight.
+		for (TargetDescriptor member : members)
+			Assert.assertTrue("Balanced", Math.abs(member.getTargetHost().getOutstanding() - 1000) <= 2);
+		// A busy member is never preferred to an idle one.
+		TargetDescriptor[] pair = MakeMembers(1, 1);
+		pair[0].getTargetHost().requestStarted();
+		LoadBalancer lb2 = LoadBalancer.Create("powerOfTwo", pair);
+		for (int i = 0; i < 10; i++)
+			Assert.assertSame(pair[1], lb2.select());
+	}
+
+	@Test
+	public void testUnavailableMembersAreSkipped() throws Exception {
+		for (String policy : new String[]{"roundRobin", "weighted", "leastOutstanding", "powerOfTwo"}) {
+			TargetDescriptor[] members = MakeMembers(1, 3, 1);
+			LoadBalancer lb = LoadBalancer.Create(policy, members);
+			members[1].getTargetHost().recordHealthCheck(false, 1, 1);
+			for (int i = 0; i < 100; i++)
+				Assert.assertNotSame(policy, members[1], lb.select());
+			members[0].getTargetHost().recordHealthCheck(false, 1, 1);
+			members[2].getTargetHost().recordHealthCheck(false, 1, 1);
+			Assert.assertNull(policy + " with no available members", lb.select());
+			members[1].getTargetHost().recordHealthCheck(true, 1, 1);
+			Assert.assertSame(policy + " after recovery", members[1], lb.select());
+		}
+	}
+
+	@Test
+	public void testCustomPolicy() throws Exception {
+		TargetDescriptor[] members = MakeMembers(1, 1);
+		LoadBalancer lb = LoadBalancer.Create(FirstMember.class.getName(), members);
+		Assert.assertSame(members[0], lb.select());
+	}
+
+	@Test(expected = ClassNotFoundException.class)
+	public void testUnknownPolicy() throws Exception {
+		LoadBalancer.Create("noSuchPolicy", MakeMembers(1));
+	}
+
+	public static class FirstMember extends LoadBalancer {
+		public FirstMember(TargetDescriptor[] members) {
+			super(members);
+		}
+
+		@Override
+		public TargetDescriptor select() {
+			return members[0];
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Validates that {@code RequestPath} finds the same path and query that {@code java.net.URI} would have.
+ */
+public class RequestPathTest {
+
+	@Test
+	public void testOriginForm() {
+		RequestPath rp = RequestPath.Parse("/Foo/Bar.html?a=1&b=2#top");
+		Assert.assertEquals("Path", "/Foo/Bar.html", rp.getPath());
+		Assert.assertEquals("Key", "/foo/bar.html", rp.getKey());
+		Assert.assertEquals("Query", "a=1&b=2", rp.getQuery());
+
+		rp = RequestPath.Parse("/plain.html");
+		Assert.assertSame("Unmodified path is not copied", rp.getUri(), rp.getKey());
+		Assert.assertNull("No query", rp.getQuery());
+
+		rp = RequestPath.Parse("/anchor#only?notaquery");
+		Assert.assertEquals("Path", "/anchor", rp.getPath());
+		Assert.assertNull("Anchor hides query", rp.getQuery());
+	}
+
+	@Test
+	public void testAbsoluteForm() {
+		RequestPath rp = RequestPath.Parse("http://Example.com:8080/Index.html?x");
+		Assert.assertEquals("Path", "/Index.html", rp.getPath());
+		Assert.assertEquals("Key", "/index.html", rp.getKey());
+		Assert.assertEquals("Query", "x", rp.getQuery());
+		Assert.assertEquals("Bounds", "/Index.html", rp.getUri().substring(rp.getPathStart(), rp.getPathEnd()));
+
+		rp = RequestPath.Parse("https://example.com?x");
+		Assert.assertEquals("Empty path", "", rp.getKey());
+		Assert.assertEquals("Query", "x", rp.getQuery());
+	}
+
+	@Test
+	public void testDynamicTargetFragment() {
+		RequestPath rp = RequestPath.Parse("http://host/base?x=1#2");
+		Assert.assertEquals("Query removed, anchor retained", "http://host/base#2", rp.getUriWithoutQuery());
+		rp = RequestPath.Parse("http://host/base#2");
+		Assert.assertSame("Nothing to remove", rp.getUri(), rp.getUriWithoutQuery());
+
+		String[] path = {null};
+		int[] stripPrefixCount = {0};
+		String key = RequestForTargetConsumer.UriToTargetKey(rp.getUriWithoutQuery(), null, null, null, path, stripPrefixCount);
+		Assert.assertEquals("http://host:80", key);
+		Assert.assertEquals("/base", path[0]);
+		Assert.assertEquals("Anchor specifies the prefix to strip", 2, stripPrefixCount[0]);
+	}
+
+	@Test
+	public void testPercentDecoding() {
+		Assert.assertEquals("Decoded", "/a b/é", RequestPath.Parse("/A%20B/%C3%89").getKey());
+		Assert.assertEquals("Malformed escape left alone", "/100%zz", RequestPath.Parse("/100%ZZ").getKey());
+		Assert.assertEquals("Truncated escape left alone", "/x%4", RequestPath.Parse("/x%4").getKey());
+	}
+}
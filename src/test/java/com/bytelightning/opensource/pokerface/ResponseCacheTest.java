@@ -0,0 +1,322 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit tests of the {@code ResponseCache} storage policy (no network involved).
+ */
+@SuppressWarnings("WeakerAccess")
+public class ResponseCacheTest {
+
+	private static HttpResponse Response(String cacheControl, String body) {
+		BasicHttpResponse retVal = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+		if (cacheControl != null)
+			retVal.addHeader("Cache-Control", cacheControl);
+		retVal.addHeader("Content-Length", Integer.toString(body.length()));
+		retVal.setEntity(new ByteArrayEntity(body.getBytes(StandardCharsets.UTF_8)));
+		return retVal;
+	}
+
+	private static boolean Store(ResponseCache cache, String uri, HttpResponse response) {
+		return cache.beginFill(new BasicHttpRequest("GET", uri), response, response) != null;
+	}
+
+	private static void Fill(ResponseCache cache, String uri, String cacheControl, String body) throws Exception {
+		HttpResponse response = Response(cacheControl, body);
+		ResponseCache.Fill fill = cache.beginFill(new BasicHttpRequest("GET", uri), response, response);
+		Assert.assertNotNull("Response is cacheable", fill);
+		fill.append(ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)));
+		fill.complete();
+	}
+
+	@Test
+	public void testStoreAndLookup() throws Exception {
+		ResponseCache cache = new ResponseCache(1024 * 1024, 1024, new SlabAllocator(1024 * 1024, 64 * 1024, 256), null, null, null, null);
+		Fill(cache, "/a", "max-age=60", "hello");
+		HttpResponse hit = cache.lookup(new BasicHttpRequest("GET", "/a"));
+		Assert.assertNotNull(hit);
+		Assert.assertEquals("0", hit.getFirstHeader("Age").getValue());
+		Assert.assertEquals("hello", EntityUtils.toString(hit.getEntity()));
+		Assert.assertNull("Request no-cache bypasses the cache", cache.lookup(new BasicHttpRequest("GET", "/a") {{ addHeader("Cache-Control", "no-cache"); }}));
+		Assert.assertNull(cache.lookup(new BasicHttpRequest("GET", "/b")));
+		cache.invalidate(new BasicHttpRequest("DELETE", "/a"));
+		Assert.assertNull(cache.lookup(new BasicHttpRequest("GET", "/a")));
+	}
+
+	@Test
+	public void testSessionParametersSelectDistinctEntries() throws Exception {
+		ResponseCache cache = new ResponseCache(1024 * 1024, 1024, new SlabAllocator(1024 * 1024, 64 * 1024, 256), null, null, null, null);
+		Fill(cache, "/api/me?sessionId=alice", "max-age=60", "alice");
+		Assert.assertNull("Another session's response is not shared", cache.lookup(new BasicHttpRequest("GET", "/api/me?sessionId=bob")));
+		Fill(cache, "/api/me?sessionId=bob", "max-age=60", "bob");
+		Assert.assertEquals("alice", EntityUtils.toString(cache.lookup(new BasicHttpRequest("GET", "/api/me?sessionId=alice")).getEntity()));
+		Assert.assertEquals("bob", EntityUtils.toString(cache.lookup(new BasicHttpRequest("GET", "/api/me?sessionId=bob")).getEntity()));
+	}
+
+	@Test
+	public void testUncacheable() throws Exception {
+		ResponseCache cache = new ResponseCache(1024 * 1024, 1024, new SlabAllocator(1024 * 1024, 64 * 1024, 256), null, null, null, null);
+		Assert.assertFalse(Store(cache, "/a", Response(null, "x")));
+		Assert.assertFalse(Store(cache, "/a", Response("no-store", "x")));
+		Assert.assertFalse(Store(cache, "/a", Response("private, max-age=60", "x")));
+		Assert.assertFalse(Store(cache, "/a", Response("max-age=0", "x")));
+		HttpResponse cookie = Response("max-age=60", "x");
+		cookie.addHeader("Set-Cookie", "a=b");
+		Assert.assertFalse(Store(cache, "/a", cookie));
+		Assert.assertFalse("Larger than maxEntryBytes", Store(cache, "/a", Response("max-age=60", new String(new char[2048]))));
+		Assert.assertTrue(Store(cache, "/a", Response("max-age=60", "x")));
+	}
+
+	@Test
+	public void testNegativeCaching() throws Exception {
+		NegativeCache negative = new NegativeCache(5, 64);
+		ResponseCache cache = new ResponseCache(1024 * 1024, 1024, new SlabAllocator(1024 * 1024, 64 * 1024, 256), null, null, null, negative);
+		HttpResponse notFound = Response(null, "x");
+		notFound.setStatusCode(404);
+		Assert.assertTrue("404 without freshness information is stored briefly", Store(cache, "/a", notFound));
+		HttpResponse gone = Response(null, "x");
+		gone.setStatusCode(410);
+		Assert.assertTrue(Store(cache, "/b", gone));
+		HttpResponse error = Response(null, "x");
+		error.setStatusCode(500);
+		Assert.assertFalse(Store(cache, "/c", error));
+		HttpResponse noStore = Response("no-store", "x");
+		noStore.setStatusCode(404);
+		Assert.assertFalse(Store(cache, "/d", noStore));
+		Assert.assertFalse("Only negative answers get the negative ttl", Store(cache, "/e", Response(null, "x")));
+		HttpResponse large = Response(null, new String(new char[2048]));
+		large.setStatusCode(404);
+		Assert.assertFalse("Larger than maxEntryBytes", Store(cache, "/f", large));
+		@SuppressWarnings("unchecked") Map<String, Object> stats = (Map<String, Object>) cache.getStatistics().get("negative");
+		Assert.assertEquals("Only the stored negative answers are counted", 2L, stats.get("stores"));
+		ResponseCache plain = new ResponseCache(1024 * 1024, 1024, new SlabAllocator(1024 * 1024, 64 * 1024, 256), null, null, null, null);
+		Assert.assertFalse(Store(plain, "/a", notFound));
+
+		Assert.assertFalse(negative.contains("/unroutable"));
+		negative.add("/unroutable");
+		Assert.assertTrue(negative.contains("/unroutable"));
+		Assert.assertFalse(negative.contains("/unroutable/"));
+		NegativeCache expired = new NegativeCache(0, 64);
+		expired.add("/unroutable");
+		Assert.assertFalse(expired.contains("/unroutable"));
+	}
+
+	@Test
+	public void testByteBudgetEviction() throws Exception {
+		ResponseCache cache = new ResponseCache(4096, 1024, new SlabAllocator(4096, 4096, 1024), null, null, null, null);
+		String body = new String(new char[900]).replace('\0', 'x');
+		for (int i = 0; i < 8; i++)
+			Fill(cache, "/" + i, "max-age=60", body);
+		Map<String, Object> stats = cache.getStatistics();
+		Assert.assertTrue((Long) stats.get("heapBytes") + (Long) stats.get("offHeapBytes") <= 4096);
+		Assert.assertTrue((Long) cache.getStatistics().get("evictions") > 0);
+		Assert.assertTrue((Integer) stats.get("entries") > 0);
+	}
+
+	@Test
+	public void testFrequentEntriesSurviveScan() throws Exception {
+		ResponseCache cache = new ResponseCache(16 * 1024, 1024, new SlabAllocator(16 * 1024, 16 * 1024, 1024), null, null, null, null);
+		String body = new String(new char[900]).replace('\0', 'x');
+		for (int i = 0; i < 4; i++) {
+			Fill(cache, "/hot/" + i, "max-age=60", body);
+			for (int j = 0; j < 4; j++)
+				((CachedContentProducer) cache.lookup(new BasicHttpRequest("GET", "/hot/" + i)).getEntity()).close();
+		}
+		// A scan of one-off responses (more than the cache can hold) must not flush the popular ones.
+		for (int i = 0; i < 64; i++)
+			Fill(cache, "/scan/" + i, "max-age=60", body);
+		for (int i = 0; i < 4; i++)
+			Assert.assertNotNull("/hot/" + i + " survived", cache.lookup(new BasicHttpRequest("GET", "/hot/" + i)));
+		@SuppressWarnings("unchecked") Map<String, Object> policy = (Map<String, Object>) cache.getStatistics().get("policy");
+		Assert.assertTrue((Long) policy.get("rejected") > 0);
+	}
+
+	@Test
+	public void testFrequencySketch() {
+		FrequencySketch sketch = new FrequencySketch(64);
+		for (int i = 0; i < 20; i++)
+			sketch.increment("hot");
+		sketch.increment("cold");
+		Assert.assertEquals("Counters saturate", 15, sketch.frequency("hot"));
+		Assert.assertEquals(1, sketch.frequency("cold"));
+		Assert.assertEquals(0, sketch.frequency("never"));
+		// Enough distinct keys to fill the sample period halves every counter.
+		for (int i = 0; sketch.getResets() == 0; i++)
+			sketch.increment("key" + i);
+		Assert.assertTrue(sketch.frequency("hot") <= 8);
+	}
+
+	@Test
+	public void testEvictionWaitsForReaders() throws Exception {
+		SlabAllocator slabs = new SlabAllocator(4096, 4096, 1024);
+		ResponseCache cache = new ResponseCache(4096, 1024, slabs, null, null, null, null);
+		String body = new String(new char[1000]).replace('\0', 'a');
+		Fill(cache, "/a", "max-age=60", body);
+		HttpResponse reader = cache.lookup(new BasicHttpRequest("GET", "/a"));
+		Assert.assertNotNull(reader);
+		cache.invalidate(new BasicHttpRequest("PUT", "/a"));
+		// The invalidated content is still held by the reader, so it's block must not be reused.
+		for (int i = 0; i < 3; i++)
+			Fill(cache, "/" + i, "max-age=60", new String(new char[1000]).replace('\0', 'b'));
+		Assert.assertEquals(4096L, slabs.getStatistics().get("usedBytes"));
+		Assert.assertEquals(body, EntityUtils.toString(reader.getEntity()));
+		((CachedContentProducer) reader.getEntity()).close();
+		Assert.assertEquals(3072L, slabs.getStatistics().get("usedBytes"));
+	}
+
+	@Test
+	public void testStaleWhileRevalidate() throws Exception {
+		ResponseCache cache = new ResponseCache(1024 * 1024, 1024, new SlabAllocator(1024 * 1024, 64 * 1024, 256), null, null, null, null);
+		HttpResponse response = Response("max-age=1, stale-while-revalidate=60", "hello");
+		response.addHeader("ETag", "\"v1\"");
+		ResponseCache.Fill fill = cache.beginFill(new BasicHttpRequest("GET", "/a"), response, response);
+		fill.append(ByteBuffer.wrap("hello".getBytes(StandardCharsets.UTF_8)));
+		fill.complete();
+		Thread.sleep(1100);
+		Assert.assertNull("Stale responses are not served without a revalidator", cache.lookup(new BasicHttpRequest("GET", "/a")));
+		CachedResponse[] revalidating = new CachedResponse[1];
+		HttpResponse stale = cache.lookup(new BasicHttpRequest("GET", "/a"), e -> revalidating[0] = e);
+		Assert.assertNotNull(stale);
+		Assert.assertEquals(ResponseCache.StaleWarning, stale.getFirstHeader("Warning").getValue());
+		Assert.assertEquals("hello", EntityUtils.toString(stale.getEntity()));
+		Assert.assertNotNull("Background revalidation was requested", revalidating[0]);
+		Assert.assertEquals("\"v1\"", revalidating[0].getETag());
+		Assert.assertNotNull(cache.lookup(new BasicHttpRequest("GET", "/a"), e -> Assert.fail("Only one revalidation at a time")));
+		// A 304 makes the entry fresh again (without touching it's content).
+		BasicHttpResponse notModified = new BasicHttpResponse(HttpVersion.HTTP_1_1, 304, "Not Modified");
+		notModified.addHeader("Cache-Control", "max-age=60");
+		cache.revalidated(revalidating[0], notModified);
+		revalidating[0].endRevalidation();
+		revalidating[0].release();
+		HttpResponse fresh = cache.lookup(new BasicHttpRequest("GET", "/a"));
+		Assert.assertNotNull(fresh);
+		Assert.assertNull(fresh.getFirstHeader("Warning"));
+		Assert.assertEquals("hello", EntityUtils.toString(fresh.getEntity()));
+		Assert.assertEquals(1L, cache.getStatistics().get("revalidations"));
+	}
+
+	@Test
+	public void testSlabAllocator() {
+		SlabAllocator slabs = new SlabAllocator(8192, 4096, 1024);
+		Set<Integer> ids = new HashSet<>();
+		for (int i = 0; i < 8; i++)
+			Assert.assertTrue(ids.add(slabs.allocate()));
+		Assert.assertEquals("Budget is exhausted", -1, slabs.allocate());
+		Assert.assertEquals(2, slabs.getStatistics().get("slabs"));
+		ByteBuffer view = slabs.view(5, 100);
+		Assert.assertTrue(view.isDirect());
+		Assert.assertEquals(100, view.remaining());
+		slabs.free(5);
+		Assert.assertEquals(5, slabs.allocate());
+	}
+
+	@Test
+	public void testReadWhileFilling() throws Exception {
+		ResponseCache cache = new ResponseCache(1024 * 1024, 4096, new SlabAllocator(1024 * 1024, 64 * 1024, 256), null, null, null, null);
+		HttpResponse response = Response("max-age=60", "0123456789");
+		ResponseCache.Fill fill = cache.beginFill(new BasicHttpRequest("GET", "/a"), response, response);
+		Assert.assertTrue("Length is known, so the fill is shared", fill.isShared());
+		fill.append(ByteBuffer.wrap("01234".getBytes(StandardCharsets.UTF_8)));
+		HttpResponse reader = cache.lookup(new BasicHttpRequest("GET", "/a"));
+		Assert.assertNotNull("Served while filling", reader);
+		Assert.assertEquals(10, reader.getEntity().getContentLength());
+		HttpResponse second = cache.lookup(new BasicHttpRequest("GET", "/a"));
+		fill.append(ByteBuffer.wrap("56789".getBytes(StandardCharsets.UTF_8)));
+		fill.complete();
+		Assert.assertEquals("0123456789", EntityUtils.toString(reader.getEntity()));
+		((CachedContentProducer) reader.getEntity()).close();
+		((CachedContentProducer) second.getEntity()).close();
+
+		// An abandoned fill is no longer served.
+		response = Response("max-age=60", "0123456789");
+		fill = cache.beginFill(new BasicHttpRequest("GET", "/b"), response, response);
+		fill.append(ByteBuffer.wrap("01234".getBytes(StandardCharsets.UTF_8)));
+		fill.abandon();
+		Assert.assertNull(cache.lookup(new BasicHttpRequest("GET", "/b")));
+	}
+
+	@Test
+	public void testPurge() throws Exception {
+		ResponseCache cache = new ResponseCache(1024 * 1024, 1024, new SlabAllocator(1024 * 1024, 64 * 1024, 256), null, null, "Surrogate-Key", null);
+		for (String uri : new String[]{"/img/a", "/img/b", "/imgs", "/css/a"}) {
+			HttpResponse response = Response("max-age=60", uri);
+			response.addHeader("Surrogate-Key", uri.endsWith("a") ? "a, all" : "all");
+			ResponseCache.Fill fill = cache.beginFill(new BasicHttpRequest("GET", uri), response, response);
+			fill.append(ByteBuffer.wrap(uri.getBytes(StandardCharsets.UTF_8)));
+			fill.complete();
+		}
+		Assert.assertEquals(2, cache.purgeTag("a"));
+		Assert.assertNull(cache.lookup(new BasicHttpRequest("GET", "/img/a")));
+		Assert.assertNull(cache.lookup(new BasicHttpRequest("GET", "/css/a")));
+		Assert.assertEquals(0, cache.purgeTag("a"));
+		Assert.assertEquals("Prefix is not a path segment", 2, cache.purgePrefix("/img"));
+		Assert.assertEquals(0, cache.purge("/img/b"));
+		Assert.assertEquals(0, cache.purgeTag("all"));
+		Assert.assertEquals(0, cache.getStatistics().get("entries"));
+		Assert.assertEquals(0, cache.getStatistics().get("tags"));
+
+		// A response that was on it's way into the cache when a purge happened is not stored.
+		HttpResponse response = Response("max-age=60", "late");
+		ResponseCache.Fill fill = cache.beginFill(new BasicHttpRequest("GET", "/late"), response, response);
+		fill.append(ByteBuffer.wrap("late".getBytes(StandardCharsets.UTF_8)));
+		cache.purge("/late");
+		fill.complete();
+		Assert.assertNull(cache.lookup(new BasicHttpRequest("GET", "/late")));
+		Fill(cache, "/late", "max-age=60", "late");
+		Assert.assertNotNull(cache.lookup(new BasicHttpRequest("GET", "/late")));
+	}
+
+	@Test
+	public void testContentWakesWaitingReaders() {
+		SlabAllocator slabs = new SlabAllocator(4096, 4096, 1024);
+		CachedContent content = new CachedContent(slabs, 2000);
+		int[] woken = {0};
+		Assert.assertTrue(content.awaitData(0, () -> woken[0]++));
+		content.addBlock(slabs.allocate()).put((byte) 1);
+		content.publish(1);
+		Assert.assertEquals(1, woken[0]);
+		Assert.assertFalse("Data is already available", content.awaitData(0, () -> woken[0]++));
+		Assert.assertTrue(content.awaitData(1, () -> woken[0]++));
+		content.markFailed();
+		Assert.assertEquals(2, woken[0]);
+		Assert.assertTrue(content.isFailed());
+	}
+}
@@ -0,0 +1,163 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Configure PokerFace with routes whose members are one live remote target (SunHttpServer) and one target that is not listening,
+ * and validate that idempotent requests (including their content) are transparently retried on the live target, while non-idempotent requests are not.
+ */
+@SuppressWarnings({"restriction", "WeakerAccess"})
+public class RetryTest {
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		RemoteTarget = new SunHttpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 8094), null);
+		RemoteTarget.start(RetryTest::OnRemoteTargetRequest);
+		proxy = new PokerFace();
+		XMLConfiguration conf = new XMLConfiguration();
+		conf.load(RetryTest.class.getResource("/RetryTestConfig.xml"));
+		proxy.config(conf);
+		boolean started = proxy.start();
+		Assert.assertTrue("Successful proxy start", started);
+	}
+
+	private static SunHttpServer RemoteTarget;
+	private static PokerFace proxy;
+
+	/**
+	 * Echo back whatever content was sent to us.
+	 */
+	protected static void OnRemoteTargetRequest(HttpExchange exchange) {
+		try {
+			byte[] body = ReadFully(exchange.getRequestBody());
+			if (body.length == 0)
+				body = "OK".getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		} catch (IOException e) {
+			Assert.fail(e.getMessage());
+		}
+	}
+
+	private static byte[] ReadFully(InputStream in) throws IOException {
+		ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+		if (in != null) {
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) >= 0)
+				retVal.write(buf, 0, n);
+			in.close();
+		}
+		return retVal.toByteArray();
+	}
+
+	private static HttpURLConnection Open(String method, String path) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:8093" + path).openConnection();
+		con.setRequestMethod(method);
+		return con;
+	}
+
+	private static int Status(HttpURLConnection con) throws IOException {
+		int retVal = con.getResponseCode();
+		ReadFully(retVal < 400 ? con.getInputStream() : con.getErrorStream());
+		return retVal;
+	}
+
+	@Test
+	public void testIdempotentRequestIsRetried() throws Exception {
+		// Round robin sends every other request to the dead target.
+		for (int i = 0; i < 4; i++)
+			Assert.assertEquals("Retried on live target", 200, Status(Open("GET", "/index.html")));
+	}
+
+	@Test
+	public void testRequestContentIsReplayed() throws Exception {
+		byte[] content = new byte[8 * 1024];
+		for (int i = 0; i < content.length; i++)
+			content[i] = (byte) ('a' + (i % 26));
+		for (int i = 0; i < 4; i++) {
+			HttpURLConnection con = Open("PUT", "/echo");
+			con.setDoOutput(true);
+			con.setFixedLengthStreamingMode(content.length);
+			OutputStream out = con.getOutputStream();
+			out.write(content);
+			out.close();
+			Assert.assertEquals("Retried on live target", 200, con.getResponseCode());
+			Assert.assertArrayEquals("Content was replayed", content, ReadFully(con.getInputStream()));
+		}
+	}
+
+	@Test
+	public void testNonIdempotentRequestIsNotRetried() throws Exception {
+		int failures = 0;
+		for (int i = 0; i < 4; i++) {
+			HttpURLConnection con = Open("POST", "/index.html");
+			con.setDoOutput(true);
+			OutputStream out = con.getOutputStream();
+			out.write("x=1".getBytes(StandardCharsets.UTF_8));
+			out.close();
+			if (Status(con) != 200)
+				failures++;
+		}
+		Assert.assertTrue("POST requests to the dead target failed", failures > 0);
+	}
+
+	@Test
+	public void testRetriesCanBeDisabled() throws Exception {
+		int failures = 0;
+		for (int i = 0; i < 4; i++)
+			if (Status(Open("GET", "/noretry/index.html")) != 200)
+				failures++;
+		Assert.assertTrue("Requests to the dead target failed", failures > 0);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		if (proxy != null)
+			proxy.stop();
+		if (RemoteTarget != null)
+			RemoteTarget.stop();
+	}
+}
@@ -0,0 +1,71 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+/**
+ * This is not really a unit test and does not need to be run prior to checking.
+ * It's purpose is to demonstrate that {@code RouteTrie} lookup latency stays flat as the number of configured Target patterns grows from 10 to 10,000.
+ */
+public class RouteTrieBenchmark {
+	private static final int LookupsPerRound = 2_000_000;
+
+	@Test
+	public void benchmarkLookupLatency() {
+		Random rnd = new Random(42);
+		for (int routes : new int[]{10, 100, 1000, 10000}) {
+			// Every path is routable, so each round does the same amount of work per character of path.
+			String[] paths = new String[1024];
+			for (int i = 0; i < paths.length; i++)
+				paths[i] = "/service" + rnd.nextInt(routes) + "/resource/" + rnd.nextInt(1000) + (rnd.nextBoolean() ? ".jpg" : ".json");
+			LinkedHashMap<String, Integer> patterns = new LinkedHashMap<>();
+			for (int i = 0; i < routes; i++) {
+				if ((i % 10) == 9)
+					patterns.put("*.ext" + i, i);
+				else
+					patterns.put("/service" + i + "/*", i);
+			}
+			patterns.put("*", -1);
+			RouteTrie<Integer> trie = RouteTrie.Compile(patterns);
+
+			long sink = 0;
+			// Warm up the JIT.
+			for (int i = 0; i < LookupsPerRound; i++)
+				sink += trie.lookup(paths[i & 1023]);
+			long start = System.nanoTime();
+			for (int i = 0; i < LookupsPerRound; i++)
+				sink += trie.lookup(paths[i & 1023]);
+			long elapsed = System.nanoTime() - start;
+			System.out.println(String.format("%6d routes: %6.1f ns/lookup (%d)", routes, elapsed / (double) LookupsPerRound, sink & 1));
+			Assert.assertNotNull(trie.lookup(paths[0]));
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Validates that {@code RouteTrie} selects exactly the same Target as the original linear scan of the pattern map did.
+ */
+public class RouteTrieTest {
+
+	@Test
+	public void testPrecedence() {
+		LinkedHashMap<String, String> patterns = new LinkedHashMap<>();
+		patterns.put("*", "any");
+		patterns.put("/foo/*", "foo");
+		patterns.put("/foo/bar/*", "foobar");
+		patterns.put("*.jpg", "jpg");
+		patterns.put("*/bar.jpg", "barjpg");
+		patterns.put("/exact.html", "exact");
+		patterns.put("/abcd*", "abcd-prefix");
+		patterns.put("*bcde", "bcde-suffix");
+		RouteTrie<String> trie = RouteTrie.Compile(patterns);
+
+		Assert.assertEquals("Catch all", "any", trie.lookup("/nothing/else"));
+		Assert.assertEquals("Prefix", "foo", trie.lookup("/foo/x.html"));
+		Assert.assertEquals("Longest prefix", "foobar", trie.lookup("/foo/bar/x.html"));
+		Assert.assertEquals("Longer prefix beats shorter suffix", "foo", trie.lookup("/foo/xyzzy.jpg"));
+		Assert.assertEquals("Longer suffix beats shorter prefix", "barjpg", trie.lookup("/foo/bar.jpg"));
+		Assert.assertEquals("Suffix", "jpg", trie.lookup("/x.jpg"));
+		Assert.assertEquals("Longest suffix", "barjpg", trie.lookup("/a/bar.jpg"));
+		Assert.assertEquals("Exact", "exact", trie.lookup("/exact.html"));
+		Assert.assertEquals("Trailing wildcard wins a tie", "abcd-prefix", trie.lookup("/abcde"));
+		Assert.assertEquals("Bounds are honored", "foo", trie.lookup("xx/foo/bar.htmlyy", 2, 15));
+		Assert.assertNull("No match", RouteTrie.Compile(new LinkedHashMap<String, String>()).lookup("/foo"));
+	}
+
+	/**
+	 * Compare the trie against the original algorithm using randomly generated patterns and paths.
+	 */
+	@Test
+	public void testMatchesLinearScan() {
+		Random rnd = new Random(1234);
+		for (int round = 0; round < 50; round++) {
+			LinkedHashMap<String, Integer> patterns = new LinkedHashMap<>();
+			int count = 1 + rnd.nextInt(40);
+			for (int i = 0; i < count; i++) {
+				String p = RandomPath(rnd, 4);
+				switch (rnd.nextInt(4)) {
+					case 0:
+						p = p + "*";
+						break;
+					case 1:
+						p = "*" + p;
+						break;
+					case 2:
+						p = "*" + p + "*";
+						break;
+					default:
+						break;
+				}
+				patterns.put(p, i);
+			}
+			RouteTrie<Integer> trie = RouteTrie.Compile(patterns);
+			for (int i = 0; i < 500; i++) {
+				String path = RandomPath(rnd, 6);
+				Assert.assertEquals("Same target for " + path, LinearLookup(patterns, path), trie.lookup(path));
+			}
+		}
+	}
+
+	private static String RandomPath(Random rnd, int maxLen) {
+		StringBuilder sb = new StringBuilder("/");
+		int len = rnd.nextInt(maxLen);
+		for (int i = 0; i < len; i++)
+			sb.append("ab/.".charAt(rnd.nextInt(4)));
+		return sb.toString();
+	}
+
+	/**
+	 * This is the algorithm that {@code RequestForTargetConsumer} used prior to the introduction of {@code RouteTrie}.
+	 */
+	private static <T> T LinearLookup(Map<String, T> patternTargetMapping, String uriPath) {
+		String retVal = uriPath;
+		if (patternTargetMapping.get(retVal) == null) {
+			String bestMatch = null;
+			for (Map.Entry<String, T> entry : patternTargetMapping.entrySet()) {
+				final String pattern = entry.getKey();
+				boolean matches;
+				if (pattern.equals("*"))
+					matches = true;
+				else
+					matches = (pattern.endsWith("*") && uriPath.startsWith(pattern.substring(0, pattern.length() - 1))) || (pattern.startsWith("*") && uriPath.endsWith(pattern.substring(1)));
+				if (matches) {
+					if (bestMatch == null || (bestMatch.length() < pattern.length()) || (bestMatch.length() == pattern.length() && pattern.endsWith("*")))
+						retVal = bestMatch = pattern;
+				}
+			}
+		}
+		return patternTargetMapping.get(retVal);
+	}
+}
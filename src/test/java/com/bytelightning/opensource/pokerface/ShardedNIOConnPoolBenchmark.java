@@ -0,0 +1,149 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.apache.http.HttpHost;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.impl.nio.DefaultHttpClientIODispatch;
+import org.apache.http.impl.nio.pool.BasicNIOConnFactory;
+import org.apache.http.impl.nio.pool.BasicNIOConnPool;
+import org.apache.http.impl.nio.pool.BasicNIOPoolEntry;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.protocol.HttpAsyncRequestExecutor;
+import org.apache.http.pool.ConnPool;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This is not really a unit test and does not need to be run prior to checking.
+ * It's purpose is to compare the lease throughput of {@code ShardedNIOConnPool} against a single {@code BasicNIOConnPool},
+ * both when traffic is spread across several routes, and when it all goes to a single hot route.
+ */
+@SuppressWarnings({"restriction", "WeakerAccess"})
+public class ShardedNIOConnPoolBenchmark {
+	private static final int Port = 8098;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		RemoteTarget = new SunHttpServer(new InetSocketAddress(Port), null);
+		RemoteTarget.start(exchange -> exchange.close());
+		Reactor = new DefaultConnectingIOReactor(IOReactorConfig.custom().setIoThreadCount(2).build());
+		Thread t = new Thread(() -> {
+			try {
+				Reactor.execute(new DefaultHttpClientIODispatch<>(new HttpAsyncRequestExecutor(), ConnectionConfig.DEFAULT));
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}, "benchmark-connecting-reactor");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static SunHttpServer RemoteTarget;
+	private static DefaultConnectingIOReactor Reactor;
+
+	private static HttpHost Route(int i) {
+		return new HttpHost("127.0.0." + (i + 1), Port);
+	}
+
+	/**
+	 * Measure how many lease / release cycles per second {@code threads} threads can perform against {@code pool} (whose connections are already established).
+	 */
+	private static double MeasureLeaseThroughput(ConnPool<HttpHost, BasicNIOPoolEntry> pool, int routes, int threads, long millis) throws Exception {
+		// Establish all the connections up front so that only lease / release is measured.
+		List<BasicNIOPoolEntry> entries = new ArrayList<>();
+		for (int r = 0; r < routes; r++)
+			for (int t = 0; t < threads; t++)
+				entries.add(pool.lease(Route(r), null, null).get(5, TimeUnit.SECONDS));
+		for (BasicNIOPoolEntry entry : entries)
+			pool.release(entry, true);
+
+		LongAdder ops = new LongAdder();
+		AtomicBoolean running = new AtomicBoolean(true);
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			Thread worker = new Thread(() -> {
+				ThreadLocalRandom rnd = ThreadLocalRandom.current();
+				try {
+					while (running.get()) {
+						BasicNIOPoolEntry entry = pool.lease(Route(rnd.nextInt(routes)), null, null).get();
+						pool.release(entry, true);
+						ops.increment();
+					}
+				} catch (InterruptedException | ExecutionException e) {
+					e.printStackTrace();
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		Thread.sleep(millis);
+		running.set(false);
+		for (Thread worker : workers)
+			worker.join();
+		return ops.sum() * 1000.0 / millis;
+	}
+
+	@Test
+	public void benchmarkLeaseThroughput() throws Exception {
+		int threads = Math.min(32, Runtime.getRuntime().availableProcessors() * 2);
+		for (int routes : new int[]{8, 8, 1}) {    // The first round warms up the JIT, the last sends everything to a single hot route.
+			BasicNIOConnPool basic = new BasicNIOConnPool(Reactor, new BasicNIOConnFactory(ConnectionConfig.DEFAULT), 2000);
+			basic.setMaxTotal(routes * threads);
+			basic.setDefaultMaxPerRoute(threads);
+			double basicOps = MeasureLeaseThroughput(basic, routes, threads, 3000);
+			basic.closeIdle(0, TimeUnit.MILLISECONDS);
+
+			ShardedNIOConnPool sharded = new ShardedNIOConnPool(Reactor, new BasicNIOConnFactory(ConnectionConfig.DEFAULT), 2000, 8);
+			sharded.setMaxTotal(routes * threads);
+			sharded.setDefaultMaxPerRoute(threads);
+			double shardedOps = MeasureLeaseThroughput(sharded, routes, threads, 3000);
+			System.out.printf("Lease throughput with %d threads across %d routes: BasicNIOConnPool %.0f ops/s, ShardedNIOConnPool (%d shards) %.0f ops/s (%.2fx)%n",
+					threads, routes, basicOps, sharded.getShardCount(), shardedOps, shardedOps / basicOps);
+			System.out.println("ShardedNIOConnPool statistics: " + sharded.getStatistics());
+			sharded.closeIdle(0, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		if (Reactor != null)
+			Reactor.shutdown(1000);
+		if (RemoteTarget != null)
+			RemoteTarget.stop();
+	}
+}
@@ -0,0 +1,221 @@
+package com.bytelightning.opensource.pokerface;
+/*
+The MIT License (MIT)
+
+PokerFace: Asynchronous, streaming, HTTP/1.1, scriptable, reverse proxy.
+
+Copyright (c) 2015 Frank Stock
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+import org.apache.http.HttpHost;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.impl.nio.DefaultHttpClientIODispatch;
+import org.apache.http.impl.nio.pool.BasicNIOConnFactory;
+import org.apache.http.impl.nio.pool.BasicNIOPoolEntry;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.protocol.HttpAsyncRequestExecutor;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Validates {@code ShardedNIOConnPool} (and it's {@code ConnPoolMaintainer}) against a live (SunHttpServer) remote target.
+ */
+@SuppressWarnings({"restriction", "WeakerAccess"})
+public class ShardedNIOConnPoolTest {
+	private static final int Port = 8099;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		RemoteTarget = new SunHttpServer(new InetSocketAddress(Port), null);
+		RemoteTarget.start(exchange -> exchange.close());
+		Reactor = new DefaultConnectingIOReactor(IOReactorConfig.custom().setIoThreadCount(2).build());
+		Thread t = new Thread(() -> {
+			try {
+				Reactor.execute(new DefaultHttpClientIODispatch<>(new HttpAsyncRequestExecutor(), ConnectionConfig.DEFAULT));
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}, "test-connecting-reactor");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static SunHttpServer RemoteTarget;
+	private static DefaultConnectingIOReactor Reactor;
+
+	private static HttpHost Route(int i) {
+		return new HttpHost("127.0.0." + (i + 1), Port);
+	}
+
+	private static ShardedNIOConnPool MakePool(int shards, int maxTotal, int maxPerRoute) {
+		ShardedNIOConnPool retVal = new ShardedNIOConnPool(Reactor, new BasicNIOConnFactory(ConnectionConfig.DEFAULT), 2000, shards);
+		retVal.setMaxTotal(maxTotal);
+		retVal.setDefaultMaxPerRoute(maxPerRoute);
+		return retVal;
+	}
+
+	@Test
+	public void testLeaseAndRelease() throws Exception {
+		ShardedNIOConnPool pool = MakePool(4, 8, 2);
+		HttpHost route = Route(0);
+		Assert.assertEquals("Route limit is divided between the shards", 2, pool.getMaxPerRoute(route));
+
+		BasicNIOPoolEntry first = pool.lease(route, null, null).get(5, TimeUnit.SECONDS);
+		BasicNIOPoolEntry second = pool.lease(route, null, null).get(5, TimeUnit.SECONDS);
+		Assert.assertNotSame("Leases for a single route are spread across shards", ShardedNIOConnPool.ShardOf(first), ShardedNIOConnPool.ShardOf(second));
+		Future<BasicNIOPoolEntry> third = pool.lease(route, null, null);
+		try {
+			third.get(200, TimeUnit.MILLISECONDS);
+			Assert.fail("Per route limit was not enforced");
+		} catch (TimeoutException e) {
+			// Expected
+		}
+		Assert.assertEquals("Waiting for a connection", 1, pool.getStats(route).getPending());
+		pool.release(first, true);
+		pool.release(second, true);
+		BasicNIOPoolEntry reused = third.get(5, TimeUnit.SECONDS);
+		Assert.assertTrue("Released connection was reused", (reused == first) || (reused == second));
+		Assert.assertEquals("Lease is counted against it's shard", 1, ShardedNIOConnPool.ShardOf(reused).outstanding.get());
+		pool.release(reused, true);
+		Assert.assertEquals("Lease counts are balanced", 0, ShardedNIOConnPool.ShardOf(first).outstanding.get() + ShardedNIOConnPool.ShardOf(second).outstanding.get());
+		Assert.assertEquals("Idle connections are counted", 1, ShardedNIOConnPool.ShardOf(first).load(route).idle.get());
+
+		Map<String, Object> stats = pool.getStatistics();
+		Assert.assertEquals(4, stats.get("shards"));
+		Assert.assertEquals(3L, stats.get("leases"));
+		Assert.assertEquals(0, stats.get("leased"));
+		Assert.assertEquals(2, stats.get("available"));
+		Assert.assertTrue("Lease wait was recorded", (Double) stats.get("maxLeaseWaitMillis") >= 100);
+		pool.closeIdle(0, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void testTotalLimitIsShared() throws Exception {
+		ShardedNIOConnPool pool = MakePool(2, 5, 3);
+		// Both limits are divided between the shards (each shard's share of the total is rounded up).
+		Assert.assertEquals(6, pool.getTotalStats().getMax());
+		Assert.assertEquals(3, pool.getStats(Route(4)).getMax());
+		pool.setMaxPerRoute(Route(4), 1);
+		Assert.assertEquals(1, pool.getMaxPerRoute(Route(4)));
+		Assert.assertEquals(3, pool.getMaxPerRoute(Route(5)));
+
+		// A route whose limit is smaller than the number of shards is only served by the shards that have a share of it.
+		BasicNIOPoolEntry only = pool.lease(Route(4), null, null).get(5, TimeUnit.SECONDS);
+		Future<BasicNIOPoolEntry> next = pool.lease(Route(4), null, null);
+		pool.release(only, true);
+		Assert.assertSame(only, next.get(5, TimeUnit.SECONDS));
+		pool.release(only, true);
+		pool.closeIdle(0, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void testTimeToLive() throws Exception {
+		ShardedNIOConnPool pool = MakePool(1, 4, 4);
+		pool.setTimeToLive(300);
+		HttpHost route = Route(1);
+		BasicNIOPoolEntry first = pool.lease(route, null, null).get(5, TimeUnit.SECONDS);
+		Assert.assertFalse("New connection is not reused", ShardedNIOConnPool.IsReused(first));
+		pool.release(first, true);
+		Assert.assertSame("Connection reused within it's lifetime", first, pool.lease(route, null, null).get(5, TimeUnit.SECONDS));
+		Assert.assertTrue("Released connection is marked as reused", ShardedNIOConnPool.IsReused(first));
+		Thread.sleep(400);
+		pool.release(first, true);
+		Assert.assertTrue("Connection closed when released after it's lifetime", first.isClosed());
+		BasicNIOPoolEntry second = pool.lease(route, null, null).get(5, TimeUnit.SECONDS);
+		Assert.assertNotSame(first, second);
+		pool.release(second, true);
+		Thread.sleep(400);
+		pool.closeExpired();
+		Assert.assertTrue("Idle connection closed after it's lifetime", second.isClosed());
+		Assert.assertEquals(0, pool.getStats(route).getAvailable());
+	}
+
+	@Test
+	public void testStaleConnectionIsNotReused() throws Exception {
+		ShardedNIOConnPool pool = MakePool(1, 4, 4);
+		HttpHost route = Route(2);
+		BasicNIOPoolEntry first = pool.lease(route, null, null).get(5, TimeUnit.SECONDS);
+		// Simulate the remote target closing the connection while it sits idle in the pool.
+		first.getConnection().shutdown();
+		pool.release(first, true);
+		BasicNIOPoolEntry second = pool.lease(route, null, null).get(5, TimeUnit.SECONDS);
+		Assert.assertNotSame("Stale connection was not handed out", first, second);
+		Assert.assertTrue(second.getConnection().isOpen());
+		pool.release(second, true);
+		pool.closeIdle(0, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void testPrewarmAndIdleEviction() throws Exception {
+		ShardedNIOConnPool pool = MakePool(2, 8, 4);
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			TargetHost host = new TargetHost(Route(3));
+			ConnPoolMaintainer maintainer = new ConnPoolMaintainer(pool, scheduler, Collections.singletonList(host), 3, 500, 100);
+			Assert.assertTrue("Connections were pre-warmed", maintainer.prewarm(5000));
+			Assert.assertEquals(3, pool.getStats(Route(3)).getAvailable());
+			Assert.assertEquals(0, pool.getStats(Route(3)).getLeased());
+
+			// Once a connection is lost, the next maintenance pass replaces it.
+			BasicNIOPoolEntry entry = pool.lease(Route(3), null, null).get(5, TimeUnit.SECONDS);
+			entry.close();
+			pool.release(entry, false);
+			Assert.assertEquals(2, pool.getStats(Route(3)).getAvailable());
+			maintainer.start();
+			long deadline = System.currentTimeMillis() + 5000;
+			while ((pool.getStats(Route(3)).getAvailable() < 3) && (System.currentTimeMillis() < deadline))
+				Thread.sleep(20);
+			Assert.assertEquals("Minimum idle connections restored", 3, pool.getStats(Route(3)).getAvailable());
+
+			// Without a minimum, idle connections are evicted.
+			maintainer.stop();
+			ConnPoolMaintainer evictor = new ConnPoolMaintainer(pool, scheduler, Collections.singletonList(host), 0, 200, 50);
+			evictor.start();
+			deadline = System.currentTimeMillis() + 5000;
+			while ((pool.getStats(Route(3)).getAvailable() > 0) && (System.currentTimeMillis() < deadline))
+				Thread.sleep(20);
+			Assert.assertEquals("Idle connections were evicted", 0, pool.getStats(Route(3)).getAvailable());
+			evictor.stop();
+		} finally {
+			scheduler.shutdownNow();
+			pool.closeIdle(0, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		if (Reactor != null)
+			Reactor.shutdown(1000);
+		if (RemoteTarget != null)
+			RemoteTarget.stop();
+	}
+}
@@ -0,0 +1,24 @@
+/*
+ * Endpoint used by CacheTest to verify that cacheable endpoint responses are served from the response cache.
+ * Each response carries the number of times the endpoint has generated a response.
+ */
+(function() {
+	var count = 0;
+	return {
+		apiVersion: 1,
+
+		inspectRequest: function(request, context) {
+			return this;
+		},
+
+		generateResponse: function(request, context) {
+			count++;
+			return {
+				statusCode: 200,
+				mimeType: 'text/plain',
+				maxAge: 60,
+				content: 'counter ' + count
+			};
+		}
+	};
+})();